@@ -0,0 +1,48 @@
+package net.archigny.utils.ad.impl;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs benchmarks selected by JMH command line arguments, single-threaded then with one thread per processor, with allocation
+ * rates reported by the GC profiler. Standard JMH behaviour applies if a thread count is given (-t).
+ *
+ * @author Philippe MARASSE
+ */
+public final class Benchmarks {
+
+    /** Thread counts used when none is given */
+    private static final int[] THREADS = { 1, Threads.MAX };
+
+    private Benchmarks() {
+
+    }
+
+    public static void main(final String[] args) throws Exception {
+
+        final CommandLineOptions cli = new CommandLineOptions(args);
+        if (cli.shouldHelp() || cli.shouldList() || cli.shouldListProfilers() || cli.shouldListResultFormats()
+                || cli.getThreads().hasValue()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        for (int threads : THREADS) {
+            new Runner(new OptionsBuilder().parent(cli).threads(threads).addProfiler(GCProfiler.class).build()).run();
+        }
+    }
+
+    /**
+     * Registries log each directory query at debug level : logs are limited to warnings during measurements
+     */
+    static void quietLogs() {
+
+        Logger.getLogger("net.archigny").setLevel(Level.WARN);
+    }
+
+}
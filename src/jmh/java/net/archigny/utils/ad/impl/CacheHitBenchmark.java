@@ -0,0 +1,105 @@
+package net.archigny.utils.ad.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.cache.Cache;
+import javax.cache.CacheManager;
+import javax.cache.Caching;
+import javax.cache.configuration.MutableConfiguration;
+import javax.cache.spi.CachingProvider;
+
+import org.ldaptive.LdapException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hit path of {@link CachingADTokenGroupsRegistry} : every SID is in the JCache, the directory is never queried
+ *
+ * @author Philippe MARASSE
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheHitBenchmark {
+
+    /** Number of cached SIDs */
+    public static final int              GROUPS     = 1000;
+
+    /** Name of the JCache */
+    public static final String           CACHE_NAME = CachingADTokenGroupsRegistry.CACHE_NAME + ".benchmark";
+
+    /** JCache provider : ehcache or hazelcast */
+    @Param({ "ehcache", "hazelcast" })
+    public String                        provider;
+
+    /** Size of the near cache, 0 for none */
+    @Param({ "0", "1000" })
+    public int                           nearCacheSize;
+
+    /** JCache provider */
+    private CachingProvider              cachingProvider;
+
+    /** JCache manager */
+    private CacheManager                 cacheManager;
+
+    /** Registry under test */
+    private CachingADTokenGroupsRegistry registry;
+
+    /** SIDs looked up */
+    private byte[][]                     tokens;
+
+    @Setup
+    public void setUp() throws Exception {
+
+        Benchmarks.quietLogs();
+        cachingProvider = Caching.getCachingProvider("hazelcast".equals(provider) ? "com.hazelcast.cache.HazelcastCachingProvider"
+                : "org.ehcache.jsr107.EhcacheCachingProvider");
+        cacheManager = cachingProvider.getCacheManager();
+        final Cache<String, String> cache = cacheManager.createCache(CACHE_NAME, new MutableConfiguration<String, String>()
+                .setTypes(String.class, String.class));
+
+        tokens = new byte[GROUPS][];
+        for (int i = 0; i < GROUPS; i++) {
+            tokens[i] = EmbeddedDirectory.groupToken(1000 + i);
+            cache.put(SidKey.of(tokens[i]).toString(), EmbeddedDirectory.groupDn(1000 + i));
+        }
+
+        registry = new CachingADTokenGroupsRegistry();
+        registry.setLdapConnectionFactory(() -> {
+            throw new LdapException("No directory");
+        });
+        registry.setBaseDN(EmbeddedDirectory.BASE_DN);
+        registry.setCache(cache);
+        registry.setNearCacheSize(nearCacheSize);
+        registry.afterPropertiesSet();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+
+        registry.destroy();
+        cacheManager.destroyCache(CACHE_NAME);
+        cacheManager.close();
+        cachingProvider.close();
+    }
+
+    @Benchmark
+    public String hit(final TokenCursor cursor) {
+
+        return registry.getDnFromToken(tokens[cursor.next(GROUPS)]);
+    }
+
+}
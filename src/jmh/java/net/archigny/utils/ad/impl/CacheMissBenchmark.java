@@ -0,0 +1,112 @@
+package net.archigny.utils.ad.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.cache.Cache;
+import javax.cache.CacheManager;
+import javax.cache.Caching;
+import javax.cache.configuration.MutableConfiguration;
+import javax.cache.spi.CachingProvider;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Miss path of {@link CachingADTokenGroupsRegistry} : each SID is removed from the JCache before being looked up, so that every
+ * lookup queries an {@link EmbeddedDirectory} through the connection pool and fills the cache again
+ *
+ * @author Philippe MARASSE
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheMissBenchmark {
+
+    /** Number of groups in the directory */
+    public static final int              GROUPS     = 1000;
+
+    /** Name of the JCache */
+    public static final String           CACHE_NAME = CachingADTokenGroupsRegistry.CACHE_NAME + ".benchmark";
+
+    /** Directory */
+    private EmbeddedDirectory            directory;
+
+    /** JCache provider */
+    private CachingProvider              cachingProvider;
+
+    /** JCache manager */
+    private CacheManager                 cacheManager;
+
+    /** JCache used by the registry */
+    private Cache<String, String>        cache;
+
+    /** Registry under test */
+    private CachingADTokenGroupsRegistry registry;
+
+    /** SIDs looked up */
+    private byte[][]                     tokens;
+
+    /** Cache keys of tokens */
+    private String[]                     keys;
+
+    @Setup
+    public void setUp() throws Exception {
+
+        Benchmarks.quietLogs();
+        directory = new EmbeddedDirectory();
+        tokens = new byte[GROUPS][];
+        keys = new String[GROUPS];
+        for (int i = 0; i < GROUPS; i++) {
+            directory.addGroup(1000 + i);
+            tokens[i] = EmbeddedDirectory.groupToken(1000 + i);
+            keys[i] = SidKey.of(tokens[i]).toString();
+        }
+
+        cachingProvider = Caching.getCachingProvider("org.ehcache.jsr107.EhcacheCachingProvider");
+        cacheManager = cachingProvider.getCacheManager();
+        cache = cacheManager.createCache(CACHE_NAME, new MutableConfiguration<String, String>().setTypes(String.class,
+                String.class));
+
+        registry = new CachingADTokenGroupsRegistry();
+        registry.setLdapConnectionFactory(directory.newConnectionFactory());
+        registry.setBaseDN(EmbeddedDirectory.BASE_DN);
+        registry.setCache(cache);
+        registry.afterPropertiesSet();
+
+        final String groupDN = registry.getDnFromToken(tokens[0]);
+        if (!EmbeddedDirectory.groupDn(1000).equalsIgnoreCase(groupDN)) {
+            throw new IllegalStateException("SID not resolved by the embedded directory : " + groupDN);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+
+        registry.destroy();
+        cacheManager.destroyCache(CACHE_NAME);
+        cacheManager.close();
+        cachingProvider.close();
+        directory.close();
+    }
+
+    @Benchmark
+    public String miss(final TokenCursor cursor) {
+
+        final int i = cursor.next(GROUPS);
+        cache.remove(keys[i]);
+        return registry.getDnFromToken(tokens[i]);
+    }
+
+}
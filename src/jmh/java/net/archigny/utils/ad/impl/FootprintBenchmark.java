@@ -0,0 +1,116 @@
+package net.archigny.utils.ad.impl;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.cache.expiry.Duration;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Heap held by the built-in cache, with and without compacted DNs : {@link #fill(Footprint)} reports the retained bytes per
+ * entry (key, value and cache node) as the bytesPerEntry counter, {@link #hit()} the cost of materializing DNs on hits.
+ *
+ * @author Philippe MARASSE
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+public class FootprintBenchmark {
+
+    /** Number of cached SIDs */
+    @Param({ "100000" })
+    public int                   entries;
+
+    /** True to hold compacted DNs */
+    @Param({ "false", "true" })
+    public boolean               compactDns;
+
+    /** SIDs of cached groups */
+    private SidKey[]             keys;
+
+    /** Filled cache, used by hits */
+    private BoundedRegistryCache cache;
+
+    /**
+     * Retained heap, measured once per invocation
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Footprint {
+
+        /** Heap retained by an entry (bytes) */
+        public long bytesPerEntry;
+    }
+
+    @Setup
+    public void setUp() {
+
+        keys = new SidKey[entries];
+        for (int i = 0; i < entries; i++) {
+            keys[i] = SidKey.of(EmbeddedDirectory.groupToken(EmbeddedDirectory.FIRST_GROUP_RID + i));
+        }
+        cache = newFilledCache();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public BoundedRegistryCache fill(final Footprint footprint) {
+
+        final long before = usedHeap();
+        final BoundedRegistryCache filled = newFilledCache();
+        footprint.bytesPerEntry = (usedHeap() - before) / entries;
+        return filled;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @Warmup(iterations = 5, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public String hit() {
+
+        return cache.get(keys[ThreadLocalRandom.current().nextInt(entries)]);
+    }
+
+    /**
+     * @return cache holding a DN per SID, each one being a fresh string as if received from the directory
+     */
+    private BoundedRegistryCache newFilledCache() {
+
+        final BoundedRegistryCache filled = new BoundedRegistryCache(new TinyLfuCache<SidKey, Object>(entries, 0,
+                DnSuffixTree::lengthOf, new CreatedAccessedExpiryPolicy(Duration.ETERNAL, null)), compactDns ? new DnSuffixTree()
+                        : DnSuffixTree.NONE);
+        for (int i = 0; i < entries; i++) {
+            final SidKey key = SidKey.of(keys[i].getBytes());
+            filled.put(key, EmbeddedDirectory.groupDn(EmbeddedDirectory.FIRST_GROUP_RID + i));
+        }
+        return filled;
+    }
+
+    /**
+     * @return heap used once garbage has been collected (bytes)
+     */
+    private static long usedHeap() {
+
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+}
@@ -0,0 +1,107 @@
+package net.archigny.utils.ad.impl;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.cache.CacheManager;
+import javax.cache.Caching;
+import javax.cache.configuration.MutableConfiguration;
+import javax.cache.spi.CachingProvider;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Load test of {@link CachingADTokenGroupsRegistry} : groups of random users are resolved against a generated
+ * {@link EmbeddedDirectory}, each search being delayed by a realistic Active Directory response time. Popular groups end up in the
+ * cache while the long tail keeps querying the directory.
+ *
+ * @author Philippe MARASSE
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ScaleBenchmark {
+
+    /** Name of the JCache */
+    public static final String           CACHE_NAME = CachingADTokenGroupsRegistry.CACHE_NAME + ".benchmark";
+
+    /** Number of groups in the directory */
+    @Param({ "100000" })
+    public int                           groups;
+
+    /** Number of users in the directory */
+    @Param({ "10000" })
+    public int                           users;
+
+    /** Minimum response time of the directory (milliseconds), the maximum being twice as much */
+    @Param({ "0", "2" })
+    public int                           latency;
+
+    /** Maximum number of cached groups */
+    @Param({ "20000" })
+    public int                           cacheSize;
+
+    /** Directory */
+    private EmbeddedDirectory            directory;
+
+    /** JCache provider */
+    private CachingProvider              cachingProvider;
+
+    /** JCache manager */
+    private CacheManager                 cacheManager;
+
+    /** Registry under test */
+    private CachingADTokenGroupsRegistry registry;
+
+    @Setup
+    public void setUp() throws Exception {
+
+        Benchmarks.quietLogs();
+        directory = new EmbeddedDirectory();
+        directory.generate(groups, users, 42);
+        directory.setLatency(Duration.ofMillis(latency), Duration.ofMillis(2 * latency));
+
+        cachingProvider = Caching.getCachingProvider("org.ehcache.jsr107.EhcacheCachingProvider");
+        cacheManager = cachingProvider.getCacheManager();
+
+        registry = new CachingADTokenGroupsRegistry();
+        registry.setLdapConnectionFactory(directory.newConnectionFactory());
+        registry.setBaseDN(EmbeddedDirectory.BASE_DN);
+        registry.setCache(cacheManager.createCache(CACHE_NAME, new MutableConfiguration<String, String>().setTypes(String.class,
+                String.class)));
+        registry.setNearCacheSize(cacheSize);
+        registry.afterPropertiesSet();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+
+        registry.destroy();
+        cacheManager.destroyCache(CACHE_NAME);
+        cacheManager.close();
+        cachingProvider.close();
+        directory.close();
+    }
+
+    @Benchmark
+    public List<String> userGroups(final TokenCursor cursor) {
+
+        return registry.getGroupDnsForUser(EmbeddedDirectory.userDn(cursor.next(users)));
+    }
+
+}
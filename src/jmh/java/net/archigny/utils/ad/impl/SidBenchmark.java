@@ -0,0 +1,83 @@
+package net.archigny.utils.ad.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.ldaptive.ad.SecurityIdentifier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * SID conversions done on each lookup
+ *
+ * @author Philippe MARASSE
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SidBenchmark {
+
+    /** SID of a domain group */
+    private String sid      = EmbeddedDirectory.DOMAIN_SID + "-1105";
+
+    /** Binary form of sid */
+    private byte[] sidBytes = SecurityIdentifier.toBytes(sid);
+
+    @Benchmark
+    public String sidToString() {
+
+        return SecurityIdentifier.toString(sidBytes);
+    }
+
+    @Benchmark
+    public byte[] sidFromString() {
+
+        return SecurityIdentifier.toBytes(sid);
+    }
+
+    @Benchmark
+    public String codecToString() {
+
+        return SidCodec.toString(sidBytes);
+    }
+
+    @Benchmark
+    public byte[] codecToBytes() {
+
+        return SidCodec.toBytes(sid);
+    }
+
+    @Benchmark
+    public String codecToFilterValue() {
+
+        return SidCodec.toFilterValue(sidBytes);
+    }
+
+    @Benchmark
+    public SidKey sidKeyOf() {
+
+        return SidKey.of(sidBytes);
+    }
+
+    @Benchmark
+    public SidKey sidKeyParse() {
+
+        return SidKey.parse(sid);
+    }
+
+    @Benchmark
+    public String toHexString() {
+
+        return LdapUtils.toHexString(sidBytes);
+    }
+
+}
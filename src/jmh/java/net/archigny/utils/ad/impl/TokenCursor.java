@@ -0,0 +1,30 @@
+package net.archigny.utils.ad.impl;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Per thread position in the SIDs of a benchmark, starting at a random place so that threads do not look up the same SID at the
+ * same time
+ *
+ * @author Philippe MARASSE
+ */
+@State(Scope.Thread)
+public class TokenCursor {
+
+    /** Index of the next SID */
+    private int next = ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE);
+
+    /**
+     * @param size number of SIDs
+     * @return index of the next SID
+     */
+    int next(final int size) {
+
+        next = next + 1 & Integer.MAX_VALUE;
+        return next % size;
+    }
+
+}
@@ -0,0 +1,218 @@
+package net.archigny.utils.ad.api;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable group resolved by a registry : its Distinguished Name and the string values of the attributes projected by the registry
+ * (see groupAttributes), fetched by the same search as the DN. Registries cache a record as a single String (see
+ * {@link #encode()}) : the DN alone when no attribute is projected.
+ *
+ * @author Philippe MARASSE
+ */
+public final class GroupRecord implements Serializable {
+
+    /** Serial */
+    private static final long     serialVersionUID = -3268941087735411352L;
+
+    /** Separates DN and attributes in encoded records */
+    private static final char     FIELD_SEPARATOR  = '\0';
+
+    /** Separates attribute name and values in encoded records */
+    private static final char     VALUE_SEPARATOR  = '\u0001';
+
+    /** No value */
+    private static final String[] NO_VALUES        = new String[0];
+
+    /** Distinguished Name */
+    private final String          dn;
+
+    /** Attribute names, in projection order */
+    private final String[]        names;
+
+    /** Attribute values, by attribute index */
+    private final String[][]      values;
+
+    /**
+     * Builds a record without attributes
+     *
+     * @param dn Distinguished Name
+     */
+    public GroupRecord(final String dn) {
+
+        this(dn, NO_VALUES, new String[0][]);
+    }
+
+    /**
+     * @param dn Distinguished Name
+     * @param attributes values by attribute name, attributes without value are kept
+     */
+    public GroupRecord(final String dn, final Map<String, ? extends Collection<String>> attributes) {
+
+        this.dn = dn;
+        this.names = new String[attributes.size()];
+        this.values = new String[attributes.size()][];
+        int i = 0;
+        for (Map.Entry<String, ? extends Collection<String>> attribute : attributes.entrySet()) {
+            names[i] = attribute.getKey();
+            values[i] = attribute.getValue().toArray(new String[attribute.getValue().size()]);
+            i++;
+        }
+    }
+
+    private GroupRecord(final String dn, final String[] names, final String[][] values) {
+
+        this.dn = dn;
+        this.names = names;
+        this.values = values;
+    }
+
+    /**
+     * @return Distinguished Name
+     */
+    public String getDn() {
+
+        return dn;
+    }
+
+    /**
+     * @return names of projected attributes
+     */
+    public Set<String> getAttributeNames() {
+
+        return Collections.unmodifiableSet(new LinkedHashSet<String>(Arrays.asList(names)));
+    }
+
+    /**
+     * @param name attribute name, case insensitive
+     * @return first value of attribute or null if attribute is not projected or has no value
+     */
+    public String getAttribute(final String name) {
+
+        final int i = indexOf(name);
+        return i < 0 || values[i].length == 0 ? null : values[i][0];
+    }
+
+    /**
+     * @param name attribute name, case insensitive
+     * @return values of attribute, empty if attribute is not projected or has no value
+     */
+    public List<String> getAttributeValues(final String name) {
+
+        final int i = indexOf(name);
+        return i < 0 ? Collections.<String> emptyList() : Collections.unmodifiableList(Arrays.asList(values[i]));
+    }
+
+    private int indexOf(final String name) {
+
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Encodes this record as a single String : the DN, followed for each attribute by a NUL character, its name and its values,
+     * each one preceded by a SOH character. Values must not contain these control characters.
+     *
+     * @return encoded record, the DN alone if there is no attribute
+     */
+    public String encode() {
+
+        if (names.length == 0) {
+            return dn;
+        }
+        final StringBuilder sb = new StringBuilder(dn.length() + 32 * names.length).append(dn);
+        for (int i = 0; i < names.length; i++) {
+            sb.append(FIELD_SEPARATOR).append(names[i]);
+            for (String value : values[i]) {
+                sb.append(VALUE_SEPARATOR).append(value);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param encoded record encoded by {@link #encode()} or DN
+     * @return record or null if encoded is null
+     */
+    public static GroupRecord decode(final String encoded) {
+
+        if (encoded == null) {
+            return null;
+        }
+        int end = encoded.indexOf(FIELD_SEPARATOR);
+        if (end < 0) {
+            return new GroupRecord(encoded);
+        }
+
+        final String dn = encoded.substring(0, end);
+        final List<String> names = new ArrayList<String>(4);
+        final List<String[]> values = new ArrayList<String[]>(4);
+        while (end < encoded.length()) {
+            final int start = end + 1;
+            end = encoded.indexOf(FIELD_SEPARATOR, start);
+            if (end < 0) {
+                end = encoded.length();
+            }
+            final List<String> fields = new ArrayList<String>(2);
+            int from = start;
+            for (int to = encoded.indexOf(VALUE_SEPARATOR, from); to >= 0 && to < end; to = encoded.indexOf(VALUE_SEPARATOR, from)) {
+                fields.add(encoded.substring(from, to));
+                from = to + 1;
+            }
+            fields.add(encoded.substring(from, end));
+            names.add(fields.get(0));
+            values.add(fields.subList(1, fields.size()).toArray(NO_VALUES));
+        }
+        return new GroupRecord(dn, names.toArray(NO_VALUES), values.toArray(new String[values.size()][]));
+    }
+
+    /**
+     * @param encoded record encoded by {@link #encode()} or DN
+     * @return DN of record or null if encoded is null
+     */
+    public static String dnOf(final String encoded) {
+
+        if (encoded == null) {
+            return null;
+        }
+        final int end = encoded.indexOf(FIELD_SEPARATOR);
+        return end < 0 ? encoded : encoded.substring(0, end);
+    }
+
+    @Override
+    public int hashCode() {
+
+        return encode().hashCode();
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+
+        if (this == obj) return true;
+        if (obj == null) return false;
+        if (getClass() != obj.getClass()) return false;
+        return encode().equals(((GroupRecord) obj).encode());
+    }
+
+    @Override
+    public String toString() {
+
+        final StringBuilder sb = new StringBuilder(dn);
+        for (int i = 0; i < names.length; i++) {
+            sb.append(i == 0 ? " [" : ", ").append(names[i]).append('=').append(Arrays.toString(values[i]));
+        }
+        return names.length == 0 ? sb.toString() : sb.append(']').toString();
+    }
+
+}
@@ -1,5 +1,14 @@
 package net.archigny.utils.ad.api;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.ldaptive.LdapAttribute;
+import org.ldaptive.LdapEntry;
+
 /**
  * Registry for Active Directory Token Groups
  * 
@@ -22,9 +31,10 @@ public interface IActiveDirectoryTokenGroupsRegistry {
     public String getBaseDN();
     
     /**
-     * Resolve a string represented binary SID to its Distinguished Name
+     * Resolve a string represented SID to its Distinguished Name
      *
-     * @param tokenGroup String representation that will be converted to byte[]
+     * @param tokenGroup canonical string representation (S-1-5-21-...) or binary SID held in a String, one char per byte
+     *            (ISO-8859-1)
      * @return Distinguished name of token or null if non existent
      */
     public String getDnFromToken(final String tokenGroup);
@@ -36,5 +46,95 @@ public interface IActiveDirectoryTokenGroupsRegistry {
      * @return Distinguished name of token or null if non existent
      */
     public String getDnFromToken(final byte[] tokenGroup);
-    
+
+    /**
+     * Resolve a Distinguished Name to its binary SID, the reverse of {@link #getDnFromToken(byte[])}
+     *
+     * @param dn Distinguished name of a group, compared case insensitively
+     * @return byte array representing the SID in binary format (as in tokenGroups) or null if non existent
+     */
+    public byte[] getTokenFromDn(final String dn);
+
+    /**
+     * Resolve a collection of binary SIDs to their Distinguished Names. Implementations may group several SIDs in a single
+     * directory query.
+     *
+     * @param tokenGroups collection of byte arrays representing SIDs in binary format (fetched from AD)
+     * @return Map of string represented SIDs (S-1-5-...) to Distinguished names. Unresolvable or invalid SIDs are absent from the
+     *         map
+     */
+    public Map<String, String> getDnsFromTokens(final Collection<byte[]> tokenGroups);
+
+    /**
+     * Resolve a binary SID to its group record : DN and attributes projected by the registry, fetched by the same search. The
+     * default implementation returns records holding the DN only.
+     *
+     * @param tokenGroup byte array representing the SID in binary format (fetched from AD)
+     * @return group record or null if non existent
+     */
+    public default GroupRecord getGroupFromToken(final byte[] tokenGroup) {
+
+        final String dn = getDnFromToken(tokenGroup);
+        return dn == null ? null : new GroupRecord(dn);
+    }
+
+    /**
+     * Resolve a collection of binary SIDs to their group records, see {@link #getGroupFromToken(byte[])}
+     *
+     * @param tokenGroups collection of byte arrays representing SIDs in binary format (fetched from AD)
+     * @return Map of string represented SIDs (S-1-5-...) to group records. Unresolvable or invalid SIDs are absent from the map
+     */
+    public default Map<String, GroupRecord> getGroupsFromTokens(final Collection<byte[]> tokenGroups) {
+
+        final Map<String, String> dns = getDnsFromTokens(tokenGroups);
+        final Map<String, GroupRecord> groups = new HashMap<String, GroupRecord>(dns.size() * 2);
+        for (Map.Entry<String, String> entry : dns.entrySet()) {
+            groups.put(entry.getKey(), new GroupRecord(entry.getValue()));
+        }
+        return groups;
+    }
+
+    /**
+     * Asynchronously resolve a binary SID to its Distinguished Name
+     *
+     * @param tokenGroup byte array representing the SID in binary format (fetched from AD)
+     * @return future completed with the Distinguished name of token or null if non existent
+     */
+    public CompletableFuture<String> getDnFromTokenAsync(final byte[] tokenGroup);
+
+    /**
+     * Asynchronously resolve a collection of binary SIDs to their Distinguished Names
+     *
+     * @param tokenGroups collection of byte arrays representing SIDs in binary format (fetched from AD)
+     * @return future completed with the same Map as {@link #getDnsFromTokens(Collection)}
+     */
+    public CompletableFuture<Map<String, String>> getDnsFromTokensAsync(final Collection<byte[]> tokenGroups);
+
+    /**
+     * Resolve all groups of a user : its tokenGroups attribute is fetched with a base search, then resolved like
+     * {@link #getDnsFromTokens(Collection)}.
+     *
+     * @param userDn Distinguished name of the user
+     * @return Distinguished names of groups, in tokenGroups order and without duplicates. Empty if the user is not found
+     */
+    public List<String> getGroupDnsForUser(final String userDn);
+
+    /**
+     * Resolve all groups of an already fetched user entry. The tokenGroups attribute must have been requested as a binary
+     * attribute.
+     *
+     * @param userEntry user entry holding a tokenGroups attribute
+     * @return Distinguished names of groups, in tokenGroups order and without duplicates. Empty if the entry has no tokenGroups
+     */
+    public List<String> getGroupDnsForUser(final LdapEntry userEntry);
+
+    /**
+     * Resolve all binary values of a tokenGroups attribute. Values are resolved in iteration order of the attribute, which is only
+     * the order sent by the directory if the attribute has been read with {@link org.ldaptive.SortBehavior#ORDERED}.
+     *
+     * @param tokenGroups binary tokenGroups attribute
+     * @return Distinguished names of groups, in values order and without duplicates
+     */
+    public List<String> getGroupDnsForUser(final LdapAttribute tokenGroups);
+
 }
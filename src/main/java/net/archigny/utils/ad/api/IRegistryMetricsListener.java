@@ -0,0 +1,50 @@
+package net.archigny.utils.ad.api;
+
+/**
+ * Listener notified of each lookup outcome and directory operation of a registry, used to bridge registry metrics to an external
+ * metrics system. Callbacks are invoked synchronously by lookup threads : implementations must be thread safe, fast and must not
+ * block.
+ *
+ * @author Philippe MARASSE
+ */
+public interface IRegistryMetricsListener {
+
+    /**
+     * A SID has been resolved without querying the directory (cache, snapshot, index or well-known SIDs table)
+     */
+    public default void onHit() {
+
+    }
+
+    /**
+     * A SID has been resolved as missing without querying the directory (negative cache, cached null value or out of scope SID)
+     */
+    public default void onNegativeHit() {
+
+    }
+
+    /**
+     * A SID has not been found locally and is searched in the directory
+     */
+    public default void onMiss() {
+
+    }
+
+    /**
+     * A last known value has been served instead of querying the directory
+     */
+    public default void onStaleHit() {
+
+    }
+
+    /**
+     * A directory operation has completed
+     *
+     * @param nanos duration of the operation (nanoseconds), including the retry of a broken connection
+     * @param failed true if the operation raised an error
+     */
+    public default void onLdapOperation(final long nanos, final boolean failed) {
+
+    }
+
+}
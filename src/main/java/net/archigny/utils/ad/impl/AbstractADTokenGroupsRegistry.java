@@ -1,13 +1,58 @@
 package net.archigny.utils.ad.impl;
 
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+
 import org.ldaptive.Connection;
 import org.ldaptive.ConnectionFactory;
+import org.ldaptive.DefaultConnectionFactory;
+import org.ldaptive.LdapAttribute;
+import org.ldaptive.LdapEntry;
 import org.ldaptive.LdapException;
+import org.ldaptive.ResultCode;
+import org.ldaptive.SearchOperation;
+import org.ldaptive.SearchRequest;
+import org.ldaptive.SearchScope;
+import org.ldaptive.SortBehavior;
+import org.ldaptive.pool.BlockingConnectionPool;
+import org.ldaptive.pool.BlockingTimeoutException;
+import org.ldaptive.pool.IdlePruneStrategy;
+import org.ldaptive.pool.PoolConfig;
+import org.ldaptive.pool.PoolException;
+import org.ldaptive.pool.PoolExhaustedException;
+import org.ldaptive.pool.PoolInterruptedException;
+import org.ldaptive.pool.PooledConnectionProxy;
+import org.ldaptive.pool.SearchValidator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import net.archigny.utils.ad.api.GroupRecord;
 import net.archigny.utils.ad.api.IActiveDirectoryTokenGroupsRegistry;
+import net.archigny.utils.ad.api.IRegistryMetricsListener;
 
 /**
  * Abstract class implementing base functions.
@@ -16,17 +61,115 @@ import net.archigny.utils.ad.api.IActiveDirectoryTokenGroupsRegistry;
  */
 public abstract class AbstractADTokenGroupsRegistry implements IActiveDirectoryTokenGroupsRegistry {
 
+    /**
+     * Strategies used to share LDAP connections between threads
+     */
+    public enum ConnectionMode {
+        /**
+         * Connections are borrowed from a bounded pool for each operation. If the provided connection factory cannot be pooled
+         * (not a {@link DefaultConnectionFactory}), a connection is fetched from the factory and closed after each operation.
+         */
+        POOLED,
+        /** Each thread opens and keeps its own connection */
+        THREAD_LOCAL
+    }
+
+    /**
+     * Operation executed with a connection borrowed by {@link AbstractADTokenGroupsRegistry#executeLdap(LdapCallback)}
+     * 
+     * @param <T> type of the operation result
+     */
+    @FunctionalInterface
+    public interface LdapCallback<T> {
+
+        /**
+         * @param connection opened connection, must not be closed by the callback
+         * @return operation result
+         * @throws LdapException when the operation fails
+         */
+        T doWithConnection(Connection connection) throws LdapException;
+    }
+
+    /** Default minimum number of pooled connections */
+    public static final int                 DEFAULT_MIN_POOL_SIZE     = 1;
+
+    /** Default maximum number of pooled connections */
+    public static final int                 DEFAULT_MAX_POOL_SIZE     = 10;
+
+    /** Default maximum time to wait for a pooled connection : 5s */
+    public static final long                DEFAULT_POOL_WAIT_TIME    = 5000;
+
+    /** Default time after which an idle pooled connection is pruned : 600s =&gt; 10 minutes */
+    public static final long                DEFAULT_POOL_IDLE_TIME    = 600;
+
+    /** Default period of idle connections pruning : 300s =&gt; 5 minutes */
+    public static final long                DEFAULT_POOL_PRUNE_PERIOD = 300;
+
+    /** Default period of idle connections validation : 120s =&gt; 2 minutes */
+    public static final long                DEFAULT_VALIDATE_PERIOD   = 120;
+
+    /** LDAP Attribute holding the binary SIDs of all groups of a user (only returned by base searches) */
+    public static final String              TOKEN_GROUPS_ATTRIBUTE    = "tokenGroups";
+
     /** logger for this class */
-    private final Logger        log    = LoggerFactory.getLogger(AbstractADTokenGroupsRegistry.class);
+    private final Logger                    log                       = LoggerFactory.getLogger(AbstractADTokenGroupsRegistry.class);
 
     /** Base DN when looking for groups (relative to baseDN provided to contextSource) */
-    protected String            baseDN = "";
+    protected String                        baseDN                    = "";
 
     /** LDAP Connection Factory */
-    protected ConnectionFactory ldapConnectionFactory;
+    protected ConnectionFactory             ldapConnectionFactory;
+
+    /** Connection sharing strategy */
+    private ConnectionMode                  connectionMode            = ConnectionMode.POOLED;
+
+    /** Minimum number of pooled connections */
+    private int                             minPoolSize               = DEFAULT_MIN_POOL_SIZE;
+
+    /** Maximum number of pooled connections */
+    private int                             maxPoolSize               = DEFAULT_MAX_POOL_SIZE;
+
+    /** Maximum time to wait for a pooled connection (milliseconds) */
+    private long                            poolWaitTime              = DEFAULT_POOL_WAIT_TIME;
+
+    /** Time after which an idle pooled connection is pruned (seconds) */
+    private long                            poolIdleTime              = DEFAULT_POOL_IDLE_TIME;
+
+    /** Period of idle connections pruning (seconds) */
+    private long                            poolPrunePeriod           = DEFAULT_POOL_PRUNE_PERIOD;
+
+    /** Period of idle connections validation (seconds), 0 to disable */
+    private long                            poolValidatePeriod        = DEFAULT_VALIDATE_PERIOD;
+
+    /** True if pooled connections are validated (rootDSE search) before being handed out */
+    private boolean                         validateOnBorrow          = true;
+
+    /** Connection pool, created during initialization if connection mode is POOLED */
+    private BlockingConnectionPool          connectionPool;
+
+    /** Connections used by THREAD_LOCAL connection mode */
+    private final ThreadLocal<Connection>   threadConnection          = new ThreadLocal<Connection>();
+
+    /** All connections opened by THREAD_LOCAL connection mode, closed on destroy */
+    private final Set<Connection>           threadConnections         = ConcurrentHashMap.newKeySet();
+
+    /** Executor running asynchronous lookups, a fixed pool of maxPoolSize threads is created on first use if none is provided */
+    private volatile Executor               executor;
+
+    /** Executor is shut down only if we created it */
+    private boolean                         closeExecutorPreDestroy = false;
+
+    /** Guards creation and shutdown of the executor */
+    private final Object                    executorLock              = new Object();
+
+    /** Lookup and directory metrics */
+    protected final RegistryMetrics         metrics                   = new RegistryMetrics();
 
-    /** Current LDAP Connection */
-    protected Connection        ldapConnection;
+    /** JMX name of metrics MBean (eg: net.archigny.utils.ad:type=Registry,name=groups), not registered if null */
+    private String                          mbeanName;
+
+    /** Registered metrics MBean, null if none */
+    private ObjectName                      registeredMBean;
 
     @PostConstruct
     public void afterPropertiesSet() {
@@ -35,34 +178,457 @@ public abstract class AbstractADTokenGroupsRegistry implements IActiveDirectoryT
         if (ldapConnectionFactory == null) {
             throw new IllegalStateException("LDAP connection cannot be null !");
         }
+        if (minPoolSize < 0 || maxPoolSize < 1 || minPoolSize > maxPoolSize) {
+            throw new IllegalStateException("Invalid pool sizes : min=" + minPoolSize + ", max=" + maxPoolSize);
+        }
         log.debug("Validated with group search base : {}", baseDN);
 
+        initLdap();
+
+        if (mbeanName != null && registeredMBean == null) {
+            try {
+                registeredMBean = new ObjectName(mbeanName);
+                ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, registeredMBean);
+                log.info("Metrics registered as MBean {}", registeredMBean);
+            } catch (JMException e) {
+                registeredMBean = null;
+                throw new IllegalStateException("Unable to register metrics MBean " + mbeanName, e);
+            }
+        }
     }
 
     /**
-     * assures that a LDAP connection is opened or throws an IllegalStateException
+     * Method that should be called before destroying references to this bean
      */
-    protected void initLdap() {
+    @PreDestroy
+    public void destroy() {
 
-        if (ldapConnection == null) {
+        synchronized (executorLock) {
+            if (closeExecutorPreDestroy) {
+                log.info("Shutting down locally created executor");
+                ((ExecutorService) executor).shutdown();
+                executor = null;
+                closeExecutorPreDestroy = false;
+            }
+        }
+        if (registeredMBean != null) {
             try {
-                ldapConnection = ldapConnectionFactory.getConnection();
-                ldapConnection.open();
-            } catch (LdapException e) {
-                throw new IllegalStateException("Error opening LDAP connection", e);
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredMBean);
+            } catch (JMException e) {
+                log.warn("Unable to unregister metrics MBean {} : {}", registeredMBean, e.getMessage());
+            }
+            registeredMBean = null;
+        }
+        cleanUpLdap();
+    }
+
+    @Override
+    public CompletableFuture<String> getDnFromTokenAsync(final byte[] tokenGroup) {
+
+        return CompletableFuture.supplyAsync(() -> getDnFromToken(tokenGroup), asyncExecutor());
+    }
+
+    @Override
+    public CompletableFuture<Map<String, String>> getDnsFromTokensAsync(final Collection<byte[]> tokenGroups) {
+
+        return CompletableFuture.supplyAsync(() -> getDnsFromTokens(tokenGroups), asyncExecutor());
+    }
+
+    /**
+     * @return executor running asynchronous lookups and background loads, the provided one or a fixed pool of maxPoolSize
+     *         daemon threads created on first use
+     */
+    protected Executor asyncExecutor() {
+
+        final Executor current = executor;
+        if (current != null) {
+            return current;
+        }
+        synchronized (executorLock) {
+            if (executor == null) {
+                log.info("Executor not provided, creating a pool of {} threads", maxPoolSize);
+                final AtomicInteger threadCount = new AtomicInteger();
+                executor = Executors.newFixedThreadPool(maxPoolSize, runnable -> {
+                    Thread thread = new Thread(runnable, "adtokengroups-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                closeExecutorPreDestroy = true;
+            }
+            return executor;
+        }
+    }
+
+    @Override
+    public Map<String, String> getDnsFromTokens(final Collection<byte[]> tokenGroups) {
+
+        return toSidMap(resolveKeys(parseTokens(tokenGroups)));
+    }
+
+    @Override
+    public Map<String, GroupRecord> getGroupsFromTokens(final Collection<byte[]> tokenGroups) {
+
+        return toGroupMap(resolveKeys(parseTokens(tokenGroups)));
+    }
+
+    @Override
+    public List<String> getGroupDnsForUser(final String userDn) {
+
+        try {
+            final LdapAttribute tokenGroups = fetchTokenGroups(userDn);
+            return tokenGroups == null ? Collections.<String> emptyList() : getGroupDnsForUser(tokenGroups);
+        } catch (LdapException e) {
+            log.error("LDAP Exception raised while fetching tokenGroups of {} : {}", userDn, e.getMessage());
+            return Collections.emptyList();
+        }
+    }
+
+    @Override
+    public List<String> getGroupDnsForUser(final LdapEntry userEntry) {
+
+        final LdapAttribute tokenGroups = userEntry.getAttribute(TOKEN_GROUPS_ATTRIBUTE);
+        if (tokenGroups == null) {
+            log.debug("Entry {} has no {} attribute", userEntry.getDn(), TOKEN_GROUPS_ATTRIBUTE);
+            return Collections.emptyList();
+        }
+        return getGroupDnsForUser(tokenGroups);
+    }
+
+    @Override
+    public List<String> getGroupDnsForUser(final LdapAttribute tokenGroups) {
+
+        final Set<SidKey> keys = parseTokens(tokenGroups.getBinaryValues());
+        return orderedDns(keys, resolveKeys(keys));
+    }
+
+    /**
+     * Fetch the tokenGroups attribute of a user with a base search
+     * 
+     * @param userDn Distinguished name of the user
+     * @return binary tokenGroups attribute or null if the user does not exist or has no group
+     * @throws LdapException if the directory could not be queried
+     */
+    protected LdapAttribute fetchTokenGroups(final String userDn) throws LdapException {
+
+        final SearchRequest request = new SearchRequest(userDn, "(objectClass=*)", TOKEN_GROUPS_ATTRIBUTE);
+        request.setSearchScope(SearchScope.OBJECT);
+        request.setBinaryAttributes(TOKEN_GROUPS_ATTRIBUTE);
+        // Keep values in the order sent by the directory
+        request.setSortBehavior(SortBehavior.ORDERED);
+
+        final LdapEntry entry;
+        try {
+            entry = executeLdap(conn -> new SearchOperation(conn).execute(request).getResult()).getEntry();
+        } catch (LdapException e) {
+            if (e.getResultCode() == ResultCode.NO_SUCH_OBJECT) {
+                log.debug("User not found : {}", userDn);
+                return null;
+            }
+            throw e;
+        }
+        return entry == null ? null : entry.getAttribute(TOKEN_GROUPS_ATTRIBUTE);
+    }
+
+    /**
+     * Resolve SIDs to their Distinguished Names, base of {@link #getDnsFromTokens(Collection)} and
+     * {@link #getGroupDnsForUser(LdapAttribute)}
+     * 
+     * @param keys valid SIDs, without duplicates
+     * @return Map of SIDs to Distinguished names or encoded {@link GroupRecord}s, unresolved SIDs are absent
+     */
+    protected abstract Map<SidKey, String> resolveKeys(Set<SidKey> keys);
+
+    /**
+     * Lists resolved Distinguished Names in order of SIDs
+     * 
+     * @param keys SIDs in expected order
+     * @param result Map of SIDs to Distinguished names or encoded {@link GroupRecord}s
+     * @return Distinguished names without duplicates
+     */
+    protected static List<String> orderedDns(final Collection<SidKey> keys, final Map<SidKey, String> result) {
+
+        final Set<String> dns = new LinkedHashSet<String>(result.size() * 2);
+        for (SidKey key : keys) {
+            final String dn = GroupRecord.dnOf(result.get(key));
+            if (dn != null) {
+                dns.add(dn);
+            }
+        }
+        return new ArrayList<String>(dns);
+    }
+
+    /**
+     * Converts a binary SID to a cache key
+     * 
+     * @param tokenGroup binary SID
+     * @return key or null if SID is not parseable
+     */
+    protected SidKey toKey(final byte[] tokenGroup) {
+
+        if (!SidKey.isValid(tokenGroup)) {
+            log.error("An invalid SID has been passed as tokenGroup : {}",
+                    tokenGroup == null ? null : LdapUtils.toHexString(tokenGroup));
+            return null;
+        }
+        return SidKey.of(tokenGroup);
+    }
+
+    /**
+     * Converts binary SIDs to keys, dropping invalid and duplicate SIDs
+     * 
+     * @param tokenGroups binary SIDs
+     * @return keys, in iteration order of tokenGroups
+     */
+    protected Set<SidKey> parseTokens(final Collection<byte[]> tokenGroups) {
+
+        final Set<SidKey> keys = new LinkedHashSet<SidKey>(tokenGroups.size() * 2);
+        for (byte[] tokenGroup : tokenGroups) {
+            final SidKey key = toKey(tokenGroup);
+            if (key != null) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Converts a result keyed by {@link SidKey} to the Map returned by {@link #getDnsFromTokens(Collection)}
+     * 
+     * @param result Map of SIDs to Distinguished names or encoded {@link GroupRecord}s
+     * @return Map of string represented SIDs to Distinguished names
+     */
+    protected static Map<String, String> toSidMap(final Map<SidKey, String> result) {
+
+        final Map<String, String> sidMap = new HashMap<String, String>(result.size() * 2);
+        for (Map.Entry<SidKey, String> entry : result.entrySet()) {
+            sidMap.put(entry.getKey().toString(), GroupRecord.dnOf(entry.getValue()));
+        }
+        return sidMap;
+    }
+
+    /**
+     * Converts a result keyed by {@link SidKey} to the Map returned by {@link #getGroupsFromTokens(Collection)}
+     * 
+     * @param result Map of SIDs to Distinguished names or encoded {@link GroupRecord}s
+     * @return Map of string represented SIDs to group records
+     */
+    protected static Map<String, GroupRecord> toGroupMap(final Map<SidKey, String> result) {
+
+        final Map<String, GroupRecord> groupMap = new HashMap<String, GroupRecord>(result.size() * 2);
+        for (Map.Entry<SidKey, String> entry : result.entrySet()) {
+            groupMap.put(entry.getKey().toString(), GroupRecord.decode(entry.getValue()));
+        }
+        return groupMap;
+    }
+
+    /**
+     * Normalizes a Distinguished Name so that it can be used as a key : spaces around separators are removed and, as Active
+     * Directory compares DNs case insensitively, the DN is lower cased
+     * 
+     * @param dn Distinguished name (eg: CN=Group, OU=Groups,DC=example,DC=com)
+     * @return normalized DN (eg: cn=group,ou=groups,dc=example,dc=com) or null if dn cannot be parsed
+     */
+    protected static String normalizeDn(final String dn) {
+
+        if (dn == null) {
+            return null;
+        }
+        final List<Rdn> rdns;
+        try {
+            rdns = new LdapName(dn).getRdns();
+        } catch (InvalidNameException e) {
+            return null;
+        }
+        final StringBuilder normalized = new StringBuilder(dn.length());
+        // LdapName lists RDNs from the right
+        for (int i = rdns.size() - 1; i >= 0; i--) {
+            normalized.append(rdns.get(i).toString());
+            if (i > 0) {
+                normalized.append(',');
             }
         }
+        return normalized.toString().toLowerCase(Locale.ROOT);
     }
 
     /**
-     * Closes LDAP connection if opened
+     * Creates the connection pool if needed
+     */
+    protected void initLdap() {
+
+        if (connectionMode == ConnectionMode.POOLED && connectionPool == null
+                && ldapConnectionFactory instanceof DefaultConnectionFactory) {
+
+            PoolConfig poolConfig = new PoolConfig();
+            poolConfig.setMinPoolSize(minPoolSize);
+            poolConfig.setMaxPoolSize(maxPoolSize);
+            poolConfig.setValidateOnCheckOut(validateOnBorrow);
+            if (poolValidatePeriod > 0) {
+                // Sessions dropped by domain controllers are detected while idle
+                poolConfig.setValidatePeriodically(true);
+                poolConfig.setValidatePeriod(Duration.ofSeconds(poolValidatePeriod));
+            }
+
+            BlockingConnectionPool pool = new BlockingConnectionPool(poolConfig,
+                    (DefaultConnectionFactory) ldapConnectionFactory);
+            pool.setName(getClass().getSimpleName());
+            pool.setBlockWaitTime(Duration.ofMillis(poolWaitTime));
+            pool.setValidator(new SearchValidator());
+            pool.setPruneStrategy(new IdlePruneStrategy(Duration.ofSeconds(poolPrunePeriod), Duration.ofSeconds(poolIdleTime)));
+            // Directory may be unreachable at startup, connections will be opened on demand
+            pool.setFailFastInitialize(false);
+            pool.initialize();
+
+            connectionPool = pool;
+            log.info("LDAP connection pool initialized (min : {}, max : {})", minPoolSize, maxPoolSize);
+        }
+    }
+
+    /**
+     * Closes the connection pool and thread confined connections
      */
     protected void cleanUpLdap() {
 
-        if (ldapConnection != null) {
-            ldapConnection.close();
-            ldapConnection = null;
+        if (connectionPool != null) {
+            connectionPool.close();
+            connectionPool = null;
+        }
+        for (Connection conn : threadConnections) {
+            conn.close();
+        }
+        threadConnections.clear();
+    }
+
+    /**
+     * Runs an operation with a borrowed connection. If the connection proves to be broken (server down, connection reset by
+     * the domain controller...) the operation is retried once with a new connection. Durations and failures are recorded in
+     * metrics, a missing entry is not a failure.
+     * 
+     * @param callback operation to execute
+     * @param <T> type of the operation result
+     * @return operation result
+     * @throws LdapException if the operation failed
+     */
+    protected <T> T executeLdap(final LdapCallback<T> callback) throws LdapException {
+
+        final long start = System.nanoTime();
+        try {
+            final T result = executeWithRetry(callback);
+            metrics.ldapOperation(System.nanoTime() - start, false);
+            return result;
+        } catch (LdapException e) {
+            metrics.ldapOperation(System.nanoTime() - start, e.getResultCode() != ResultCode.NO_SUCH_OBJECT);
+            throw e;
+        } catch (RuntimeException e) {
+            metrics.ldapOperation(System.nanoTime() - start, true);
+            throw e;
+        }
+    }
+
+    /**
+     * Runs an operation, retried once with a new connection if the connection proves to be broken, including when it is found
+     * broken by the pool validation
+     */
+    private <T> T executeWithRetry(final LdapCallback<T> callback) throws LdapException {
+
+        Connection conn = null;
+        try {
+            conn = borrowConnection();
+            return callback.doWithConnection(conn);
+        } catch (LdapException e) {
+            if (!isConnectionFailure(e)) {
+                throw e;
+            }
+            log.warn("LDAP connection failure ({}), retrying with a new connection", e.getMessage());
+            if (conn != null) {
+                discardConnection(conn);
+                conn = null;
+            }
+            conn = borrowConnection();
+            return callback.doWithConnection(conn);
+        } finally {
+            if (conn != null) {
+                releaseConnection(conn);
+            }
+        }
+    }
+
+    /**
+     * @param e exception raised by an operation
+     * @return true if the exception denotes an unusable connection rather than an operation error
+     */
+    protected boolean isConnectionFailure(final LdapException e) {
+
+        if (e instanceof PoolException) {
+            // Connection removed by validation or which could not be opened, waiting again for a busy pool is pointless
+            return !(e instanceof BlockingTimeoutException || e instanceof PoolExhaustedException
+                    || e instanceof PoolInterruptedException);
         }
+        final ResultCode code = e.getResultCode();
+        return code == null || code == ResultCode.SERVER_DOWN || code == ResultCode.CONNECT_ERROR
+                || code == ResultCode.UNAVAILABLE || code == ResultCode.LDAP_TIMEOUT;
+    }
+
+    /**
+     * @return an opened connection, must be given back with {@link #releaseConnection(Connection)}
+     * @throws LdapException if no connection could be obtained
+     */
+    protected Connection borrowConnection() throws LdapException {
+
+        if (connectionMode == ConnectionMode.THREAD_LOCAL) {
+            Connection conn = threadConnection.get();
+            if (conn == null || !conn.isOpen()) {
+                conn = openConnection();
+                threadConnection.set(conn);
+                threadConnections.add(conn);
+            }
+            return conn;
+        }
+
+        if (connectionPool != null) {
+            // Pooled connections are already opened (and validated)
+            return connectionPool.getConnection();
+        }
+        return openConnection();
+    }
+
+    /**
+     * Gives back a connection obtained by {@link #borrowConnection()}
+     * 
+     * @param conn connection to release
+     */
+    protected void releaseConnection(final Connection conn) {
+
+        if (connectionMode != ConnectionMode.THREAD_LOCAL) {
+            // Pooled connections go back to the pool on close
+            conn.close();
+        }
+    }
+
+    /**
+     * Gets rid of a broken connection obtained by {@link #borrowConnection()}
+     * 
+     * @param conn connection to discard
+     */
+    protected void discardConnection(final Connection conn) {
+
+        if (connectionMode == ConnectionMode.THREAD_LOCAL) {
+            threadConnection.remove();
+            threadConnections.remove(conn);
+        } else if (connectionPool != null && Proxy.isProxyClass(conn.getClass())
+                && Proxy.getInvocationHandler(conn) instanceof PooledConnectionProxy) {
+            // The pool drops connections which are no longer opened when they are given back
+            ((PooledConnectionProxy) Proxy.getInvocationHandler(conn)).getConnection().close();
+        }
+        conn.close();
+    }
+
+    private Connection openConnection() throws LdapException {
+
+        final Connection conn = ldapConnectionFactory.getConnection();
+        if (!conn.isOpen()) {
+            conn.open();
+        }
+        return conn;
     }
 
     // getters et setters
@@ -80,6 +646,32 @@ public abstract class AbstractADTokenGroupsRegistry implements IActiveDirectoryT
         return baseDN;
     }
 
+    /**
+     * @return lookup and directory metrics of this registry
+     */
+    public RegistryMetrics getMetrics() {
+
+        return metrics;
+    }
+
+    /**
+     * @param metricsListeners listeners notified of each lookup outcome and directory operation
+     */
+    public void setMetricsListeners(List<IRegistryMetricsListener> metricsListeners) {
+
+        metrics.setListeners(metricsListeners);
+    }
+
+    public String getMbeanName() {
+
+        return mbeanName;
+    }
+
+    public void setMbeanName(String mbeanName) {
+
+        this.mbeanName = mbeanName;
+    }
+
     public ConnectionFactory getLdapConnectionFactory() {
 
         return ldapConnectionFactory;
@@ -90,4 +682,100 @@ public abstract class AbstractADTokenGroupsRegistry implements IActiveDirectoryT
         this.ldapConnectionFactory = ldapConnectionFactory;
     }
 
+    public ConnectionMode getConnectionMode() {
+
+        return connectionMode;
+    }
+
+    public void setConnectionMode(ConnectionMode connectionMode) {
+
+        this.connectionMode = connectionMode;
+    }
+
+    public int getMinPoolSize() {
+
+        return minPoolSize;
+    }
+
+    public void setMinPoolSize(int minPoolSize) {
+
+        this.minPoolSize = minPoolSize;
+    }
+
+    public int getMaxPoolSize() {
+
+        return maxPoolSize;
+    }
+
+    public void setMaxPoolSize(int maxPoolSize) {
+
+        this.maxPoolSize = maxPoolSize;
+    }
+
+    public long getPoolWaitTime() {
+
+        return poolWaitTime;
+    }
+
+    public void setPoolWaitTime(long poolWaitTime) {
+
+        this.poolWaitTime = poolWaitTime;
+    }
+
+    public long getPoolIdleTime() {
+
+        return poolIdleTime;
+    }
+
+    public void setPoolIdleTime(long poolIdleTime) {
+
+        this.poolIdleTime = poolIdleTime;
+    }
+
+    public long getPoolPrunePeriod() {
+
+        return poolPrunePeriod;
+    }
+
+    public void setPoolPrunePeriod(long poolPrunePeriod) {
+
+        this.poolPrunePeriod = poolPrunePeriod;
+    }
+
+    public Executor getExecutor() {
+
+        return executor;
+    }
+
+    public void setExecutor(Executor executor) {
+
+        synchronized (executorLock) {
+            if (closeExecutorPreDestroy) {
+                ((ExecutorService) this.executor).shutdown();
+                closeExecutorPreDestroy = false;
+            }
+            this.executor = executor;
+        }
+    }
+
+    public long getPoolValidatePeriod() {
+
+        return poolValidatePeriod;
+    }
+
+    public void setPoolValidatePeriod(long poolValidatePeriod) {
+
+        this.poolValidatePeriod = poolValidatePeriod;
+    }
+
+    public boolean isValidateOnBorrow() {
+
+        return validateOnBorrow;
+    }
+
+    public void setValidateOnBorrow(boolean validateOnBorrow) {
+
+        this.validateOnBorrow = validateOnBorrow;
+    }
+
 }
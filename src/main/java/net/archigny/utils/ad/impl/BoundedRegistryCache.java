@@ -0,0 +1,97 @@
+package net.archigny.utils.ad.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link RegistryCache} held in process by a bounded {@link TinyLfuCache}, for deployments without JCache provider. Values weigh
+ * their length in characters, DNs may be held compacted by a {@link DnSuffixTree}.
+ *
+ * @author Philippe MARASSE
+ */
+class BoundedRegistryCache implements RegistryCache {
+
+    /** Local entries */
+    private final TinyLfuCache<SidKey, Object> entries;
+
+    /** Suffixes of DNs held */
+    private final DnSuffixTree                 suffixes;
+
+    /**
+     * @param entries local entries, see {@link DnSuffixTree#lengthOf(Object)} to weigh them
+     * @param suffixes suffixes of DNs held, {@link DnSuffixTree#NONE} to hold values as they are
+     */
+    BoundedRegistryCache(final TinyLfuCache<SidKey, Object> entries, final DnSuffixTree suffixes) {
+
+        this.entries = entries;
+        this.suffixes = suffixes;
+    }
+
+    @Override
+    public String get(final SidKey key) {
+
+        final Object value = entries.get(key);
+        return value == null ? null : value.toString();
+    }
+
+    @Override
+    public Map<SidKey, String> getAll(final Set<SidKey> keys) {
+
+        final Map<SidKey, String> result = new HashMap<SidKey, String>(keys.size() * 2);
+        for (SidKey key : keys) {
+            final Object value = entries.get(key);
+            if (value != null) {
+                result.put(key, value.toString());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Map<SidKey, String> peekAll(final Set<SidKey> keys) {
+
+        return getAll(keys);
+    }
+
+    @Override
+    public void put(final SidKey key, final String value) {
+
+        entries.put(key, suffixes.compact(value));
+    }
+
+    @Override
+    public void putAll(final Map<SidKey, String> values) {
+
+        for (Map.Entry<SidKey, String> entry : values.entrySet()) {
+            entries.put(entry.getKey(), suffixes.compact(entry.getValue()));
+        }
+    }
+
+    @Override
+    public boolean remove(final SidKey key) {
+
+        return entries.remove(key);
+    }
+
+    /**
+     * @return number of entries evicted to respect bounds
+     */
+    long getEvictionCount() {
+
+        return entries.getEvictionCount();
+    }
+
+    @Override
+    public void clear() {
+
+        entries.clear();
+    }
+
+    @Override
+    public void close() {
+
+        entries.clear();
+    }
+
+}
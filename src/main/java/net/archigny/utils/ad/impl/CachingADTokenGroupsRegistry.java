@@ -1,21 +1,49 @@
 package net.archigny.utils.ad.impl;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import javax.cache.Cache;
+import javax.cache.CacheException;
 import javax.cache.CacheManager;
 import javax.cache.Caching;
+import javax.cache.configuration.CompleteConfiguration;
 import javax.cache.configuration.Factory;
 import javax.cache.configuration.MutableConfiguration;
 import javax.cache.expiry.Duration;
 import javax.cache.expiry.ExpiryPolicy;
+import javax.cache.integration.CacheLoaderException;
 
-import org.ldaptive.ad.SecurityIdentifier;
+import org.ldaptive.LdapAttribute;
+import org.ldaptive.LdapEntry;
+import org.ldaptive.LdapException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import net.archigny.utils.ad.api.GroupRecord;
+
 /**
  * Implementation of token group registry using JCache in order to light the burden of active directory
  * 
@@ -24,43 +52,242 @@ import org.slf4j.LoggerFactory;
 public class CachingADTokenGroupsRegistry extends SimpleADTokenGroupsRegistry {
 
     /** Logger */
-    private static final Logger   log                  = LoggerFactory.getLogger(CachingADTokenGroupsRegistry.class);
+    private static final Logger            log                           = LoggerFactory.getLogger(CachingADTokenGroupsRegistry.class);
 
     /** Cache name used by all instances of Registry */
-    public static final String    CACHE_NAME           = "net.archigny.utils.ad.impl.adtokengroupsregistry";
+    public static final String             CACHE_NAME                    = "net.archigny.utils.ad.impl.adtokengroupsregistry";
+
+    /** Cache name used by all instances of Registry keyed by binary SIDs */
+    public static final String             BINARY_CACHE_NAME             = CACHE_NAME + ".binary";
+
+    /** Cache name used by all instances of Registry for reverse (DN to SID) lookups */
+    public static final String             DN_CACHE_NAME                 = CACHE_NAME + ".dn";
 
     /** Default value for in-memory storage */
-    public static final int       MAX_ELEMENTS         = 100;
+    public static final int                MAX_ELEMENTS                  = 100;
 
     /** Default time to live for elements : 86400s =&gt; 1 day */
-    public static final long      DEFAULT_TTL          = 86400;
+    public static final long               DEFAULT_TTL                   = 86400;
 
     /** Default time to idle (maximum time between hits) for elements : 43200s =&gt; 12 hours */
-    public static final long      DEFAULT_TTI          = 43200;
+    public static final long               DEFAULT_TTI                   = 43200;
+
+    /** Default minimum period between two checks of snapshot file modification : 60s */
+    public static final long               DEFAULT_SNAPSHOT_CHECK_PERIOD = 60;
+
+    /** Default time to live for near cache elements : 60s */
+    public static final long               DEFAULT_NEAR_CACHE_TTL        = 60;
+
+    /** Default time to live for stale values : 604800s =&gt; 7 days */
+    public static final long               DEFAULT_STALE_TTL             = 604800;
+
+    /** Default period during which the directory is considered unavailable after a failure : 30s */
+    public static final long               DEFAULT_STALE_RETRY_PERIOD    = 30;
+
+    /** Default maximum number of SIDs whose refresh time is tracked by refresh-ahead : 10000 */
+    public static final int                DEFAULT_REFRESH_CACHE_SIZE    = 10000;
+
+    /** Default time to live for known missing SIDs : 300s =&gt; 5 minutes */
+    public static final long               DEFAULT_NEGATIVE_TTL          = 300;
+
+    /** Default delay before renewing a lost change notifications subscription : 30000ms =&gt; 30s */
+    public static final long               DEFAULT_NOTIFICATION_DELAY    = 30000;
+
+    /** Default time after which a SID claimed by a member for a shared load may be loaded by another : 30000ms =&gt; 30s */
+    public static final long               DEFAULT_CLAIM_TIMEOUT         = 30000;
+
+    /** Period (milliseconds) between two checks of SIDs claimed by another member */
+    private static final long              CLAIM_POLL_PERIOD             = 10;
 
     /** Value used to specify null value caching as JSR107 does not allow this */
-    public static final String    NULL                 = "";
+    public static final String             NULL                          = "";
 
     /** JCache {@link Cache} <SID (String), DN (String)> */
-    private Cache<String, String> cache;
+    private Cache<String, String>          cache;
+
+    /** JCache {@link Cache} <SID (binary), DN (String)> */
+    private Cache<SidKey, String>          sidCache;
+
+    /**
+     * JCache {@link Cache} <normalized DN (String), SID (String)>, filled by lookups in both directions. Created next to the SID
+     * cache if reverseCache is set, reverse lookups are cached as soon as it is provided
+     */
+    private Cache<String, String>          dnCache;
+
+    /**
+     * True to cache reverse (DN to SID) lookups : forward lookups then also fill a reverse cache (dnCache or built-in cache
+     * entries), otherwise each reverse lookup queries the directory
+     */
+    private boolean                        reverseCache                  = false;
+
+    /** True if the cache created by this registry is keyed by binary SIDs ({@link SidKey}) instead of strings */
+    private boolean                        binaryKeys                    = false;
+
+    /** Storage actually used by lookups */
+    private RegistryCache                  store;
+
+    /**
+     * True to hold elements in a bounded, in process cache (see {@link TinyLfuCache}) instead of a JCache : no JCache provider is
+     * needed, elements are not shared with other JVMs
+     */
+    private boolean                        builtInCache                  = false;
+
+    /** Maximum number of elements of the built-in cache, SIDs and reverse lookups being bounded apart */
+    private int                            maxElements                   = MAX_ELEMENTS;
+
+    /**
+     * Maximum total length (characters) of DNs and group records held by the built-in cache, 0 for no bound. Divided among the
+     * stripes of the cache, see {@link #setMaxWeight(long)}
+     */
+    private long                           maxWeight                     = 0;
+
+    /**
+     * Reverse lookups of the built-in cache, keyed by normalized DNs held by suffixes, null if a JCache is used or reverseCache is
+     * not set
+     */
+    private TinyLfuCache<Object, String>   dnEntries;
+
+    /**
+     * True to hold DNs of the in-process tiers (built-in, near and stale caches) as their leaf RDN and an interned suffix (see
+     * {@link DnSuffixTree}) : less heap per element, DN strings being materialized on each hit
+     */
+    private boolean                        compactDns                    = false;
+
+    /** Suffixes of DNs held by the in-process tiers */
+    private DnSuffixTree                   suffixes                      = DnSuffixTree.NONE;
+
+    /** Maximum number of elements held in process in front of the JCache, 0 to disable the near cache */
+    private int                            nearCacheSize                 = 0;
+
+    /** Time to Live for near cache elements (seconds) */
+    private long                           nearCacheTimeToLive           = DEFAULT_NEAR_CACHE_TTL;
 
     /** { @link CacheManager} to use during initialization */
-    private CacheManager          cacheManager;
+    private CacheManager                   cacheManager;
 
     /** Time to Live for elements (seconds) */
-    private long                  timeToLive           = DEFAULT_TTL;
+    private long                           timeToLive                    = DEFAULT_TTL;
+
+    /** Maximum fraction of timeToLive randomly removed from each element time to live, 0 for no jitter */
+    private double                         ttlJitter                     = 0;
+
+    /**
+     * Fraction of timeToLive before expiration during which a hit triggers a background reload of the element, 0 to disable
+     * refresh-ahead
+     */
+    private double                         refreshAheadFactor            = 0;
+
+    /**
+     * Maximum number of SIDs whose refresh time is tracked by refresh-ahead, at least the number of elements the cache may hold :
+     * a SID whose refresh time is evicted is no longer refreshed ahead of its expiration. Raised to maxElements with the built-in
+     * cache
+     */
+    private int                            refreshCacheSize              = DEFAULT_REFRESH_CACHE_SIZE;
 
     /** Time to Idle for elements (maximum seconds between accesses) */
-    private long                  timeToIdle           = DEFAULT_TTI;
+    private long                           timeToIdle                    = DEFAULT_TTI;
 
     /**
      * True if it's allowed to cache null group value (useful if search base is not the base of AD forest in order to avoid hitting
      * AD with unnecessary requests)
      */
-    private boolean               cacheNullValues      = false;
+    private boolean                        cacheNullValues               = false;
+
+    /** True if JCache statistics are enabled on caches used by this registry */
+    private boolean                        statisticsEnabled             = false;
+
+    /** Cache instances created by this registry, closed on destroy */
+    private final List<Cache<?, ?>>        createdCaches                 = new ArrayList<Cache<?, ?>>(2);
+
+    /**
+     * Maximum number of SIDs known to be missing from the directory, kept apart from the JCache, 0 to disable (null values are then
+     * cached in JCache if cacheNullValues is set)
+     */
+    private int                            negativeCacheSize             = 0;
+
+    /** Time to Live for known missing SIDs (seconds) */
+    private long                           negativeTimeToLive            = DEFAULT_NEGATIVE_TTL;
+
+    /** SIDs known to be missing from the directory, read without lock, null if disabled */
+    private TinyLfuCache<SidKey, Boolean>  negatives;
+
+    /** Maximum number of last known values kept to be served when the directory is unavailable, 0 to disable serve-stale */
+    private int                            staleCacheSize                = 0;
+
+    /** Time to Live for stale values (seconds) */
+    private long                           staleTimeToLive               = DEFAULT_STALE_TTL;
+
+    /**
+     * Maximum time (milliseconds) a synchronous lookup waits for the directory when a stale value is available, 0 to wait for the
+     * directory response
+     */
+    private long                           latencyBudget                 = 0;
+
+    /** Period (seconds) during which stale values are served without querying the directory after a failure */
+    private long                           staleRetryPeriod              = DEFAULT_STALE_RETRY_PERIOD;
+
+    /** Last known values, written when loaded, read without lock, null if serve-stale is disabled */
+    private TinyLfuCache<SidKey, Object>   staleValues;
+
+    /** Time (milliseconds) until which the directory is considered unavailable */
+    private volatile long                  directoryDownUntil;
+
+    /** Read-only snapshot file used as a tier behind the cache, none if null */
+    private String                         snapshotFile;
+
+    /** Minimum period between two checks of snapshot file modification (seconds) */
+    private long                           snapshotCheckPeriod           = DEFAULT_SNAPSHOT_CHECK_PERIOD;
+
+    /** Currently mapped snapshot */
+    private volatile SidSnapshot           snapshot;
+
+    /** Last modification time of currently mapped snapshot file */
+    private long                           snapshotModified;
+
+    /** Next check of snapshot file modification (milliseconds) */
+    private volatile long                  nextSnapshotCheck;
+
+    /** SIDs whose snapshot value has been superseded by the directory, no longer served from the snapshot until it is remapped */
+    private final Set<SidKey>              snapshotOverrides             = ConcurrentHashMap.newKeySet();
+
+    /**
+     * True to subscribe to change notifications of the directory : cached groups are updated or evicted as soon as they are
+     * modified, moved or deleted, so that long time to live can be used
+     */
+    private boolean                        changeNotifications           = false;
+
+    /** Delay (milliseconds) before renewing a lost change notifications subscription */
+    private long                           notificationRetryDelay        = DEFAULT_NOTIFICATION_DELAY;
+
+    /** Change notifications subscription, null if disabled */
+    private ChangeNotificationListener     changeListener;
+
+    /**
+     * True to claim misses in the cache before resolving them (see {@link LoadClaimProcessor}) : with a cache shared by a cluster,
+     * a single member queries the directory for a SID, the others wait for its result. Each member sharing the cache must run a
+     * registry with distributedLoad set.
+     */
+    private boolean                        distributedLoad               = false;
+
+    /** Time (milliseconds) after which a SID claimed by a member for a shared load may be loaded by another */
+    private long                           claimTimeout                  = DEFAULT_CLAIM_TIMEOUT;
+
+    /**
+     * True to let the cache provider load single SIDs : the cache must be configured with setReadThrough(true) and a
+     * {@link DirectoryCacheLoader}, as caches created by the registry are. Batches are still loaded by the registry, one search
+     * per chunk, as providers may load the misses of a getAll one at a time. latencyBudget only applies to batches, hits counted
+     * by the registry include values loaded by the provider.
+     */
+    private boolean                        readThrough                   = false;
+
+    /** Directory queries in progress, shared by threads missing on the same SID */
+    private final ConcurrentMap<SidKey, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
 
-    /** Cache instance is closed only if we created it */
-    private boolean               closeCachePreDestroy = false;
+    /**
+     * Time (milliseconds) after which a hit triggers a background reload, for each SID loaded by this registry. Bounded by
+     * refreshCacheSize and expiring with cached elements, null if refresh-ahead is disabled
+     */
+    private TinyLfuCache<SidKey, AtomicLong> refreshTimes;
 
     /**
      * Method called to initialize the bean
@@ -70,28 +297,251 @@ public class CachingADTokenGroupsRegistry extends SimpleADTokenGroupsRegistry {
 
         super.afterPropertiesSet();
 
-        if (cache == null) {
-            log.info("Cache not provided, trying to get one.");
+        if (ttlJitter < 0 || ttlJitter >= 1 || refreshAheadFactor < 0 || refreshAheadFactor >= 1) {
+            throw new IllegalStateException("ttlJitter and refreshAheadFactor must be in [0, 1[ !");
+        }
+        if (readThrough && distributedLoad) {
+            throw new IllegalStateException("readThrough and distributedLoad are exclusive !");
+        }
+        if (claimTimeout < 1) {
+            throw new IllegalStateException("claimTimeout must be greater than 0 !");
+        }
+        if (refreshCacheSize < 1) {
+            throw new IllegalStateException("refreshCacheSize must be greater than 0 !");
+        }
 
-            if (cacheManager == null) {
-                log.info("Trying to get default cache manager");
-                cacheManager = Caching.getCachingProvider().getCacheManager();
-            } else {
-                log.info("Using provided cache manager.");
+        if (builtInCache) {
+            if (cache != null || sidCache != null || dnCache != null || distributedLoad || readThrough) {
+                throw new IllegalStateException("builtInCache excludes provided caches, distributedLoad and readThrough !");
+            }
+            if (maxElements < 1 || maxWeight < 0) {
+                throw new IllegalStateException("maxElements must be greater than 0 and maxWeight positive !");
+            }
+            log.info("Using a built-in cache of {} elements", maxElements);
+        } else {
+            if (cache == null && sidCache == null) {
+                log.info("Cache not provided, trying to get one.");
+
+                if (cacheManager == null) {
+                    log.info("Trying to get default cache manager");
+                    cacheManager = Caching.getCachingProvider().getCacheManager();
+                } else {
+                    log.info("Using provided cache manager.");
+                }
+                if (binaryKeys) {
+                    sidCache = getOrCreateCache(BINARY_CACHE_NAME, SidKey.class);
+                } else {
+                    cache = getOrCreateCache(CACHE_NAME, String.class);
+                }
             }
-            if ((cache = cacheManager.getCache(CACHE_NAME, String.class, String.class)) == null) {
-                Factory<ExpiryPolicy> policyFactory = CreatedAccessedExpiryPolicy.factoryOf(
-                        new Duration(TimeUnit.SECONDS, timeToLive), new Duration(TimeUnit.SECONDS, timeToIdle));
+            if (dnCache == null && reverseCache) {
+                if (cacheManager == null) {
+                    // Reverse lookups are cached next to the provided cache
+                    cacheManager = (sidCache != null ? sidCache : cache).getCacheManager();
+                }
+                dnCache = getOrCreateCache(DN_CACHE_NAME, String.class);
+            }
+        }
+        // Cache manager no longer needed
+        cacheManager = null;
 
-                MutableConfiguration<String, String> config = new MutableConfiguration<String, String>().setTypes(String.class,
-                        String.class).setExpiryPolicyFactory(policyFactory);
+        if (statisticsEnabled && !builtInCache) {
+            enableStatistics(sidCache != null ? sidCache : cache);
+            if (dnCache != null) {
+                enableStatistics(dnCache);
+            }
+        }
+        metrics.setInFlight(() -> inFlight.size());
 
-                cache = cacheManager.createCache(CACHE_NAME, config);
-            } else {
-                log.info("using existing cache instance - ignoring parameters maxElements, timeToLive, timeToIdle");
+        if (staleCacheSize < 0 || staleTimeToLive < 1 || latencyBudget < 0 || staleRetryPeriod < 0) {
+            throw new IllegalStateException("staleCacheSize, latencyBudget and staleRetryPeriod must be positive and "
+                    + "staleTimeToLive greater than 0 !");
+        }
+        if (negativeCacheSize < 0 || negativeTimeToLive < 1) {
+            throw new IllegalStateException("negativeCacheSize must be positive and negativeTimeToLive greater than 0 !");
+        }
+        if (refreshAheadFactor > 0) {
+            final int refreshTimesSize = builtInCache ? Math.max(refreshCacheSize, maxElements) : refreshCacheSize;
+            log.info("Tracking refresh times of up to {} SIDs", refreshTimesSize);
+            refreshTimes = new TinyLfuCache<SidKey, AtomicLong>(refreshTimesSize, 0, refreshTime -> 1,
+                    new CreatedAccessedExpiryPolicy(new Duration(TimeUnit.SECONDS, timeToLive), null));
+        }
+        if (negativeCacheSize > 0) {
+            negatives = new TinyLfuCache<SidKey, Boolean>(negativeCacheSize, 0, missing -> 1, new CreatedAccessedExpiryPolicy(
+                    new Duration(TimeUnit.SECONDS, negativeTimeToLive), null));
+        }
+        if (compactDns) {
+            suffixes = new DnSuffixTree();
+        }
+        if (staleCacheSize > 0) {
+            staleValues = new TinyLfuCache<SidKey, Object>(staleCacheSize, 0, staleValue -> 1, new CreatedAccessedExpiryPolicy(
+                    new Duration(TimeUnit.SECONDS, staleTimeToLive), null));
+        }
+
+        if (nearCacheSize < 0 || nearCacheTimeToLive < 1) {
+            throw new IllegalStateException("nearCacheSize must be positive and nearCacheTimeToLive greater than 0 !");
+        }
+
+        if (builtInCache) {
+            final ExpiryPolicy expiryPolicy = new CreatedAccessedExpiryPolicy(new Duration(TimeUnit.SECONDS, timeToLive),
+                    new Duration(TimeUnit.SECONDS, timeToIdle), ttlJitter);
+            final TinyLfuCache<SidKey, Object> entries = new TinyLfuCache<SidKey, Object>(maxElements, maxWeight,
+                    DnSuffixTree::lengthOf, expiryPolicy);
+            if (maxWeight > 0) {
+                log.info("Built-in cache bounded to {} characters, values longer than {} characters are not cached", maxWeight,
+                        entries.getMaxEntryWeight());
+            }
+            store = new BoundedRegistryCache(entries, suffixes);
+            if (reverseCache) {
+                dnEntries = new TinyLfuCache<Object, String>(maxElements, 0, sid -> 1, expiryPolicy);
+            }
+        } else if (sidCache != null) {
+            store = withNearCache(JCacheRegistryCache.ofSidKeys(sidCache));
+        } else {
+            store = withNearCache(JCacheRegistryCache.ofStringKeys(cache));
+        }
+
+        if (snapshotFile != null) {
+            reloadSnapshot();
+        }
+
+        if (changeNotifications) {
+            if (notificationRetryDelay < 1) {
+                throw new IllegalStateException("notificationRetryDelay must be greater than 0 !");
+            }
+            // Active Directory only notifies changes of a whole naming context
+            final String domainRoot = domainRootOf(baseDN);
+            final List<String> attributes = new ArrayList<String>(getGroupAttributes().size() + 2);
+            attributes.add(SID_ATTRIBUTE);
+            attributes.add(ChangeNotificationListener.IS_DELETED_ATTRIBUTE);
+            attributes.addAll(getGroupAttributes());
+            changeListener = new ChangeNotificationListener(ldapConnectionFactory, domainRoot == null ? baseDN : domainRoot,
+                    attributes.toArray(new String[attributes.size()]), new String[] { SID_ATTRIBUTE }, this::onChange,
+                    this::onResync, notificationRetryDelay);
+            changeListener.start();
+        }
+
+        if (readThrough) {
+            final Cache<?, String> loadingCache = sidCache != null ? sidCache : cache;
+            @SuppressWarnings("unchecked")
+            final CompleteConfiguration<?, String> configuration = loadingCache.getConfiguration(CompleteConfiguration.class);
+            if (!configuration.isReadThrough()) {
+                throw new IllegalStateException("readThrough requires a cache configured with setReadThrough(true) and a "
+                        + "DirectoryCacheLoader !");
+            }
+            DirectoryCacheLoader.register(loadingCache.getName(), this);
+        }
+    }
+
+    /**
+     * Puts a near cache in front of the JCache if nearCacheSize is set
+     * 
+     * @param jcacheStore JCache storage
+     * @param <K> JCache key type
+     * @return storage to be used by lookups
+     */
+    private <K> RegistryCache withNearCache(final JCacheRegistryCache<K> jcacheStore) {
+
+        if (nearCacheSize == 0) {
+            return jcacheStore;
+        }
+        log.info("Using a near cache of {} elements in front of JCache", nearCacheSize);
+        return new NearRegistryCache<K>(jcacheStore, nearCacheSize, nearCacheTimeToLive * 1000, suffixes);
+    }
+
+    /**
+     * Gets a cache from cache manager or creates it
+     * 
+     * @param cacheName name of cache
+     * @param keyType type of keys
+     * @param <K> type of keys
+     * @return cache instance
+     */
+    private <K> Cache<K, String> getOrCreateCache(final String cacheName, final Class<K> keyType) {
+
+        Cache<K, String> namedCache = cacheManager.getCache(cacheName, keyType, String.class);
+        if (namedCache == null) {
+            Factory<ExpiryPolicy> policyFactory = CreatedAccessedExpiryPolicy.factoryOf(new Duration(TimeUnit.SECONDS, timeToLive),
+                    new Duration(TimeUnit.SECONDS, timeToIdle), ttlJitter);
+
+            MutableConfiguration<K, String> config = new MutableConfiguration<K, String>().setTypes(keyType, String.class)
+                    .setExpiryPolicyFactory(policyFactory).setStatisticsEnabled(statisticsEnabled);
+            if (readThrough && !DN_CACHE_NAME.equals(cacheName)) {
+                config.setReadThrough(true).setCacheLoaderFactory(DirectoryCacheLoader.factoryOf(cacheName, keyType));
+            }
+
+            namedCache = cacheManager.createCache(cacheName, config);
+            createdCaches.add(namedCache);
+        } else {
+            log.info("using existing cache instance - ignoring parameters maxElements, timeToLive, timeToIdle, ttlJitter");
+        }
+        return namedCache;
+    }
+
+    /**
+     * Enables JCache statistics of a cache, which may have been provided
+     * 
+     * @param statisticsCache cache
+     */
+    private static void enableStatistics(final Cache<?, ?> statisticsCache) {
+
+        statisticsCache.getCacheManager().enableStatistics(statisticsCache.getName(), true);
+    }
+
+    /**
+     * Maps snapshot file again if it has been modified since last mapping
+     */
+    public synchronized void reloadSnapshot() {
+
+        final Path file = Paths.get(snapshotFile);
+        nextSnapshotCheck = System.currentTimeMillis() + snapshotCheckPeriod * 1000;
+        try {
+            if (!Files.exists(file)) {
+                log.debug("Snapshot file {} not found", file);
+                return;
+            }
+            final long modified = Files.getLastModifiedTime(file).toMillis();
+            if (snapshot == null || modified != snapshotModified) {
+                snapshot = SidSnapshot.open(file);
+                snapshotModified = modified;
+                snapshotOverrides.clear();
+                log.info("Snapshot file {} mapped : {} entries", file, snapshot.size());
+            }
+        } catch (IOException e) {
+            log.error("Unable to map snapshot file {} : {}", file, e.getMessage());
+        }
+    }
+
+    /**
+     * @param key SID missing from cache
+     * @return DN found in snapshot or null, also if its snapshot value has been superseded
+     */
+    private String fromSnapshot(final SidKey key) {
+
+        if (snapshotFile == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() >= nextSnapshotCheck) {
+            reloadSnapshot();
+        }
+        final SidSnapshot current = snapshot;
+        return current == null || snapshotOverrides.contains(key) ? null : current.get(key);
+    }
+
+    /**
+     * Stops serving the snapshot value of a SID once the directory reports another value, until a new snapshot file is mapped
+     * 
+     * @param key SID
+     * @param value DN or encoded group record loaded or notified, null or {@link #NULL} if the SID no longer exists
+     */
+    private void supersedeSnapshot(final SidKey key, final String value) {
+
+        final SidSnapshot current = snapshot;
+        if (current != null && !snapshotOverrides.contains(key)) {
+            final String snapshotDN = current.get(key);
+            if (snapshotDN != null && !snapshotDN.equals(GroupRecord.dnOf(value))) {
+                snapshotOverrides.add(key);
             }
-            // Cache manager no longer needed
-            cacheManager = null;
         }
     }
 
@@ -101,87 +551,1518 @@ public class CachingADTokenGroupsRegistry extends SimpleADTokenGroupsRegistry {
     @PreDestroy
     public void destroy() {
 
-        if (closeCachePreDestroy) {
-            log.info("Closing locally created cache");
-            cache.close();
+        if (changeListener != null) {
+            changeListener.close();
+            changeListener = null;
+        }
+        if (readThrough) {
+            DirectoryCacheLoader.unregister((sidCache != null ? sidCache : cache).getName(), this);
         }
+        super.destroy();
+        if (store instanceof NearRegistryCache || store instanceof BoundedRegistryCache) {
+            store.close();
+        }
+        if (dnEntries != null) {
+            dnEntries.clear();
+        }
+        for (Cache<?, ?> createdCache : createdCaches) {
+            log.info("Closing locally created cache {}", createdCache.getName());
+            createdCache.close();
+        }
+        createdCaches.clear();
     }
 
     @Override
-    public String getDnFromToken(final byte[] tokenGroup) {
-
-        String sid;
+    protected String getValueFromToken(final byte[] tokenGroup) {
 
-        try {
-            sid = SecurityIdentifier.toString(tokenGroup);
-        } catch (Exception e) {
-            log.error("An invalid SID has been passed as tokenGroup : {}", LdapUtils.toHexString(tokenGroup));
+        final SidKey key = toKey(tokenGroup);
+        if (key == null) {
             // non parseable SID => will not attempt to contact LDAP directory
             return null;
         }
+        final String wellKnownDN = fromWellKnown(key);
+        if (wellKnownDN != null) {
+            metrics.hit();
+            return wellKnownDN;
+        }
+        if (!isInScope(key)) {
+            metrics.negativeHit();
+            return null;
+        }
 
-        // Cache lookup
-        if (cache.containsKey(sid)) {
-            String cachedValue = cache.get(sid);
-            if (cacheNullValues && NULL.equals(cachedValue)) {
-                return null;
-            }
-            return cachedValue;
+        if (isKnownMissing(key)) {
+            metrics.negativeHit();
+            return null;
+        }
+
+        if (readThrough && snapshotFile == null) {
+            // Single cache access, misses being loaded by the provider
+            return getThrough(key);
+        }
+
+        // Cache lookup : a single access per hit, a read-through cache is peeked so that the snapshot is read before any load
+        final String cachedValue = readThrough ? peek(key) : store.get(key);
+        if (cachedValue != null) {
+            onHit(key, cachedValue);
+            return fromCache(cachedValue);
+        }
+
+        // Snapshot lookup, shared with other JVMs
+        final String snapshotDN = fromSnapshot(key);
+        if (snapshotDN != null) {
+            metrics.hit();
+            return snapshotDN;
+        }
+        if (readThrough) {
+            return getThrough(key);
         }
 
         // Cache Miss
-        final String groupDN = super.getDnFromToken(tokenGroup);
+        metrics.miss();
+        final String staleValue = getStale(key);
+        if (staleValue == null) {
+            return load(key, null).join();
+        }
+        if (isDirectoryDown()) {
+            return serveStale(key, staleValue, "directory unavailable");
+        }
+        if (latencyBudget == 0) {
+            return load(key, null).join();
+        }
 
-        if (groupDN != null) {
-            cache.put(sid, groupDN);
-        } else if (cacheNullValues && groupDN == null) {
-            cache.put(sid, NULL);
+        // Query keeps running in background if it exceeds latency budget, its result will be cached
+        try {
+            return load(key, asyncExecutor()).get(latencyBudget, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            return serveStale(key, staleValue, "latency budget exceeded");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return serveStale(key, staleValue, "interrupted");
         }
+    }
 
-        return groupDN;
+    /**
+     * Reverse lookup, warming forward lookups. If reverse lookups are cached (see reverseCache), their cache is shared with forward
+     * lookups : a DN resolved by either lookup is not queried again by the other
+     */
+    @Override
+    public byte[] getTokenFromDn(final String dn) {
+
+        final String normalizedDn = normalizeDn(dn);
+        if (normalizedDn == null) {
+            log.warn("Unable to parse DN : {}", dn);
+            return null;
+        }
+        final String cachedSid = getReverse(normalizedDn);
+        if (cachedSid != null) {
+            return SidKey.parse(cachedSid).getBytes();
+        }
+
+        final LdapEntry entry;
+        try {
+            entry = searchDn(dn);
+        } catch (LdapException e) {
+            log.error("LDAP Exception raised : {}", e.getMessage());
+            return null;
+        }
+        if (entry == null) {
+            return null;
+        }
+        final SidKey key = sidOf(entry);
+        if (isInScope(key)) {
+            // Warms both directions
+            cachePut(key, valueOf(entry));
+        }
+        putReverse(normalizedDn, key.toString());
+        return key.getBytes();
+    }
+
+    @Override
+    public CompletableFuture<String> getDnFromTokenAsync(final byte[] tokenGroup) {
 
+        final CompletableFuture<String> value = getValueFromTokenAsync(tokenGroup);
+        return getGroupAttributes().isEmpty() ? value : value.thenApply(GroupRecord::dnOf);
     }
 
-    // Getters and Setters
+    /**
+     * Asynchronous version of {@link #getValueFromToken(byte[])}
+     * 
+     * @param tokenGroup binary SID
+     * @return future DN, encoded group record or null if SID could not be resolved
+     */
+    private CompletableFuture<String> getValueFromTokenAsync(final byte[] tokenGroup) {
 
-    public long getTimeToLive() {
+        final SidKey key = toKey(tokenGroup);
+        if (key == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        final String wellKnownDN = fromWellKnown(key);
+        if (wellKnownDN != null) {
+            metrics.hit();
+            return CompletableFuture.completedFuture(wellKnownDN);
+        }
+        if (!isInScope(key)) {
+            metrics.negativeHit();
+            return CompletableFuture.completedFuture(null);
+        }
 
-        return timeToLive;
+        if (isKnownMissing(key)) {
+            metrics.negativeHit();
+            return CompletableFuture.completedFuture(null);
+        }
+
+        if (readThrough && snapshotFile == null) {
+            // Misses are loaded by the provider in the calling thread
+            return CompletableFuture.supplyAsync(() -> getThrough(key), asyncExecutor());
+        }
+
+        final String cachedValue = readThrough ? peek(key) : store.get(key);
+        if (cachedValue != null) {
+            onHit(key, cachedValue);
+            return CompletableFuture.completedFuture(fromCache(cachedValue));
+        }
+
+        final String snapshotDN = fromSnapshot(key);
+        if (snapshotDN != null) {
+            metrics.hit();
+            return CompletableFuture.completedFuture(snapshotDN);
+        }
+        if (readThrough) {
+            // Misses are loaded by the provider in the calling thread
+            return CompletableFuture.supplyAsync(() -> getThrough(key), asyncExecutor());
+        }
+
+        metrics.miss();
+        final String staleValue = getStale(key);
+        if (staleValue != null && isDirectoryDown()) {
+            return CompletableFuture.completedFuture(serveStale(key, staleValue, "directory unavailable"));
+        }
+        return load(key, asyncExecutor());
     }
 
-    public void setTimeToLive(long timeToLive) {
+    @Override
+    protected Map<SidKey, String> resolveKeys(final Set<SidKey> keys) {
 
-        this.timeToLive = timeToLive;
+        if (staleValues == null || latencyBudget == 0) {
+            return loadAll(keys, null).join();
+        }
+
+        // Queries keep running in background if they exceed latency budget, their results will be cached
+        try {
+            return loadAll(keys, asyncExecutor()).get(latencyBudget, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            return fromCacheOrStale(keys);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return fromCacheOrStale(keys);
+        }
     }
 
-    public long getTimeToIdle() {
+    @Override
+    public CompletableFuture<Map<String, String>> getDnsFromTokensAsync(final Collection<byte[]> tokenGroups) {
 
-        return timeToIdle;
+        return loadAll(parseTokens(tokenGroups), asyncExecutor()).thenApply(AbstractADTokenGroupsRegistry::toSidMap);
     }
 
-    public void setTimeToIdle(long timeToIdle) {
+    /**
+     * Resolve SIDs without querying the directory : from cache, snapshot or stale values
+     * 
+     * @param keys SIDs to resolve
+     * @return Map of resolved SIDs
+     */
+    private Map<SidKey, String> fromCacheOrStale(final Set<SidKey> keys) {
 
-        this.timeToIdle = timeToIdle;
+        final Map<SidKey, String> result = new HashMap<SidKey, String>(keys.size() * 2);
+        // A read-through cache is peeked so that no load is triggered
+        final Map<SidKey, String> cached = readThrough ? store.peekAll(keys) : store.getAll(keys);
+        for (SidKey key : keys) {
+            final String cachedValue = cached.get(key);
+            String groupDN = cachedValue != null ? fromCache(cachedValue) : fromSnapshot(key);
+            if (cachedValue == null && groupDN == null) {
+                final String staleValue = getStale(key);
+                if (staleValue != null) {
+                    groupDN = serveStale(key, staleValue, "latency budget exceeded");
+                }
+            }
+            if (groupDN != null) {
+                result.put(key, groupDN);
+            }
+        }
+        return result;
     }
 
-    public void setCacheNullValues(boolean cacheNullValues) {
+    /**
+     * Called on each cache hit
+     * 
+     * @param key SID
+     * @param cachedValue value found in cache
+     */
+    private void onHit(final SidKey key, final String cachedValue) {
 
-        this.cacheNullValues = cacheNullValues;
+        if (NULL.equals(cachedValue)) {
+            metrics.negativeHit();
+        } else {
+            metrics.hit();
+        }
+        refreshIfDue(key);
     }
 
-    public boolean isCacheNullValues() {
+    /**
+     * Stores a freshly loaded value
+     * 
+     * @param key SID
+     * @param value DN, encoded group record or {@link #NULL}
+     */
+    private void cachePut(final SidKey key, final String value) {
 
-        return cacheNullValues;
+        store.put(key, value);
+        onLoaded(key, value);
     }
 
-    public Cache<String, String> getCache() {
+    /**
+     * Records a value freshly loaded and already stored in cache
+     * 
+     * @param key SID
+     * @param value DN, encoded group record or {@link #NULL}
+     */
+    private void onLoaded(final SidKey key, final String value) {
 
-        return cache;
+        supersedeSnapshot(key, value);
+        if (staleValues != null) {
+            staleValues.put(key, suffixes.compact(value));
+        }
+        scheduleRefresh(key);
+        if (isReverseCached()) {
+            final String normalizedDn = normalizeDn(GroupRecord.dnOf(value));
+            if (normalizedDn != null) {
+                putReverse(normalizedDn, key.toString());
+            }
+        }
     }
 
-    public void setCache(Cache<String, String> cache) {
+    /**
+     * Applies a change notified by the directory to the cached value of its SID : deleted groups and groups moved out of base DN are
+     * evicted, other groups are updated with the notified DN and attributes. SIDs absent from cache are not cached, but their
+     * snapshot value, if any, is no longer served once deleted or renamed : they are then resolved by the directory.
+     * 
+     * @param entry notified entry
+     */
+    void onChange(final LdapEntry entry) {
 
-        this.cache = cache;
+        final SidKey key = notifiedSidOf(entry);
+        if (key == null || !isInScope(key)) {
+            return;
+        }
+        if (negatives != null) {
+            // Created or restored
+            negatives.remove(key);
+        }
+        final LdapAttribute deleted = entry.getAttribute(ChangeNotificationListener.IS_DELETED_ATTRIBUTE);
+        final boolean removed = (deleted != null && "TRUE".equalsIgnoreCase(deleted.getStringValue()))
+                || !isUnderBaseDn(entry.getDn());
+        final String cachedValue = store.get(key);
+        if (cachedValue == null) {
+            // May still be served from the snapshot
+            supersedeSnapshot(key, removed ? null : entry.getDn());
+            return;
+        }
+
+        final String previousDn = isReverseCached() ? normalizeDn(GroupRecord.dnOf(cachedValue)) : null;
+        if (previousDn != null) {
+            removeReverse(previousDn);
+        }
+        if (removed) {
+            log.debug("SID {} deleted or moved out of base DN, evicted from cache", key);
+            supersedeSnapshot(key, null);
+            store.remove(key);
+            if (staleValues != null) {
+                staleValues.remove(key);
+            }
+            if (refreshTimes != null) {
+                refreshTimes.remove(key);
+            }
+        } else {
+            log.debug("SID {} modified, cached value updated : {}", key, entry.getDn());
+            cachePut(key, valueOf(entry));
+        }
+    }
+
+    /**
+     * @param entry notified entry, whose objectSid has been converted to its string representation by the notification client
+     * @return SID of entry or null if entry has no valid SID
+     */
+    private static SidKey notifiedSidOf(final LdapEntry entry) {
+
+        final LdapAttribute sidAttribute = entry.getAttribute(SID_ATTRIBUTE);
+        if (sidAttribute == null) {
+            return null;
+        }
+        if (sidAttribute.isBinary()) {
+            return sidOf(entry);
+        }
+        try {
+            return SidKey.parse(sidAttribute.getStringValue());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Clears caches once a lost change notifications subscription is renewed, as changes may have been missed meanwhile. Stale
+     * values are kept to be served if the directory becomes unavailable.
+     */
+    void onResync() {
+
+        log.info("Change notifications subscription renewed, clearing caches");
+        store.clear();
+        if (dnEntries != null) {
+            dnEntries.clear();
+        } else if (dnCache != null) {
+            dnCache.removeAll();
+        }
+        if (refreshTimes != null) {
+            refreshTimes.clear();
+        }
+        if (negatives != null) {
+            negatives.clear();
+        }
+    }
+
+    /**
+     * @param dn Distinguished name
+     * @return true if dn is base DN or one of its descendants
+     */
+    private boolean isUnderBaseDn(final String dn) {
+
+        final String normalizedBase = normalizeDn(baseDN);
+        if (normalizedBase == null || normalizedBase.isEmpty()) {
+            return true;
+        }
+        final String normalizedDn = normalizeDn(dn);
+        return normalizedDn != null && (normalizedDn.equals(normalizedBase) || normalizedDn.endsWith("," + normalizedBase));
+    }
+
+    /**
+     * Records a SID missing from the directory : in negative cache if enabled, as a null value in JCache if cacheNullValues is set
+     * 
+     * @param key SID
+     */
+    private void cacheMissing(final SidKey key) {
+
+        supersedeSnapshot(key, null);
+        if (negatives != null) {
+            negatives.put(key, Boolean.TRUE);
+        } else if (cacheNullValues) {
+            cachePut(key, NULL);
+        }
+    }
+
+    /**
+     * @param key SID
+     * @return true if SID has recently been found missing from the directory
+     */
+    private boolean isKnownMissing(final SidKey key) {
+
+        return negatives != null && negatives.get(key) != null;
+    }
+
+    /**
+     * Stores freshly loaded values
+     * 
+     * @param values Map of SIDs to DN, encoded group record or {@link #NULL}
+     */
+    private void cachePutAll(final Map<SidKey, String> values) {
+
+        if (values.isEmpty()) {
+            return;
+        }
+        store.putAll(values);
+        final Map<String, String> reverse = isReverseCached() ? new HashMap<String, String>(values.size() * 2) : null;
+        for (Map.Entry<SidKey, String> entry : values.entrySet()) {
+            supersedeSnapshot(entry.getKey(), entry.getValue());
+            if (staleValues != null) {
+                staleValues.put(entry.getKey(), suffixes.compact(entry.getValue()));
+            }
+            scheduleRefresh(entry.getKey());
+            final String normalizedDn = reverse == null ? null : normalizeDn(GroupRecord.dnOf(entry.getValue()));
+            if (normalizedDn != null) {
+                reverse.put(normalizedDn, entry.getKey().toString());
+            }
+        }
+        if (reverse == null) {
+            return;
+        }
+        if (dnEntries != null) {
+            for (Map.Entry<String, String> entry : reverse.entrySet()) {
+                dnEntries.put(suffixes.compact(entry.getKey()), entry.getValue());
+            }
+        } else {
+            dnCache.putAll(reverse);
+        }
+    }
+
+    /**
+     * @return true if reverse lookups are cached
+     */
+    private boolean isReverseCached() {
+
+        return dnEntries != null || dnCache != null;
+    }
+
+    /**
+     * @param normalizedDn normalized DN
+     * @return cached string represented SID or null
+     */
+    private String getReverse(final String normalizedDn) {
+
+        if (dnEntries == null) {
+            return dnCache == null ? null : dnCache.get(normalizedDn);
+        }
+        final Object key = suffixes.find(normalizedDn);
+        return key == null ? null : dnEntries.get(key);
+    }
+
+    /**
+     * @param normalizedDn normalized DN
+     * @param sid string represented SID
+     */
+    private void putReverse(final String normalizedDn, final String sid) {
+
+        if (dnEntries != null) {
+            dnEntries.put(suffixes.compact(normalizedDn), sid);
+        } else if (dnCache != null) {
+            dnCache.put(normalizedDn, sid);
+        }
+    }
+
+    /**
+     * @param normalizedDn normalized DN
+     */
+    private void removeReverse(final String normalizedDn) {
+
+        if (dnEntries != null) {
+            final Object key = suffixes.find(normalizedDn);
+            if (key != null) {
+                dnEntries.remove(key);
+            }
+        } else if (dnCache != null) {
+            dnCache.remove(normalizedDn);
+        }
+    }
+
+    /**
+     * @param key SID
+     * @return last known value of SID, null if absent or serve-stale is disabled
+     */
+    private String getStale(final SidKey key) {
+
+        final Object staleValue = staleValues == null ? null : staleValues.get(key);
+        return staleValue == null ? null : staleValue.toString();
+    }
+
+    /**
+     * @param key SID
+     * @param staleValue last known value
+     * @param reason reason why the directory has not been used
+     * @return DN or null if a null value was cached
+     */
+    private String serveStale(final SidKey key, final String staleValue, final String reason) {
+
+        metrics.staleHit();
+        log.warn("Serving stale value for SID {} : {}", key, reason);
+        return fromCache(staleValue);
+    }
+
+    /**
+     * Records a directory failure : during staleRetryPeriod, stale values are served without querying the directory
+     */
+    private void directoryFailed() {
+
+        if (staleValues != null) {
+            directoryDownUntil = System.currentTimeMillis() + staleRetryPeriod * 1000;
+        }
+    }
+
+    /**
+     * @return true if a directory failure occurred less than staleRetryPeriod ago
+     */
+    private boolean isDirectoryDown() {
+
+        return directoryDownUntil - System.currentTimeMillis() > 0;
+    }
+
+    /**
+     * Query the directory for a SID and cache the result. On failure, the last known value is returned if available.
+     * 
+     * @param key SID
+     * @return DN or null
+     */
+    private String resolve(final SidKey key) {
+
+        final String groupDN;
+        try {
+            groupDN = resolveToken(key.bytes());
+        } catch (LdapException e) {
+            log.error("LDAP Exception raised : {}", e.getMessage());
+            directoryFailed();
+            final String staleValue = getStale(key);
+            return staleValue == null ? null : serveStale(key, staleValue, "directory query failed");
+        }
+
+        if (groupDN != null) {
+            cachePut(key, groupDN);
+        } else {
+            cacheMissing(key);
+        }
+        return groupDN;
+    }
+
+    /**
+     * Resolve a SID through the shared cache, see {@link #resolveShared(Set, Set)}
+     * 
+     * @param key SID
+     * @return DN or null
+     */
+    private String resolveShared(final SidKey key) {
+
+        final Set<SidKey> failed = new HashSet<SidKey>();
+        final String groupDN = resolveShared(Collections.singleton(key), failed).get(key);
+        if (failed.isEmpty()) {
+            return groupDN;
+        }
+        final String staleValue = getStale(key);
+        return staleValue == null ? null : serveStale(key, staleValue, "directory query failed");
+    }
+
+    /**
+     * Resolve SIDs through the shared cache : absent SIDs are claimed at once, those claimed by this registry are searched by
+     * chunks, on the calling thread, and stored in place of their claims. SIDs claimed by another member are waited for until
+     * loaded or until their claim expires. Failures of the shared cache, or a cache on which loads cannot be claimed, fall back to
+     * local queries.
+     * 
+     * @param keys SIDs
+     * @param failed collection receiving SIDs that could not be queried
+     * @return Map of SIDs to Distinguished names or encoded group records, unresolved SIDs are absent
+     */
+    private Map<SidKey, String> resolveShared(final Set<SidKey> keys, final Set<SidKey> failed) {
+
+        if (!(store instanceof SharedRegistryCache)) {
+            return searchAndCache(keys, failed);
+        }
+        final SharedRegistryCache sharedStore = (SharedRegistryCache) store;
+        final Map<SidKey, String> result = new HashMap<SidKey, String>(keys.size() * 2);
+        Set<SidKey> remaining = keys;
+        while (!remaining.isEmpty()) {
+            final String claim = LoadClaimProcessor.newClaim(claimTimeout);
+            final Map<SidKey, String> values;
+            try {
+                values = sharedStore.claimAll(remaining, claim);
+            } catch (CacheException e) {
+                log.warn("Unable to claim {} SIDs through shared cache, querying directory : {}", remaining.size(),
+                        e.getMessage());
+                result.putAll(searchAndCache(remaining, failed));
+                return result;
+            }
+
+            final Set<SidKey> claimed = new HashSet<SidKey>();
+            final Set<SidKey> waiting = new HashSet<SidKey>();
+            for (SidKey key : remaining) {
+                final String value = values.get(key);
+                if (value == null) {
+                    claimed.add(key);
+                } else if (LoadClaimProcessor.isClaim(value)) {
+                    waiting.add(key);
+                } else if (NULL.equals(value)) {
+                    // Loaded by another member
+                    onMissing(key);
+                } else {
+                    onLoaded(key, value);
+                    result.put(key, value);
+                }
+            }
+            if (!claimed.isEmpty()) {
+                result.putAll(loadClaimed(sharedStore, claimed, claim, failed));
+            }
+
+            remaining = waiting;
+            if (!remaining.isEmpty()) {
+                try {
+                    Thread.sleep(CLAIM_POLL_PERIOD);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failed.addAll(remaining);
+                    return result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Queries the directory for SIDs and caches the values found, and missing SIDs as such
+     * 
+     * @param keys SIDs
+     * @param failed collection receiving SIDs that could not be queried
+     * @return Map of SIDs to Distinguished names or encoded group records, unresolved SIDs are absent
+     */
+    private Map<SidKey, String> searchAndCache(final Set<SidKey> keys, final Set<SidKey> failed) {
+
+        final Map<SidKey, String> found = searchTokens(keys, failed);
+        if (!failed.isEmpty()) {
+            directoryFailed();
+        }
+
+        final Map<SidKey, String> toCache = new HashMap<SidKey, String>(found);
+        for (SidKey key : keys) {
+            if (!failed.contains(key) && !found.containsKey(key)) {
+                if (negatives != null) {
+                    negatives.put(key, Boolean.TRUE);
+                } else if (cacheNullValues) {
+                    toCache.put(key, NULL);
+                }
+            }
+        }
+        cachePutAll(toCache);
+        return found;
+    }
+
+    /**
+     * Queries the directory for SIDs claimed by this registry and stores their values in place of the claims
+     * 
+     * @param sharedStore cache holding the claims
+     * @param claimed SIDs claimed
+     * @param claim claim of SIDs
+     * @param failed collection receiving SIDs that could not be queried, whose claims are removed
+     * @return Map of SIDs to Distinguished names or encoded group records, unresolved SIDs are absent
+     */
+    private Map<SidKey, String> loadClaimed(final SharedRegistryCache sharedStore, final Set<SidKey> claimed, final String claim,
+            final Set<SidKey> failed) {
+
+        final Map<SidKey, String> found;
+        try {
+            found = searchTokens(claimed, failed);
+        } catch (RuntimeException e) {
+            for (SidKey key : claimed) {
+                release(sharedStore, key, claim, null);
+            }
+            throw e;
+        }
+        if (!failed.isEmpty()) {
+            directoryFailed();
+        }
+
+        for (SidKey key : claimed) {
+            final String value = found.get(key);
+            if (value != null) {
+                release(sharedStore, key, claim, value);
+                onLoaded(key, value);
+            } else if (failed.contains(key)) {
+                release(sharedStore, key, claim, null);
+            } else {
+                release(sharedStore, key, claim, cacheNullValues && negatives == null ? NULL : null);
+                onMissing(key);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Replaces the claim of a SID by its value, a failure only delaying the load of the SID by other members until the claim
+     * expires
+     * 
+     * @param sharedStore cache holding the claim
+     * @param key SID
+     * @param claim claim of SID
+     * @param value value to store, null to only remove the claim
+     */
+    private void release(final SharedRegistryCache sharedStore, final SidKey key, final String claim, final String value) {
+
+        try {
+            if (!sharedStore.release(key, claim, value)) {
+                log.debug("Claim of SID {} taken over or removed meanwhile, value not stored", key);
+            }
+        } catch (CacheException e) {
+            log.warn("Unable to release claim of SID {} : {}", key, e.getMessage());
+        }
+    }
+
+    /**
+     * Records a SID missing from the directory whose null value, if cached, is stored by the cache itself
+     * 
+     * @param key SID
+     */
+    private void onMissing(final SidKey key) {
+
+        supersedeSnapshot(key, null);
+        if (negatives != null) {
+            negatives.put(key, Boolean.TRUE);
+        } else if (cacheNullValues) {
+            onLoaded(key, NULL);
+        }
+    }
+
+    /**
+     * Lookup through a read-through cache : misses are loaded by the cache provider with {@link #loadForCache(SidKey)}
+     * 
+     * @param key SID
+     * @return DN, encoded group record or null
+     */
+    private String getThrough(final SidKey key) {
+
+        final String value;
+        try {
+            value = store.get(key);
+        } catch (CacheException e) {
+            return onLoadFailure(key, e);
+        }
+        if (value == null) {
+            // Missing from the directory
+            return null;
+        }
+        onHit(key, value);
+        return fromCache(value);
+    }
+
+    /**
+     * Cache lookup which does not trigger a load by a read-through cache
+     * 
+     * @param key SID
+     * @return cached value or null
+     */
+    private String peek(final SidKey key) {
+
+        return store.peekAll(Collections.singleton(key)).get(key);
+    }
+
+    /**
+     * Loads a SID missed by a read-through cache, called by {@link DirectoryCacheLoader} in the JVM running the load
+     * 
+     * @param key SID
+     * @return DN, encoded group record, {@link #NULL} if SID is missing from the directory and null values are stored in cache,
+     *         null otherwise
+     * @throws CacheLoaderException if the directory could not be queried or is unavailable
+     */
+    String loadForCache(final SidKey key) {
+
+        if (isKnownMissing(key)) {
+            metrics.negativeHit();
+            return null;
+        }
+        metrics.miss();
+        if (isDirectoryDown() && getStale(key) != null) {
+            throw new CacheLoaderException("directory unavailable");
+        }
+
+        final String value;
+        try {
+            value = resolveToken(key.bytes());
+        } catch (LdapException e) {
+            directoryFailed();
+            throw new CacheLoaderException(e);
+        }
+        return onLoadedThrough(key, value);
+    }
+
+    /**
+     * Loads SIDs requested together from a read-through cache (eg: Cache.loadAll) with one search per chunk, called by
+     * {@link DirectoryCacheLoader} in the JVM running the load. SIDs of failed chunks are not loaded, as well as SIDs having a stale value while the directory is
+     * unavailable.
+     * 
+     * @param keys SIDs
+     * @return Map of SIDs to DN, encoded group record or {@link #NULL} if SID is missing from the directory and null values are
+     *         stored in cache
+     * @throws CacheLoaderException if the directory could not be queried at all
+     */
+    Map<SidKey, String> loadAllForCache(final Set<SidKey> keys) {
+
+        final boolean directoryDown = isDirectoryDown();
+        final Set<SidKey> searched = new LinkedHashSet<SidKey>(keys.size() * 2);
+        for (SidKey key : keys) {
+            if (isKnownMissing(key)) {
+                metrics.negativeHit();
+            } else {
+                metrics.miss();
+                if (!directoryDown || getStale(key) == null) {
+                    searched.add(key);
+                }
+            }
+        }
+
+        final Set<SidKey> failed = new HashSet<SidKey>();
+        final Map<SidKey, String> found = searchTokens(searched, failed);
+        if (!failed.isEmpty()) {
+            directoryFailed();
+            if (failed.size() == searched.size()) {
+                throw new CacheLoaderException("Unable to query the directory for " + failed.size() + " SIDs");
+            }
+        }
+
+        final Map<SidKey, String> result = new HashMap<SidKey, String>(found.size() * 2);
+        for (SidKey key : searched) {
+            if (!failed.contains(key)) {
+                final String value = onLoadedThrough(key, found.get(key));
+                if (value != null) {
+                    result.put(key, value);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param key SID
+     * @param value loaded value or null if SID is missing from the directory
+     * @return value to be stored by the cache, null if none
+     */
+    private String onLoadedThrough(final SidKey key, final String value) {
+
+        if (value == null) {
+            onMissing(key);
+            return negatives == null && cacheNullValues ? NULL : null;
+        }
+        onLoaded(key, value);
+        return value;
+    }
+
+    /**
+     * Called when a load through the cache failed : the last known value is returned if available
+     * 
+     * @param key SID
+     * @param e failure, caused by an LdapException if the directory could not be queried
+     * @return last known DN or null
+     */
+    private String onLoadFailure(final SidKey key, final CacheException e) {
+
+        final LdapException cause = ldapCauseOf(e);
+        if (cause != null) {
+            log.error("LDAP Exception raised : {}", cause.getMessage());
+            directoryFailed();
+        } else {
+            log.warn("Unable to load SID {} through cache : {}", key, e.getMessage());
+        }
+        final String staleValue = getStale(key);
+        return staleValue == null ? null : serveStale(key, staleValue, "directory query failed");
+    }
+
+    /**
+     * @param t exception thrown by the cache
+     * @return LdapException causing t or null
+     */
+    private static LdapException ldapCauseOf(final Throwable t) {
+
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof LdapException) {
+                return (LdapException) cause;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Translates a cached value to the value returned to callers
+     * 
+     * @param cachedValue value found in cache
+     * @return DN or null if null values are cached
+     */
+    private String fromCache(final String cachedValue) {
+
+        if (cacheNullValues && NULL.equals(cachedValue)) {
+            return null;
+        }
+        return cachedValue;
+    }
+
+    /**
+     * Records the time after which a hit on a freshly loaded SID triggers a background reload. As the time to live of each element
+     * may be shortened by ttlJitter, the refresh delay is computed from the shortest possible time to live.
+     * 
+     * @param key SID
+     */
+    private void scheduleRefresh(final SidKey key) {
+
+        if (refreshTimes != null) {
+            final long delay = (long) (timeToLive * 1000 * (1 - ttlJitter) * (1 - refreshAheadFactor));
+            refreshTimes.put(key, new AtomicLong(System.currentTimeMillis() + delay));
+        }
+    }
+
+    /**
+     * Reloads a SID on background executor if it is close to its expiration. SIDs loaded by another member of a shared cache are
+     * considered as loaded at their first hit.
+     * 
+     * @param key SID found in cache
+     */
+    private void refreshIfDue(final SidKey key) {
+
+        if (refreshTimes == null || isDirectoryDown()) {
+            return;
+        }
+        final AtomicLong refreshTime = refreshTimes.get(key);
+        if (refreshTime == null) {
+            scheduleRefresh(key);
+            return;
+        }
+        final long time = refreshTime.get();
+        if (time <= System.currentTimeMillis() && refreshTime.compareAndSet(time, Long.MAX_VALUE)) {
+            // This thread won the refresh of this SID
+            refresh(key, refreshTime, time);
+        }
+    }
+
+    /**
+     * Reloads a SID from directory on background executor while the cached value keeps being served
+     * 
+     * @param key SID
+     * @param refreshTime refresh time of SID, set to Long.MAX_VALUE while the reload is in progress
+     * @param time refresh time restored if the reload fails
+     */
+    private void refresh(final SidKey key, final AtomicLong refreshTime, final long time) {
+
+        final CompletableFuture<String> future = new CompletableFuture<String>();
+        if (inFlight.putIfAbsent(key, future) != null) {
+            // Already being loaded
+            refreshTime.compareAndSet(Long.MAX_VALUE, time);
+            return;
+        }
+
+        log.debug("Refreshing SID {} ahead of expiration", key);
+        try {
+            asyncExecutor().execute(() -> {
+                try {
+                    final String groupDN = resolveToken(key.bytes());
+                    if (groupDN != null) {
+                        cachePut(key, groupDN);
+                    } else {
+                        // Group no longer exists
+                        if (negatives != null || !cacheNullValues) {
+                            store.remove(key);
+                            refreshTimes.remove(key);
+                        }
+                        cacheMissing(key);
+                    }
+                    future.complete(groupDN);
+                } catch (Throwable t) {
+                    // Cached value is kept
+                    log.warn("Unable to refresh SID {} : {}", key, t.getMessage());
+                    if (t instanceof LdapException) {
+                        directoryFailed();
+                    }
+                    refreshTime.compareAndSet(Long.MAX_VALUE, time);
+                    future.completeExceptionally(t);
+                } finally {
+                    inFlight.remove(key, future);
+                }
+            });
+        } catch (RuntimeException e) {
+            // Executor saturated or shut down
+            log.warn("Unable to schedule refresh of SID {} : {}", key, e.getMessage());
+            refreshTime.compareAndSet(Long.MAX_VALUE, time);
+            inFlight.remove(key, future);
+            future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Resolve a SID missing from cache. Concurrent calls for the same SID share a single directory query.
+     * 
+     * @param key SID
+     * @param loadExecutor executor running the directory query, or null to run it in the calling thread
+     * @return future completed once the SID is resolved and cached
+     */
+    private CompletableFuture<String> load(final SidKey key, final Executor loadExecutor) {
+
+        final CompletableFuture<String> future = new CompletableFuture<String>();
+        final CompletableFuture<String> inProgress = inFlight.putIfAbsent(key, future);
+        if (inProgress != null) {
+            log.debug("Joining in flight query for SID : {}", key);
+            return inProgress;
+        }
+
+        final Runnable loader = () -> {
+            try {
+                // Another query may have completed between cache lookup and registration
+                final String cachedValue = store.get(key);
+                if (cachedValue != null) {
+                    future.complete(fromCache(cachedValue));
+                } else {
+                    future.complete(distributedLoad ? resolveShared(key) : resolve(key));
+                }
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            } finally {
+                inFlight.remove(key, future);
+            }
+        };
+
+        if (loadExecutor == null) {
+            loader.run();
+        } else {
+            loadExecutor.execute(loader);
+        }
+        return future;
+    }
+
+    /**
+     * Resolve several SIDs with a single cache lookup. Misses that are not already in flight are resolved with a batched search,
+     * misses that are already being resolved by another thread are awaited.
+     * 
+     * @param allKeys SIDs to resolve
+     * @param loadExecutor executor running the directory queries, or null to run them in the calling thread
+     * @return future completed with the Map of resolved SIDs
+     */
+    private CompletableFuture<Map<SidKey, String>> loadAll(final Set<SidKey> allKeys, final Executor loadExecutor) {
+
+        final Map<SidKey, String> result = new HashMap<SidKey, String>(allKeys.size() * 2);
+
+        // Well-known, scope and known missing SIDs
+        final Set<SidKey> keys = new LinkedHashSet<SidKey>(allKeys.size() * 2);
+        for (SidKey key : allKeys) {
+            final String wellKnownDN = fromWellKnown(key);
+            if (wellKnownDN != null) {
+                metrics.hit();
+                result.put(key, wellKnownDN);
+                continue;
+            }
+            if (!isInScope(key)) {
+                metrics.negativeHit();
+                continue;
+            }
+            if (isKnownMissing(key)) {
+                metrics.negativeHit();
+            } else {
+                keys.add(key);
+            }
+        }
+
+        // Single cache lookup for all SIDs, then snapshot lookups, misses being loaded below by chunks. A read-through cache is
+        // peeked, as providers may load the misses of a bulk read one SID at a time
+        final Map<SidKey, String> cached = readThrough ? store.peekAll(keys) : store.getAll(keys);
+        for (Map.Entry<SidKey, String> entry : cached.entrySet()) {
+            onHit(entry.getKey(), entry.getValue());
+            if (!NULL.equals(entry.getValue())) {
+                result.put(entry.getKey(), entry.getValue());
+            }
+        }
+        int served = cached.size();
+        if (served < keys.size() && snapshotFile != null) {
+            for (SidKey key : keys) {
+                final String snapshotDN = cached.containsKey(key) ? null : fromSnapshot(key);
+                if (snapshotDN != null) {
+                    metrics.hit();
+                    result.put(key, snapshotDN);
+                    served++;
+                }
+            }
+        }
+
+        if (served == keys.size()) {
+            return CompletableFuture.completedFuture(result);
+        }
+
+        // Cache Misses
+        final boolean directoryDown = staleValues != null && isDirectoryDown();
+        final Map<SidKey, CompletableFuture<String>> pending = new HashMap<SidKey, CompletableFuture<String>>();
+        final Map<SidKey, CompletableFuture<String>> misses = new LinkedHashMap<SidKey, CompletableFuture<String>>();
+        for (SidKey key : keys) {
+            if (cached.containsKey(key) || result.containsKey(key)) {
+                continue;
+            }
+            metrics.miss();
+            if (directoryDown) {
+                final String staleValue = getStale(key);
+                if (staleValue != null) {
+                    final String groupDN = serveStale(key, staleValue, "directory unavailable");
+                    if (groupDN != null) {
+                        result.put(key, groupDN);
+                    }
+                    continue;
+                }
+            }
+            final CompletableFuture<String> future = new CompletableFuture<String>();
+            final CompletableFuture<String> inProgress = inFlight.putIfAbsent(key, future);
+            if (inProgress == null) {
+                misses.put(key, future);
+                pending.put(key, future);
+            } else {
+                pending.put(key, inProgress);
+            }
+        }
+
+        if (!misses.isEmpty()) {
+            final Runnable loader = () -> {
+                try {
+                    final Set<SidKey> failed = new HashSet<SidKey>();
+                    final Map<SidKey, String> found = distributedLoad ? resolveShared(misses.keySet(), failed) : searchAndCache(
+                            misses.keySet(), failed);
+
+                    for (Map.Entry<SidKey, CompletableFuture<String>> entry : misses.entrySet()) {
+                        final SidKey key = entry.getKey();
+                        final String staleValue = failed.contains(key) ? getStale(key) : null;
+                        entry.getValue().complete(staleValue == null ? found.get(key)
+                                : serveStale(key, staleValue, "directory query failed"));
+                    }
+                } catch (Throwable t) {
+                    for (CompletableFuture<String> future : misses.values()) {
+                        future.completeExceptionally(t);
+                    }
+                } finally {
+                    for (Map.Entry<SidKey, CompletableFuture<String>> entry : misses.entrySet()) {
+                        inFlight.remove(entry.getKey(), entry.getValue());
+                    }
+                }
+            };
+
+            if (loadExecutor == null) {
+                loader.run();
+            } else {
+                loadExecutor.execute(loader);
+            }
+        }
+
+        return CompletableFuture.allOf(pending.values().toArray(new CompletableFuture<?>[pending.size()])).thenApply(v -> {
+            for (Map.Entry<SidKey, CompletableFuture<String>> entry : pending.entrySet()) {
+                final String groupDN = entry.getValue().join();
+                if (groupDN != null) {
+                    result.put(entry.getKey(), groupDN);
+                }
+            }
+            return result;
+        });
+    }
+
+    // Getters and Setters
+
+    public long getTimeToLive() {
+
+        return timeToLive;
+    }
+
+    public void setTimeToLive(long timeToLive) {
+
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * @return number of stale values served since startup
+     */
+    public long getStaleHitCount() {
+
+        return metrics.getStaleHitCount();
+    }
+
+    /**
+     * @return number of SIDs evicted from the built-in cache to respect its bounds since startup, 0 if a JCache is used
+     */
+    public long getEvictionCount() {
+
+        return store instanceof BoundedRegistryCache ? ((BoundedRegistryCache) store).getEvictionCount() : 0;
+    }
+
+    public int getNegativeCacheSize() {
+
+        return negativeCacheSize;
+    }
+
+    public void setNegativeCacheSize(int negativeCacheSize) {
+
+        this.negativeCacheSize = negativeCacheSize;
+    }
+
+    public long getNegativeTimeToLive() {
+
+        return negativeTimeToLive;
+    }
+
+    public void setNegativeTimeToLive(long negativeTimeToLive) {
+
+        this.negativeTimeToLive = negativeTimeToLive;
+    }
+
+    public int getStaleCacheSize() {
+
+        return staleCacheSize;
+    }
+
+    public void setStaleCacheSize(int staleCacheSize) {
+
+        this.staleCacheSize = staleCacheSize;
+    }
+
+    public long getStaleTimeToLive() {
+
+        return staleTimeToLive;
+    }
+
+    public void setStaleTimeToLive(long staleTimeToLive) {
+
+        this.staleTimeToLive = staleTimeToLive;
+    }
+
+    public boolean isChangeNotifications() {
+
+        return changeNotifications;
+    }
+
+    public void setChangeNotifications(boolean changeNotifications) {
+
+        this.changeNotifications = changeNotifications;
+    }
+
+    public long getNotificationRetryDelay() {
+
+        return notificationRetryDelay;
+    }
+
+    public void setNotificationRetryDelay(long notificationRetryDelay) {
+
+        this.notificationRetryDelay = notificationRetryDelay;
+    }
+
+    public boolean isDistributedLoad() {
+
+        return distributedLoad;
+    }
+
+    public void setDistributedLoad(boolean distributedLoad) {
+
+        this.distributedLoad = distributedLoad;
+    }
+
+    public long getClaimTimeout() {
+
+        return claimTimeout;
+    }
+
+    public void setClaimTimeout(long claimTimeout) {
+
+        this.claimTimeout = claimTimeout;
+    }
+
+    public boolean isReadThrough() {
+
+        return readThrough;
+    }
+
+    public void setReadThrough(boolean readThrough) {
+
+        this.readThrough = readThrough;
+    }
+
+    public boolean isBuiltInCache() {
+
+        return builtInCache;
+    }
+
+    public void setBuiltInCache(boolean builtInCache) {
+
+        this.builtInCache = builtInCache;
+    }
+
+    public int getMaxElements() {
+
+        return maxElements;
+    }
+
+    public void setMaxElements(int maxElements) {
+
+        this.maxElements = maxElements;
+    }
+
+    public long getMaxWeight() {
+
+        return maxWeight;
+    }
+
+    /**
+     * The bound is divided among the stripes of the built-in cache (see {@link TinyLfuCache}), about 4 per processor and at most
+     * one per 64 elements : a DN or group record longer than maxWeight divided by the number of stripes is not cached, and is
+     * queried again on each lookup. The resulting limit is logged at startup.
+     * 
+     * @param maxWeight maximum total length (characters) of DNs and group records held by the built-in cache, 0 for no bound
+     */
+    public void setMaxWeight(long maxWeight) {
+
+        this.maxWeight = maxWeight;
+    }
+
+    public boolean isCompactDns() {
+
+        return compactDns;
+    }
+
+    public void setCompactDns(boolean compactDns) {
+
+        this.compactDns = compactDns;
+    }
+
+    public long getLatencyBudget() {
+
+        return latencyBudget;
+    }
+
+    public void setLatencyBudget(long latencyBudget) {
+
+        this.latencyBudget = latencyBudget;
+    }
+
+    public long getStaleRetryPeriod() {
+
+        return staleRetryPeriod;
+    }
+
+    public void setStaleRetryPeriod(long staleRetryPeriod) {
+
+        this.staleRetryPeriod = staleRetryPeriod;
+    }
+
+    public double getTtlJitter() {
+
+        return ttlJitter;
+    }
+
+    public void setTtlJitter(double ttlJitter) {
+
+        this.ttlJitter = ttlJitter;
+    }
+
+    public double getRefreshAheadFactor() {
+
+        return refreshAheadFactor;
+    }
+
+    public void setRefreshAheadFactor(double refreshAheadFactor) {
+
+        this.refreshAheadFactor = refreshAheadFactor;
+    }
+
+    public int getRefreshCacheSize() {
+
+        return refreshCacheSize;
+    }
+
+    public void setRefreshCacheSize(int refreshCacheSize) {
+
+        this.refreshCacheSize = refreshCacheSize;
+    }
+
+    public long getTimeToIdle() {
+
+        return timeToIdle;
+    }
+
+    public void setTimeToIdle(long timeToIdle) {
+
+        this.timeToIdle = timeToIdle;
+    }
+
+    public void setCacheNullValues(boolean cacheNullValues) {
+
+        this.cacheNullValues = cacheNullValues;
+    }
+
+    public boolean isCacheNullValues() {
+
+        return cacheNullValues;
+    }
+
+    public Cache<String, String> getCache() {
+
+        return cache;
+    }
+
+    public void setCache(Cache<String, String> cache) {
+
+        this.cache = cache;
+    }
+
+    public String getSnapshotFile() {
+
+        return snapshotFile;
+    }
+
+    public void setSnapshotFile(String snapshotFile) {
+
+        this.snapshotFile = snapshotFile;
+    }
+
+    public long getSnapshotCheckPeriod() {
+
+        return snapshotCheckPeriod;
+    }
+
+    public void setSnapshotCheckPeriod(long snapshotCheckPeriod) {
+
+        this.snapshotCheckPeriod = snapshotCheckPeriod;
+    }
+
+    public Cache<SidKey, String> getSidCache() {
+
+        return sidCache;
+    }
+
+    public void setSidCache(Cache<SidKey, String> sidCache) {
+
+        this.sidCache = sidCache;
+    }
+
+    public Cache<String, String> getDnCache() {
+
+        return dnCache;
+    }
+
+    public void setDnCache(Cache<String, String> dnCache) {
+
+        this.dnCache = dnCache;
+    }
+
+    public boolean isReverseCache() {
+
+        return reverseCache;
+    }
+
+    public void setReverseCache(boolean reverseCache) {
+
+        this.reverseCache = reverseCache;
+    }
+
+    public boolean isBinaryKeys() {
+
+        return binaryKeys;
+    }
+
+    public void setBinaryKeys(boolean binaryKeys) {
+
+        this.binaryKeys = binaryKeys;
+    }
+
+    public boolean isStatisticsEnabled() {
+
+        return statisticsEnabled;
+    }
+
+    public void setStatisticsEnabled(boolean statisticsEnabled) {
+
+        this.statisticsEnabled = statisticsEnabled;
+    }
+
+    public int getNearCacheSize() {
+
+        return nearCacheSize;
+    }
+
+    public void setNearCacheSize(int nearCacheSize) {
+
+        this.nearCacheSize = nearCacheSize;
+    }
+
+    public long getNearCacheTimeToLive() {
+
+        return nearCacheTimeToLive;
+    }
+
+    public void setNearCacheTimeToLive(long nearCacheTimeToLive) {
+
+        this.nearCacheTimeToLive = nearCacheTimeToLive;
     }
 
     public CacheManager getCacheManager() {
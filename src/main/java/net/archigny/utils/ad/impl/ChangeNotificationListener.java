@@ -0,0 +1,236 @@
+package net.archigny.utils.ad.impl;
+
+import java.io.Closeable;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.ldaptive.Connection;
+import org.ldaptive.ConnectionFactory;
+import org.ldaptive.LdapEntry;
+import org.ldaptive.LdapException;
+import org.ldaptive.SearchEntry;
+import org.ldaptive.SearchRequest;
+import org.ldaptive.SearchScope;
+import org.ldaptive.ad.control.NotificationControl;
+import org.ldaptive.ad.control.ShowDeletedControl;
+import org.ldaptive.ad.control.util.NotificationClient.NotificationItem;
+import org.ldaptive.ad.handler.ObjectGuidHandler;
+import org.ldaptive.ad.handler.ObjectSidHandler;
+import org.ldaptive.async.AsyncSearchOperation;
+import org.ldaptive.handler.HandlerResult;
+import org.ldaptive.handler.SearchEntryHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Subscription to Active Directory change notifications (LDAP_SERVER_NOTIFICATION_OID control) : a search which never completes,
+ * held on a dedicated connection, returns each object of a subtree as soon as it is created, modified, moved or deleted. Notified
+ * entries are forwarded to a callback by a daemon thread, their objectSid converted to its string representation.
+ * <p>
+ * The search also holds the LDAP_SERVER_SHOW_DELETED_OID control : without it, Active Directory does not notify deletions. The
+ * ldaptive NotificationClient replaces the controls of its request by the notification control alone, the asynchronous search is
+ * thus run by the listener itself.
+ * <p>
+ * A lost subscription (connection reset, domain controller restart...) is renewed after a delay. Changes made meanwhile are
+ * unknown : a resynchronization callback is run once the subscription is renewed.
+ * <p>
+ * Active Directory only accepts the (objectClass=*) filter, with a subtree scope on the head of a naming context. The connection
+ * factory must rely on a provider supporting asynchronous operations (eg: UnboundID), the default JNDI provider does not.
+ *
+ * @author Philippe MARASSE
+ */
+class ChangeNotificationListener implements Closeable {
+
+    /** Logger */
+    private static final Logger       log                  = LoggerFactory.getLogger(ChangeNotificationListener.class);
+
+    /** Attribute set to TRUE on deleted objects (tombstones) */
+    static final String               IS_DELETED_ATTRIBUTE = "isDeleted";
+
+    /** Maximum time (milliseconds) waiting for a notification before checking whether the listener is closed */
+    private static final long         POLL_PERIOD          = 500;
+
+    /** Factory of the dedicated connection */
+    private final ConnectionFactory   connectionFactory;
+
+    /** Notification search */
+    private final SearchRequest       request;
+
+    /** Receives notified entries */
+    private final Consumer<LdapEntry> onChange;
+
+    /** Run when a lost subscription is renewed */
+    private final Runnable            onResync;
+
+    /** Delay (milliseconds) before renewing a lost subscription */
+    private final long                retryDelay;
+
+    /** Thread holding the subscription */
+    private final Thread              thread;
+
+    /** True once closed */
+    private volatile boolean          closed               = false;
+
+    /**
+     * @param connectionFactory factory of the dedicated connection
+     * @param baseDN head of a naming context (eg: dc=example,dc=com)
+     * @param attributes attributes of notified entries
+     * @param binaryAttributes binary attributes among attributes
+     * @param onChange receives notified entries
+     * @param onResync run when a lost subscription is renewed
+     * @param retryDelay delay (milliseconds) before renewing a lost subscription
+     */
+    ChangeNotificationListener(final ConnectionFactory connectionFactory, final String baseDN, final String[] attributes,
+            final String[] binaryAttributes, final Consumer<LdapEntry> onChange, final Runnable onResync, final long retryDelay) {
+
+        this.connectionFactory = connectionFactory;
+        this.request = new SearchRequest(baseDN, "(objectClass=*)", attributes);
+        this.request.setSearchScope(SearchScope.SUBTREE);
+        this.request.setBinaryAttributes(binaryAttributes);
+        this.request.setControls(new NotificationControl(), new ShowDeletedControl());
+        this.onChange = onChange;
+        this.onResync = onResync;
+        this.retryDelay = retryDelay;
+        this.thread = new Thread(this::run, "adtokengroups-notification");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Subscribes in background
+     */
+    void start() {
+
+        thread.start();
+    }
+
+    /**
+     * Subscribes until closed, renewing lost subscriptions
+     */
+    private void run() {
+
+        boolean lost = false;
+        while (!closed) {
+            try {
+                listen(lost);
+            } catch (LdapException e) {
+                log.warn("Unable to subscribe to change notifications of {} : {}", request.getBaseDn(), e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            lost = true;
+            if (!closed) {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(retryDelay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Holds a subscription until it ends or the listener is closed
+     *
+     * @param resync true if a previous subscription has been lost
+     * @throws LdapException if the subscription could not be requested
+     * @throws InterruptedException if the listener is closed while waiting for notifications
+     */
+    private void listen(final boolean resync) throws LdapException, InterruptedException {
+
+        final Connection conn = connectionFactory.getConnection();
+        final AsyncSearchOperation search = new AsyncSearchOperation(conn);
+        try {
+            conn.open();
+            final BlockingQueue<NotificationItem> items = subscribe(search);
+            while (!closed) {
+                final NotificationItem item = items.poll(POLL_PERIOD, TimeUnit.MILLISECONDS);
+                if (item == null) {
+                    continue;
+                }
+                if (item.isAsyncRequest()) {
+                    log.info("Subscribed to change notifications of {}", request.getBaseDn());
+                    if (resync) {
+                        onResync.run();
+                    }
+                } else if (item.isEntry()) {
+                    try {
+                        onChange.accept(item.getEntry());
+                    } catch (RuntimeException e) {
+                        log.error("Unable to apply change of {} : {}", item.getEntry().getDn(), e.getMessage());
+                    }
+                } else if (item.isResponse()) {
+                    log.warn("Change notifications ended by the directory : {}", item.getResponse().getResultCode());
+                    return;
+                } else if (item.isException()) {
+                    log.warn("Change notifications interrupted : {}", item.getException().getMessage());
+                    return;
+                }
+            }
+        } finally {
+            search.shutdown();
+            conn.close();
+        }
+    }
+
+    /**
+     * Runs the notification search, queuing its notifications as NotificationClient would
+     *
+     * @param search asynchronous search on an open connection
+     * @return notifications : the subscription, then notified entries, then the response or exception ending the subscription
+     * @throws LdapException if the search could not be requested
+     */
+    @SuppressWarnings("unchecked")
+    private BlockingQueue<NotificationItem> subscribe(final AsyncSearchOperation search) throws LdapException {
+
+        final BlockingQueue<NotificationItem> items = new LinkedBlockingQueue<>();
+        search.setAsyncRequestHandlers((conn, req, asyncRequest) -> {
+            items.add(new NotificationItem(asyncRequest));
+            return new HandlerResult<>(null);
+        });
+        search.setOperationResponseHandlers((conn, req, response) -> {
+            items.add(new NotificationItem(response));
+            return new HandlerResult<>(response);
+        });
+        search.setExceptionHandler((conn, req, exception) -> {
+            items.add(new NotificationItem(exception));
+            return new HandlerResult<>(null);
+        });
+        request.setSearchEntryHandlers(new ObjectGuidHandler(), new ObjectSidHandler(), new SearchEntryHandler() {
+
+            @Override
+            public HandlerResult<SearchEntry> handle(final Connection conn, final SearchRequest req, final SearchEntry entry) {
+
+                items.add(new NotificationItem(entry));
+                return new HandlerResult<>(null);
+            }
+
+            @Override
+            public void initializeRequest(final SearchRequest req) {
+
+                // Nothing to initialize
+            }
+        });
+        search.execute(request);
+        return items;
+    }
+
+    /**
+     * Ends the subscription and waits for the listening thread to stop
+     */
+    @Override
+    public void close() {
+
+        closed = true;
+        thread.interrupt();
+        try {
+            thread.join(10 * POLL_PERIOD);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,72 @@
+package net.archigny.utils.ad.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * DN held by an in-process cache tier : its leaf RDN encoded in UTF-8 and its suffix, interned by a {@link DnSuffixTree}. The DN
+ * string is materialized by {@link #toString()} on each call, DNs are compared without being materialized.
+ *
+ * @author Philippe MARASSE
+ */
+final class CompactDn {
+
+    /** Suffix, shared by the DNs of a container */
+    private final DnSuffixTree.Node suffix;
+
+    /** Leaf RDN, UTF-8 */
+    private final byte[]            rdn;
+
+    /**
+     * @param suffix interned suffix
+     * @param rdn leaf RDN, UTF-8
+     */
+    CompactDn(final DnSuffixTree.Node suffix, final byte[] rdn) {
+
+        this.suffix = suffix;
+        this.rdn = rdn;
+    }
+
+    /**
+     * @return length (characters) of the DN
+     */
+    int length() {
+
+        int length = 0;
+        for (byte b : rdn) {
+            if ((b & 0xC0) != 0x80) {
+                // Leading byte, 4 bytes sequences being surrogate pairs
+                length += (b & 0xF8) == 0xF0 ? 2 : 1;
+            }
+        }
+        return length + 1 + suffix.toString().length();
+    }
+
+    @Override
+    public int hashCode() {
+
+        return 31 * suffix.hashCode() + Arrays.hashCode(rdn);
+    }
+
+    /**
+     * DNs are equal if they share their interned suffix and their leaf RDN
+     */
+    @Override
+    public boolean equals(final Object obj) {
+
+        if (this == obj) return true;
+        if (!(obj instanceof CompactDn)) return false;
+        final CompactDn other = (CompactDn) obj;
+        return suffix == other.suffix && Arrays.equals(rdn, other.rdn);
+    }
+
+    /**
+     * @return DN
+     */
+    @Override
+    public String toString() {
+
+        return new String(rdn, StandardCharsets.UTF_8) + ',' + suffix.toString();
+    }
+
+}
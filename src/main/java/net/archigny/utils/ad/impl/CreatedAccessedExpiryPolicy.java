@@ -1,12 +1,21 @@
 package net.archigny.utils.ad.impl;
 
 import java.io.Serializable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 import javax.cache.configuration.Factory;
 import javax.cache.configuration.FactoryBuilder;
 import javax.cache.expiry.Duration;
 import javax.cache.expiry.ExpiryPolicy;
 
+/**
+ * Expiry policy combining a time to live counted from creation or update and a time to idle counted from last access. The time to
+ * live can be randomly shortened by up to a fraction of its value (jitter), so that entries created together do not expire
+ * together.
+ * 
+ * @author Philippe MARASSE
+ */
 public class CreatedAccessedExpiryPolicy implements ExpiryPolicy, Serializable {
 
     /** Serial */
@@ -18,6 +27,9 @@ public class CreatedAccessedExpiryPolicy implements ExpiryPolicy, Serializable {
     /** The {@link Duration} a cache entry should be available, without be accessed, before it expires. */
     private Duration          timeToIdle;
 
+    /** Maximum fraction of timeToLive randomly removed from each entry time to live, 0 for no jitter */
+    private double            jitter;
+
     /**
      * Obtains a {@link Factory} for a CreatedAccessed {@link ExpiryPolicy}.
      * 
@@ -32,6 +44,22 @@ public class CreatedAccessedExpiryPolicy implements ExpiryPolicy, Serializable {
         return new FactoryBuilder.SingletonFactory<ExpiryPolicy>(new CreatedAccessedExpiryPolicy(timeToLive, timeToIdle));
     }
 
+    /**
+     * Obtains a {@link Factory} for a CreatedAccessed {@link ExpiryPolicy} with jittered time to live.
+     * 
+     * @param timeToLive
+     *            the {@link Duration} a Cache Entry should exist before it expires after being created or updated
+     * @param timeToIdle
+     *            the {@link Duration} a Cache Entry should exist before it expires after being accessed
+     * @param jitter
+     *            maximum fraction (0 to 1) of timeToLive randomly removed from each entry time to live
+     * @return a {@link Factory} for CreatedAccessed {@link ExpiryPolicy}.
+     */
+    public static Factory<ExpiryPolicy> factoryOf(Duration timeToLive, Duration timeToIdle, double jitter) {
+
+        return new FactoryBuilder.SingletonFactory<ExpiryPolicy>(new CreatedAccessedExpiryPolicy(timeToLive, timeToIdle, jitter));
+    }
+
     /**
      * Construct an {@link ExpiryPolicy} based on a maximum TTL and an idle TTL
      * 
@@ -41,15 +69,37 @@ public class CreatedAccessedExpiryPolicy implements ExpiryPolicy, Serializable {
      *            the {@link Duration} a Cache Entry should exist before it expires after being accessed
      */
     public CreatedAccessedExpiryPolicy(Duration timeToLive, Duration timeToIdle) {
+        this(timeToLive, timeToIdle, 0);
+    }
+
+    /**
+     * Construct an {@link ExpiryPolicy} based on a jittered maximum TTL and an idle TTL
+     * 
+     * @param timeToLive
+     *            the {@link Duration} a Cache Entry should exist before it expires after being created or updated
+     * @param timeToIdle
+     *            the {@link Duration} a Cache Entry should exist before it expires after being accessed
+     * @param jitter
+     *            maximum fraction (0 to 1) of timeToLive randomly removed from each entry time to live
+     */
+    public CreatedAccessedExpiryPolicy(Duration timeToLive, Duration timeToIdle, double jitter) {
         super();
+        if (jitter < 0 || jitter >= 1) {
+            throw new IllegalArgumentException("jitter must be in [0, 1[");
+        }
         this.timeToLive = timeToLive;
         this.timeToIdle = timeToIdle;
+        this.jitter = jitter;
     }
 
     @Override
     public Duration getExpiryForCreation() {
 
-        return timeToLive;
+        if (jitter == 0 || timeToLive == null || timeToLive.isEternal() || timeToLive.isZero()) {
+            return timeToLive;
+        }
+        final long ttl = timeToLive.getTimeUnit().toMillis(timeToLive.getDurationAmount());
+        return new Duration(TimeUnit.MILLISECONDS, ttl - (long) (ThreadLocalRandom.current().nextDouble() * jitter * ttl));
     }
 
     @Override
@@ -58,10 +108,13 @@ public class CreatedAccessedExpiryPolicy implements ExpiryPolicy, Serializable {
         return timeToIdle;
     }
 
+    /**
+     * Updates only occur when a value has been freshly loaded from the directory (eg: refresh-ahead), the time to live restarts
+     */
     @Override
     public Duration getExpiryForUpdate() {
 
-        return null;
+        return getExpiryForCreation();
     }
 
     @Override
@@ -71,6 +124,7 @@ public class CreatedAccessedExpiryPolicy implements ExpiryPolicy, Serializable {
         int result = 1;
         result = prime * result + ((timeToIdle == null) ? 0 : timeToIdle.hashCode());
         result = prime * result + ((timeToLive == null) ? 0 : timeToLive.hashCode());
+        result = prime * result + Double.hashCode(jitter);
         return result;
     }
 
@@ -87,6 +141,7 @@ public class CreatedAccessedExpiryPolicy implements ExpiryPolicy, Serializable {
         if (timeToLive == null) {
             if (other.timeToLive != null) return false;
         } else if (!timeToLive.equals(other.timeToLive)) return false;
+        if (Double.compare(jitter, other.jitter) != 0) return false;
         return true;
     }
 
@@ -0,0 +1,156 @@
+package net.archigny.utils.ad.impl;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.cache.configuration.Factory;
+import javax.cache.configuration.FactoryBuilder;
+import javax.cache.integration.CacheLoader;
+import javax.cache.integration.CacheLoaderException;
+
+/**
+ * JCache loader resolving SIDs missing from a read-through cache : the cache provider calls it on misses, with its own load
+ * locking and statistics. {@link #loadAll(Iterable)} resolves the SIDs it is given with one OR filtered search per chunk (see
+ * {@link SimpleADTokenGroupsRegistry#getChunkSize()}), providers may however call it one SID at a time (eg: EhCache on-heap
+ * stores).
+ * <p>
+ * Loaders are serialized with cache configurations : a loader looks up, in the JVM running it, the
+ * {@link CachingADTokenGroupsRegistry} with readThrough set which uses the cache named after. A single registry per cache and
+ * JVM is expected.
+ * <p>
+ * Sample configuration of a cache keyed by string represented SIDs :
+ *
+ * <pre>
+ * new MutableConfiguration&lt;String, String&gt;().setTypes(String.class, String.class).setReadThrough(true)
+ *         .setCacheLoaderFactory(DirectoryCacheLoader.factoryOf(cacheName, String.class));
+ * </pre>
+ *
+ * @param <K> JCache key type : String (string represented SIDs) or {@link SidKey}
+ * @author Philippe MARASSE
+ */
+public final class DirectoryCacheLoader<K> implements CacheLoader<K, String>, Serializable {
+
+    /** Serial */
+    private static final long    serialVersionUID = -6177042806153617360L;
+
+    /** Registries of this JVM loading through their cache, by cache name */
+    private static final ConcurrentMap<String, CachingADTokenGroupsRegistry> REGISTRIES = new ConcurrentHashMap<>();
+
+    /** Name of the cache using this loader */
+    private final String         cacheName;
+
+    /** True if keys are {@link SidKey}, false if keys are string represented SIDs */
+    private final boolean        binaryKeys;
+
+    /**
+     * @param cacheName name of the cache using this loader
+     * @param keyType JCache key type : String (string represented SIDs) or {@link SidKey}
+     * @throws IllegalArgumentException if keyType is not supported
+     */
+    public DirectoryCacheLoader(final String cacheName, final Class<K> keyType) {
+
+        if (keyType != String.class && keyType != SidKey.class) {
+            throw new IllegalArgumentException("Unsupported key type : " + keyType);
+        }
+        this.cacheName = cacheName;
+        this.binaryKeys = keyType == SidKey.class;
+    }
+
+    /**
+     * @param cacheName name of the cache using the loader
+     * @param keyType JCache key type : String (string represented SIDs) or {@link SidKey}
+     * @param <K> JCache key type
+     * @return factory to be given to {@link javax.cache.configuration.MutableConfiguration#setCacheLoaderFactory(Factory)}
+     */
+    public static <K> Factory<CacheLoader<K, String>> factoryOf(final String cacheName, final Class<K> keyType) {
+
+        return new FactoryBuilder.SingletonFactory<CacheLoader<K, String>>(new DirectoryCacheLoader<K>(cacheName, keyType));
+    }
+
+    /**
+     * @param name name of the cache
+     * @param registry registry loading through the cache
+     */
+    static void register(final String name, final CachingADTokenGroupsRegistry registry) {
+
+        REGISTRIES.put(name, registry);
+    }
+
+    /**
+     * @param name name of the cache
+     * @param registry registry, left in place if another registry has been registered since
+     */
+    static void unregister(final String name, final CachingADTokenGroupsRegistry registry) {
+
+        REGISTRIES.remove(name, registry);
+    }
+
+    /**
+     * @return DN, encoded group record, {@link CachingADTokenGroupsRegistry#NULL} if SID is missing from the directory and null
+     *         values are cached, null otherwise
+     * @throws CacheLoaderException if the directory could not be queried
+     */
+    @Override
+    public String load(final K key) throws CacheLoaderException {
+
+        final SidKey sid = toSid(key);
+        return sid == null ? null : registry().loadForCache(sid);
+    }
+
+    /**
+     * @return Map of loaded values, SIDs missing from the directory are absent unless null values are cached
+     * @throws CacheLoaderException if the directory could not be queried
+     */
+    @Override
+    public Map<K, String> loadAll(final Iterable<? extends K> keys) throws CacheLoaderException {
+
+        final Map<SidKey, K> sids = new HashMap<SidKey, K>();
+        for (K key : keys) {
+            final SidKey sid = toSid(key);
+            if (sid != null) {
+                sids.put(sid, key);
+            }
+        }
+
+        final Map<SidKey, String> values = registry().loadAllForCache(new LinkedHashSet<SidKey>(sids.keySet()));
+        final Map<K, String> result = new HashMap<K, String>(values.size() * 2);
+        for (Map.Entry<SidKey, String> entry : values.entrySet()) {
+            result.put(sids.get(entry.getKey()), entry.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * @return registry loading through the cache in this JVM
+     * @throws CacheLoaderException if there is none
+     */
+    private CachingADTokenGroupsRegistry registry() {
+
+        final CachingADTokenGroupsRegistry registry = REGISTRIES.get(cacheName);
+        if (registry == null) {
+            throw new CacheLoaderException("No registry loading through " + cacheName + " on this member");
+        }
+        return registry;
+    }
+
+    /**
+     * @param key JCache key
+     * @return SID or null if key is not a valid string represented SID
+     */
+    private SidKey toSid(final K key) {
+
+        if (binaryKeys) {
+            return (SidKey) key;
+        }
+        try {
+            return SidKey.parse((String) key);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,202 @@
+package net.archigny.utils.ad.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tree of the DN suffixes held by the in-process cache tiers, from the root of the directory down to the parents of cached
+ * entries. Nearly every cached DN ends with the same few suffixes (eg: "OU=Groupes,DC=example,DC=com") : each RDN of a suffix is
+ * held once by its node, cached DNs are held as a {@link CompactDn}, their leaf RDN and their suffix node.
+ * <p>
+ * Suffixes are interned for the lifetime of the tree : their number is bounded by the number of containers of the directory.
+ * Values which are not DNs of at least two RDNs (encoded group records, {@link CachingADTokenGroupsRegistry#NULL}) are held as
+ * they are.
+ *
+ * @author Philippe MARASSE
+ */
+final class DnSuffixTree {
+
+    /** Tree holding every value as it is, used when DNs are not compacted */
+    static final DnSuffixTree   NONE     = new DnSuffixTree(false);
+
+    /** Children of the root : last RDN of DNs (eg: "DC=com") */
+    private final Node          root     = new Node(null, null);
+
+    /** False if values are held as they are */
+    private final boolean       compacting;
+
+    /** Number of interned suffixes */
+    private final AtomicInteger suffixes = new AtomicInteger();
+
+    DnSuffixTree() {
+
+        this(true);
+    }
+
+    private DnSuffixTree(final boolean compacting) {
+
+        this.compacting = compacting;
+    }
+
+    /**
+     * @param value DN, encoded group record or {@link CachingADTokenGroupsRegistry#NULL}
+     * @return value to be held by a cache tier : {@link CompactDn} for DNs, value as is otherwise
+     */
+    Object compact(final String value) {
+
+        final int leafEnd = compacting ? leafEnd(value) : -1;
+        if (leafEnd < 0) {
+            return value;
+        }
+        Node node = root;
+        int end = value.length();
+        while (end > leafEnd) {
+            final int start = lastSeparator(value, leafEnd, end);
+            final String rdn = value.substring(start + 1, end);
+            Node child = node.children.get(rdn);
+            if (child == null) {
+                final Node created = new Node(node, rdn);
+                child = node.children.putIfAbsent(rdn, created);
+                if (child == null) {
+                    child = created;
+                    suffixes.incrementAndGet();
+                }
+            }
+            node = child;
+            end = start;
+        }
+        return new CompactDn(node, value.substring(0, leafEnd).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Same as {@link #compact(String)} without interning : used to look up keys held by a cache tier
+     *
+     * @param value DN
+     * @return key to look up, null if the suffix of the DN is unknown, no entry being then held
+     */
+    Object find(final String value) {
+
+        final int leafEnd = compacting ? leafEnd(value) : -1;
+        if (leafEnd < 0) {
+            return value;
+        }
+        Node node = root;
+        int end = value.length();
+        while (end > leafEnd) {
+            final int start = lastSeparator(value, leafEnd, end);
+            node = node.children.get(value.substring(start + 1, end));
+            if (node == null) {
+                return null;
+            }
+            end = start;
+        }
+        return new CompactDn(node, value.substring(0, leafEnd).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param value value held by a cache tier
+     * @return length (characters) of the value once materialized
+     */
+    static int lengthOf(final Object value) {
+
+        return value instanceof CompactDn ? ((CompactDn) value).length() : ((String) value).length();
+    }
+
+    /**
+     * @return number of interned suffixes
+     */
+    int size() {
+
+        return suffixes.get();
+    }
+
+    /**
+     * @param value value
+     * @return position of the separator ending the leaf RDN, -1 if value is not a DN of at least two RDNs or uses quoted values
+     */
+    private static int leafEnd(final String value) {
+
+        int leafEnd = -1;
+        boolean hasEquals = false;
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '=') {
+                hasEquals = true;
+            } else if (c == ',') {
+                if (!hasEquals) {
+                    return -1;
+                }
+                if (leafEnd < 0) {
+                    leafEnd = i;
+                }
+                hasEquals = false;
+            } else if (c == '"' || c < ' ') {
+                return -1;
+            }
+        }
+        return hasEquals ? leafEnd : -1;
+    }
+
+    /**
+     * @param dn DN
+     * @param from position of the separator ending the leaf RDN
+     * @param end end of the RDN
+     * @return position of the unescaped separator preceding the RDN ending at end
+     */
+    private static int lastSeparator(final String dn, final int from, final int end) {
+
+        int separator = from;
+        for (int i = from + 1; i < end; i++) {
+            final char c = dn.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == ',') {
+                separator = i;
+            }
+        }
+        return separator;
+    }
+
+    /**
+     * Suffix : an RDN and the suffix of its parent. Nodes are compared by identity.
+     */
+    static final class Node {
+
+        /** Parent suffix, null for the root */
+        private final Node                        parent;
+
+        /** RDN, null for the root */
+        private final String                      rdn;
+
+        /** Children, by RDN */
+        private final ConcurrentMap<String, Node> children = new ConcurrentHashMap<String, Node>(4);
+
+        /** Materialized suffix, shared by the DNs ending with it */
+        private volatile String                   suffix;
+
+        private Node(final Node parent, final String rdn) {
+
+            this.parent = parent;
+            this.rdn = rdn;
+        }
+
+        /**
+         * @return suffix, materialized once
+         */
+        @Override
+        public String toString() {
+
+            String value = suffix;
+            if (value == null) {
+                value = parent.rdn == null ? rdn : rdn + ',' + parent.toString();
+                suffix = value;
+            }
+            return value;
+        }
+    }
+
+}
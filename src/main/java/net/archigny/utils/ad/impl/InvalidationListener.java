@@ -0,0 +1,69 @@
+package net.archigny.utils.ad.impl;
+
+import java.io.Serializable;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import javax.cache.event.CacheEntryEvent;
+import javax.cache.event.CacheEntryExpiredListener;
+import javax.cache.event.CacheEntryListenerException;
+import javax.cache.event.CacheEntryRemovedListener;
+import javax.cache.event.CacheEntryUpdatedListener;
+
+/**
+ * JCache listener forwarding SIDs updated, removed or expired to an invalidation callback. Creations are ignored : they never
+ * make a locally held value stale.
+ * <p>
+ * Distributed providers may serialize the listener configuration : references to the callback are transient, deserialized copies
+ * do nothing.
+ * 
+ * @param <K> JCache key type
+ * @author Philippe MARASSE
+ */
+class InvalidationListener<K> implements CacheEntryUpdatedListener<K, String>, CacheEntryRemovedListener<K, String>,
+        CacheEntryExpiredListener<K, String>, Serializable {
+
+    /** Serial */
+    private static final long                serialVersionUID = -1725034913482907312L;
+
+    /** Conversion of JCache keys to SIDs */
+    private final transient Function<K, SidKey> fromCacheKey;
+
+    /** Invalidation callback */
+    private final transient Consumer<SidKey> invalidator;
+
+    InvalidationListener(final Function<K, SidKey> fromCacheKey, final Consumer<SidKey> invalidator) {
+
+        this.fromCacheKey = fromCacheKey;
+        this.invalidator = invalidator;
+    }
+
+    @Override
+    public void onUpdated(Iterable<CacheEntryEvent<? extends K, ? extends String>> events) throws CacheEntryListenerException {
+
+        invalidate(events);
+    }
+
+    @Override
+    public void onRemoved(Iterable<CacheEntryEvent<? extends K, ? extends String>> events) throws CacheEntryListenerException {
+
+        invalidate(events);
+    }
+
+    @Override
+    public void onExpired(Iterable<CacheEntryEvent<? extends K, ? extends String>> events) throws CacheEntryListenerException {
+
+        invalidate(events);
+    }
+
+    private void invalidate(final Iterable<CacheEntryEvent<? extends K, ? extends String>> events) {
+
+        if (invalidator == null) {
+            return;
+        }
+        for (CacheEntryEvent<? extends K, ? extends String> event : events) {
+            invalidator.accept(fromCacheKey.apply(event.getKey()));
+        }
+    }
+
+}
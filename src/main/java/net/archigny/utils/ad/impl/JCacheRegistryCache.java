@@ -0,0 +1,216 @@
+package net.archigny.utils.ad.impl;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import javax.cache.Cache;
+import javax.cache.configuration.CacheEntryListenerConfiguration;
+import javax.cache.configuration.FactoryBuilder;
+import javax.cache.configuration.MutableCacheEntryListenerConfiguration;
+import javax.cache.processor.EntryProcessor;
+import javax.cache.processor.EntryProcessorResult;
+import javax.cache.processor.MutableEntry;
+
+/**
+ * {@link RegistryCache} backed by a JCache instance, keyed either by string represented SIDs or by {@link SidKey}
+ * 
+ * @param <K> JCache key type
+ * @author Philippe MARASSE
+ */
+class JCacheRegistryCache<K> implements SharedRegistryCache {
+
+    /** JCache instance */
+    private final Cache<K, String>    cache;
+
+    /** Conversion of SIDs to JCache keys */
+    private final Function<SidKey, K> toCacheKey;
+
+    /** Conversion of JCache keys to SIDs */
+    private final Function<K, SidKey> fromCacheKey;
+
+    /**
+     * @param cache JCache keyed by string represented SIDs
+     * @return registry cache
+     */
+    static JCacheRegistryCache<String> ofStringKeys(final Cache<String, String> cache) {
+
+        return new JCacheRegistryCache<String>(cache, SidKey::toString, SidKey::parse);
+    }
+
+    /**
+     * @param cache JCache keyed by binary SIDs
+     * @return registry cache
+     */
+    static JCacheRegistryCache<SidKey> ofSidKeys(final Cache<SidKey, String> cache) {
+
+        return new JCacheRegistryCache<SidKey>(cache, Function.identity(), Function.identity());
+    }
+
+    private JCacheRegistryCache(final Cache<K, String> cache, final Function<SidKey, K> toCacheKey,
+            final Function<K, SidKey> fromCacheKey) {
+
+        this.cache = cache;
+        this.toCacheKey = toCacheKey;
+        this.fromCacheKey = fromCacheKey;
+    }
+
+    @Override
+    public String get(final SidKey key) {
+
+        final String value = cache.get(toCacheKey.apply(key));
+        return LoadClaimProcessor.isClaim(value) ? null : value;
+    }
+
+    @Override
+    public Map<SidKey, String> getAll(final Set<SidKey> keys) {
+
+        final Map<K, SidKey> cacheKeys = new HashMap<K, SidKey>(keys.size() * 2);
+        for (SidKey key : keys) {
+            cacheKeys.put(toCacheKey.apply(key), key);
+        }
+
+        final Map<K, String> values = cache.getAll(cacheKeys.keySet());
+        final Map<SidKey, String> result = new HashMap<SidKey, String>(values.size() * 2);
+        for (Map.Entry<K, String> entry : values.entrySet()) {
+            if (!LoadClaimProcessor.isClaim(entry.getValue())) {
+                result.put(cacheKeys.get(entry.getKey()), entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Map<SidKey, String> peekAll(final Set<SidKey> keys) {
+
+        final Map<K, SidKey> cacheKeys = new HashMap<K, SidKey>(keys.size() * 2);
+        for (SidKey key : keys) {
+            cacheKeys.put(toCacheKey.apply(key), key);
+        }
+
+        final Map<K, EntryProcessorResult<String>> values = cache.invokeAll(cacheKeys.keySet(), new PeekProcessor<K>());
+        final Map<SidKey, String> result = new HashMap<SidKey, String>(values.size() * 2);
+        for (Map.Entry<K, EntryProcessorResult<String>> entry : values.entrySet()) {
+            final String value = entry.getValue().get();
+            if (value != null && !LoadClaimProcessor.isClaim(value)) {
+                result.put(cacheKeys.get(entry.getKey()), value);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void put(final SidKey key, final String value) {
+
+        cache.put(toCacheKey.apply(key), value);
+    }
+
+    @Override
+    public void putAll(final Map<SidKey, String> entries) {
+
+        final Map<K, String> values = new HashMap<K, String>(entries.size() * 2);
+        for (Map.Entry<SidKey, String> entry : entries.entrySet()) {
+            values.put(toCacheKey.apply(entry.getKey()), entry.getValue());
+        }
+        cache.putAll(values);
+    }
+
+    @Override
+    public boolean remove(final SidKey key) {
+
+        return cache.remove(toCacheKey.apply(key));
+    }
+
+    @Override
+    public Map<SidKey, String> claimAll(final Set<SidKey> keys, final String claim) {
+
+        final Map<K, SidKey> cacheKeys = new HashMap<K, SidKey>(keys.size() * 2);
+        for (SidKey key : keys) {
+            cacheKeys.put(toCacheKey.apply(key), key);
+        }
+
+        final Map<K, EntryProcessorResult<String>> values = cache.invokeAll(cacheKeys.keySet(), new LoadClaimProcessor<K>(claim));
+        final Map<SidKey, String> result = new HashMap<SidKey, String>(values.size() * 2);
+        for (Map.Entry<K, EntryProcessorResult<String>> entry : values.entrySet()) {
+            // Throws the processor failure, if any
+            final String value = entry.getValue().get();
+            if (value != null) {
+                result.put(cacheKeys.get(entry.getKey()), value);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean release(final SidKey key, final String claim, final String value) {
+
+        final K cacheKey = toCacheKey.apply(key);
+        return value == null ? cache.remove(cacheKey, claim) : cache.replace(cacheKey, claim, value);
+    }
+
+    @Override
+    public void clear() {
+
+        cache.removeAll();
+    }
+
+    @Override
+    public void close() {
+
+        cache.close();
+    }
+
+    /**
+     * Registers an asynchronous listener notified of SIDs updated, removed or expired in the JCache, by this JVM or any other
+     * member sharing the cache
+     * 
+     * @param invalidator receives modified SIDs
+     * @return listener configuration, to be given to {@link #removeListener(CacheEntryListenerConfiguration)}
+     */
+    CacheEntryListenerConfiguration<K, String> addInvalidationListener(final Consumer<SidKey> invalidator) {
+
+        final InvalidationListener<K> listener = new InvalidationListener<K>(fromCacheKey, invalidator);
+        final CacheEntryListenerConfiguration<K, String> configuration = new MutableCacheEntryListenerConfiguration<K, String>(
+                FactoryBuilder.factoryOf(listener), null, false, false);
+        cache.registerCacheEntryListener(configuration);
+        return configuration;
+    }
+
+    /**
+     * @param configuration listener configuration returned by {@link #addInvalidationListener(Consumer)}
+     */
+    void removeListener(final CacheEntryListenerConfiguration<K, String> configuration) {
+
+        cache.deregisterCacheEntryListener(configuration);
+    }
+
+    /**
+     * @return underlying JCache instance
+     */
+    Cache<K, String> getCache() {
+
+        return cache;
+    }
+
+    /**
+     * Returns the value of an entry without loading it : {@link MutableEntry#exists()} does not use the cache loader
+     * 
+     * @param <K> JCache key type
+     */
+    private static final class PeekProcessor<K> implements EntryProcessor<K, String, String>, Serializable {
+
+        /** Serial */
+        private static final long serialVersionUID = 2981512640170394567L;
+
+        @Override
+        public String process(final MutableEntry<K, String> entry, final Object... arguments) {
+
+            return entry.exists() ? entry.getValue() : null;
+        }
+
+    }
+
+}
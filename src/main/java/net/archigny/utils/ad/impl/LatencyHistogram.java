@@ -0,0 +1,101 @@
+package net.archigny.utils.ad.impl;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with power of two buckets : bucket i counts durations in [2^i, 2^(i+1)[ microseconds, the first
+ * bucket counts durations under 2 microseconds and the last one every duration above its lower bound. Recording a value does not
+ * allocate.
+ *
+ * @author Philippe MARASSE
+ */
+final class LatencyHistogram {
+
+    /** Number of buckets : the last one starts at 2^26 µs =&gt; ~67s */
+    static final int         BUCKETS = 27;
+
+    /** Counts per bucket */
+    private final LongAdder[] counts  = new LongAdder[BUCKETS];
+
+    /** Sum of recorded durations (nanoseconds) */
+    private final LongAdder   total   = new LongAdder();
+
+    LatencyHistogram() {
+
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param nanos duration (nanoseconds)
+     */
+    void record(final long nanos) {
+
+        final long micros = Math.max(nanos / 1000, 1);
+        counts[Math.min(63 - Long.numberOfLeadingZeros(micros), BUCKETS - 1)].increment();
+        total.add(nanos);
+    }
+
+    /**
+     * @return counts per bucket
+     */
+    long[] getCounts() {
+
+        final long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts[i].sum();
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return number of recorded durations
+     */
+    long getCount() {
+
+        long count = 0;
+        for (LongAdder bucket : counts) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * @return mean duration (milliseconds), 0 if nothing has been recorded
+     */
+    double getMean() {
+
+        final long count = getCount();
+        return count == 0 ? 0 : total.sum() / (count * 1000000.0);
+    }
+
+    /**
+     * Estimates a percentile by the upper bound of the bucket holding it
+     *
+     * @param percentile percentile in ]0, 100]
+     * @return duration (milliseconds), 0 if nothing has been recorded
+     */
+    double getPercentile(final double percentile) {
+
+        final long[] snapshot = getCounts();
+        long count = 0;
+        for (long bucketCount : snapshot) {
+            count += bucketCount;
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        final long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return (1L << (i + 1)) / 1000.0;
+            }
+        }
+        return (1L << BUCKETS) / 1000.0;
+    }
+
+}
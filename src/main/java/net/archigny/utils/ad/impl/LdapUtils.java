@@ -33,12 +33,8 @@ public class LdapUtils {
      */
     public static String toHexString(final byte b) {
 
-        String hexString = Integer.toHexString(b & 0xFF);
-        if (hexString.length() % 2 != 0) {
-            // Pad with 0
-            hexString = "0" + hexString;
-        }
-        return hexString;
+        final int i = 2 * (b & 0xFF);
+        return new String(SidCodec.HEX_PAIRS, i, 2);
     }
 
     /**
@@ -50,11 +46,13 @@ public class LdapUtils {
      */
     public static final String toHexString(final byte[] bytes) {
 
-        StringBuilder sb = new StringBuilder(bytes.length * 2);
-        for (byte b : bytes) {
-            sb.append(String.format("%02x", b));
+        final char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            final int pair = 2 * (bytes[i] & 0xFF);
+            hex[2 * i] = SidCodec.HEX_PAIRS[pair];
+            hex[2 * i + 1] = SidCodec.HEX_PAIRS[pair + 1];
         }
-        return sb.toString();
+        return new String(hex);
     }
 
     /**
@@ -0,0 +1,86 @@
+package net.archigny.utils.ad.impl;
+
+import java.io.Serializable;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.cache.processor.EntryProcessor;
+import javax.cache.processor.MutableEntry;
+
+/**
+ * JCache entry processor claiming the load of an absent SID : the entry is set to a claim, and the caller querying the directory
+ * replaces it by the loaded value. Caches run the invocations of a key one at a time : with a cache shared by a cluster, a single
+ * member queries the directory for a SID, members missing on it concurrently wait for the loaded value. The directory is never
+ * queried by the processor itself, which may run on a thread of the cache provider (eg: a Hazelcast partition thread).
+ * <p>
+ * A claim expires after a timeout, so that a member failing while loading does not hold its SIDs forever : an expired claim is
+ * taken over by the next invocation. Claims are never returned by {@link JCacheRegistryCache} reads.
+ *
+ * @param <K> JCache key type
+ * @author Philippe MARASSE
+ */
+class LoadClaimProcessor<K> implements EntryProcessor<K, String, String>, Serializable {
+
+    /** Serial */
+    private static final long   serialVersionUID = -6209418845377392717L;
+
+    /** Prefix of claims, which neither DNs, encoded group records nor {@link CachingADTokenGroupsRegistry#NULL} start with */
+    private static final String CLAIM_PREFIX     = "\u0000claim:";
+
+    /** Claim stored in absent entries */
+    private final String        claim;
+
+    /**
+     * @param claim claim stored in absent entries, see {@link #newClaim(long)}
+     */
+    LoadClaimProcessor(final String claim) {
+
+        this.claim = claim;
+    }
+
+    /**
+     * @param timeout time (milliseconds) after which the claim may be taken over
+     * @return new claim, unique to its caller
+     */
+    static String newClaim(final long timeout) {
+
+        return CLAIM_PREFIX + (System.currentTimeMillis() + timeout) + ':' + Long.toHexString(ThreadLocalRandom.current()
+                .nextLong());
+    }
+
+    /**
+     * @param value cached value
+     * @return true if value is a claim
+     */
+    static boolean isClaim(final String value) {
+
+        return value != null && value.startsWith(CLAIM_PREFIX);
+    }
+
+    /**
+     * @param claim claim
+     * @return true if claim may be taken over
+     */
+    private static boolean isExpired(final String claim) {
+
+        final int end = claim.indexOf(':', CLAIM_PREFIX.length());
+        return Long.parseLong(claim.substring(CLAIM_PREFIX.length(), end)) <= System.currentTimeMillis();
+    }
+
+    /**
+     * @return cached value, claim of another caller, or null if the SID is now claimed by this caller
+     */
+    @Override
+    public String process(final MutableEntry<K, String> entry, final Object... arguments) {
+
+        if (entry.exists()) {
+            final String value = entry.getValue();
+            if (!isClaim(value) || !isExpired(value)) {
+                // Loaded, or being loaded by another caller
+                return value;
+            }
+        }
+        entry.setValue(claim);
+        return null;
+    }
+
+}
@@ -0,0 +1,213 @@
+package net.archigny.utils.ad.impl;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.cache.configuration.CacheEntryListenerConfiguration;
+import javax.cache.expiry.Duration;
+
+/**
+ * Two level {@link SharedRegistryCache} : a bounded, in-process {@link TinyLfuCache} (L1) in front of a JCache (L2), typically a
+ * distributed one. Hits on L1 involve neither network, serialization nor lock. L2 remains the shared source of truth : L1 entries live at most
+ * timeToLive milliseconds and are dropped as soon as the JCache notifies an update, removal or expiration of their SID. L1 may
+ * hold DNs compacted by a {@link DnSuffixTree}.
+ * 
+ * @param <K> JCache key type
+ * @author Philippe MARASSE
+ */
+class NearRegistryCache<K> implements SharedRegistryCache {
+
+    /** Shared cache */
+    private final JCacheRegistryCache<K> delegate;
+
+    /** Local entries, expiring timeToLive after they have been written */
+    private final TinyLfuCache<SidKey, Object> local;
+
+    /** Suffixes of local DNs */
+    private final DnSuffixTree suffixes;
+
+    /** Invalidation listener registered on the JCache */
+    private final CacheEntryListenerConfiguration<K, String> listener;
+
+    /**
+     * @param delegate shared cache
+     * @param maxElements maximum number of local entries
+     * @param timeToLive time to live of local entries (milliseconds)
+     */
+    NearRegistryCache(final JCacheRegistryCache<K> delegate, final int maxElements, final long timeToLive) {
+
+        this(delegate, maxElements, timeToLive, DnSuffixTree.NONE);
+    }
+
+    /**
+     * @param delegate shared cache
+     * @param maxElements maximum number of local entries
+     * @param timeToLive time to live of local entries (milliseconds)
+     * @param suffixes suffixes of local DNs, {@link DnSuffixTree#NONE} to hold values as they are
+     */
+    NearRegistryCache(final JCacheRegistryCache<K> delegate, final int maxElements, final long timeToLive,
+            final DnSuffixTree suffixes) {
+
+        this.delegate = delegate;
+        this.local = new TinyLfuCache<SidKey, Object>(maxElements, 0, value -> 1, new CreatedAccessedExpiryPolicy(new Duration(
+                TimeUnit.MILLISECONDS, timeToLive), null));
+        this.suffixes = suffixes;
+        this.listener = delegate.addInvalidationListener(this::invalidate);
+    }
+
+    @Override
+    public String get(final SidKey key) {
+
+        final String localValue = getLocal(key);
+        if (localValue != null) {
+            return localValue;
+        }
+        final String value = delegate.get(key);
+        if (value != null) {
+            local.put(key, suffixes.compact(value));
+        }
+        return value;
+    }
+
+    @Override
+    public Map<SidKey, String> getAll(final Set<SidKey> keys) {
+
+        final Map<SidKey, String> result = new HashMap<SidKey, String>(keys.size() * 2);
+        final Set<SidKey> remoteKeys = new HashSet<SidKey>();
+        for (SidKey key : keys) {
+            final String localValue = getLocal(key);
+            if (localValue != null) {
+                result.put(key, localValue);
+            } else {
+                remoteKeys.add(key);
+            }
+        }
+
+        if (!remoteKeys.isEmpty()) {
+            final Map<SidKey, String> remoteValues = delegate.getAll(remoteKeys);
+            for (Map.Entry<SidKey, String> entry : remoteValues.entrySet()) {
+                local.put(entry.getKey(), suffixes.compact(entry.getValue()));
+            }
+            result.putAll(remoteValues);
+        }
+        return result;
+    }
+
+    @Override
+    public Map<SidKey, String> peekAll(final Set<SidKey> keys) {
+
+        final Map<SidKey, String> result = new HashMap<SidKey, String>(keys.size() * 2);
+        final Set<SidKey> remoteKeys = new HashSet<SidKey>();
+        for (SidKey key : keys) {
+            final String localValue = getLocal(key);
+            if (localValue != null) {
+                result.put(key, localValue);
+            } else {
+                remoteKeys.add(key);
+            }
+        }
+
+        if (!remoteKeys.isEmpty()) {
+            final Map<SidKey, String> remoteValues = delegate.peekAll(remoteKeys);
+            for (Map.Entry<SidKey, String> entry : remoteValues.entrySet()) {
+                local.put(entry.getKey(), suffixes.compact(entry.getValue()));
+            }
+            result.putAll(remoteValues);
+        }
+        return result;
+    }
+
+    @Override
+    public void put(final SidKey key, final String value) {
+
+        delegate.put(key, value);
+        local.put(key, suffixes.compact(value));
+    }
+
+    @Override
+    public void putAll(final Map<SidKey, String> entries) {
+
+        delegate.putAll(entries);
+        for (Map.Entry<SidKey, String> entry : entries.entrySet()) {
+            local.put(entry.getKey(), suffixes.compact(entry.getValue()));
+        }
+    }
+
+    @Override
+    public boolean remove(final SidKey key) {
+
+        invalidate(key);
+        return delegate.remove(key);
+    }
+
+    @Override
+    public Map<SidKey, String> claimAll(final Set<SidKey> keys, final String claim) {
+
+        final Map<SidKey, String> values = delegate.claimAll(keys, claim);
+        for (Map.Entry<SidKey, String> entry : values.entrySet()) {
+            if (!LoadClaimProcessor.isClaim(entry.getValue())) {
+                local.put(entry.getKey(), suffixes.compact(entry.getValue()));
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public boolean release(final SidKey key, final String claim, final String value) {
+
+        final boolean released = delegate.release(key, claim, value);
+        if (released && value != null) {
+            local.put(key, suffixes.compact(value));
+        }
+        return released;
+    }
+
+    @Override
+    public void clear() {
+
+        delegate.clear();
+        local.clear();
+    }
+
+    /**
+     * Deregisters invalidation listener and clears local entries, the shared cache is left open
+     */
+    @Override
+    public void close() {
+
+        delegate.removeListener(listener);
+        local.clear();
+    }
+
+    /**
+     * Drops local entry of a SID
+     * 
+     * @param key SID
+     */
+    void invalidate(final SidKey key) {
+
+        local.remove(key);
+    }
+
+    /**
+     * @return number of local entries, including expired ones not yet evicted
+     */
+    int localSize() {
+
+        return local.size();
+    }
+
+    /**
+     * @param key SID
+     * @return local value or null if absent or expired
+     */
+    String getLocal(final SidKey key) {
+
+        final Object value = local.get(key);
+        return value == null ? null : value.toString();
+    }
+
+}
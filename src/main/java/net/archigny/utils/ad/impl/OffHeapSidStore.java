@@ -0,0 +1,520 @@
+package net.archigny.utils.ad.impl;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * SID to DN store held off heap, for forests too large for heap maps : records are written to direct buffers of a fixed size
+ * (arenas) and found through open addressing tables of longs. There is no object per entry, the garbage collector only sees the
+ * arenas and the tables.
+ * <p>
+ * Reads take no lock and end after a bounded number of probes : a slot is written once its record is complete and records are
+ * never modified once written. Writers are serialized : updates and removals leave the previous records as garbage, reclaimed
+ * by copying live records to new arenas once garbage exceeds half of the records written (compaction), tables growing the same
+ * way. Readers still using the previous tables and arenas keep reading them safely, their direct memory being released once
+ * they are garbage collected.
+ * <p>
+ * Record layout : hash of normalized DN (4 bytes, 0 if none), SID length (1 byte), binary SID, DN length (2 bytes), UTF-8 encoded
+ * DN. Slot layout : 16 bits of the key hash (fingerprint), arena number (16 bits), record offset in arena (32 bits).
+ *
+ * @author Philippe MARASSE
+ */
+final class OffHeapSidStore {
+
+    /** Default size of arenas : 1 MiB */
+    public static final int                DEFAULT_ARENA_SIZE = 1 << 20;
+
+    /** Minimum number of slots */
+    private static final int               MIN_CAPACITY       = 64;
+
+    /** Maximum number of arenas, arena 0 being never used */
+    private static final int               MAX_ARENAS         = 0xFFFF;
+
+    /** Slot never used : ends probing */
+    private static final long              EMPTY              = 0;
+
+    /** Slot of a removed entry : probing goes on */
+    private static final long              TOMBSTONE          = 1;
+
+    /** Size of arenas (bytes) */
+    private final int                      arenaSize;
+
+    /** Normalization of DNs for reverse lookups, null if reverse lookups are not needed */
+    private final Function<String, String> dnNormalizer;
+
+    /** Current tables and arenas, replaced by compactions */
+    private volatile Table                 table;
+
+    /**
+     * @param arenaSize size of arenas (bytes), a record must fit in an arena
+     * @param dnNormalizer normalization of DNs for {@link #getSid(String)}, returning null for invalid DNs, null if reverse
+     *        lookups are not needed
+     * @throws IllegalArgumentException if arenaSize is lower than 1 KiB or greater than 1 GiB
+     */
+    OffHeapSidStore(final int arenaSize, final Function<String, String> dnNormalizer) {
+
+        if (arenaSize < 1024 || arenaSize > 1 << 30) {
+            throw new IllegalArgumentException("arenaSize must be between 1 KiB and 1 GiB");
+        }
+        this.arenaSize = arenaSize;
+        this.dnNormalizer = dnNormalizer;
+        this.table = new Table(MIN_CAPACITY, dnNormalizer != null, arenaSize);
+    }
+
+    /**
+     * @param key SID
+     * @return DN or null if absent
+     */
+    String get(final SidKey key) {
+
+        final Table current = table;
+        final long slot = current.find(key.bytes(), spread(key.hashCode()));
+        return slot == EMPTY ? null : Table.dnOf(current.arenas[arenaOf(slot)], offsetOf(slot));
+    }
+
+    /**
+     * Reverse lookup : candidates sharing the hash of the normalized DN are normalized again to be compared
+     *
+     * @param normalizedDn normalized DN
+     * @return binary SID or null if absent or reverse lookups are not enabled
+     */
+    byte[] getSid(final String normalizedDn) {
+
+        final Table current = table;
+        if (current.dnSlots == null || normalizedDn == null) {
+            return null;
+        }
+        final int hash = nonZero(spread(normalizedDn.hashCode()));
+        final int fingerprint = hash >>> 16;
+        int index = hash & current.mask;
+        for (int probe = 0; probe <= current.mask; probe++) {
+            final long slot = current.dnSlots.get(index);
+            if (slot == EMPTY) {
+                return null;
+            }
+            if (slot != TOMBSTONE && fingerprintOf(slot) == fingerprint) {
+                final ByteBuffer arena = current.arenas[arenaOf(slot)];
+                if (normalizedDn.equals(dnNormalizer.apply(Table.dnOf(arena, offsetOf(slot))))) {
+                    return Table.sidOf(arena, offsetOf(slot));
+                }
+            }
+            index = (index + 1) & current.mask;
+        }
+        return null;
+    }
+
+    /**
+     * Stores or replaces the DN of a SID
+     *
+     * @param key SID
+     * @param dn DN
+     * @throws IllegalArgumentException if the DN is longer than 65535 bytes or its record does not fit in an arena
+     * @throws IllegalStateException if arenas are exhausted
+     */
+    synchronized void put(final SidKey key, final String dn) {
+
+        final byte[] encodedDn = dn.getBytes(StandardCharsets.UTF_8);
+        if (encodedDn.length > 0xFFFF || recordSize(key.bytes().length, encodedDn.length) > arenaSize) {
+            throw new IllegalArgumentException("DN too long : " + dn);
+        }
+        Table current = table;
+        if (current.used >= current.threshold || current.dnUsed >= current.threshold) {
+            current = rebuild(current, current.size + 1);
+        }
+        current.put(key.bytes(), spread(key.hashCode()), encodedDn, dnHashOf(dn));
+        compactIfNeeded(current);
+    }
+
+    /**
+     * @param key SID
+     * @return true if an entry has been removed
+     */
+    synchronized boolean remove(final SidKey key) {
+
+        final Table current = table;
+        if (!current.remove(key.bytes(), spread(key.hashCode()))) {
+            return false;
+        }
+        compactIfNeeded(current);
+        return true;
+    }
+
+    /**
+     * Removes all entries, arenas are released once garbage collected
+     */
+    synchronized void clear() {
+
+        table = new Table(MIN_CAPACITY, dnNormalizer != null, arenaSize);
+    }
+
+    /**
+     * Iterates over the entries present when iteration starts
+     *
+     * @param action receives SID and DN of each entry
+     */
+    void forEach(final BiConsumer<SidKey, String> action) {
+
+        final Table current = table;
+        for (int i = 0; i <= current.mask; i++) {
+            final long slot = current.slots.get(i);
+            if (slot != EMPTY && slot != TOMBSTONE) {
+                final ByteBuffer arena = current.arenas[arenaOf(slot)];
+                action.accept(SidKey.of(Table.sidOf(arena, offsetOf(slot))), Table.dnOf(arena, offsetOf(slot)));
+            }
+        }
+    }
+
+    /**
+     * @return number of entries
+     */
+    int size() {
+
+        return table.size;
+    }
+
+    /**
+     * @return direct memory held by current arenas (bytes)
+     */
+    long getOffHeapSize() {
+
+        return (long) (table.arenas.length - 1) * arenaSize;
+    }
+
+    /**
+     * Copies live records once garbage exceeds half of the records written and the size of an arena
+     */
+    private void compactIfNeeded(final Table current) {
+
+        if (current.garbage > arenaSize && current.garbage > current.written / 2) {
+            rebuild(current, current.size);
+        }
+    }
+
+    /**
+     * Copies live records to new tables and new arenas, then publishes them
+     *
+     * @param current current table
+     * @param entries number of entries the new table must hold, at most half of its slots being used
+     * @return new table
+     */
+    private Table rebuild(final Table current, final int entries) {
+
+        final int capacity = Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, entries) * 2 - 1) << 1);
+        final Table rebuilt = new Table(capacity, dnNormalizer != null, arenaSize);
+        for (int i = 0; i <= current.mask; i++) {
+            final long slot = current.slots.get(i);
+            if (slot != EMPTY && slot != TOMBSTONE) {
+                rebuilt.copy(current.arenas[arenaOf(slot)], offsetOf(slot));
+            }
+        }
+        table = rebuilt;
+        return rebuilt;
+    }
+
+    /**
+     * @param dn DN
+     * @return hash of normalized DN, 0 if reverse lookups are not enabled or DN is invalid
+     */
+    private int dnHashOf(final String dn) {
+
+        final String normalizedDn = dnNormalizer == null ? null : dnNormalizer.apply(dn);
+        return normalizedDn == null ? 0 : nonZero(spread(normalizedDn.hashCode()));
+    }
+
+    private static int recordSize(final int sidLength, final int dnLength) {
+
+        return 4 + 1 + sidLength + 2 + dnLength;
+    }
+
+    private static int spread(final int hashCode) {
+
+        final int h = hashCode * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Hash 0 marking records without normalized DN, other hashes are kept non zero
+     */
+    private static int nonZero(final int hash) {
+
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static int fingerprintOf(final long slot) {
+
+        return (int) (slot >>> 48);
+    }
+
+    private static int arenaOf(final long slot) {
+
+        return (int) (slot >>> 32) & 0xFFFF;
+    }
+
+    private static int offsetOf(final long slot) {
+
+        return (int) slot;
+    }
+
+    /**
+     * Slots and arenas. Slots, arenas and size are read without lock, other fields are only used by writers.
+     */
+    private static final class Table {
+
+        /** Slots by SID hash */
+        private final AtomicLongArray slots;
+
+        /** Slots by normalized DN hash, null if reverse lookups are not enabled */
+        private final AtomicLongArray dnSlots;
+
+        /** Number of slots - 1 */
+        private final int             mask;
+
+        /** Maximum number of slots used, by SID or by DN : 75% of slots */
+        private final int             threshold;
+
+        /** Size of arenas (bytes) */
+        private final int             arenaSize;
+
+        /** Arenas by number, arena 0 being never used */
+        private volatile ByteBuffer[] arenas = new ByteBuffer[1];
+
+        /** Number of entries */
+        private volatile int          size;
+
+        /** Number of slots by SID hash which are not EMPTY */
+        private int                   used;
+
+        /** Number of slots by DN hash which are not EMPTY */
+        private int                   dnUsed;
+
+        /** Write position in last arena */
+        private int                   position;
+
+        /** Bytes of records written */
+        private long                  written;
+
+        /** Bytes of records no longer referenced */
+        private long                  garbage;
+
+        private Table(final int capacity, final boolean reverse, final int arenaSize) {
+
+            this.slots = new AtomicLongArray(capacity);
+            this.dnSlots = reverse ? new AtomicLongArray(capacity) : null;
+            this.mask = capacity - 1;
+            this.threshold = capacity / 4 * 3;
+            this.arenaSize = arenaSize;
+        }
+
+        /**
+         * @param sid binary SID
+         * @param hash spread hash of SID
+         * @return slot of SID or EMPTY if absent
+         */
+        private long find(final byte[] sid, final int hash) {
+
+            final int fingerprint = hash >>> 16;
+            int index = hash & mask;
+            for (int probe = 0; probe <= mask; probe++) {
+                final long slot = slots.get(index);
+                if (slot == EMPTY) {
+                    return EMPTY;
+                }
+                if (slot != TOMBSTONE && fingerprintOf(slot) == fingerprint && sidEquals(arenas[arenaOf(slot)], offsetOf(slot),
+                        sid)) {
+                    return slot;
+                }
+                index = (index + 1) & mask;
+            }
+            return EMPTY;
+        }
+
+        /**
+         * @return index of the slot of SID, -1 if absent
+         */
+        private int indexOf(final byte[] sid, final int hash) {
+
+            final int fingerprint = hash >>> 16;
+            int index = hash & mask;
+            for (int probe = 0; probe <= mask; probe++) {
+                final long slot = slots.get(index);
+                if (slot == EMPTY) {
+                    return -1;
+                }
+                if (slot != TOMBSTONE && fingerprintOf(slot) == fingerprint && sidEquals(arenas[arenaOf(slot)], offsetOf(slot),
+                        sid)) {
+                    return index;
+                }
+                index = (index + 1) & mask;
+            }
+            return -1;
+        }
+
+        private void put(final byte[] sid, final int hash, final byte[] dn, final int dnHash) {
+
+            final int index = indexOf(sid, hash);
+            final long slot = ((long) (hash >>> 16) << 48) | append(sid, dn, dnHash);
+            if (index >= 0) {
+                final long previous = slots.get(index);
+                slots.set(index, slot);
+                release(previous);
+            } else {
+                if (insert(slots, hash, slot)) {
+                    used++;
+                }
+                size++;
+            }
+            if (dnHash != 0) {
+                if (insert(dnSlots, dnHash, ((long) (dnHash >>> 16) << 48) | (slot & 0xFFFFFFFFFFFFL))) {
+                    dnUsed++;
+                }
+            }
+        }
+
+        private boolean remove(final byte[] sid, final int hash) {
+
+            final int index = indexOf(sid, hash);
+            if (index < 0) {
+                return false;
+            }
+            final long previous = slots.get(index);
+            slots.set(index, TOMBSTONE);
+            release(previous);
+            size--;
+            return true;
+        }
+
+        /**
+         * Counts the record of a slot as garbage and removes its reverse slot
+         */
+        private void release(final long slot) {
+
+            final ByteBuffer arena = arenas[arenaOf(slot)];
+            final int record = offsetOf(slot);
+            final int sidLength = arena.get(record + 4) & 0xFF;
+            garbage += recordSize(sidLength, arena.getShort(record + 5 + sidLength) & 0xFFFF);
+            final int dnHash = arena.getInt(record);
+            if (dnHash == 0) {
+                return;
+            }
+            final long reference = slot & 0xFFFFFFFFFFFFL;
+            int index = dnHash & mask;
+            for (int probe = 0; probe <= mask; probe++) {
+                final long dnSlot = dnSlots.get(index);
+                if (dnSlot == EMPTY) {
+                    return;
+                }
+                if ((dnSlot & 0xFFFFFFFFFFFFL) == reference && dnSlot != TOMBSTONE) {
+                    dnSlots.set(index, TOMBSTONE);
+                    return;
+                }
+                index = (index + 1) & mask;
+            }
+        }
+
+        /**
+         * Appends a record copied from another arena
+         */
+        private void copy(final ByteBuffer arena, final int record) {
+
+            final int dnHash = arena.getInt(record);
+            final byte[] sid = sidOf(arena, record);
+            final int dnStart = record + 5 + sid.length;
+            final byte[] dn = new byte[arena.getShort(dnStart) & 0xFFFF];
+            for (int i = 0; i < dn.length; i++) {
+                dn[i] = arena.get(dnStart + 2 + i);
+            }
+            put(sid, spread(Arrays.hashCode(sid)), dn, dnHash);
+        }
+
+        /**
+         * Writes a slot in the first TOMBSTONE or EMPTY slot of the probe sequence
+         *
+         * @return true if an EMPTY slot has been used
+         */
+        private boolean insert(final AtomicLongArray target, final int hash, final long slot) {
+
+            int index = hash & mask;
+            while (true) {
+                final long current = target.get(index);
+                if (current == EMPTY || current == TOMBSTONE) {
+                    target.set(index, slot);
+                    return current == EMPTY;
+                }
+                index = (index + 1) & mask;
+            }
+        }
+
+        /**
+         * Writes a record, in a new arena if the last one is full
+         *
+         * @return arena number and offset of record
+         */
+        private long append(final byte[] sid, final byte[] dn, final int dnHash) {
+
+            final int recordSize = recordSize(sid.length, dn.length);
+            ByteBuffer[] current = arenas;
+            if (current.length == 1 || position + recordSize > arenaSize) {
+                if (current.length > MAX_ARENAS) {
+                    throw new IllegalStateException("Off heap store is full : " + MAX_ARENAS + " arenas");
+                }
+                current = Arrays.copyOf(current, current.length + 1);
+                current[current.length - 1] = ByteBuffer.allocateDirect(arenaSize);
+                position = 0;
+            }
+            final ByteBuffer arena = current[current.length - 1];
+            final int record = position;
+            arena.putInt(record, dnHash);
+            arena.put(record + 4, (byte) sid.length);
+            for (int i = 0; i < sid.length; i++) {
+                arena.put(record + 5 + i, sid[i]);
+            }
+            final int dnStart = record + 5 + sid.length;
+            arena.putShort(dnStart, (short) dn.length);
+            for (int i = 0; i < dn.length; i++) {
+                arena.put(dnStart + 2 + i, dn[i]);
+            }
+            // Published before any slot referencing the record
+            arenas = current;
+            position += recordSize;
+            written += recordSize;
+            return ((long) (current.length - 1) << 32) | record;
+        }
+
+        private static boolean sidEquals(final ByteBuffer arena, final int record, final byte[] sid) {
+
+            if ((arena.get(record + 4) & 0xFF) != sid.length) {
+                return false;
+            }
+            for (int i = 0; i < sid.length; i++) {
+                if (arena.get(record + 5 + i) != sid[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static byte[] sidOf(final ByteBuffer arena, final int record) {
+
+            final byte[] sid = new byte[arena.get(record + 4) & 0xFF];
+            for (int i = 0; i < sid.length; i++) {
+                sid[i] = arena.get(record + 5 + i);
+            }
+            return sid;
+        }
+
+        private static String dnOf(final ByteBuffer arena, final int record) {
+
+            final int dnStart = record + 5 + (arena.get(record + 4) & 0xFF);
+            final byte[] dn = new byte[arena.getShort(dnStart) & 0xFFFF];
+            for (int i = 0; i < dn.length; i++) {
+                dn[i] = arena.get(dnStart + 2 + i);
+            }
+            return new String(dn, StandardCharsets.UTF_8);
+        }
+    }
+
+}
@@ -0,0 +1,483 @@
+package net.archigny.utils.ad.impl;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.ldaptive.LdapAttribute;
+import org.ldaptive.LdapEntry;
+import org.ldaptive.LdapException;
+import org.ldaptive.SearchRequest;
+import org.ldaptive.SearchResult;
+import org.ldaptive.control.util.PagedResultsClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Implementation of token group registry holding every group of the search base in memory : all groups are fetched at startup
+ * with a paged search, then the index is periodically refreshed with the groups changed since last synchronization (uSNChanged
+ * attribute). Lookups never hit the directory.
+ * <p>
+ * uSNChanged values are local to a domain controller, the connection factory should target a single DC. Deleted groups and
+ * groups moved out of the search base are not seen by delta synchronizations : they are dropped by the periodic full reload.
+ * <p>
+ * With offHeap set, the index is held in direct memory by an {@link OffHeapSidStore} instead of heap maps : large forests no
+ * longer weigh on garbage collections. Delta synchronizations then update the index in place, full reloads still fetch groups
+ * on heap before publishing a new off heap index.
+ * 
+ * @author Philippe MARASSE
+ */
+public class PreloadedADTokenGroupsRegistry extends AbstractADTokenGroupsRegistry {
+
+    /** Logger */
+    private static final Logger          log                   = LoggerFactory.getLogger(PreloadedADTokenGroupsRegistry.class);
+
+    /** Default LDAP filter selecting groups */
+    public static final String           DEFAULT_GROUP_FILTER  = "(objectClass=group)";
+
+    /** Default number of entries fetched per page */
+    public static final int              DEFAULT_PAGE_SIZE     = 500;
+
+    /** Default period between delta synchronizations : 300s =&gt; 5 minutes */
+    public static final long             DEFAULT_SYNC_PERIOD   = 300;
+
+    /** Default period between full reloads : 86400s =&gt; 1 day */
+    public static final long             DEFAULT_RELOAD_PERIOD = 86400;
+
+    /** LDAP Attribute holding the binary SID of an entry */
+    protected static final String        SID_ATTRIBUTE         = "objectSid";
+
+    /** LDAP Attribute holding the update sequence number of last change */
+    protected static final String        USN_ATTRIBUTE         = "uSNChanged";
+
+    /** LDAP Attributes to retrieve */
+    protected static final String[]      QUERY_ATTRS           = { SID_ATTRIBUTE, USN_ATTRIBUTE };
+
+    /** LDAP filter selecting groups */
+    private String                       groupFilter           = DEFAULT_GROUP_FILTER;
+
+    /** Number of entries fetched per page */
+    private int                          pageSize              = DEFAULT_PAGE_SIZE;
+
+    /** Period between delta synchronizations (seconds) */
+    private long                         syncPeriod            = DEFAULT_SYNC_PERIOD;
+
+    /** Period between full reloads (seconds) */
+    private long                         reloadPeriod          = DEFAULT_RELOAD_PERIOD;
+
+    /** Index <SID, DN (String)>, never modified once published */
+    private volatile Map<SidKey, String> index                 = Collections.emptyMap();
+
+    /** Reverse index <normalized DN, SID>, rebuilt with each published index */
+    private volatile Map<String, SidKey> dnIndex               = Collections.emptyMap();
+
+    /** True to hold the index off heap instead of index and dnIndex */
+    private boolean                      offHeap               = false;
+
+    /** Size of the direct buffers holding the off heap index (bytes) */
+    private int                          arenaSize             = OffHeapSidStore.DEFAULT_ARENA_SIZE;
+
+    /** Off heap index, with reverse lookups, null unless offHeap is set */
+    private volatile OffHeapSidStore     offHeapIndex;
+
+    /** Highest uSNChanged seen during last synchronization, 0 if index has never been loaded */
+    private volatile long                highestUsn            = 0;
+
+    /** Time of last full reload (milliseconds) */
+    private long                         lastReload            = 0;
+
+    /** Scheduler running synchronizations */
+    private ScheduledExecutorService     scheduler;
+
+    /** Snapshot file loaded at startup and written after each index change, none if null */
+    private String                       snapshotFile;
+
+    @Override
+    @PostConstruct
+    public void afterPropertiesSet() {
+
+        super.afterPropertiesSet();
+        if (pageSize < 1) {
+            throw new IllegalStateException("pageSize must be greater than 0 !");
+        }
+        if (offHeap && (arenaSize < 1024 || arenaSize > 1 << 30)) {
+            throw new IllegalStateException("arenaSize must be between 1 KiB and 1 GiB !");
+        }
+
+        if (snapshotFile != null) {
+            loadSnapshot(Paths.get(snapshotFile));
+        }
+        synchronize();
+
+        if (syncPeriod > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "adtokengroups-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(this::synchronize, syncPeriod, syncPeriod, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    @PreDestroy
+    public void destroy() {
+
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        super.destroy();
+    }
+
+    /**
+     * Synchronizes index with the directory : full reload if the index has never been loaded or if reloadPeriod has elapsed, delta
+     * synchronization otherwise. Errors are logged, the current index is kept.
+     */
+    public synchronized void synchronize() {
+
+        try {
+            if (highestUsn == 0 || System.currentTimeMillis() - lastReload >= reloadPeriod * 1000) {
+                reload();
+            } else {
+                update();
+            }
+        } catch (LdapException e) {
+            log.error("Unable to synchronize groups index : {}", e.getMessage());
+        } catch (RuntimeException e) {
+            log.error("Unable to synchronize groups index", e);
+        }
+    }
+
+    /**
+     * Loads index from a snapshot file, the next synchronization will only fetch groups changed since the snapshot was written
+     * 
+     * @param file snapshot file
+     */
+    private void loadSnapshot(final Path file) {
+
+        if (!Files.exists(file)) {
+            log.info("Snapshot file {} not found, groups will be loaded from directory", file);
+            return;
+        }
+        try {
+            final long start = System.currentTimeMillis();
+            final SidSnapshot snapshot = SidSnapshot.open(file);
+            final Map<SidKey, String> newIndex = new HashMap<SidKey, String>(snapshot.size() * 2);
+            snapshot.forEach(newIndex::put);
+
+            publish(newIndex);
+            highestUsn = snapshot.getGeneration();
+            lastReload = Files.getLastModifiedTime(file).toMillis();
+            log.info("Groups index loaded from snapshot : {} groups in {} ms (highest USN : {})", newIndex.size(),
+                    System.currentTimeMillis() - start, highestUsn);
+        } catch (IOException e) {
+            log.error("Unable to load snapshot file {} : {}", file, e.getMessage());
+        }
+    }
+
+    /**
+     * Publishes a new index along with its reverse index
+     * 
+     * @param newIndex index, must not be modified afterwards
+     */
+    private void publish(final Map<SidKey, String> newIndex) {
+
+        if (offHeap) {
+            final OffHeapSidStore store = new OffHeapSidStore(arenaSize, AbstractADTokenGroupsRegistry::normalizeDn);
+            newIndex.forEach(store::put);
+            offHeapIndex = store;
+            return;
+        }
+        final Map<String, SidKey> newDnIndex = new HashMap<String, SidKey>(newIndex.size() * 2);
+        for (Map.Entry<SidKey, String> entry : newIndex.entrySet()) {
+            final String normalizedDn = normalizeDn(entry.getValue());
+            if (normalizedDn != null) {
+                newDnIndex.put(normalizedDn, entry.getKey());
+            }
+        }
+        index = newIndex;
+        dnIndex = newDnIndex;
+    }
+
+    /**
+     * Writes current index to snapshot file, if any
+     */
+    private void writeSnapshot() {
+
+        if (snapshotFile == null) {
+            return;
+        }
+        final OffHeapSidStore store = offHeapIndex;
+        final Map<SidKey, String> snapshotIndex;
+        if (store != null) {
+            snapshotIndex = new HashMap<SidKey, String>(store.size() * 2);
+            store.forEach(snapshotIndex::put);
+        } else {
+            snapshotIndex = index;
+        }
+        try {
+            SidSnapshot.write(Paths.get(snapshotFile), snapshotIndex, highestUsn);
+            log.debug("Snapshot file {} written", snapshotFile);
+        } catch (IOException e) {
+            log.error("Unable to write snapshot file {} : {}", snapshotFile, e.getMessage());
+        }
+    }
+
+    /**
+     * Fetches all groups and replaces the index
+     * 
+     * @throws LdapException if the search failed
+     */
+    private void reload() throws LdapException {
+
+        final long start = System.currentTimeMillis();
+        final Map<SidKey, String> newIndex = new HashMap<SidKey, String>(Math.max(16, getIndexSize() * 2));
+        final long usn = fetch(groupFilter, newIndex);
+
+        publish(newIndex);
+        highestUsn = usn;
+        lastReload = start;
+        writeSnapshot();
+        log.info("Groups index loaded : {} groups in {} ms (highest USN : {})", newIndex.size(), System.currentTimeMillis() - start,
+                usn);
+    }
+
+    /**
+     * Fetches groups changed since last synchronization and publishes an updated copy of the index
+     * 
+     * @throws LdapException if the search failed
+     */
+    private void update() throws LdapException {
+
+        final String filter = "(&" + groupFilter + "(" + USN_ATTRIBUTE + ">=" + (highestUsn + 1) + "))";
+        final Map<SidKey, String> changes = new HashMap<SidKey, String>();
+        final long usn = fetch(filter, changes);
+
+        if (!changes.isEmpty()) {
+            final OffHeapSidStore store = offHeapIndex;
+            if (store != null) {
+                // Each entry is replaced atomically, readers take no lock
+                changes.forEach(store::put);
+            } else {
+                final Map<SidKey, String> newIndex = new HashMap<SidKey, String>(index);
+                newIndex.putAll(changes);
+                publish(newIndex);
+            }
+            highestUsn = usn;
+            writeSnapshot();
+            log.info("Groups index updated : {} changed groups (highest USN : {})", changes.size(), usn);
+        } else {
+            log.debug("Groups index is up to date");
+        }
+    }
+
+    /**
+     * Runs a paged search and stores SID / DN of each entry found
+     * 
+     * @param filter LDAP filter
+     * @param target Map where entries are stored
+     * @return highest uSNChanged found, or the current one if no entry has been found
+     * @throws LdapException if the search failed
+     */
+    private long fetch(final String filter, final Map<SidKey, String> target) throws LdapException {
+
+        final SearchRequest request = new SearchRequest(baseDN, filter, QUERY_ATTRS);
+        request.setBinaryAttributes(SID_ATTRIBUTE);
+
+        final SearchResult result = executeLdap(
+                conn -> new PagedResultsClient(conn, pageSize).executeToCompletion(request).getResult());
+
+        long usn = highestUsn;
+        for (LdapEntry entry : result.getEntries()) {
+            final LdapAttribute sidAttribute = entry.getAttribute(SID_ATTRIBUTE);
+            if (sidAttribute == null || !SidKey.isValid(sidAttribute.getBinaryValue())) {
+                log.warn("Entry {} returned without valid {} attribute", entry.getDn(), SID_ATTRIBUTE);
+                continue;
+            }
+            target.put(SidKey.of(sidAttribute.getBinaryValue()), entry.getDn());
+
+            final LdapAttribute usnAttribute = entry.getAttribute(USN_ATTRIBUTE);
+            if (usnAttribute != null) {
+                usn = Math.max(usn, Long.parseLong(usnAttribute.getStringValue()));
+            }
+        }
+        return usn;
+    }
+
+    @Override
+    public String getDnFromToken(final String tokenGroup) {
+
+        final byte[] token = SidCodec.toToken(tokenGroup);
+        return token == null ? null : getDnFromToken(token);
+    }
+
+    @Override
+    public String getDnFromToken(final byte[] tokenGroup) {
+
+        final SidKey key = toKey(tokenGroup);
+        if (key == null) {
+            return null;
+        }
+        final OffHeapSidStore store = offHeapIndex;
+        final String groupDN = store != null ? store.get(key) : index.get(key);
+        if (groupDN != null) {
+            metrics.hit();
+        } else {
+            metrics.negativeHit();
+        }
+        return groupDN;
+    }
+
+    @Override
+    public byte[] getTokenFromDn(final String dn) {
+
+        final String normalizedDn = normalizeDn(dn);
+        final OffHeapSidStore store = offHeapIndex;
+        if (store != null) {
+            return store.getSid(normalizedDn);
+        }
+        final SidKey key = normalizedDn == null ? null : dnIndex.get(normalizedDn);
+        return key == null ? null : key.getBytes();
+    }
+
+    @Override
+    protected Map<SidKey, String> resolveKeys(final Set<SidKey> keys) {
+
+        final OffHeapSidStore store = offHeapIndex;
+        final Map<SidKey, String> currentIndex = index;
+        final Map<SidKey, String> result = new HashMap<SidKey, String>(keys.size() * 2);
+        for (SidKey key : keys) {
+            final String groupDN = store != null ? store.get(key) : currentIndex.get(key);
+            if (groupDN != null) {
+                metrics.hit();
+                result.put(key, groupDN);
+            } else {
+                metrics.negativeHit();
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public CompletableFuture<String> getDnFromTokenAsync(final byte[] tokenGroup) {
+
+        // No I/O involved
+        return CompletableFuture.completedFuture(getDnFromToken(tokenGroup));
+    }
+
+    @Override
+    public CompletableFuture<Map<String, String>> getDnsFromTokensAsync(final Collection<byte[]> tokenGroups) {
+
+        return CompletableFuture.completedFuture(getDnsFromTokens(tokenGroups));
+    }
+
+    /**
+     * @return number of groups in index
+     */
+    public int getIndexSize() {
+
+        final OffHeapSidStore store = offHeapIndex;
+        return store != null ? store.size() : index.size();
+    }
+
+    /**
+     * @return direct memory held by the off heap index (bytes), 0 unless offHeap is set
+     */
+    public long getOffHeapSize() {
+
+        final OffHeapSidStore store = offHeapIndex;
+        return store != null ? store.getOffHeapSize() : 0;
+    }
+
+    // Getters and Setters
+
+    public String getGroupFilter() {
+
+        return groupFilter;
+    }
+
+    public void setGroupFilter(String groupFilter) {
+
+        this.groupFilter = groupFilter;
+    }
+
+    public int getPageSize() {
+
+        return pageSize;
+    }
+
+    public void setPageSize(int pageSize) {
+
+        this.pageSize = pageSize;
+    }
+
+    public long getSyncPeriod() {
+
+        return syncPeriod;
+    }
+
+    public void setSyncPeriod(long syncPeriod) {
+
+        this.syncPeriod = syncPeriod;
+    }
+
+    public long getReloadPeriod() {
+
+        return reloadPeriod;
+    }
+
+    public void setReloadPeriod(long reloadPeriod) {
+
+        this.reloadPeriod = reloadPeriod;
+    }
+
+    public String getSnapshotFile() {
+
+        return snapshotFile;
+    }
+
+    public void setSnapshotFile(String snapshotFile) {
+
+        this.snapshotFile = snapshotFile;
+    }
+
+    public boolean isOffHeap() {
+
+        return offHeap;
+    }
+
+    public void setOffHeap(boolean offHeap) {
+
+        this.offHeap = offHeap;
+    }
+
+    public int getArenaSize() {
+
+        return arenaSize;
+    }
+
+    public void setArenaSize(int arenaSize) {
+
+        this.arenaSize = arenaSize;
+    }
+
+    public long getHighestUsn() {
+
+        return highestUsn;
+    }
+
+}
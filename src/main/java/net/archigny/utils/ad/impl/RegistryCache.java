@@ -0,0 +1,54 @@
+package net.archigny.utils.ad.impl;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Storage used by {@link CachingADTokenGroupsRegistry}, keyed by binary SID. Values are Distinguished names or
+ * {@link CachingADTokenGroupsRegistry#NULL} for cached null values.
+ * 
+ * @author Philippe MARASSE
+ */
+interface RegistryCache {
+
+    /**
+     * @param key SID
+     * @return cached value or null if absent
+     */
+    String get(SidKey key);
+
+    /**
+     * @param keys SIDs
+     * @return Map of cached values, absent SIDs are not in the map
+     */
+    Map<SidKey, String> getAll(Set<SidKey> keys);
+
+    /**
+     * Same as {@link #getAll(Set)}, without loading absent SIDs through a read-through cache
+     * 
+     * @param keys SIDs
+     * @return Map of cached values, absent SIDs are not in the map
+     */
+    Map<SidKey, String> peekAll(Set<SidKey> keys);
+
+    void put(SidKey key, String value);
+
+    void putAll(Map<SidKey, String> entries);
+
+    /**
+     * @param key SID
+     * @return true if an entry has been removed
+     */
+    boolean remove(SidKey key);
+
+    /**
+     * Removes all entries
+     */
+    void clear();
+
+    /**
+     * Releases resources held by this cache
+     */
+    void close();
+
+}
@@ -0,0 +1,228 @@
+package net.archigny.utils.ad.impl;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import net.archigny.utils.ad.api.IRegistryMetricsListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lookup and directory metrics of a registry. Counters are lock-free and recording does not allocate : lookup threads only
+ * increment striped counters and notify listeners, if any. A failing listener is logged and skipped.
+ *
+ * @author Philippe MARASSE
+ */
+public class RegistryMetrics implements RegistryMetricsMXBean {
+
+    /** Logger */
+    private static final Logger                     log          = LoggerFactory.getLogger(RegistryMetrics.class);
+
+    /** No listener */
+    private static final IRegistryMetricsListener[] NO_LISTENERS = new IRegistryMetricsListener[0];
+
+    /** SIDs resolved without querying the directory */
+    private final LongAdder                         hits         = new LongAdder();
+
+    /** SIDs resolved as missing without querying the directory */
+    private final LongAdder                         negativeHits = new LongAdder();
+
+    /** SIDs searched in the directory */
+    private final LongAdder                         misses       = new LongAdder();
+
+    /** Last known values served */
+    private final LongAdder                         staleHits    = new LongAdder();
+
+    /** Failed directory operations */
+    private final LongAdder                         ldapFailures = new LongAdder();
+
+    /** Durations of directory operations */
+    private final LatencyHistogram                  ldapLatency  = new LatencyHistogram();
+
+    /** Number of directory queries in progress */
+    private volatile LongSupplier                   inFlight     = () -> 0;
+
+    /** Listeners, copied on write */
+    private volatile IRegistryMetricsListener[]     listeners    = NO_LISTENERS;
+
+    void hit() {
+
+        hits.increment();
+        for (IRegistryMetricsListener listener : listeners) {
+            try {
+                listener.onHit();
+            } catch (RuntimeException e) {
+                listenerFailed(listener, e);
+            }
+        }
+    }
+
+    void negativeHit() {
+
+        negativeHits.increment();
+        for (IRegistryMetricsListener listener : listeners) {
+            try {
+                listener.onNegativeHit();
+            } catch (RuntimeException e) {
+                listenerFailed(listener, e);
+            }
+        }
+    }
+
+    void miss() {
+
+        misses.increment();
+        for (IRegistryMetricsListener listener : listeners) {
+            try {
+                listener.onMiss();
+            } catch (RuntimeException e) {
+                listenerFailed(listener, e);
+            }
+        }
+    }
+
+    void staleHit() {
+
+        staleHits.increment();
+        for (IRegistryMetricsListener listener : listeners) {
+            try {
+                listener.onStaleHit();
+            } catch (RuntimeException e) {
+                listenerFailed(listener, e);
+            }
+        }
+    }
+
+    /**
+     * @param nanos duration of the operation (nanoseconds)
+     * @param failed true if the operation raised an error
+     */
+    void ldapOperation(final long nanos, final boolean failed) {
+
+        ldapLatency.record(nanos);
+        if (failed) {
+            ldapFailures.increment();
+        }
+        for (IRegistryMetricsListener listener : listeners) {
+            try {
+                listener.onLdapOperation(nanos, failed);
+            } catch (RuntimeException e) {
+                listenerFailed(listener, e);
+            }
+        }
+    }
+
+    /**
+     * Logs a listener failure, which must neither fail the lookup nor prevent other listeners from being notified
+     * 
+     * @param listener failing listener
+     * @param e raised exception
+     */
+    private static void listenerFailed(final IRegistryMetricsListener listener, final RuntimeException e) {
+
+        log.warn("Metrics listener {} failed : {}", listener, e.toString());
+    }
+
+    /**
+     * @param inFlight gauge of directory queries in progress
+     */
+    void setInFlight(final LongSupplier inFlight) {
+
+        this.inFlight = inFlight;
+    }
+
+    public synchronized void addListener(final IRegistryMetricsListener listener) {
+
+        final IRegistryMetricsListener[] newListeners = Arrays.copyOf(listeners, listeners.length + 1);
+        newListeners[listeners.length] = listener;
+        listeners = newListeners;
+    }
+
+    public synchronized void removeListener(final IRegistryMetricsListener listener) {
+
+        listeners = Arrays.stream(listeners).filter(l -> l != listener).toArray(IRegistryMetricsListener[]::new);
+    }
+
+    public synchronized void setListeners(final Collection<IRegistryMetricsListener> listeners) {
+
+        this.listeners = listeners.toArray(new IRegistryMetricsListener[listeners.size()]);
+    }
+
+    @Override
+    public long getHitCount() {
+
+        return hits.sum();
+    }
+
+    @Override
+    public long getNegativeHitCount() {
+
+        return negativeHits.sum();
+    }
+
+    @Override
+    public long getMissCount() {
+
+        return misses.sum();
+    }
+
+    @Override
+    public long getStaleHitCount() {
+
+        return staleHits.sum();
+    }
+
+    @Override
+    public double getHitRatio() {
+
+        final long found = hits.sum() + negativeHits.sum();
+        final long lookups = found + misses.sum();
+        return lookups == 0 ? 0 : (double) found / lookups;
+    }
+
+    @Override
+    public long getLdapOperationCount() {
+
+        return ldapLatency.getCount();
+    }
+
+    @Override
+    public long getLdapFailureCount() {
+
+        return ldapFailures.sum();
+    }
+
+    @Override
+    public long getInFlightCount() {
+
+        return inFlight.getAsLong();
+    }
+
+    @Override
+    public double getLdapLatencyMean() {
+
+        return ldapLatency.getMean();
+    }
+
+    @Override
+    public double getLdapLatency50thPercentile() {
+
+        return ldapLatency.getPercentile(50);
+    }
+
+    @Override
+    public double getLdapLatency99thPercentile() {
+
+        return ldapLatency.getPercentile(99);
+    }
+
+    @Override
+    public long[] getLdapLatencyHistogram() {
+
+        return ldapLatency.getCounts();
+    }
+
+}
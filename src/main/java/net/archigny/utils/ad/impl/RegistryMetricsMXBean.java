@@ -0,0 +1,70 @@
+package net.archigny.utils.ad.impl;
+
+/**
+ * JMX view of {@link RegistryMetrics}, registered by registries with an mbeanName
+ *
+ * @author Philippe MARASSE
+ */
+public interface RegistryMetricsMXBean {
+
+    /**
+     * @return number of SIDs resolved without querying the directory
+     */
+    long getHitCount();
+
+    /**
+     * @return number of SIDs resolved as missing without querying the directory
+     */
+    long getNegativeHitCount();
+
+    /**
+     * @return number of SIDs searched in the directory
+     */
+    long getMissCount();
+
+    /**
+     * @return number of last known values served instead of querying the directory
+     */
+    long getStaleHitCount();
+
+    /**
+     * @return fraction of lookups resolved without querying the directory, 0 if there has been no lookup
+     */
+    double getHitRatio();
+
+    /**
+     * @return number of directory operations
+     */
+    long getLdapOperationCount();
+
+    /**
+     * @return number of failed directory operations
+     */
+    long getLdapFailureCount();
+
+    /**
+     * @return number of directory queries currently in progress and shared by lookups
+     */
+    long getInFlightCount();
+
+    /**
+     * @return mean duration of directory operations (milliseconds)
+     */
+    double getLdapLatencyMean();
+
+    /**
+     * @return median duration of directory operations (milliseconds, upper bound of histogram bucket)
+     */
+    double getLdapLatency50thPercentile();
+
+    /**
+     * @return 99th percentile of directory operation durations (milliseconds, upper bound of histogram bucket)
+     */
+    double getLdapLatency99thPercentile();
+
+    /**
+     * @return number of directory operations per duration bucket : bucket i counts durations in [2^i, 2^(i+1)[ microseconds
+     */
+    long[] getLdapLatencyHistogram();
+
+}
@@ -0,0 +1,394 @@
+package net.archigny.utils.ad.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import javax.annotation.PostConstruct;
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+
+import net.archigny.utils.ad.api.GroupRecord;
+import net.archigny.utils.ad.api.IActiveDirectoryTokenGroupsRegistry;
+
+import org.ldaptive.LdapAttribute;
+import org.ldaptive.LdapEntry;
+import org.ldaptive.LdapException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry for multi-domain forests : each SID is routed to the registry of its domain, selected by the longest matching SID
+ * prefix (eg: domain SID S-1-5-21-...). Each domain registry has its own connection factory and base DN. SIDs of domains without
+ * registry are resolved by a fallback registry, typically a registry querying a Global Catalog.
+ * <p>
+ * Batches are split per domain, resolved in parallel by the asynchronous methods of domain registries, then merged. The
+ * tokenGroups of a user and the SID of a group DN are fetched by the registry whose base DN is in the domain of the entry, the
+ * fallback registry otherwise.
+ * 
+ * @author Philippe MARASSE
+ */
+public class RoutingADTokenGroupsRegistry implements IActiveDirectoryTokenGroupsRegistry {
+
+    /** Logger */
+    private static final Logger log        = LoggerFactory.getLogger(RoutingADTokenGroupsRegistry.class);
+
+    /** Registries by SID prefix (S-1-5-21-...) */
+    private Map<String, IActiveDirectoryTokenGroupsRegistry> domainRegistries = Collections.emptyMap();
+
+    /** Registry resolving SIDs without matching prefix, SIDs are left unresolved if null */
+    private IActiveDirectoryTokenGroupsRegistry fallbackRegistry;
+
+    /** Routes sorted by decreasing prefix length */
+    private List<Route>         routes     = Collections.emptyList();
+
+    /** Domain roots of registries (eg: DC=example,DC=com) sorted by decreasing length */
+    private List<DnRoute>       dnRoutes   = Collections.emptyList();
+
+    /**
+     * Method called to initialize the bean
+     */
+    @PostConstruct
+    public void afterPropertiesSet() {
+
+        if (domainRegistries.isEmpty() && fallbackRegistry == null) {
+            throw new IllegalStateException("At least one domain registry or a fallback registry must be provided !");
+        }
+
+        final List<Route> newRoutes = new ArrayList<Route>(domainRegistries.size());
+        for (Map.Entry<String, IActiveDirectoryTokenGroupsRegistry> entry : domainRegistries.entrySet()) {
+            if (entry.getValue() == null) {
+                throw new IllegalStateException("No registry for SID prefix : " + entry.getKey());
+            }
+            try {
+                newRoutes.add(new Route(SidKey.parse(entry.getKey().trim()), entry.getValue()));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalStateException("Invalid SID prefix : " + entry.getKey(), e);
+            }
+        }
+        // Longest prefix first
+        newRoutes.sort((r1, r2) -> Integer.compare(r2.prefix.bytes().length, r1.prefix.bytes().length));
+        routes = newRoutes;
+
+        final List<DnRoute> newDnRoutes = new ArrayList<DnRoute>(domainRegistries.size());
+        for (IActiveDirectoryTokenGroupsRegistry registry : domainRegistries.values()) {
+            final String root = SimpleADTokenGroupsRegistry.domainRootOf(registry.getBaseDN());
+            if (root != null) {
+                try {
+                    newDnRoutes.add(new DnRoute(new LdapName(root), registry));
+                } catch (InvalidNameException e) {
+                    throw new IllegalStateException("Invalid base DN : " + registry.getBaseDN(), e);
+                }
+            }
+        }
+        newDnRoutes.sort((r1, r2) -> Integer.compare(r2.domainRoot.size(), r1.domainRoot.size()));
+        dnRoutes = newDnRoutes;
+        log.debug("Routing SIDs to {} domain registries (fallback : {})", routes.size(), fallbackRegistry != null);
+    }
+
+    /**
+     * Selects the registry of a SID
+     * 
+     * @param key SID
+     * @return registry of longest matching prefix, fallback registry or null
+     */
+    protected IActiveDirectoryTokenGroupsRegistry route(final SidKey key) {
+
+        for (Route route : routes) {
+            if (key.startsWith(route.prefix)) {
+                return route.registry;
+            }
+        }
+        return fallbackRegistry;
+    }
+
+    /**
+     * Selects the registry of a binary SID
+     * 
+     * @param tokenGroup binary SID
+     * @return registry or null if SID is invalid or not routable
+     */
+    private IActiveDirectoryTokenGroupsRegistry route(final byte[] tokenGroup) {
+
+        if (!SidKey.isValid(tokenGroup)) {
+            log.warn("Invalid binary SID, will not be resolved");
+            return null;
+        }
+        final IActiveDirectoryTokenGroupsRegistry registry = route(SidKey.of(tokenGroup));
+        if (registry == null) {
+            log.debug("No registry for SID : {}", SidKey.of(tokenGroup));
+        }
+        return registry;
+    }
+
+    /**
+     * Selects the registry of an entry : the one fetching tokenGroups of a user or the SID of a group
+     * 
+     * @param dn Distinguished name of the entry
+     * @return registry of the entry domain, fallback registry or null
+     */
+    protected IActiveDirectoryTokenGroupsRegistry routeDn(final String dn) {
+
+        final LdapName name;
+        try {
+            name = new LdapName(dn);
+        } catch (InvalidNameException e) {
+            log.warn("Unable to parse DN : {}", dn);
+            return null;
+        }
+        for (DnRoute route : dnRoutes) {
+            // LdapName indexes RDNs from the right
+            if (name.startsWith(route.domainRoot)) {
+                return route.registry;
+            }
+        }
+        return fallbackRegistry;
+    }
+
+    /**
+     * Splits SIDs per registry
+     * 
+     * @param tokenGroups binary SIDs
+     * @return SIDs by registry, unroutable SIDs are dropped
+     */
+    private Map<IActiveDirectoryTokenGroupsRegistry, List<byte[]>> split(final Collection<byte[]> tokenGroups) {
+
+        final Map<IActiveDirectoryTokenGroupsRegistry, List<byte[]>> batches = new IdentityHashMap<>(4);
+        for (byte[] tokenGroup : tokenGroups) {
+            final IActiveDirectoryTokenGroupsRegistry registry = route(tokenGroup);
+            if (registry != null) {
+                batches.computeIfAbsent(registry, r -> new ArrayList<byte[]>()).add(tokenGroup);
+            }
+        }
+        return batches;
+    }
+
+    @Override
+    public String getDnFromToken(final String tokenGroup) {
+
+        final byte[] token = SidCodec.toToken(tokenGroup);
+        return token == null ? null : getDnFromToken(token);
+    }
+
+    @Override
+    public String getDnFromToken(final byte[] tokenGroup) {
+
+        final IActiveDirectoryTokenGroupsRegistry registry = route(tokenGroup);
+        return registry == null ? null : registry.getDnFromToken(tokenGroup);
+    }
+
+    @Override
+    public Map<String, String> getDnsFromTokens(final Collection<byte[]> tokenGroups) {
+
+        final Map<IActiveDirectoryTokenGroupsRegistry, List<byte[]>> batches = split(tokenGroups);
+        if (batches.size() == 1) {
+            // Single domain, no need to go parallel
+            final Map.Entry<IActiveDirectoryTokenGroupsRegistry, List<byte[]>> batch = batches.entrySet().iterator().next();
+            return batch.getKey().getDnsFromTokens(batch.getValue());
+        }
+        return resolveAll(batches).join();
+    }
+
+    @Override
+    public GroupRecord getGroupFromToken(final byte[] tokenGroup) {
+
+        final IActiveDirectoryTokenGroupsRegistry registry = route(tokenGroup);
+        return registry == null ? null : registry.getGroupFromToken(tokenGroup);
+    }
+
+    /**
+     * Batches are resolved sequentially, each domain registry returning records with its own attribute projection
+     */
+    @Override
+    public Map<String, GroupRecord> getGroupsFromTokens(final Collection<byte[]> tokenGroups) {
+
+        final Map<String, GroupRecord> result = new HashMap<String, GroupRecord>();
+        for (Map.Entry<IActiveDirectoryTokenGroupsRegistry, List<byte[]>> batch : split(tokenGroups).entrySet()) {
+            result.putAll(batch.getKey().getGroupsFromTokens(batch.getValue()));
+        }
+        return result;
+    }
+
+    @Override
+    public CompletableFuture<String> getDnFromTokenAsync(final byte[] tokenGroup) {
+
+        final IActiveDirectoryTokenGroupsRegistry registry = route(tokenGroup);
+        return registry == null ? CompletableFuture.completedFuture(null) : registry.getDnFromTokenAsync(tokenGroup);
+    }
+
+    @Override
+    public CompletableFuture<Map<String, String>> getDnsFromTokensAsync(final Collection<byte[]> tokenGroups) {
+
+        return resolveAll(split(tokenGroups));
+    }
+
+    @Override
+    public byte[] getTokenFromDn(final String dn) {
+
+        final IActiveDirectoryTokenGroupsRegistry registry = routeDn(dn);
+        return registry == null ? null : registry.getTokenFromDn(dn);
+    }
+
+    @Override
+    public List<String> getGroupDnsForUser(final String userDn) {
+
+        final IActiveDirectoryTokenGroupsRegistry registry = routeDn(userDn);
+        if (registry == null) {
+            log.debug("No registry for user : {}", userDn);
+            return Collections.emptyList();
+        }
+        if (!(registry instanceof AbstractADTokenGroupsRegistry)) {
+            // Groups of other domains may be left unresolved
+            return registry.getGroupDnsForUser(userDn);
+        }
+
+        // tokenGroups are fetched from the user domain, SIDs are routed to their own domain
+        try {
+            final LdapAttribute tokenGroups = ((AbstractADTokenGroupsRegistry) registry).fetchTokenGroups(userDn);
+            return tokenGroups == null ? Collections.<String> emptyList() : getGroupDnsForUser(tokenGroups);
+        } catch (LdapException e) {
+            log.error("LDAP Exception raised while fetching tokenGroups of {} : {}", userDn, e.getMessage());
+            return Collections.emptyList();
+        }
+    }
+
+    @Override
+    public List<String> getGroupDnsForUser(final LdapEntry userEntry) {
+
+        final LdapAttribute tokenGroups = userEntry.getAttribute(AbstractADTokenGroupsRegistry.TOKEN_GROUPS_ATTRIBUTE);
+        return tokenGroups == null ? Collections.<String> emptyList() : getGroupDnsForUser(tokenGroups);
+    }
+
+    @Override
+    public List<String> getGroupDnsForUser(final LdapAttribute tokenGroups) {
+
+        // Duplicate and invalid values are dropped before routing
+        final Map<SidKey, byte[]> values = new LinkedHashMap<SidKey, byte[]>();
+        for (byte[] value : tokenGroups.getBinaryValues()) {
+            if (SidKey.isValid(value)) {
+                values.putIfAbsent(SidKey.of(value), value);
+            }
+        }
+        final Map<String, String> found = getDnsFromTokens(values.values());
+        final Set<String> dns = new LinkedHashSet<String>(found.size() * 2);
+        for (SidKey key : values.keySet()) {
+            final String dn = found.get(key.toString());
+            if (dn != null) {
+                dns.add(dn);
+            }
+        }
+        return new ArrayList<String>(dns);
+    }
+
+    /**
+     * Resolves batches in parallel and merges results. SIDs of a registry failing to resolve its batch are left unresolved, other
+     * batches are still merged.
+     * 
+     * @param batches SIDs by registry
+     * @return future completed with the merged Map of resolved SIDs
+     */
+    private CompletableFuture<Map<String, String>> resolveAll(
+            final Map<IActiveDirectoryTokenGroupsRegistry, List<byte[]>> batches) {
+
+        final List<CompletableFuture<Map<String, String>>> futures = new ArrayList<>(batches.size());
+        for (Map.Entry<IActiveDirectoryTokenGroupsRegistry, List<byte[]>> batch : batches.entrySet()) {
+            final IActiveDirectoryTokenGroupsRegistry registry = batch.getKey();
+            futures.add(registry.getDnsFromTokensAsync(batch.getValue()).exceptionally(t -> {
+                final Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+                log.warn("Unable to resolve {} SIDs with registry of base DN {} : {}", batch.getValue().size(),
+                        registry.getBaseDN(), cause.getMessage());
+                return Collections.<String, String> emptyMap();
+            }));
+        }
+
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).thenApply(v -> {
+            final Map<String, String> result = new HashMap<String, String>();
+            for (CompletableFuture<Map<String, String>> future : futures) {
+                result.putAll(future.join());
+            }
+            return result;
+        });
+    }
+
+    /**
+     * No single base DN : each domain registry has its own
+     */
+    @Override
+    public void setBaseDN(final String baseDN) {
+
+        throw new UnsupportedOperationException("Base DN must be set on domain registries");
+    }
+
+    /**
+     * @return null, each domain registry has its own base DN
+     */
+    @Override
+    public String getBaseDN() {
+
+        return null;
+    }
+
+    // Getters and Setters
+
+    public Map<String, IActiveDirectoryTokenGroupsRegistry> getDomainRegistries() {
+
+        return domainRegistries;
+    }
+
+    public void setDomainRegistries(Map<String, IActiveDirectoryTokenGroupsRegistry> domainRegistries) {
+
+        this.domainRegistries = new LinkedHashMap<String, IActiveDirectoryTokenGroupsRegistry>(domainRegistries);
+    }
+
+    public IActiveDirectoryTokenGroupsRegistry getFallbackRegistry() {
+
+        return fallbackRegistry;
+    }
+
+    public void setFallbackRegistry(IActiveDirectoryTokenGroupsRegistry fallbackRegistry) {
+
+        this.fallbackRegistry = fallbackRegistry;
+    }
+
+    /**
+     * SID prefix and its registry
+     */
+    private static final class Route {
+
+        private final SidKey                              prefix;
+
+        private final IActiveDirectoryTokenGroupsRegistry registry;
+
+        private Route(final SidKey prefix, final IActiveDirectoryTokenGroupsRegistry registry) {
+
+            this.prefix = prefix;
+            this.registry = registry;
+        }
+    }
+
+    /**
+     * Domain root and its registry
+     */
+    private static final class DnRoute {
+
+        private final LdapName                            domainRoot;
+
+        private final IActiveDirectoryTokenGroupsRegistry registry;
+
+        private DnRoute(final LdapName domainRoot, final IActiveDirectoryTokenGroupsRegistry registry) {
+
+            this.domainRoot = domainRoot;
+            this.registry = registry;
+        }
+    }
+
+}
@@ -0,0 +1,35 @@
+package net.archigny.utils.ad.impl;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link RegistryCache} shared with other JVMs, on which the load of absent SIDs can be claimed so that a single member of a
+ * cluster queries the directory for a given SID (see {@link CachingADTokenGroupsRegistry#setDistributedLoad(boolean)})
+ * 
+ * @author Philippe MARASSE
+ */
+interface SharedRegistryCache extends RegistryCache {
+
+    /**
+     * Claims the load of absent SIDs with a {@link LoadClaimProcessor}, run by the cache on all SIDs at once
+     * 
+     * @param keys SIDs
+     * @param claim claim stored in the entries of absent SIDs
+     * @return Map of cached values and claims of other callers (see {@link LoadClaimProcessor#isClaim(String)}), SIDs claimed by
+     *         the caller are not in the map
+     * @throws javax.cache.CacheException if the processor failed
+     */
+    Map<SidKey, String> claimAll(Set<SidKey> keys, String claim);
+
+    /**
+     * Replaces the claim of a SID by its loaded value
+     * 
+     * @param key SID
+     * @param claim claim given to {@link #claimAll(Set, String)}
+     * @param value value to store, null to only remove the claim
+     * @return true if the SID was still claimed by the caller
+     */
+    boolean release(SidKey key, String claim, String value);
+
+}
@@ -0,0 +1,288 @@
+package net.archigny.utils.ad.impl;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Conversions of SIDs between their binary form, their canonical string representation (S-1-5-21-...) and their escaped form in
+ * LDAP filters. Conversions use precomputed tables and write characters directly, the only objects allocated being the results.
+ *
+ * @author Philippe MARASSE
+ */
+public final class SidCodec {
+
+    /** Maximum number of sub authorities of a SID */
+    public static final int     MAX_SUB_AUTHORITIES   = 15;
+
+    /** Identifier authorities above this value are represented in hexadecimal (0x...) */
+    private static final long   MAX_DECIMAL_AUTHORITY = 0xFFFFFFFFL;
+
+    /** Lower case hexadecimal digits of each byte value : byte b is at 2 * (b &amp; 0xFF) */
+    static final char[]         HEX_PAIRS;
+
+    /** Decimal digits of 0 to 99 : n is at 2 * n */
+    private static final char[] DECIMAL_PAIRS;
+
+    static {
+        final char[] hexDigits = "0123456789abcdef".toCharArray();
+        HEX_PAIRS = new char[512];
+        for (int i = 0; i < 256; i++) {
+            HEX_PAIRS[2 * i] = hexDigits[i >>> 4];
+            HEX_PAIRS[2 * i + 1] = hexDigits[i & 0xF];
+        }
+        DECIMAL_PAIRS = new char[200];
+        for (int i = 0; i < 100; i++) {
+            DECIMAL_PAIRS[2 * i] = (char) ('0' + i / 10);
+            DECIMAL_PAIRS[2 * i + 1] = (char) ('0' + i % 10);
+        }
+    }
+
+    private SidCodec() {
+
+    }
+
+    /**
+     * Builds the string representation of a binary SID
+     *
+     * @param sid binary SID
+     * @return string representation (S-1-5-...)
+     * @throws IllegalArgumentException if sid is not a valid binary SID
+     */
+    public static String toString(final byte[] sid) {
+
+        if (!SidKey.isValid(sid)) {
+            throw new IllegalArgumentException("Invalid binary SID");
+        }
+
+        final int count = sid[1];
+        // "S-" + revision + authority (at most 15 digits or 14 characters in hexadecimal) + sub authorities (at most 10 digits)
+        final char[] buffer = new char[20 + 11 * count];
+        buffer[0] = 'S';
+        buffer[1] = '-';
+        int pos = putDecimal(sid[0] & 0xFF, buffer, 2);
+
+        long authority = 0;
+        for (int i = 2; i < 8; i++) {
+            authority = authority << 8 | sid[i] & 0xFF;
+        }
+        buffer[pos++] = '-';
+        if (authority > MAX_DECIMAL_AUTHORITY) {
+            buffer[pos++] = '0';
+            buffer[pos++] = 'x';
+            for (int i = 2; i < 8; i++) {
+                final int b = sid[i] & 0xFF;
+                buffer[pos++] = HEX_PAIRS[2 * b];
+                buffer[pos++] = HEX_PAIRS[2 * b + 1];
+            }
+        } else {
+            pos = putDecimal(authority, buffer, pos);
+        }
+
+        for (int i = 0; i < count; i++) {
+            final int offset = 8 + 4 * i;
+            final long subAuthority = (sid[offset] & 0xFF | (sid[offset + 1] & 0xFF) << 8 | (sid[offset + 2] & 0xFF) << 16
+                    | (long) (sid[offset + 3] & 0xFF) << 24);
+            buffer[pos++] = '-';
+            pos = putDecimal(subAuthority, buffer, pos);
+        }
+        return new String(buffer, 0, pos);
+    }
+
+    /**
+     * Parses the string representation of a SID
+     *
+     * @param sid string representation (S-1-5-...), identifier authority may be hexadecimal (0x...)
+     * @return binary SID
+     * @throws IllegalArgumentException if sid is not a valid SID
+     */
+    public static byte[] toBytes(final CharSequence sid) {
+
+        final int length = sid == null ? 0 : sid.length();
+        if (!isTextual(sid)) {
+            throw new IllegalArgumentException("Invalid SID : " + sid);
+        }
+
+        int dashes = 0;
+        for (int i = 0; i < length; i++) {
+            if (sid.charAt(i) == '-') {
+                dashes++;
+            }
+        }
+        final int count = dashes - 2;
+        if (count < 0 || count > MAX_SUB_AUTHORITIES || sid.charAt(length - 1) == '-') {
+            throw new IllegalArgumentException("Invalid SID : " + sid);
+        }
+
+        final byte[] bytes = new byte[8 + 4 * count];
+        // Revision
+        int pos = 2;
+        int end = nextDash(sid, pos);
+        bytes[0] = (byte) parseNumber(sid, pos, end, 0xFF);
+        bytes[1] = (byte) count;
+
+        // Identifier authority, big endian
+        pos = end + 1;
+        end = nextDash(sid, pos);
+        long authority = parseNumber(sid, pos, end, 0xFFFFFFFFFFFFL);
+        for (int i = 7; i > 1; i--) {
+            bytes[i] = (byte) authority;
+            authority >>>= 8;
+        }
+
+        // Sub authorities, little endian
+        for (int i = 0; i < count; i++) {
+            pos = end + 1;
+            end = nextDash(sid, pos);
+            final long subAuthority = parseNumber(sid, pos, end, 0xFFFFFFFFL);
+            final int offset = 8 + 4 * i;
+            bytes[offset] = (byte) subAuthority;
+            bytes[offset + 1] = (byte) (subAuthority >>> 8);
+            bytes[offset + 2] = (byte) (subAuthority >>> 16);
+            bytes[offset + 3] = (byte) (subAuthority >>> 24);
+        }
+        if (bytes[0] != 1) {
+            throw new IllegalArgumentException("Invalid SID : " + sid);
+        }
+        return bytes;
+    }
+
+    /**
+     * Converts the String form of a SID used by registries : canonical string representation (S-1-5-...) or binary SID held in a
+     * String, one char per byte (ISO-8859-1)
+     *
+     * @param tokenGroup String form of a SID
+     * @return binary SID or null if tokenGroup is null or is an invalid string represented SID
+     */
+    public static byte[] toToken(final String tokenGroup) {
+
+        if (tokenGroup == null) {
+            return null;
+        }
+        if (!isTextual(tokenGroup)) {
+            return tokenGroup.getBytes(StandardCharsets.ISO_8859_1);
+        }
+        try {
+            return toBytes(tokenGroup);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param value value which may be a string represented SID
+     * @return true if value looks like a string represented SID (S-...), it may still be invalid
+     */
+    public static boolean isTextual(final CharSequence value) {
+
+        return value != null && value.length() > 2 && (value.charAt(0) == 'S' || value.charAt(0) == 's')
+                && value.charAt(1) == '-';
+    }
+
+    /**
+     * Escapes binary data to be used as a value in an LDAP filter (RFC 4515) : each byte is written as \xx
+     *
+     * @param value binary value
+     * @return escaped value
+     */
+    public static String toFilterValue(final byte[] value) {
+
+        return appendFilterValue(new StringBuilder(3 * value.length), value).toString();
+    }
+
+    /**
+     * Appends binary data escaped to be used as a value in an LDAP filter (RFC 4515) : each byte is written as \xx
+     *
+     * @param filter filter being built
+     * @param value binary value
+     * @return filter
+     */
+    public static StringBuilder appendFilterValue(final StringBuilder filter, final byte[] value) {
+
+        for (byte b : value) {
+            final int i = 2 * (b & 0xFF);
+            filter.append('\\').append(HEX_PAIRS[i]).append(HEX_PAIRS[i + 1]);
+        }
+        return filter;
+    }
+
+    /**
+     * Writes the decimal representation of a non negative value
+     *
+     * @param value value
+     * @param buffer destination
+     * @param pos position of first digit
+     * @return position following the last digit
+     */
+    private static int putDecimal(long value, final char[] buffer, final int pos) {
+
+        int digits = 1;
+        for (long bound = 10; digits < 19 && value >= bound; bound *= 10) {
+            digits++;
+        }
+        int i = pos + digits;
+        while (value >= 100) {
+            final int pair = 2 * (int) (value % 100);
+            value /= 100;
+            buffer[--i] = DECIMAL_PAIRS[pair + 1];
+            buffer[--i] = DECIMAL_PAIRS[pair];
+        }
+        if (value >= 10) {
+            final int pair = 2 * (int) value;
+            buffer[--i] = DECIMAL_PAIRS[pair + 1];
+            buffer[--i] = DECIMAL_PAIRS[pair];
+        } else {
+            buffer[--i] = (char) ('0' + value);
+        }
+        return pos + digits;
+    }
+
+    /**
+     * @param sid string represented SID
+     * @param from start position
+     * @return position of next dash, or length of sid
+     */
+    private static int nextDash(final CharSequence sid, final int from) {
+
+        int i = from;
+        while (i < sid.length() && sid.charAt(i) != '-') {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Parses a decimal or hexadecimal (0x...) number
+     *
+     * @param sid string represented SID
+     * @param from position of first character
+     * @param to position following last character
+     * @param max maximum value
+     * @return value
+     * @throws IllegalArgumentException if the number is malformed or above max
+     */
+    private static long parseNumber(final CharSequence sid, final int from, final int to, final long max) {
+
+        int i = from;
+        int radix = 10;
+        if (to - from > 2 && sid.charAt(i) == '0' && (sid.charAt(i + 1) == 'x' || sid.charAt(i + 1) == 'X')) {
+            radix = 16;
+            i += 2;
+        }
+        if (i == to) {
+            throw new IllegalArgumentException("Invalid SID : " + sid);
+        }
+
+        long value = 0;
+        for (; i < to; i++) {
+            final int digit = Character.digit(sid.charAt(i), radix);
+            if (digit < 0) {
+                throw new IllegalArgumentException("Invalid SID : " + sid);
+            }
+            value = value * radix + digit;
+            if (value > max) {
+                throw new IllegalArgumentException("Invalid SID : " + sid);
+            }
+        }
+        return value;
+    }
+
+}
@@ -0,0 +1,141 @@
+package net.archigny.utils.ad.impl;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Immutable binary SID usable as a cache key : equality is based on the binary form, hash code is computed once and the string
+ * representation (S-1-5-...) is only built when requested.
+ * 
+ * @author Philippe MARASSE
+ */
+public final class SidKey implements Serializable {
+
+    /** Serial */
+    private static final long serialVersionUID = 6795419226736599472L;
+
+    /** Binary SID, never exposed */
+    private final byte[]      bytes;
+
+    /** Hash code, same as {@link Arrays#hashCode(byte[])} of binary SID */
+    private final int         hash;
+
+    /** Cached string representation */
+    private transient String  text;
+
+    private SidKey(final byte[] bytes) {
+
+        this.bytes = bytes;
+        this.hash = Arrays.hashCode(bytes);
+    }
+
+    /**
+     * Builds a key from a binary SID
+     * 
+     * @param sid binary SID (copied)
+     * @return key
+     * @throws IllegalArgumentException if sid is not a valid binary SID
+     */
+    public static SidKey of(final byte[] sid) {
+
+        if (!isValid(sid)) {
+            throw new IllegalArgumentException("Invalid binary SID");
+        }
+        return new SidKey(sid.clone());
+    }
+
+    /**
+     * Builds a key from a string represented SID
+     * 
+     * @param sid string representation of SID (S-1-5-...)
+     * @return key
+     * @throws IllegalArgumentException if sid is not a valid SID
+     */
+    public static SidKey parse(final String sid) {
+
+        return new SidKey(SidCodec.toBytes(sid));
+    }
+
+    /**
+     * Checks the structure of a binary SID : revision 1, sub authority count consistent with length
+     * 
+     * @param sid binary SID
+     * @return true if sid is well formed
+     */
+    public static boolean isValid(final byte[] sid) {
+
+        return sid != null && sid.length >= 8 && sid[0] == 1 && sid[1] >= 0 && sid[1] <= 15 && sid.length == 8 + 4 * sid[1];
+    }
+
+    /**
+     * Checks if this SID starts with the issuer authority and all the sub authorities of another SID, eg: S-1-5-21-1-2-3-1105
+     * starts with the domain SID S-1-5-21-1-2-3
+     * 
+     * @param prefix SID prefix
+     * @return true if this SID starts with prefix
+     */
+    public boolean startsWith(final SidKey prefix) {
+
+        final byte[] other = prefix.bytes;
+        if (other.length > bytes.length) {
+            return false;
+        }
+        // Byte 1 holds the sub authority count
+        if (other[0] != bytes[0]) {
+            return false;
+        }
+        for (int i = 2; i < other.length; i++) {
+            if (other[i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return copy of binary SID
+     */
+    public byte[] getBytes() {
+
+        return bytes.clone();
+    }
+
+    /**
+     * @return binary SID, must not be modified
+     */
+    byte[] bytes() {
+
+        return bytes;
+    }
+
+    @Override
+    public int hashCode() {
+
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+
+        if (this == obj) return true;
+        if (obj == null) return false;
+        if (getClass() != obj.getClass()) return false;
+        SidKey other = (SidKey) obj;
+        return hash == other.hash && Arrays.equals(bytes, other.bytes);
+    }
+
+    /**
+     * @return string representation of SID (S-1-5-...)
+     */
+    @Override
+    public String toString() {
+
+        String result = text;
+        if (result == null) {
+            result = SidCodec.toString(bytes);
+            text = result;
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,291 @@
+package net.archigny.utils.ad.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Read-only, memory-mapped snapshot of a SID to DN mapping. Lookups read the mapped file directly : nothing is deserialized or
+ * copied on heap but the returned DN. A snapshot file can be mapped by several JVMs at once.
+ * <p>
+ * File layout (big endian) :
+ * <ul>
+ * <li>header (32 bytes) : magic "ADTG", format version, entry count, CRC32 of body, generation (eg: highest uSNChanged), body
+ * length</li>
+ * <li>slots (8 bytes per entry, sorted by SID hash, see {@link SidKey#hashCode()}) : SID hash, record offset relative to records
+ * start</li>
+ * <li>records : SID length (1 byte), binary SID, DN length (2 bytes), UTF-8 encoded DN</li>
+ * </ul>
+ * Files are written to a temporary file then atomically moved, a JVM mapping the previous version keeps reading it until it opens
+ * the new one.
+ * 
+ * @author Philippe MARASSE
+ */
+public final class SidSnapshot {
+
+    /** Magic number : "ADTG" */
+    public static final int         MAGIC       = 0x41445447;
+
+    /** Current format version */
+    public static final int         VERSION     = 1;
+
+    /** Header size */
+    private static final int        HEADER_SIZE = 32;
+
+    /** Size of a slot */
+    private static final int        SLOT_SIZE   = 8;
+
+    /** Mapped file, only accessed with absolute (thread safe) reads */
+    private final MappedByteBuffer  buffer;
+
+    /** File of this snapshot */
+    private final Path              file;
+
+    /** Number of entries */
+    private final int               count;
+
+    /** Generation of snapshot */
+    private final long              generation;
+
+    /** Offset of first record */
+    private final int               recordsStart;
+
+    private SidSnapshot(final Path file, final MappedByteBuffer buffer, final int count, final long generation) {
+
+        this.file = file;
+        this.buffer = buffer;
+        this.count = count;
+        this.generation = generation;
+        this.recordsStart = HEADER_SIZE + count * SLOT_SIZE;
+    }
+
+    /**
+     * Maps and validates a snapshot file
+     * 
+     * @param file snapshot file
+     * @return opened snapshot
+     * @throws IOException if the file cannot be read or is not a valid snapshot
+     */
+    public static SidSnapshot open(final Path file) throws IOException {
+
+        final MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Invalid snapshot size : " + channel.size());
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a SID snapshot : " + file);
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported snapshot version : " + buffer.getInt(4));
+        }
+        final int count = buffer.getInt(8);
+        final long bodyLength = buffer.getLong(24);
+        if (count < 0 || bodyLength != buffer.capacity() - HEADER_SIZE || (long) count * SLOT_SIZE > bodyLength) {
+            throw new IOException("Corrupted snapshot header : " + file);
+        }
+
+        final ByteBuffer body = buffer.duplicate();
+        body.position(HEADER_SIZE);
+        final CRC32 crc = new CRC32();
+        crc.update(body);
+        if ((int) crc.getValue() != buffer.getInt(12)) {
+            throw new IOException("Snapshot checksum mismatch : " + file);
+        }
+
+        return new SidSnapshot(file, buffer, count, buffer.getLong(16));
+    }
+
+    /**
+     * Writes a snapshot file
+     * 
+     * @param file snapshot file, replaced atomically if it exists
+     * @param index Map of SIDs to Distinguished names
+     * @param generation generation of snapshot
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(final Path file, final Map<SidKey, String> index, final long generation) throws IOException {
+
+        final List<Record> records = new ArrayList<Record>(index.size());
+        long recordsLength = 0;
+        for (Map.Entry<SidKey, String> entry : index.entrySet()) {
+            final Record record = new Record(entry.getKey(), entry.getValue().getBytes(StandardCharsets.UTF_8));
+            if (record.dn.length > 0xFFFF) {
+                throw new IOException("DN too long : " + entry.getValue());
+            }
+            records.add(record);
+            recordsLength += 1 + record.sid.length + 2 + record.dn.length;
+        }
+        Collections.sort(records);
+
+        final long bodyLength = (long) records.size() * SLOT_SIZE + recordsLength;
+        if (HEADER_SIZE + bodyLength > Integer.MAX_VALUE) {
+            throw new IOException("Snapshot too large : " + bodyLength + " bytes");
+        }
+
+        final ByteBuffer out = ByteBuffer.allocate((int) (HEADER_SIZE + bodyLength));
+        out.position(HEADER_SIZE);
+        int offset = 0;
+        for (Record record : records) {
+            out.putInt(record.hash).putInt(offset);
+            offset += 1 + record.sid.length + 2 + record.dn.length;
+        }
+        for (Record record : records) {
+            out.put((byte) record.sid.length).put(record.sid).putShort((short) record.dn.length).put(record.dn);
+        }
+
+        out.position(HEADER_SIZE);
+        final CRC32 crc = new CRC32();
+        crc.update(out);
+
+        out.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, records.size()).putInt(12, (int) crc.getValue());
+        out.putLong(16, generation).putLong(24, bodyLength);
+        out.rewind();
+
+        final Path parent = file.toAbsolutePath().getParent();
+        final Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (out.hasRemaining()) {
+                    channel.write(out);
+                }
+                channel.force(true);
+            }
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Resolve a SID
+     * 
+     * @param key SID
+     * @return Distinguished name or null if SID is absent from snapshot
+     */
+    public String get(final SidKey key) {
+
+        final int hash = key.hashCode();
+        final byte[] sid = key.bytes();
+
+        // Binary search of the first slot with this hash
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (buffer.getInt(HEADER_SIZE + mid * SLOT_SIZE) < hash) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        for (int slot = low; slot < count && buffer.getInt(HEADER_SIZE + slot * SLOT_SIZE) == hash; slot++) {
+            final int record = recordsStart + buffer.getInt(HEADER_SIZE + slot * SLOT_SIZE + 4);
+            if (sidEquals(record, sid)) {
+                final int dnStart = record + 1 + sid.length;
+                final byte[] dn = new byte[buffer.getShort(dnStart) & 0xFFFF];
+                for (int i = 0; i < dn.length; i++) {
+                    dn[i] = buffer.get(dnStart + 2 + i);
+                }
+                return new String(dn, StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    private boolean sidEquals(final int record, final byte[] sid) {
+
+        if ((buffer.get(record) & 0xFF) != sid.length) {
+            return false;
+        }
+        for (int i = 0; i < sid.length; i++) {
+            if (buffer.get(record + 1 + i) != sid[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Iterates over all entries of the snapshot
+     * 
+     * @param action receives SID and Distinguished name of each entry
+     */
+    public void forEach(final BiConsumer<SidKey, String> action) {
+
+        int record = recordsStart;
+        for (int i = 0; i < count; i++) {
+            final byte[] sid = new byte[buffer.get(record) & 0xFF];
+            for (int j = 0; j < sid.length; j++) {
+                sid[j] = buffer.get(record + 1 + j);
+            }
+            final int dnStart = record + 1 + sid.length;
+            final byte[] dn = new byte[buffer.getShort(dnStart) & 0xFFFF];
+            for (int j = 0; j < dn.length; j++) {
+                dn[j] = buffer.get(dnStart + 2 + j);
+            }
+            action.accept(SidKey.of(sid), new String(dn, StandardCharsets.UTF_8));
+            record = dnStart + 2 + dn.length;
+        }
+    }
+
+    /**
+     * @return number of entries
+     */
+    public int size() {
+
+        return count;
+    }
+
+    public long getGeneration() {
+
+        return generation;
+    }
+
+    public Path getFile() {
+
+        return file;
+    }
+
+    /**
+     * Entry to be written, ordered by SID hash
+     */
+    private static final class Record implements Comparable<Record> {
+
+        private final byte[] sid;
+
+        private final byte[] dn;
+
+        private final int    hash;
+
+        private Record(final SidKey key, final byte[] dn) {
+
+            this.sid = key.bytes();
+            this.dn = dn;
+            this.hash = key.hashCode();
+        }
+
+        @Override
+        public int compareTo(final Record other) {
+
+            return Integer.compare(hash, other.hash);
+        }
+    }
+
+}
@@ -1,17 +1,35 @@
 package net.archigny.utils.ad.impl;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.regex.Pattern;
 
+import javax.annotation.PostConstruct;
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+
+import org.ldaptive.LdapAttribute;
 import org.ldaptive.LdapEntry;
 import org.ldaptive.LdapException;
+import org.ldaptive.ResultCode;
+import org.ldaptive.ReturnAttributes;
 import org.ldaptive.SearchFilter;
 import org.ldaptive.SearchOperation;
 import org.ldaptive.SearchRequest;
 import org.ldaptive.SearchResult;
-import org.ldaptive.ad.SecurityIdentifier;
+import org.ldaptive.SearchScope;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import net.archigny.utils.ad.api.GroupRecord;
+
 /**
  * Simple implementation of Token Groups Registry with no caching : each query for a group translation will make a LDAP query to the
  * directory
@@ -21,59 +39,555 @@ import org.slf4j.LoggerFactory;
  */
 public class SimpleADTokenGroupsRegistry extends AbstractADTokenGroupsRegistry {
 
-    private final static Logger     log               = LoggerFactory.getLogger(SimpleADTokenGroupsRegistry.class);
+    private final static Logger     log                = LoggerFactory.getLogger(SimpleADTokenGroupsRegistry.class);
 
     /** Pattern used to replace placeholder */
-    protected final static Pattern  QUERY_PLACEHOLDER = Pattern.compile("\\{0\\}");
+    protected final static Pattern  QUERY_PLACEHOLDER  = Pattern.compile("\\{0\\}");
 
     /** LDAP Query for SID */
-    protected final static String   QUERY_SID         = "(objectSid={sid})";
+    protected final static String   QUERY_SID          = "(objectSid={sid})";
+
+    /** LDAP Attributes to retrieve when only the DN is needed : none ("1.1"), so that the directory sends minimal responses */
+    protected final static String[] QUERY_ATTRS        = ReturnAttributes.NONE.value();
+
+    /** LDAP Attribute holding the binary SID of an entry */
+    protected final static String   SID_ATTRIBUTE      = "objectSid";
+
+    /** LDAP Attributes to retrieve when querying several SIDs at once */
+    protected final static String[] BULK_QUERY_ATTRS   = { SID_ATTRIBUTE };
+
+    /** Root DSE attribute holding the DN of the configuration naming context */
+    protected final static String   CONFIGURATION_NC   = "configurationNamingContext";
+
+    /** Prefix of BUILTIN SIDs, searched under the domain root */
+    private final static SidKey     BUILTIN_PREFIX     = SidKey.parse("S-1-5-32");
+
+    /** Prefix of domain SIDs, searched under the domain root */
+    private final static SidKey     DOMAIN_PREFIX      = SidKey.parse("S-1-5-21");
+
+    /** Default maximum number of SIDs searched with a single OR filter */
+    public final static int         DEFAULT_CHUNK_SIZE = 50;
+
+    /** Maximum number of SIDs searched with a single OR filter */
+    private int                     chunkSize          = DEFAULT_CHUNK_SIZE;
+
+    /** Prefixes (eg: domain SID S-1-5-21-...) of SIDs searched in the directory, all SIDs are searched if empty */
+    private List<String>            allowedSidPrefixes = Collections.emptyList();
+
+    /** Prefixes of SIDs never searched in the directory, even if allowed */
+    private List<String>            deniedSidPrefixes  = Collections.emptyList();
 
-    /** LDAP Attribute to retrieve */
-    protected final static String[] QUERY_ATTRS       = { "cn" };
+    /** Well-known SIDs resolved without querying the directory, none if null */
+    private WellKnownSidTable       wellKnownSidTable;
+
+    /** Attributes of groups fetched with their DN and returned as {@link GroupRecord}s, DN only if empty */
+    private List<String>            groupAttributes    = Collections.emptyList();
+
+    /** Attributes retrieved when querying a single SID */
+    private String[]                queryAttributes    = QUERY_ATTRS;
+
+    /** Attributes retrieved when querying several SIDs at once or a DN */
+    private String[]                bulkAttributes     = BULK_QUERY_ATTRS;
+
+    /** Parsed allowed prefixes */
+    private List<SidKey>            allowedPrefixes    = Collections.emptyList();
+
+    /** Parsed denied prefixes */
+    private List<SidKey>            deniedPrefixes     = Collections.emptyList();
+
+    @Override
+    @PostConstruct
+    public void afterPropertiesSet() {
+
+        super.afterPropertiesSet();
+        if (chunkSize < 1) {
+            throw new IllegalStateException("chunkSize must be greater than 0 !");
+        }
+        allowedPrefixes = parsePrefixes(allowedSidPrefixes);
+        deniedPrefixes = parsePrefixes(deniedSidPrefixes);
+        if (!groupAttributes.isEmpty()) {
+            queryAttributes = groupAttributes.toArray(new String[groupAttributes.size()]);
+            bulkAttributes = new String[groupAttributes.size() + 1];
+            bulkAttributes[0] = SID_ATTRIBUTE;
+            System.arraycopy(queryAttributes, 0, bulkAttributes, 1, queryAttributes.length);
+        }
+
+        if (wellKnownSidTable != null) {
+            wellKnownSidTable.init(domainRootOf(baseDN));
+            if (wellKnownSidTable.isLoadFromDirectory()) {
+                loadWellKnownSids();
+            }
+        }
+    }
+
+    /**
+     * Fetches DNs of well-known SIDs from the directory, default DNs are kept for SIDs not found. BUILTIN groups are searched from
+     * the domain root and well-known security principals from the configuration naming context, which both lie outside of a base
+     * DN limited to an organizational unit.
+     */
+    private void loadWellKnownSids() {
+
+        final String domainRoot = wellKnownSidTable.getDomainRoot() != null ? wellKnownSidTable.getDomainRoot() : domainRootOf(
+                baseDN);
+        final List<SidKey> domainSids = new ArrayList<SidKey>();
+        final List<SidKey> principalSids = new ArrayList<SidKey>();
+        for (SidKey key : wellKnownSidTable.keys()) {
+            if (key.startsWith(BUILTIN_PREFIX) || key.startsWith(DOMAIN_PREFIX)) {
+                domainSids.add(key);
+            } else {
+                principalSids.add(key);
+            }
+        }
+
+        final Set<SidKey> failed = new HashSet<SidKey>();
+        final Map<SidKey, String> found = searchDirectory(domainRoot != null ? domainRoot : baseDN, domainSids, failed);
+        if (!principalSids.isEmpty()) {
+            found.putAll(searchDirectory(configurationNamingContext(domainRoot), principalSids, failed));
+        }
+        if (!failed.isEmpty()) {
+            log.warn("Unable to load well-known SIDs from directory, using configured DNs");
+        }
+        final Map<SidKey, String> dns = new HashMap<SidKey, String>(found.size() * 2);
+        for (Map.Entry<SidKey, String> entry : found.entrySet()) {
+            dns.put(entry.getKey(), GroupRecord.dnOf(entry.getValue()));
+        }
+        wellKnownSidTable.override(dns);
+        log.info("{} well-known SIDs loaded from directory", found.size());
+    }
+
+    /**
+     * Reads the configuration naming context from the root DSE
+     * 
+     * @param domainRoot domain root, used as forest root if the root DSE cannot be read
+     * @return DN of the configuration naming context (eg: CN=Configuration,dc=example,dc=com)
+     */
+    private String configurationNamingContext(final String domainRoot) {
+
+        final SearchRequest request = new SearchRequest("", "(objectClass=*)", CONFIGURATION_NC);
+        request.setSearchScope(SearchScope.OBJECT);
+        try {
+            final LdapEntry rootDse = executeLdap(conn -> new SearchOperation(conn).execute(request).getResult()).getEntry();
+            final LdapAttribute attribute = rootDse == null ? null : rootDse.getAttribute(CONFIGURATION_NC);
+            if (attribute != null) {
+                return attribute.getStringValue();
+            }
+        } catch (LdapException e) {
+            log.warn("Unable to read root DSE : {}", e.getMessage());
+        }
+        final String forestRoot = domainRoot != null ? domainRoot : baseDN;
+        log.warn("No {} in root DSE, assuming CN=Configuration,{}", CONFIGURATION_NC, forestRoot);
+        return "CN=Configuration," + forestRoot;
+    }
+
+    /**
+     * Domain root of a DN : its trailing DC components
+     * 
+     * @param dn Distinguished name (eg: ou=Groups,dc=example,dc=com)
+     * @return domain root (eg: dc=example,dc=com) or null if dn has no DC component
+     */
+    static String domainRootOf(final String dn) {
+
+        if (dn == null) {
+            return null;
+        }
+        try {
+            final LdapName name = new LdapName(dn);
+            int size = 0;
+            while (size < name.size() && "DC".equalsIgnoreCase(name.getRdn(size).getType())) {
+                size++;
+            }
+            return size == 0 ? null : name.getPrefix(size).toString();
+        } catch (InvalidNameException e) {
+            log.warn("Unable to parse DN : {}", dn);
+            return null;
+        }
+    }
+
+    /**
+     * @param key SID
+     * @return DN of a well-known SID or null
+     */
+    protected String fromWellKnown(final SidKey key) {
+
+        return wellKnownSidTable == null ? null : wellKnownSidTable.get(key);
+    }
+
+    private static List<SidKey> parsePrefixes(final List<String> prefixes) {
+
+        final List<SidKey> result = new ArrayList<SidKey>(prefixes.size());
+        for (String prefix : prefixes) {
+            try {
+                result.add(SidKey.parse(prefix.trim()));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalStateException("Invalid SID prefix : " + prefix, e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Checks SID prefix rules : a SID out of scope is never searched in the directory
+     * 
+     * @param key SID
+     * @return true if SID matches an allowed prefix (or no allowed prefix is set) and no denied prefix
+     */
+    protected boolean isInScope(final SidKey key) {
+
+        for (SidKey prefix : deniedPrefixes) {
+            if (key.startsWith(prefix)) {
+                return false;
+            }
+        }
+        if (allowedPrefixes.isEmpty()) {
+            return true;
+        }
+        for (SidKey prefix : allowedPrefixes) {
+            if (key.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
     @Override
     public String getDnFromToken(final String tokenGroup) {
 
-        return getDnFromToken(tokenGroup.getBytes());
+        final byte[] token = SidCodec.toToken(tokenGroup);
+        return token == null ? null : getDnFromToken(token);
     }
 
     @Override
     public String getDnFromToken(final byte[] tokenGroup) {
 
-        final SearchFilter localFilter = new SearchFilter(QUERY_SID);
-        localFilter.setParameter("sid", tokenGroup);
+        return GroupRecord.dnOf(getValueFromToken(tokenGroup));
+    }
+
+    @Override
+    public GroupRecord getGroupFromToken(final byte[] tokenGroup) {
+
+        return GroupRecord.decode(getValueFromToken(tokenGroup));
+    }
+
+    /**
+     * Resolve a SID to the value cached by registries : its DN or its encoded {@link GroupRecord} when attributes are projected
+     * 
+     * @param tokenGroup binary SID
+     * @return DN, encoded group record or null if SID could not be resolved
+     */
+    protected String getValueFromToken(final byte[] tokenGroup) {
+
+        if (SidKey.isValid(tokenGroup)) {
+            final SidKey key = SidKey.of(tokenGroup);
+            final String wellKnownDN = fromWellKnown(key);
+            if (wellKnownDN != null) {
+                metrics.hit();
+                return wellKnownDN;
+            }
+            if (isInScope(key)) {
+                metrics.miss();
+            } else {
+                metrics.negativeHit();
+            }
+        }
+        try {
+            return resolveToken(tokenGroup);
+        } catch (LdapException e) {
+            log.error("LDAP Exception raised : {}", e.getMessage());
+            // in case of object not found, return null
+            return null;
+        }
+    }
+
+    /**
+     * Query the directory for a SID
+     * 
+     * @param tokenGroup binary SID
+     * @return Distinguished name, encoded group record (see {@link #valueOf(LdapEntry)}) or null if no entry has this SID
+     * @throws LdapException if the directory could not be queried
+     */
+    protected String resolveToken(final byte[] tokenGroup) throws LdapException {
+
+        if (SidKey.isValid(tokenGroup) && !isInScope(SidKey.of(tokenGroup))) {
+            log.debug("SID out of scope : {}", SidCodec.toString(tokenGroup));
+            return null;
+        }
+
+        final SearchFilter localFilter = new SearchFilter(SidCodec.appendFilterValue(
+                new StringBuilder(3 * tokenGroup.length + 13).append('(').append(SID_ATTRIBUTE).append('='), tokenGroup)
+                .append(')').toString());
 
         if (log.isDebugEnabled()) {
             String sid = "";
             // sid String transform can raise an index out of bounds exception
             try {
-                sid = SecurityIdentifier.toString(tokenGroup);
+                sid = SidCodec.toString(tokenGroup);
             } catch (Exception e) {
 
             }
             log.debug("Querying directory with filter : {} (resolve SID: {})", localFilter.toString(), sid);
         }
 
-        initLdap();
-        SearchOperation search = new SearchOperation(ldapConnection);
+        final SearchRequest request = new SearchRequest(baseDN, localFilter, queryAttributes);
+
+        SearchResult result = executeLdap(conn -> new SearchOperation(conn).execute(request).getResult());
+        LdapEntry entry = result.getEntry();
+
+        if (entry == null) {
+            return null;
+        }
+
+        // A single value is expected...
+        return valueOf(entry);
+    }
+
+    /**
+     * Builds the value cached for a group entry : its DN alone, or when attributes are projected its encoded {@link GroupRecord}
+     * holding string values of these attributes
+     * 
+     * @param entry group entry fetched with projected attributes
+     * @return DN or encoded group record
+     */
+    protected String valueOf(final LdapEntry entry) {
+
+        if (groupAttributes.isEmpty()) {
+            return entry.getDn();
+        }
+        final Map<String, Collection<String>> attributes = new LinkedHashMap<String, Collection<String>>(
+                groupAttributes.size() * 2);
+        for (String name : groupAttributes) {
+            final LdapAttribute attribute = entry.getAttribute(name);
+            attributes.put(name, attribute == null ? Collections.<String> emptyList() : attribute.getStringValues());
+        }
+        return new GroupRecord(entry.getDn(), attributes).encode();
+    }
+
+    @Override
+    public byte[] getTokenFromDn(final String dn) {
 
         try {
-            SearchResult result = search.execute(new SearchRequest(baseDN, localFilter, QUERY_ATTRS)).getResult();
-            LdapEntry entry = result.getEntry();
+            final LdapEntry entry = searchDn(dn);
+            return entry == null ? null : sidOf(entry).getBytes();
+        } catch (LdapException e) {
+            log.error("LDAP Exception raised : {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Query the directory for the SID of an entry with a base search
+     * 
+     * @param dn Distinguished name of the entry
+     * @return entry holding a valid binary SID (see {@link #sidOf(LdapEntry)}) and projected attributes or null if no such entry
+     *         exists
+     * @throws LdapException if the directory could not be queried
+     */
+    protected LdapEntry searchDn(final String dn) throws LdapException {
+
+        log.debug("Querying directory for SID of : {}", dn);
+        final SearchRequest request = new SearchRequest(dn, "(objectClass=*)", bulkAttributes);
+        request.setSearchScope(SearchScope.OBJECT);
+        request.setBinaryAttributes(SID_ATTRIBUTE);
 
-            if (entry == null) {
+        final LdapEntry entry;
+        try {
+            entry = executeLdap(conn -> new SearchOperation(conn).execute(request).getResult()).getEntry();
+        } catch (LdapException e) {
+            if (e.getResultCode() == ResultCode.NO_SUCH_OBJECT) {
                 return null;
             }
+            throw e;
+        }
+        if (entry != null && sidOf(entry) == null) {
+            log.warn("Entry {} returned without valid {} attribute", entry.getDn(), SID_ATTRIBUTE);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * @param entry entry fetched with its binary SID
+     * @return SID of entry or null if entry has no valid SID
+     */
+    protected static SidKey sidOf(final LdapEntry entry) {
+
+        final LdapAttribute sidAttribute = entry.getAttribute(SID_ATTRIBUTE);
+        if (sidAttribute == null || !SidKey.isValid(sidAttribute.getBinaryValue())) {
+            return null;
+        }
+        return SidKey.of(sidAttribute.getBinaryValue());
+    }
+
+    @Override
+    protected Map<SidKey, String> resolveKeys(final Set<SidKey> keys) {
+
+        for (SidKey key : keys) {
+            if (fromWellKnown(key) != null) {
+                metrics.hit();
+            } else if (isInScope(key)) {
+                metrics.miss();
+            } else {
+                metrics.negativeHit();
+            }
+        }
+        return searchTokens(keys);
+    }
 
-            // A single value is expected...
-            return entry.getDn();
+    /**
+     * Resolve SIDs with as few LDAP queries as possible : SIDs are grouped by chunks of {@link #getChunkSize()} elements, each
+     * chunk being resolved with a single OR filter.
+     * 
+     * @param keys SIDs to resolve
+     * @return Map of SIDs to Distinguished names or encoded group records, unresolved SIDs are absent
+     */
+    protected Map<SidKey, String> searchTokens(final Collection<SidKey> keys) {
+
+        return searchTokens(keys, new ArrayList<SidKey>());
+    }
+
+    /**
+     * Resolve SIDs with as few LDAP queries as possible, see {@link #searchTokens(Collection)}
+     * 
+     * @param keys SIDs to resolve
+     * @param failed collection receiving SIDs of chunks that could not be queried
+     * @return Map of SIDs to Distinguished names or encoded group records, unresolved SIDs are absent
+     */
+    protected Map<SidKey, String> searchTokens(final Collection<SidKey> keys, final Collection<SidKey> failed) {
+
+        final Map<SidKey, String> wellKnown = new HashMap<SidKey, String>();
+        final List<SidKey> searched = new ArrayList<SidKey>(keys.size());
+        for (SidKey key : keys) {
+            final String wellKnownDN = fromWellKnown(key);
+            if (wellKnownDN != null) {
+                wellKnown.put(key, wellKnownDN);
+            } else if (isInScope(key)) {
+                searched.add(key);
+            }
+        }
+
+        final Map<SidKey, String> result = searchDirectory(baseDN, searched, failed);
+        result.putAll(wellKnown);
+        return result;
+    }
+
+    /**
+     * Query the directory for SIDs by chunks of {@link #getChunkSize()} elements
+     * 
+     * @param base base DN of searches
+     * @param keys SIDs to resolve
+     * @param failed collection receiving SIDs of chunks that could not be queried
+     * @return Map of SIDs to Distinguished names or encoded group records, unresolved SIDs are absent
+     */
+    private Map<SidKey, String> searchDirectory(final String base, final Collection<SidKey> keys,
+            final Collection<SidKey> failed) {
+
+        final Map<SidKey, String> result = new HashMap<SidKey, String>(keys.size() * 2);
+        final List<SidKey> chunk = new ArrayList<SidKey>(Math.min(chunkSize, keys.size()));
 
+        for (SidKey key : keys) {
+            chunk.add(key);
+            if (chunk.size() == chunkSize) {
+                searchChunk(base, chunk, result, failed);
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            searchChunk(base, chunk, result, failed);
+        }
+
+        return result;
+    }
+
+    /**
+     * Query the directory for a chunk of SIDs with a single filter : (|(objectSid=...)(objectSid=...)...)
+     * 
+     * @param base base DN of the search
+     * @param chunk binary SIDs to resolve
+     * @param result Map where resolved SIDs are stored
+     * @param failed collection receiving SIDs of chunk if the directory could not be queried
+     */
+    private void searchChunk(final String base, final List<SidKey> chunk, final Map<SidKey, String> result,
+            final Collection<SidKey> failed) {
+
+        // SIDs are escaped once, without going through filter parameters
+        final StringBuilder filter = new StringBuilder(chunk.size() * 100 + 3).append("(|");
+        for (SidKey key : chunk) {
+            SidCodec.appendFilterValue(filter.append('(').append(SID_ATTRIBUTE).append('='), key.bytes()).append(')');
+        }
+        filter.append(')');
+
+        final SearchFilter localFilter = new SearchFilter(filter.toString());
+        log.debug("Querying directory for {} SIDs at once", chunk.size());
+
+        final SearchRequest request = new SearchRequest(base, localFilter, bulkAttributes);
+        request.setBinaryAttributes(SID_ATTRIBUTE);
+
+        try {
+            final SearchResult searchResult = executeLdap(conn -> new SearchOperation(conn).execute(request).getResult());
+            for (LdapEntry entry : searchResult.getEntries()) {
+                final SidKey key = sidOf(entry);
+                if (key == null) {
+                    log.warn("Entry {} returned without valid {} attribute", entry.getDn(), SID_ATTRIBUTE);
+                    continue;
+                }
+                result.put(key, valueOf(entry));
+            }
         } catch (LdapException e) {
             log.error("LDAP Exception raised : {}", e.getMessage());
-            // in case of object not found, return null
-            return null;
+            // SIDs of this chunk are left unresolved
+            failed.addAll(chunk);
         }
     }
 
+    // Getters and Setters
+
+    public WellKnownSidTable getWellKnownSidTable() {
+
+        return wellKnownSidTable;
+    }
+
+    public void setWellKnownSidTable(WellKnownSidTable wellKnownSidTable) {
+
+        this.wellKnownSidTable = wellKnownSidTable;
+    }
+
+    public List<String> getAllowedSidPrefixes() {
+
+        return allowedSidPrefixes;
+    }
+
+    public void setAllowedSidPrefixes(List<String> allowedSidPrefixes) {
+
+        this.allowedSidPrefixes = allowedSidPrefixes;
+    }
+
+    public List<String> getDeniedSidPrefixes() {
+
+        return deniedSidPrefixes;
+    }
+
+    public void setDeniedSidPrefixes(List<String> deniedSidPrefixes) {
+
+        this.deniedSidPrefixes = deniedSidPrefixes;
+    }
+
+    public List<String> getGroupAttributes() {
+
+        return groupAttributes;
+    }
+
+    public void setGroupAttributes(List<String> groupAttributes) {
+
+        this.groupAttributes = groupAttributes;
+    }
+
+    public int getChunkSize() {
+
+        return chunkSize;
+    }
+
+    public void setChunkSize(int chunkSize) {
+
+        this.chunkSize = chunkSize;
+    }
+
 }
@@ -0,0 +1,601 @@
+package net.archigny.utils.ad.impl;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToIntFunction;
+
+import javax.cache.expiry.Duration;
+import javax.cache.expiry.ExpiryPolicy;
+
+/**
+ * Bounded, thread safe cache with a W-TinyLFU eviction policy. Entries are bounded in number and optionally in weight : new
+ * entries enter a small LRU window, entries leaving the window compete with the least recently used entry of the main space, the
+ * one used less often according to a frequency sketch is evicted. Scans of entries used once therefore do not flush frequently
+ * used ones.
+ * <p>
+ * Keys are spread over stripes, each one having its own bounds, policy and lock. Reads take no lock : they are recorded in a
+ * lossy buffer of their stripe, applied to its policy by the first thread acquiring its lock. Expiration follows the
+ * {@link ExpiryPolicy} given, as JCache providers do : creation and update set the expiration time from
+ * {@link ExpiryPolicy#getExpiryForCreation()} and {@link ExpiryPolicy#getExpiryForUpdate()}, each read moves it to
+ * {@link ExpiryPolicy#getExpiryForAccess()} from now.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ * @author Philippe MARASSE
+ */
+final class TinyLfuCache<K, V> {
+
+    /** Number of reads buffered by each stripe, power of two */
+    private static final int                       READ_BUFFER_SIZE = 16;
+
+    /** Minimum number of entries of a stripe */
+    private static final int                       MIN_STRIPE_SIZE  = 64;
+
+    /** Queue of an entry : LRU window */
+    private static final int                       WINDOW           = 0;
+
+    /** Queue of an entry : main space, used once since admitted */
+    private static final int                       PROBATION        = 1;
+
+    /** Queue of an entry : main space, used again since admitted */
+    private static final int                       PROTECTED        = 2;
+
+    /** Queue of an entry : removed from cache */
+    private static final int                       REMOVED          = 3;
+
+    /** Entries, read without lock, written under the lock of their stripe */
+    private final ConcurrentHashMap<K, Node<K, V>> data;
+
+    /** Stripes, by key hash */
+    private final Stripe<K, V>[]                   stripes;
+
+    /** Weight of values */
+    private final ToIntFunction<? super V>         weigher;
+
+    /** Expiration of entries */
+    private final ExpiryPolicy                     expiryPolicy;
+
+    /** Number of entries evicted to respect bounds */
+    private final LongAdder                        evictions        = new LongAdder();
+
+    /**
+     * @param maxElements maximum number of entries
+     * @param maxWeight maximum total weight of entries, 0 for no bound. It is divided among stripes : values heavier than the
+     *            share of a stripe are not stored (see {@link #getMaxEntryWeight()})
+     * @param weigher weight of values, must not be negative
+     * @param expiryPolicy expiration of entries
+     * @throws IllegalArgumentException if maxElements is lower than 1 or maxWeight is negative
+     */
+    @SuppressWarnings("unchecked")
+    TinyLfuCache(final int maxElements, final long maxWeight, final ToIntFunction<? super V> weigher,
+            final ExpiryPolicy expiryPolicy) {
+
+        if (maxElements < 1 || maxWeight < 0) {
+            throw new IllegalArgumentException("maxElements must be greater than 0 and maxWeight positive");
+        }
+        this.weigher = weigher;
+        this.expiryPolicy = expiryPolicy;
+        this.data = new ConcurrentHashMap<K, Node<K, V>>(Math.min(maxElements, 1 << 16));
+
+        final int concurrency = Integer.highestOneBit(4 * Runtime.getRuntime().availableProcessors() - 1) << 1;
+        final int count = Math.max(1, Math.min(concurrency, Integer.highestOneBit(maxElements / MIN_STRIPE_SIZE)));
+        this.stripes = (Stripe<K, V>[]) new Stripe<?, ?>[count];
+        for (int i = 0; i < count; i++) {
+            final int stripeElements = maxElements / count + (i < maxElements % count ? 1 : 0);
+            final long stripeWeight = maxWeight == 0 ? Long.MAX_VALUE : Math.max(1, maxWeight / count);
+            stripes[i] = new Stripe<K, V>(stripeElements, stripeWeight);
+        }
+    }
+
+    /**
+     * @return maximum weight of a stored value : maxWeight divided by the number of stripes, Long.MAX_VALUE if weight is not
+     *         bounded
+     */
+    long getMaxEntryWeight() {
+
+        return stripes[0].maxWeight;
+    }
+
+    /**
+     * @param key key
+     * @return value or null if absent or expired
+     */
+    V get(final K key) {
+
+        final Node<K, V> node = data.get(key);
+        if (node == null) {
+            return null;
+        }
+        final long now = System.currentTimeMillis();
+        final Stripe<K, V> stripe = stripeOf(node.hash);
+        if (now >= node.expires) {
+            // Removed now if possible, by the next write of its stripe otherwise
+            if (stripe.tryLock()) {
+                try {
+                    if (node.queue != REMOVED && now >= node.expires) {
+                        remove(stripe, node);
+                    }
+                } finally {
+                    stripe.unlock();
+                }
+            }
+            return null;
+        }
+        final long expires = expirationOf(expiryPolicy.getExpiryForAccess(), now, node.expires);
+        if (expires != node.expires) {
+            node.expires = expires;
+        }
+        recordRead(stripe, node);
+        return node.value;
+    }
+
+    /**
+     * Stores a value, unless its weight exceeds the weight bound of its stripe or its expiration is immediate
+     *
+     * @param key key
+     * @param value value
+     */
+    void put(final K key, final V value) {
+
+        final int hash = spread(key.hashCode());
+        final Stripe<K, V> stripe = stripeOf(hash);
+        final int weight = weigher.applyAsInt(value);
+        final long now = System.currentTimeMillis();
+        stripe.lock();
+        try {
+            drainReads(stripe);
+            final Node<K, V> existing = data.get(key);
+            if (existing != null && existing.queue != REMOVED) {
+                if (weight > stripe.maxWeight) {
+                    remove(stripe, existing);
+                    return;
+                }
+                existing.value = value;
+                existing.expires = expirationOf(expiryPolicy.getExpiryForUpdate(), now, existing.expires);
+                stripe.weight += weight - existing.weight;
+                existing.weight = weight;
+                onAccess(stripe, existing);
+            } else {
+                final long expires = expirationOf(expiryPolicy.getExpiryForCreation(), now, Long.MAX_VALUE);
+                if (weight > stripe.maxWeight || now >= expires) {
+                    return;
+                }
+                final Node<K, V> node = new Node<K, V>(key, hash, value, weight, expires);
+                data.put(key, node);
+                stripe.window.addLast(node);
+                stripe.weight += weight;
+                stripe.sketch.increment(hash);
+            }
+            evict(stripe, now);
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * @param entries entries to store, see {@link #put(Object, Object)}
+     */
+    void putAll(final Map<? extends K, ? extends V> entries) {
+
+        for (Map.Entry<? extends K, ? extends V> entry : entries.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * @param key key
+     * @return true if an entry has been removed
+     */
+    boolean remove(final K key) {
+
+        final Stripe<K, V> stripe = stripeOf(spread(key.hashCode()));
+        stripe.lock();
+        try {
+            final Node<K, V> node = data.get(key);
+            if (node == null || node.queue == REMOVED) {
+                return false;
+            }
+            remove(stripe, node);
+            return true;
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    void clear() {
+
+        for (Stripe<K, V> stripe : stripes) {
+            stripe.lock();
+            try {
+                drainReads(stripe);
+                for (AccessQueue<K, V> queue : stripe.queues) {
+                    while (queue.head != null) {
+                        remove(stripe, queue.head);
+                    }
+                }
+            } finally {
+                stripe.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return number of entries, including expired ones not yet removed
+     */
+    int size() {
+
+        return data.size();
+    }
+
+    /**
+     * @return total weight of entries, including expired ones not yet removed
+     */
+    long weight() {
+
+        long weight = 0;
+        for (Stripe<K, V> stripe : stripes) {
+            stripe.lock();
+            try {
+                weight += stripe.weight;
+            } finally {
+                stripe.unlock();
+            }
+        }
+        return weight;
+    }
+
+    /**
+     * @return number of entries evicted to respect bounds
+     */
+    long getEvictionCount() {
+
+        return evictions.sum();
+    }
+
+    /**
+     * @param duration duration given by the expiry policy
+     * @param now current time (milliseconds)
+     * @param current current expiration time, kept if duration is null
+     * @return expiration time (milliseconds), Long.MAX_VALUE if eternal
+     */
+    private static long expirationOf(final Duration duration, final long now, final long current) {
+
+        if (duration == null) {
+            return current;
+        }
+        if (duration.isEternal()) {
+            return Long.MAX_VALUE;
+        }
+        final long expires = now + duration.getTimeUnit().toMillis(duration.getDurationAmount());
+        return expires < now ? Long.MAX_VALUE : expires;
+    }
+
+    private static int spread(final int hashCode) {
+
+        final int h = hashCode * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private Stripe<K, V> stripeOf(final int hash) {
+
+        return stripes[(hash >>> 16) & (stripes.length - 1)];
+    }
+
+    /**
+     * Records a read in the lossy buffer of its stripe, applied to the policy once the buffer is full if the stripe lock is free
+     */
+    private void recordRead(final Stripe<K, V> stripe, final Node<K, V> node) {
+
+        final int index = stripe.reads.getAndIncrement() & (READ_BUFFER_SIZE - 1);
+        stripe.readBuffer.lazySet(index, node);
+        if (index == READ_BUFFER_SIZE - 1 && stripe.tryLock()) {
+            try {
+                drainReads(stripe);
+            } finally {
+                stripe.unlock();
+            }
+        }
+    }
+
+    /**
+     * Applies buffered reads to the policy of a stripe, under its lock
+     */
+    private void drainReads(final Stripe<K, V> stripe) {
+
+        for (int i = 0; i < READ_BUFFER_SIZE; i++) {
+            final Node<K, V> node = stripe.readBuffer.getAndSet(i, null);
+            if (node != null && node.queue != REMOVED) {
+                onAccess(stripe, node);
+            }
+        }
+    }
+
+    /**
+     * Promotes an entry used again : to the head of the window or of the protected space, entries used twice in probation being
+     * protected
+     */
+    private void onAccess(final Stripe<K, V> stripe, final Node<K, V> node) {
+
+        stripe.sketch.increment(node.hash);
+        if (node.queue == PROBATION) {
+            stripe.probation.remove(node);
+            stripe.protect.addLast(node);
+            if (stripe.protect.size > stripe.maxProtected) {
+                // Least recently used protected entry gets another chance in probation
+                stripe.probation.addLast(stripe.protect.remove(stripe.protect.head));
+            }
+        } else {
+            stripe.queues[node.queue].moveToLast(node);
+        }
+    }
+
+    /**
+     * Removes expired entries at the least recently used end of each queue, then moves entries overflowing the window to
+     * probation and evicts entries until bounds are respected : the least recently used entry of probation is evicted unless it
+     * is used more often than the most recent one
+     */
+    private void evict(final Stripe<K, V> stripe, final long now) {
+
+        for (AccessQueue<K, V> queue : stripe.queues) {
+            while (queue.head != null && now >= queue.head.expires) {
+                remove(stripe, queue.head);
+            }
+        }
+        while (stripe.window.size > stripe.maxWindow) {
+            stripe.probation.addLast(stripe.window.remove(stripe.window.head));
+        }
+
+        while (stripe.size() > stripe.maxElements || stripe.weight > stripe.maxWeight) {
+            final Node<K, V> victim = stripe.probation.head;
+            final Node<K, V> candidate = stripe.probation.tail;
+            final Node<K, V> evicted;
+            if (victim == null) {
+                evicted = stripe.protect.head != null ? stripe.protect.head : stripe.window.head;
+            } else if (victim == candidate) {
+                evicted = victim;
+            } else {
+                evicted = stripe.sketch.frequency(candidate.hash) > stripe.sketch.frequency(victim.hash) ? victim : candidate;
+            }
+            remove(stripe, evicted);
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Removes an entry, under the lock of its stripe
+     */
+    private void remove(final Stripe<K, V> stripe, final Node<K, V> node) {
+
+        stripe.queues[node.queue].remove(node);
+        node.queue = REMOVED;
+        stripe.weight -= node.weight;
+        data.remove(node.key, node);
+    }
+
+    /**
+     * Cached entry : value and expiration are read without lock, queue fields are guarded by the lock of its stripe
+     */
+    private static final class Node<K, V> {
+
+        private final K          key;
+
+        private final int        hash;
+
+        private volatile V       value;
+
+        private volatile long    expires;
+
+        private int              weight;
+
+        private int              queue;
+
+        private Node<K, V>       previous;
+
+        private Node<K, V>       next;
+
+        private Node(final K key, final int hash, final V value, final int weight, final long expires) {
+
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+            this.weight = weight;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Doubly linked list of entries, from least to most recently used
+     */
+    private static final class AccessQueue<K, V> {
+
+        private final int  id;
+
+        private Node<K, V> head;
+
+        private Node<K, V> tail;
+
+        private int        size;
+
+        private AccessQueue(final int id) {
+
+            this.id = id;
+        }
+
+        private void addLast(final Node<K, V> node) {
+
+            node.queue = id;
+            node.previous = tail;
+            node.next = null;
+            if (tail == null) {
+                head = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+            size++;
+        }
+
+        private Node<K, V> remove(final Node<K, V> node) {
+
+            if (node.previous == null) {
+                head = node.next;
+            } else {
+                node.previous.next = node.next;
+            }
+            if (node.next == null) {
+                tail = node.previous;
+            } else {
+                node.next.previous = node.previous;
+            }
+            node.previous = null;
+            node.next = null;
+            size--;
+            return node;
+        }
+
+        private void moveToLast(final Node<K, V> node) {
+
+            if (tail != node) {
+                addLast(remove(node));
+            }
+        }
+    }
+
+    /**
+     * Bounds, policy and lock of a part of the keys
+     */
+    private static final class Stripe<K, V> extends ReentrantLock {
+
+        private static final long                      serialVersionUID = 1L;
+
+        /** Maximum number of entries */
+        private final int                              maxElements;
+
+        /** Maximum total weight */
+        private final long                             maxWeight;
+
+        /** Maximum number of entries in window : 1% of entries */
+        private final int                              maxWindow;
+
+        /** Maximum number of protected entries : 80% of the main space */
+        private final int                              maxProtected;
+
+        /** New entries */
+        private final AccessQueue<K, V>                window           = new AccessQueue<K, V>(WINDOW);
+
+        /** Main space, entries used once since admitted */
+        private final AccessQueue<K, V>                probation        = new AccessQueue<K, V>(PROBATION);
+
+        /** Main space, entries used again since admitted */
+        private final AccessQueue<K, V>                protect          = new AccessQueue<K, V>(PROTECTED);
+
+        /** Queues by id */
+        @SuppressWarnings("unchecked")
+        private final AccessQueue<K, V>[]              queues           = (AccessQueue<K, V>[]) new AccessQueue<?, ?>[] { window,
+                probation, protect };
+
+        /** Frequency of keys */
+        private final FrequencySketch                  sketch;
+
+        /** Reads not yet applied to the policy */
+        private final AtomicReferenceArray<Node<K, V>> readBuffer;
+
+        /** Number of reads recorded, modulo 2^32 */
+        private final AtomicInteger                    reads            = new AtomicInteger();
+
+        /** Total weight of entries */
+        private long                                   weight;
+
+        private Stripe(final int maxElements, final long maxWeight) {
+
+            this.maxElements = maxElements;
+            this.maxWeight = maxWeight;
+            this.maxWindow = Math.max(1, maxElements / 100);
+            this.maxProtected = (int) ((maxElements - maxWindow) * 0.8);
+            this.sketch = new FrequencySketch(maxElements);
+            this.readBuffer = new AtomicReferenceArray<Node<K, V>>(READ_BUFFER_SIZE);
+        }
+
+        private int size() {
+
+            return window.size + probation.size + protect.size;
+        }
+    }
+
+    /**
+     * Count-min sketch of 4 bits counters estimating the frequency of keys. Counters are halved every 10 additions per counter
+     * set, so that frequencies reflect recent usage.
+     */
+    private static final class FrequencySketch {
+
+        /** Seeds of the 4 hash functions */
+        private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+                0xcbf29ce484222325L };
+
+        /** 16 counters per long */
+        private final long[]        table;
+
+        /** Number of additions before halving counters */
+        private final int           sampleSize;
+
+        /** Number of additions since last halving */
+        private int                 additions;
+
+        private FrequencySketch(final int capacity) {
+
+            final int length = Integer.highestOneBit(Math.max(8, capacity) - 1) << 1;
+            this.table = new long[length];
+            this.sampleSize = 10 * length;
+        }
+
+        /**
+         * @param hash spread hash of a key
+         * @return estimated frequency, from 0 to 15
+         */
+        private int frequency(final int hash) {
+
+            final int start = (hash & 3) << 2;
+            int frequency = 15;
+            for (int i = 0; i < 4; i++) {
+                final int offset = (start + i) << 2;
+                frequency = Math.min(frequency, (int) ((table[indexOf(hash, i)] >>> offset) & 0xF));
+            }
+            return frequency;
+        }
+
+        /**
+         * @param hash spread hash of a key
+         */
+        private void increment(final int hash) {
+
+            final int start = (hash & 3) << 2;
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                final int index = indexOf(hash, i);
+                final int offset = (start + i) << 2;
+                if (((table[index] >>> offset) & 0xF) < 15) {
+                    table[index] += 1L << offset;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+                }
+                additions >>>= 1;
+            }
+        }
+
+        private int indexOf(final int hash, final int i) {
+
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            h += h >>> 32;
+            return (int) h & (table.length - 1);
+        }
+    }
+
+}
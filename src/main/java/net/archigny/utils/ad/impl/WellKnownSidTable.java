@@ -0,0 +1,220 @@
+package net.archigny.utils.ad.impl;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Table of well-known and BUILTIN SIDs, resolved without any directory query. DNs are relative to the domain root
+ * (eg: CN=Users,CN=Builtin), the domain root is appended when the table is initialized.
+ * <p>
+ * Default entries match an english Active Directory : localized domains should either provide their own entries or set
+ * loadFromDirectory so that DNs are fetched once at startup.
+ * 
+ * @author Philippe MARASSE
+ */
+public class WellKnownSidTable {
+
+    /** Logger */
+    private static final Logger             log               = LoggerFactory.getLogger(WellKnownSidTable.class);
+
+    /** Container of BUILTIN groups */
+    public static final String              BUILTIN           = "CN=Builtin";
+
+    /** Container of well-known security principals */
+    public static final String              WELL_KNOWN        = "CN=WellKnown Security Principals,CN=Configuration";
+
+    /** Default entries : SID =&gt; DN relative to domain root */
+    public static final Map<String, String> DEFAULT_ENTRIES;
+
+    static {
+        final Map<String, String> entries = new LinkedHashMap<String, String>();
+        entries.put("S-1-5-32-544", "CN=Administrators," + BUILTIN);
+        entries.put("S-1-5-32-545", "CN=Users," + BUILTIN);
+        entries.put("S-1-5-32-546", "CN=Guests," + BUILTIN);
+        entries.put("S-1-5-32-548", "CN=Account Operators," + BUILTIN);
+        entries.put("S-1-5-32-549", "CN=Server Operators," + BUILTIN);
+        entries.put("S-1-5-32-550", "CN=Print Operators," + BUILTIN);
+        entries.put("S-1-5-32-551", "CN=Backup Operators," + BUILTIN);
+        entries.put("S-1-5-32-552", "CN=Replicator," + BUILTIN);
+        entries.put("S-1-5-32-554", "CN=Pre-Windows 2000 Compatible Access," + BUILTIN);
+        entries.put("S-1-5-32-555", "CN=Remote Desktop Users," + BUILTIN);
+        entries.put("S-1-5-32-556", "CN=Network Configuration Operators," + BUILTIN);
+        entries.put("S-1-5-32-557", "CN=Incoming Forest Trust Builders," + BUILTIN);
+        entries.put("S-1-5-32-558", "CN=Performance Monitor Users," + BUILTIN);
+        entries.put("S-1-5-32-559", "CN=Performance Log Users," + BUILTIN);
+        entries.put("S-1-5-32-560", "CN=Windows Authorization Access Group," + BUILTIN);
+        entries.put("S-1-5-32-561", "CN=Terminal Server License Servers," + BUILTIN);
+        entries.put("S-1-5-32-562", "CN=Distributed COM Users," + BUILTIN);
+        entries.put("S-1-5-32-568", "CN=IIS_IUSRS," + BUILTIN);
+        entries.put("S-1-5-32-569", "CN=Cryptographic Operators," + BUILTIN);
+        entries.put("S-1-5-32-573", "CN=Event Log Readers," + BUILTIN);
+        entries.put("S-1-5-32-574", "CN=Certificate Service DCOM Access," + BUILTIN);
+        entries.put("S-1-5-32-575", "CN=RDS Remote Access Servers," + BUILTIN);
+        entries.put("S-1-5-32-576", "CN=RDS Endpoint Servers," + BUILTIN);
+        entries.put("S-1-5-32-577", "CN=RDS Management Servers," + BUILTIN);
+        entries.put("S-1-5-32-578", "CN=Hyper-V Administrators," + BUILTIN);
+        entries.put("S-1-5-32-579", "CN=Access Control Assistance Operators," + BUILTIN);
+        entries.put("S-1-5-32-580", "CN=Remote Management Users," + BUILTIN);
+        entries.put("S-1-1-0", "CN=Everyone," + WELL_KNOWN);
+        entries.put("S-1-3-0", "CN=Creator Owner," + WELL_KNOWN);
+        entries.put("S-1-3-1", "CN=Creator Group," + WELL_KNOWN);
+        entries.put("S-1-3-4", "CN=Owner Rights," + WELL_KNOWN);
+        entries.put("S-1-5-1", "CN=Dialup," + WELL_KNOWN);
+        entries.put("S-1-5-2", "CN=Network," + WELL_KNOWN);
+        entries.put("S-1-5-3", "CN=Batch," + WELL_KNOWN);
+        entries.put("S-1-5-4", "CN=Interactive," + WELL_KNOWN);
+        entries.put("S-1-5-6", "CN=Service," + WELL_KNOWN);
+        entries.put("S-1-5-7", "CN=Anonymous Logon," + WELL_KNOWN);
+        entries.put("S-1-5-8", "CN=Proxy," + WELL_KNOWN);
+        entries.put("S-1-5-9", "CN=Enterprise Domain Controllers," + WELL_KNOWN);
+        entries.put("S-1-5-10", "CN=Self," + WELL_KNOWN);
+        entries.put("S-1-5-11", "CN=Authenticated Users," + WELL_KNOWN);
+        entries.put("S-1-5-12", "CN=Restricted," + WELL_KNOWN);
+        entries.put("S-1-5-13", "CN=Terminal Server User," + WELL_KNOWN);
+        entries.put("S-1-5-14", "CN=Remote Interactive Logon," + WELL_KNOWN);
+        entries.put("S-1-5-15", "CN=This Organization," + WELL_KNOWN);
+        entries.put("S-1-5-17", "CN=IUSR," + WELL_KNOWN);
+        entries.put("S-1-5-18", "CN=Well-Known-Security-Id-System," + WELL_KNOWN);
+        entries.put("S-1-5-19", "CN=Local Service," + WELL_KNOWN);
+        entries.put("S-1-5-20", "CN=Network Service," + WELL_KNOWN);
+        entries.put("S-1-5-64-10", "CN=NTLM Authentication," + WELL_KNOWN);
+        entries.put("S-1-5-64-14", "CN=SChannel Authentication," + WELL_KNOWN);
+        entries.put("S-1-5-64-21", "CN=Digest Authentication," + WELL_KNOWN);
+        entries.put("S-1-5-1000", "CN=Other Organization," + WELL_KNOWN);
+        DEFAULT_ENTRIES = Collections.unmodifiableMap(entries);
+    }
+
+    /** Domain root (eg: DC=example,DC=com), derived from base DN of registry if null */
+    private String                          domainRoot;
+
+    /** True if default entries are part of the table */
+    private boolean                         includeDefaults   = true;
+
+    /** Additional or overriding entries : SID =&gt; DN relative to domain root, an empty DN removes the entry */
+    private Map<String, String>             entries           = Collections.emptyMap();
+
+    /** True if DNs are fetched from the directory once at startup, overriding configured ones */
+    private boolean                         loadFromDirectory = false;
+
+    /** Resolution table, never modified once published */
+    private volatile Map<SidKey, String>    table             = Collections.emptyMap();
+
+    /**
+     * Builds the resolution table
+     * 
+     * @param defaultDomainRoot domain root used if none has been configured
+     */
+    public void init(final String defaultDomainRoot) {
+
+        final String root = domainRoot != null ? domainRoot : defaultDomainRoot;
+        final Map<String, String> relativeDNs = new LinkedHashMap<String, String>();
+        if (includeDefaults) {
+            relativeDNs.putAll(DEFAULT_ENTRIES);
+        }
+        relativeDNs.putAll(entries);
+
+        final Map<SidKey, String> newTable = new HashMap<SidKey, String>(relativeDNs.size() * 2);
+        for (Map.Entry<String, String> entry : relativeDNs.entrySet()) {
+            if (entry.getValue() == null || entry.getValue().isEmpty()) {
+                continue;
+            }
+            final SidKey key;
+            try {
+                key = SidKey.parse(entry.getKey().trim());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalStateException("Invalid well-known SID : " + entry.getKey(), e);
+            }
+            newTable.put(key, root == null || root.isEmpty() ? entry.getValue() : entry.getValue() + "," + root);
+        }
+        table = newTable;
+        log.debug("{} well-known SIDs resolved locally (domain root : {})", newTable.size(), root);
+    }
+
+    /**
+     * Replaces DNs with the ones found in the directory
+     * 
+     * @param dns Map of SIDs to DNs, SIDs absent from the table are ignored
+     */
+    void override(final Map<SidKey, String> dns) {
+
+        final Map<SidKey, String> newTable = new HashMap<SidKey, String>(table);
+        for (Map.Entry<SidKey, String> entry : dns.entrySet()) {
+            newTable.replace(entry.getKey(), entry.getValue());
+        }
+        table = newTable;
+    }
+
+    /**
+     * @param key SID
+     * @return DN of a well-known SID or null
+     */
+    public String get(final SidKey key) {
+
+        return table.get(key);
+    }
+
+    /**
+     * @return SIDs of the table
+     */
+    public Set<SidKey> keys() {
+
+        return Collections.unmodifiableSet(table.keySet());
+    }
+
+    /**
+     * @return number of SIDs of the table
+     */
+    public int size() {
+
+        return table.size();
+    }
+
+    // Getters and Setters
+
+    public String getDomainRoot() {
+
+        return domainRoot;
+    }
+
+    public void setDomainRoot(String domainRoot) {
+
+        this.domainRoot = domainRoot;
+    }
+
+    public boolean isIncludeDefaults() {
+
+        return includeDefaults;
+    }
+
+    public void setIncludeDefaults(boolean includeDefaults) {
+
+        this.includeDefaults = includeDefaults;
+    }
+
+    public Map<String, String> getEntries() {
+
+        return entries;
+    }
+
+    public void setEntries(Map<String, String> entries) {
+
+        this.entries = entries;
+    }
+
+    public boolean isLoadFromDirectory() {
+
+        return loadFromDirectory;
+    }
+
+    public void setLoadFromDirectory(boolean loadFromDirectory) {
+
+        this.loadFromDirectory = loadFromDirectory;
+    }
+
+}
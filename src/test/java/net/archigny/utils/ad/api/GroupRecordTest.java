@@ -0,0 +1,54 @@
+package net.archigny.utils.ad.api;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class GroupRecordTest {
+
+    public final static String DN = "CN=Group 1000,OU=Groups,DC=EMBEDDED,DC=LOCAL";
+
+    @Test
+    public void encodeTest() {
+
+        final Map<String, List<String>> attributes = new LinkedHashMap<String, List<String>>();
+        attributes.put("sAMAccountName", Collections.singletonList("group1000"));
+        attributes.put("groupType", Collections.singletonList("-2147483646"));
+        attributes.put("description", Collections.<String> emptyList());
+        attributes.put("proxyAddresses", Arrays.asList("smtp:a@example.com", ""));
+        final GroupRecord record = new GroupRecord(DN, attributes);
+
+        final String encoded = record.encode();
+        assertEquals(DN, GroupRecord.dnOf(encoded));
+        final GroupRecord decoded = GroupRecord.decode(encoded);
+        assertEquals(record, decoded);
+        assertEquals(DN, decoded.getDn());
+        assertEquals("group1000", decoded.getAttribute("samaccountname"));
+        assertEquals("-2147483646", decoded.getAttribute("groupType"));
+        assertNull(decoded.getAttribute("description"));
+        assertTrue(decoded.getAttributeValues("description").isEmpty());
+        assertEquals(Arrays.asList("smtp:a@example.com", ""), decoded.getAttributeValues("proxyAddresses"));
+        assertEquals(attributes.keySet(), decoded.getAttributeNames());
+        assertNull(decoded.getAttribute("cn"));
+    }
+
+    @Test
+    public void dnOnlyTest() {
+
+        // DN only records are encoded as their DN : compatible with values cached by previous versions
+        final GroupRecord record = new GroupRecord(DN);
+        assertEquals(DN, record.encode());
+        assertEquals(record, GroupRecord.decode(DN));
+        assertTrue(GroupRecord.decode(DN).getAttributeNames().isEmpty());
+        assertEquals(DN, GroupRecord.dnOf(DN));
+        assertNull(GroupRecord.decode(null));
+        assertNull(GroupRecord.dnOf(null));
+    }
+
+}
@@ -265,6 +265,62 @@ public class CachingADTokenGroupsRegistryTest implements ConnectionInitializer {
         tokenRegistry2.afterPropertiesSet();
     }
 
+    @Test
+    public void binaryKeysWithEhCache() throws Exception {
+
+        CachingADTokenGroupsRegistry tokenRegistry = new CachingADTokenGroupsRegistry();
+        tokenRegistry.setLdapConnectionFactory(ldapConnectionFactory);
+        tokenRegistry.setBaseDN(BASE_DN);
+        tokenRegistry.setCacheManager(ehCm);
+        tokenRegistry.setBinaryKeys(true);
+        tokenRegistry.afterPropertiesSet();
+
+        try {
+            String group3DN = tokenRegistry.getDnFromToken(TOKEN_3);
+            assertEquals(new LdapName(GROUP_3_NAME), new LdapName(group3DN));
+
+            // Cache is keyed by binary SIDs
+            assertNull(tokenRegistry.getCache());
+            assertEquals(group3DN, tokenRegistry.getSidCache().get(SidKey.of(TOKEN_3)));
+            assertEquals(group3DN, tokenRegistry.getDnFromToken(TOKEN_3));
+        } finally {
+            tokenRegistry.destroy();
+        }
+    }
+
+    @Test
+    public void refreshAheadWithEhCache() throws Exception {
+
+        MutableConfiguration<String, String> config = new MutableConfiguration<String, String>().setTypes(String.class,
+                String.class);
+        config.setExpiryPolicyFactory(CreatedAccessedExpiryPolicy.factoryOf(new javax.cache.expiry.Duration(TimeUnit.SECONDS, 2),
+                new javax.cache.expiry.Duration(TimeUnit.SECONDS, 60)));
+        Cache<String, String> refreshCache = ehCm.createCache(CachingADTokenGroupsRegistry.CACHE_NAME + ".refresh", config);
+
+        CachingADTokenGroupsRegistry tokenRegistry = new CachingADTokenGroupsRegistry();
+        tokenRegistry.setLdapConnectionFactory(ldapConnectionFactory);
+        tokenRegistry.setBaseDN(BASE_DN);
+        tokenRegistry.setCache(refreshCache);
+        tokenRegistry.setTimeToLive(2);
+        tokenRegistry.setRefreshAheadFactor(0.5);
+        tokenRegistry.afterPropertiesSet();
+
+        try {
+            assertEquals(new LdapName(GROUP_3_NAME), new LdapName(tokenRegistry.getDnFromToken(TOKEN_3)));
+
+            // Within the last half of time to live : cached value is served, and reloaded in background
+            Thread.sleep(1200);
+            assertEquals(new LdapName(GROUP_3_NAME), new LdapName(tokenRegistry.getDnFromToken(TOKEN_3)));
+            Thread.sleep(1200);
+
+            // Initial time to live has elapsed, but the entry has been renewed
+            assertNotNull(refreshCache.get(SecurityIdentifier.toString(TOKEN_3)));
+        } finally {
+            tokenRegistry.destroy();
+            ehCm.destroyCache(CachingADTokenGroupsRegistry.CACHE_NAME + ".refresh");
+        }
+    }
+
     @Test
     public void cacheNullWithHazelCastTest() throws Exception {
         cacheNullTest(hazelCache);
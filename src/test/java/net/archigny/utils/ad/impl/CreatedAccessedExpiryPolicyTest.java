@@ -0,0 +1,50 @@
+package net.archigny.utils.ad.impl;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.cache.expiry.Duration;
+
+import org.junit.Test;
+
+public class CreatedAccessedExpiryPolicyTest {
+
+    public final static Duration TTL = new Duration(TimeUnit.SECONDS, 1000);
+
+    public final static Duration TTI = new Duration(TimeUnit.SECONDS, 100);
+
+    @Test
+    public void noJitterTest() {
+
+        CreatedAccessedExpiryPolicy policy = new CreatedAccessedExpiryPolicy(TTL, TTI);
+        assertEquals(TTL, policy.getExpiryForCreation());
+        assertEquals(TTL, policy.getExpiryForUpdate());
+        assertEquals(TTI, policy.getExpiryForAccess());
+    }
+
+    @Test
+    public void jitterTest() {
+
+        CreatedAccessedExpiryPolicy policy = new CreatedAccessedExpiryPolicy(TTL, TTI, 0.2);
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < 1000; i++) {
+            Duration expiry = policy.getExpiryForCreation();
+            long ttl = expiry.getTimeUnit().toMillis(expiry.getDurationAmount());
+            assertTrue(ttl > 800000 && ttl <= 1000000);
+            min = Math.min(min, ttl);
+            max = Math.max(max, ttl);
+        }
+        // Expirations are spread
+        assertTrue(max - min > 100000);
+        assertEquals(Duration.ETERNAL, new CreatedAccessedExpiryPolicy(Duration.ETERNAL, TTI, 0.2).getExpiryForCreation());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidJitterTest() {
+
+        new CreatedAccessedExpiryPolicy(TTL, TTI, 1);
+    }
+
+}
@@ -0,0 +1,59 @@
+package net.archigny.utils.ad.impl;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class DnSuffixTreeTest {
+
+    public final static String GROUP_DN = "CN=Group 1,OU=Groupes,DC=example,DC=com";
+
+    @Test
+    public void compactTest() throws Exception {
+
+        DnSuffixTree suffixes = new DnSuffixTree();
+        Object compacted = suffixes.compact(GROUP_DN);
+        assertTrue(compacted instanceof CompactDn);
+        assertEquals(GROUP_DN, compacted.toString());
+        assertEquals(GROUP_DN.length(), DnSuffixTree.lengthOf(compacted));
+        assertEquals(3, suffixes.size());
+
+        // Suffixes are shared
+        assertEquals("CN=Group 2,OU=Groupes,DC=example,DC=com", suffixes.compact("CN=Group 2,OU=Groupes,DC=example,DC=com")
+                .toString());
+        assertEquals("CN=User,OU=Users,DC=example,DC=com", suffixes.compact("CN=User,OU=Users,DC=example,DC=com").toString());
+        assertEquals(4, suffixes.size());
+
+        // Escaped separators and non ASCII characters
+        for (String dn : new String[] { "CN=Doe\\, John,OU=Groupes,DC=example,DC=com",
+                "CN=Équipe été,OU=Ça\\,va,DC=example,DC=com", "CN=😀,DC=com", "cn=group 1,ou=groupes,dc=example,dc=com" }) {
+            assertEquals(dn, suffixes.compact(dn).toString());
+            assertEquals(dn.length(), DnSuffixTree.lengthOf(suffixes.compact(dn)));
+        }
+
+        // Values held as they are
+        for (String value : new String[] { CachingADTokenGroupsRegistry.NULL, "DC=com", "CN=\"Quoted, name\",DC=com", "not a dn",
+                GROUP_DN + "\0cn\u0001Group 1" }) {
+            assertSame(value, suffixes.compact(value));
+        }
+        assertSame(GROUP_DN, DnSuffixTree.NONE.compact(GROUP_DN));
+        assertEquals(0, DnSuffixTree.NONE.size());
+    }
+
+    @Test
+    public void findTest() throws Exception {
+
+        DnSuffixTree suffixes = new DnSuffixTree();
+        Object compacted = suffixes.compact(GROUP_DN);
+        assertEquals(compacted, suffixes.find(GROUP_DN));
+        assertEquals(compacted.hashCode(), suffixes.find(GROUP_DN).hashCode());
+        assertNotEquals(compacted, suffixes.find("CN=Group 2,OU=Groupes,DC=example,DC=com"));
+        assertNotEquals(compacted, suffixes.find("CN=Group 1,DC=example,DC=com"));
+
+        // Unknown suffixes are not interned
+        assertNull(suffixes.find("CN=Group 1,OU=Other,DC=example,DC=com"));
+        assertEquals(3, suffixes.size());
+        assertEquals("DC=com", suffixes.find("DC=com"));
+    }
+
+}
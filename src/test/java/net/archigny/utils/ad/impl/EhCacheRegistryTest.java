@@ -0,0 +1,253 @@
+package net.archigny.utils.ad.impl;
+
+import static net.archigny.utils.ad.impl.CachingADTokenGroupsRegistryTest.BASE_DN;
+import static net.archigny.utils.ad.impl.CachingADTokenGroupsRegistryTest.GROUP_2_NAME;
+import static net.archigny.utils.ad.impl.CachingADTokenGroupsRegistryTest.GROUP_3_NAME;
+import static net.archigny.utils.ad.impl.CachingADTokenGroupsRegistryTest.NON_EXISTENT_TOKEN;
+import static net.archigny.utils.ad.impl.CachingADTokenGroupsRegistryTest.TOKEN_1;
+import static net.archigny.utils.ad.impl.CachingADTokenGroupsRegistryTest.TOKEN_2;
+import static net.archigny.utils.ad.impl.CachingADTokenGroupsRegistryTest.TOKEN_3;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.cache.Cache;
+import javax.cache.CacheManager;
+import javax.cache.Caching;
+import javax.cache.configuration.MutableConfiguration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ldaptive.LdapAttribute;
+import org.ldaptive.LdapEntry;
+import org.ldaptive.LdapException;
+import org.ldaptive.ad.SecurityIdentifier;
+
+public class EhCacheRegistryTest {
+
+    /** EhCache JCache Manager */
+    private CacheManager       ehCm;
+
+    /** Names of caches created by the current test */
+    private final List<String> cacheNames = new ArrayList<String>();
+
+    @Before
+    public void setUp() {
+
+        ehCm = Caching.getCachingProvider("org.ehcache.jsr107.EhcacheCachingProvider").getCacheManager();
+    }
+
+    @After
+    public void tearDown() {
+
+        for (String cacheName : cacheNames) {
+            ehCm.destroyCache(cacheName);
+        }
+        cacheNames.clear();
+    }
+
+    private Cache<String, String> createCache(final String cacheName) {
+
+        cacheNames.add(cacheName);
+        return ehCm.createCache(cacheName, new MutableConfiguration<String, String>().setTypes(String.class, String.class));
+    }
+
+    @Test
+    public void serveStaleWithEhCache() throws Exception {
+
+        final String cacheName = CachingADTokenGroupsRegistry.CACHE_NAME + ".stale";
+        Cache<String, String> staleCache = createCache(cacheName);
+        final AtomicBoolean directoryDown = new AtomicBoolean(false);
+        final AtomicInteger queries = new AtomicInteger();
+
+        // Directory simulated : first query succeeds, then the directory is either down or very slow
+        CachingADTokenGroupsRegistry tokenRegistry = new CachingADTokenGroupsRegistry() {
+
+            @Override
+            protected String resolveToken(byte[] tokenGroup) throws LdapException {
+
+                queries.incrementAndGet();
+                if (directoryDown.get()) {
+                    throw new LdapException("Directory unavailable");
+                }
+                try {
+                    Thread.sleep(queries.get() == 1 ? 0 : 2000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return GROUP_3_NAME;
+            }
+        };
+        tokenRegistry.setLdapConnectionFactory(() -> {
+            throw new LdapException("No directory");
+        });
+        tokenRegistry.setBaseDN(BASE_DN);
+        tokenRegistry.setCache(staleCache);
+        tokenRegistry.setStaleCacheSize(100);
+        tokenRegistry.setLatencyBudget(100);
+        tokenRegistry.setStaleRetryPeriod(60);
+        tokenRegistry.afterPropertiesSet();
+
+        try {
+            assertEquals(GROUP_3_NAME, tokenRegistry.getDnFromToken(TOKEN_3));
+
+            // Expired from cache, directory too slow : stale value is served within latency budget
+            staleCache.clear();
+            long start = System.currentTimeMillis();
+            assertEquals(GROUP_3_NAME, tokenRegistry.getDnFromToken(TOKEN_3));
+            assertTrue(System.currentTimeMillis() - start < 1000);
+            assertEquals(1, tokenRegistry.getStaleHitCount());
+
+            // Directory down : stale value is served, and directory is no longer queried during staleRetryPeriod
+            Thread.sleep(2500);
+            staleCache.clear();
+            directoryDown.set(true);
+            int queryCount = queries.get();
+            assertEquals(GROUP_3_NAME, tokenRegistry.getDnFromToken(TOKEN_3));
+            assertEquals(Collections.singletonMap(SecurityIdentifier.toString(TOKEN_3), GROUP_3_NAME),
+                    tokenRegistry.getDnsFromTokens(Arrays.asList(TOKEN_3)));
+            assertEquals(queryCount + 1, queries.get());
+            assertNull(staleCache.get(SecurityIdentifier.toString(TOKEN_3)));
+        } finally {
+            tokenRegistry.destroy();
+        }
+    }
+
+    @Test
+    public void negativeLookupsWithEhCache() throws Exception {
+
+        final String cacheName = CachingADTokenGroupsRegistry.CACHE_NAME + ".negative";
+        Cache<String, String> negativeCache = createCache(cacheName);
+        final AtomicInteger queries = new AtomicInteger();
+
+        // Directory simulated : only TOKEN_3 exists
+        CachingADTokenGroupsRegistry tokenRegistry = new CachingADTokenGroupsRegistry() {
+
+            @Override
+            protected String resolveToken(byte[] tokenGroup) throws LdapException {
+
+                queries.incrementAndGet();
+                return Arrays.equals(tokenGroup, TOKEN_3) ? GROUP_3_NAME : null;
+            }
+
+            @Override
+            protected Map<SidKey, String> searchTokens(Collection<SidKey> keys, Collection<SidKey> failed) {
+
+                final Map<SidKey, String> result = new HashMap<SidKey, String>();
+                for (SidKey key : keys) {
+                    if (isInScope(key)) {
+                        queries.incrementAndGet();
+                        if (key.equals(SidKey.of(TOKEN_3))) {
+                            result.put(key, GROUP_3_NAME);
+                        }
+                    }
+                }
+                return result;
+            }
+        };
+        tokenRegistry.setLdapConnectionFactory(() -> {
+            throw new LdapException("No directory");
+        });
+        tokenRegistry.setBaseDN(BASE_DN);
+        tokenRegistry.setCache(negativeCache);
+        tokenRegistry.setCacheNullValues(true);
+        tokenRegistry.setAllowedSidPrefixes(Arrays.asList("S-1-5-21-4134179593-3124312333", "S-1-5-32"));
+        tokenRegistry.setDeniedSidPrefixes(Arrays.asList("S-1-5-32-545"));
+        tokenRegistry.setNegativeCacheSize(100);
+        tokenRegistry.afterPropertiesSet();
+
+        try {
+            // Out of scope : other domain and denied BUILTIN alias, no query
+            assertNull(tokenRegistry.getDnFromToken(SecurityIdentifier.toBytes("S-1-5-21-1-2-3-1105")));
+            assertNull(tokenRegistry.getDnFromToken(TOKEN_1));
+            assertEquals(0, queries.get());
+
+            // Known missing : a single query, not stored in JCache
+            assertNull(tokenRegistry.getDnFromToken(NON_EXISTENT_TOKEN));
+            assertNull(tokenRegistry.getDnFromToken(NON_EXISTENT_TOKEN));
+            assertEquals(1, queries.get());
+            assertNull(negativeCache.get(SecurityIdentifier.toString(NON_EXISTENT_TOKEN)));
+
+            Map<String, String> groups = tokenRegistry.getDnsFromTokens(Arrays.asList(TOKEN_1, TOKEN_3, NON_EXISTENT_TOKEN));
+            assertEquals(Collections.singletonMap(SecurityIdentifier.toString(TOKEN_3), GROUP_3_NAME), groups);
+            assertEquals(2, queries.get());
+
+            // Out of scope and known missing SIDs are negative hits, SIDs queried are misses
+            RegistryMetrics metrics = tokenRegistry.getMetrics();
+            assertEquals(0, metrics.getHitCount());
+            assertEquals(5, metrics.getNegativeHitCount());
+            assertEquals(2, metrics.getMissCount());
+            assertEquals(5.0 / 7, metrics.getHitRatio(), 0.0001);
+        } finally {
+            tokenRegistry.destroy();
+        }
+    }
+
+    @Test
+    public void reverseLookupsWithEhCache() throws Exception {
+
+        final String cacheName = CachingADTokenGroupsRegistry.CACHE_NAME + ".reverse";
+        Cache<String, String> reverseCache = createCache(cacheName);
+        Cache<String, String> dnCache = createCache(cacheName + ".dn");
+        final AtomicInteger queries = new AtomicInteger();
+
+        // Directory simulated : TOKEN_3 found by SID, TOKEN_2 found by DN
+        CachingADTokenGroupsRegistry tokenRegistry = new CachingADTokenGroupsRegistry() {
+
+            @Override
+            protected Map<SidKey, String> searchTokens(Collection<SidKey> keys, Collection<SidKey> failed) {
+
+                queries.incrementAndGet();
+                final Map<SidKey, String> result = new HashMap<SidKey, String>();
+                if (keys.contains(SidKey.of(TOKEN_3))) {
+                    result.put(SidKey.of(TOKEN_3), GROUP_3_NAME);
+                }
+                return result;
+            }
+
+            @Override
+            protected LdapEntry searchDn(String dn) throws LdapException {
+
+                queries.incrementAndGet();
+                LdapEntry entry = new LdapEntry(GROUP_2_NAME);
+                entry.addAttribute(new LdapAttribute(SID_ATTRIBUTE, TOKEN_2));
+                return entry;
+            }
+        };
+        tokenRegistry.setLdapConnectionFactory(() -> {
+            throw new LdapException("No directory");
+        });
+        tokenRegistry.setBaseDN(BASE_DN);
+        tokenRegistry.setCache(reverseCache);
+        tokenRegistry.setDnCache(dnCache);
+        tokenRegistry.afterPropertiesSet();
+
+        try {
+            // Forward lookup warms reverse lookups, whatever the case and spacing of DN
+            assertEquals(GROUP_3_NAME, tokenRegistry.getDnsFromTokens(Arrays.asList(TOKEN_3)).get(SecurityIdentifier
+                    .toString(TOKEN_3)));
+            assertArrayEquals(TOKEN_3, tokenRegistry.getTokenFromDn("CN=Stark, OU=Groupes," + BASE_DN.toUpperCase()));
+            assertEquals(1, queries.get());
+
+            // Reverse lookup warms forward lookups
+            assertArrayEquals(TOKEN_2, tokenRegistry.getTokenFromDn(GROUP_2_NAME));
+            assertArrayEquals(TOKEN_2, tokenRegistry.getTokenFromDn(GROUP_2_NAME));
+            assertEquals(GROUP_2_NAME, tokenRegistry.getDnFromToken(TOKEN_2));
+            assertEquals(2, queries.get());
+
+            assertNull(tokenRegistry.getTokenFromDn("not a DN"));
+        } finally {
+            tokenRegistry.destroy();
+        }
+    }
+
+}
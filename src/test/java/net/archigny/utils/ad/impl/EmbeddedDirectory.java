@@ -0,0 +1,590 @@
+package net.archigny.utils.ad.impl;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.ldaptive.ConnectionConfig;
+import org.ldaptive.ConnectionFactory;
+import org.ldaptive.DefaultConnectionFactory;
+import org.ldaptive.ad.SecurityIdentifier;
+import org.ldaptive.provider.unboundid.UnboundIDProvider;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+import com.unboundid.ldap.sdk.RDN;
+import com.unboundid.ldap.sdk.ReadOnlySearchRequest;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.schema.Schema;
+
+/**
+ * In-memory stand-in of Active Directory listening on a local port, used by tests and benchmarks which cannot depend on a live
+ * server. It emulates what this library relies on : objectSid matched byte by byte and the tokenGroups attribute of users, computed
+ * from group nesting when users are added, and change notifications of entries modified through this class. Searches may be slowed
+ * down or failed to reproduce realistic or degraded response times.
+ *
+ * @author Philippe MARASSE
+ */
+public class EmbeddedDirectory implements Closeable {
+
+    /** Base DN of the directory */
+    public final static String            BASE_DN           = "DC=EMBEDDED,DC=LOCAL";
+
+    /** Container of groups */
+    public final static String            GROUPS_DN         = "OU=Groups," + BASE_DN;
+
+    /** Container of users */
+    public final static String            USERS_DN          = "OU=Users," + BASE_DN;
+
+    /** Container of BUILTIN groups */
+    public final static String            BUILTIN_DN        = "CN=Builtin," + BASE_DN;
+
+    /** Configuration naming context, advertised by the root DSE */
+    public final static String            CONFIGURATION_DN  = "CN=Configuration," + BASE_DN;
+
+    /** Container of well-known security principals */
+    public final static String            WELL_KNOWN_DN     = "CN=WellKnown Security Principals," + CONFIGURATION_DN;
+
+    /** SID of the domain, group and user SIDs are made of this prefix and a RID */
+    public final static String            DOMAIN_SID        = "S-1-5-21-1111111111-2222222222-3333333333";
+
+    /** RID of the first generated group */
+    public final static int               FIRST_GROUP_RID   = 1000;
+
+    /** RID of the first user */
+    public final static int               FIRST_USER_RID    = 10000000;
+
+    /** objectSid as defined by Active Directory : SIDs are matched byte by byte */
+    private final static String           OBJECT_SID_TYPE   = "( 1.2.840.113556.1.4.146 NAME 'objectSid' "
+            + "EQUALITY octetStringMatch SYNTAX 1.3.6.1.4.1.1466.115.121.1.40 SINGLE-VALUE )";
+
+    /** tokenGroups as defined by Active Directory, stored instead of being computed on each search */
+    private final static String           TOKEN_GROUPS_TYPE = "( 1.2.840.113556.1.4.1301 NAME 'tokenGroups' "
+            + "EQUALITY octetStringMatch SYNTAX 1.3.6.1.4.1.1466.115.121.1.40 )";
+
+    /** Simplified group object class of Active Directory */
+    private final static String           GROUP_CLASS       = "( 1.2.840.113556.1.5.8 NAME 'group' SUP top STRUCTURAL "
+            + "MUST cn MAY ( objectSid $ member $ description ) )";
+
+    /** Simplified container object class of Active Directory */
+    private final static String           CONTAINER_CLASS   = "( 1.2.840.113556.1.3.23 NAME 'container' SUP top STRUCTURAL "
+            + "MUST cn )";
+
+    /** Simplified object class of well-known security principals in Active Directory */
+    private final static String           PRINCIPAL_CLASS   = "( 1.2.840.113556.1.5.76 NAME 'foreignSecurityPrincipal' SUP top "
+            + "STRUCTURAL MUST cn MAY objectSid )";
+
+    /** Simplified user object class of Active Directory */
+    private final static String           USER_CLASS        = "( 1.2.840.113556.1.5.9 NAME 'user' SUP top STRUCTURAL "
+            + "MUST cn MAY ( objectSid $ tokenGroups ) )";
+
+    /** OID of the Active Directory change notification control */
+    public final static String            NOTIFICATION_OID  = "1.2.840.113556.1.4.528";
+
+    /** OID of the Active Directory show deleted control, without which tombstones are not notified */
+    public final static String            SHOW_DELETED_OID  = "1.2.840.113556.1.4.417";
+
+    /** Container of deleted objects */
+    public final static String            DELETED_DN        = "CN=Deleted Objects," + BASE_DN;
+
+    /** Ends change notification subscriptions when queued */
+    private final static Entry            END_OF_CHANGES    = new Entry("");
+
+    /** Directory server */
+    private final InMemoryDirectoryServer server;
+
+    /** Parent groups (RIDs) of each generated group, by group index */
+    private final List<int[]>             parents           = new ArrayList<int[]>();
+
+    /** Number of users */
+    private int                           userCount         = 0;
+
+    /** Minimum duration added to each search (nanoseconds) */
+    private volatile long                 minLatency        = 0;
+
+    /** Maximum duration added to each search (nanoseconds) */
+    private volatile long                 maxLatency        = 0;
+
+    /** Fraction of searches failed with {@link ResultCode#UNAVAILABLE} */
+    private volatile double               failureRate       = 0;
+
+    /** Number of searches received, root DSE excepted */
+    private final LongAdder               searchCount       = new LongAdder();
+
+    /** Changes waiting to be sent, one queue per change notification subscription */
+    private final Set<Queue<Entry>>       subscriptions     = ConcurrentHashMap.newKeySet();
+
+    /** True once closed */
+    private volatile boolean              closed            = false;
+
+    /**
+     * Starts the directory on a free local port, with base entries only
+     *
+     * @throws LDAPException if the directory cannot be started
+     */
+    public EmbeddedDirectory() throws LDAPException {
+
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE_DN);
+        config.setSchema(Schema.mergeSchemas(Schema.getDefaultStandardSchema(), new Schema(new Entry("cn=schema",
+                new Attribute(Schema.ATTR_ATTRIBUTE_TYPE, OBJECT_SID_TYPE, TOKEN_GROUPS_TYPE), new Attribute(
+                        Schema.ATTR_OBJECT_CLASS, GROUP_CLASS, USER_CLASS, CONTAINER_CLASS, PRINCIPAL_CLASS)))));
+        config.setRootDSEEntry(new Entry("", new Attribute("objectClass", "top"), new Attribute("namingContexts", BASE_DN,
+                CONFIGURATION_DN), new Attribute("defaultNamingContext", BASE_DN), new Attribute("configurationNamingContext",
+                        CONFIGURATION_DN), new Attribute("supportedLDAPVersion", "3")));
+        // Indexed as in Active Directory
+        config.setEqualityIndexAttributes("objectSid");
+        config.addInMemoryOperationInterceptor(new FaultInjector());
+        config.addInMemoryOperationInterceptor(new ChangeNotifier());
+        config.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig("default", 0));
+
+        server = new InMemoryDirectoryServer(config);
+        server.add(new Entry(BASE_DN, new Attribute("objectClass", "top", "domain"), new Attribute("dc", "EMBEDDED")));
+        server.add(new Entry(GROUPS_DN, new Attribute("objectClass", "top", "organizationalUnit"), new Attribute("ou", "Groups")));
+        server.add(new Entry(USERS_DN, new Attribute("objectClass", "top", "organizationalUnit"), new Attribute("ou", "Users")));
+        server.add(new Entry(BUILTIN_DN, new Attribute("objectClass", "top", "container"), new Attribute("cn", "Builtin")));
+        server.add(new Entry(CONFIGURATION_DN, new Attribute("objectClass", "top", "container"), new Attribute("cn",
+                "Configuration")));
+        server.add(new Entry(WELL_KNOWN_DN, new Attribute("objectClass", "top", "container"), new Attribute("cn",
+                "WellKnown Security Principals")));
+        server.startListening();
+    }
+
+    /**
+     * @param rid relative identifier of a group or user
+     * @return binary SID
+     */
+    public static byte[] groupToken(final int rid) {
+
+        return SecurityIdentifier.toBytes(DOMAIN_SID + "-" + rid);
+    }
+
+    /**
+     * @param rid relative identifier of a group
+     * @return DN of the group
+     */
+    public static String groupDn(final int rid) {
+
+        return "CN=Group " + rid + "," + GROUPS_DN;
+    }
+
+    /**
+     * @param index index of a user
+     * @return DN of the user
+     */
+    public static String userDn(final int index) {
+
+        return "CN=User " + index + "," + USERS_DN;
+    }
+
+    /**
+     * Adds a group, without nesting
+     *
+     * @param rid relative identifier of the group
+     * @return DN of the group
+     * @throws LDAPException if the group cannot be added
+     */
+    public String addGroup(final int rid) throws LDAPException {
+
+        final Entry entry = groupEntry(rid);
+        server.add(entry);
+        return entry.getDN();
+    }
+
+    /**
+     * Adds a BUILTIN group (eg: S-1-5-32-544), under {@link #BUILTIN_DN}
+     *
+     * @param sid SID of the group
+     * @param cn name of the group, localized as in the directory
+     * @return DN of the group
+     * @throws LDAPException if the group cannot be added
+     */
+    public String addBuiltinGroup(final String sid, final String cn) throws LDAPException {
+
+        final Entry entry = new Entry("CN=" + cn + "," + BUILTIN_DN, new Attribute("objectClass", "top", "group"), new Attribute(
+                "cn", cn), new Attribute("objectSid", SecurityIdentifier.toBytes(sid)));
+        server.add(entry);
+        return entry.getDN();
+    }
+
+    /**
+     * Adds a well-known security principal (eg: S-1-1-0), under {@link #WELL_KNOWN_DN}
+     *
+     * @param sid SID of the principal
+     * @param cn name of the principal, localized as in the directory
+     * @return DN of the principal
+     * @throws LDAPException if the principal cannot be added
+     */
+    public String addWellKnownPrincipal(final String sid, final String cn) throws LDAPException {
+
+        final Entry entry = new Entry("CN=" + cn + "," + WELL_KNOWN_DN, new Attribute("objectClass", "top",
+                "foreignSecurityPrincipal"), new Attribute("cn", cn), new Attribute("objectSid", SecurityIdentifier.toBytes(sid)));
+        server.add(entry);
+        return entry.getDN();
+    }
+
+    /**
+     * Generates groups with realistic nesting : half of the groups are top level, others are nested in one or two groups. Group
+     * RIDs follow those of previously generated groups, starting at {@link #FIRST_GROUP_RID}, and a group is only nested in groups
+     * with a higher RID. Users are then added as members of the first group (Domain Users) and of 2 to 20 other groups, lower RIDs
+     * being more popular.
+     *
+     * @param groups number of groups
+     * @param users number of users
+     * @param seed random seed, a given seed always generates the same directory
+     * @throws LDAPException if entries cannot be added
+     */
+    public void generate(final int groups, final int users, final long seed) throws LDAPException {
+
+        final Random random = new Random(seed);
+        final int firstRid = FIRST_GROUP_RID + parents.size();
+        final List<Entry> entries = new ArrayList<Entry>(Math.max(groups, users));
+        for (int i = 0; i < groups; i++) {
+            final int rid = firstRid + i;
+            final int higher = groups - i - 1;
+            final double draw = random.nextDouble();
+            final int parentCount = higher == 0 || draw < 0.5 ? 0 : higher == 1 || draw < 0.9 ? 1 : 2;
+            final int[] groupParents = new int[parentCount];
+            for (int p = 0; p < parentCount; p++) {
+                groupParents[p] = rid + 1 + random.nextInt(higher);
+            }
+            parents.add(groupParents);
+            entries.add(groupEntry(rid));
+        }
+        server.addEntries(entries);
+
+        entries.clear();
+        for (int u = 0; u < users && !parents.isEmpty(); u++) {
+            final int[] memberOf = new int[3 + random.nextInt(19)];
+            memberOf[0] = FIRST_GROUP_RID;
+            for (int m = 1; m < memberOf.length; m++) {
+                final double draw = random.nextDouble();
+                memberOf[m] = FIRST_GROUP_RID + (int) (draw * draw * parents.size());
+            }
+            entries.add(userEntry(userCount++, memberOf));
+        }
+        server.addEntries(entries);
+    }
+
+    /**
+     * Adds a user whose tokenGroups holds the given groups and the generated groups they are nested in
+     *
+     * @param memberOf RIDs of groups the user is a direct member of
+     * @return DN of the user
+     * @throws LDAPException if the user cannot be added
+     */
+    public String addUser(final int... memberOf) throws LDAPException {
+
+        final Entry entry = userEntry(userCount++, memberOf);
+        server.add(entry);
+        return entry.getDN();
+    }
+
+    /**
+     * Renames an entry, change notification subscribers receive the renamed entry
+     *
+     * @param dn DN of the entry
+     * @param cn new common name
+     * @return new DN of the entry
+     * @throws LDAPException if the entry cannot be renamed
+     */
+    public String renameEntry(final String dn, final String cn) throws LDAPException {
+
+        final RDN rdn = new RDN("CN", cn);
+        final String newDn = new DN(rdn, new DN(dn).getParent()).toString();
+        server.modifyDN(dn, rdn.toString(), true);
+        publish(server.getEntry(newDn));
+        return newDn;
+    }
+
+    /**
+     * Replaces values of an attribute, change notification subscribers receive the modified entry
+     *
+     * @param dn DN of the entry
+     * @param attribute attribute name
+     * @param values new values
+     * @throws LDAPException if the entry cannot be modified
+     */
+    public void modifyEntry(final String dn, final String attribute, final String... values) throws LDAPException {
+
+        server.modify(dn, new Modification(ModificationType.REPLACE, attribute, values));
+        publish(server.getEntry(dn));
+    }
+
+    /**
+     * Deletes an entry, change notification subscribers holding the show deleted control receive its tombstone : moved to
+     * {@link #DELETED_DN}, with its objectSid and isDeleted set to TRUE, as done by Active Directory
+     *
+     * @param dn DN of the entry
+     * @throws LDAPException if the entry cannot be deleted
+     */
+    public void deleteEntry(final String dn) throws LDAPException {
+
+        final Entry entry = server.getEntry(dn);
+        server.delete(dn);
+        final Entry tombstone = new Entry(new DN(new RDN("CN", entry.getAttributeValue("cn") + "\nDEL:" + UUID.randomUUID()),
+                new DN(DELETED_DN)));
+        tombstone.addAttribute(entry.getAttribute("objectSid"));
+        tombstone.addAttribute("isDeleted", "TRUE");
+        publish(tombstone);
+    }
+
+    /**
+     * Ends change notification subscriptions with {@link ResultCode#UNAVAILABLE}, as a restarting domain controller would
+     */
+    public void dropSubscriptions() {
+
+        publish(END_OF_CHANGES);
+    }
+
+    /**
+     * Closes all client connections, as a domain controller dropping idle sessions would
+     */
+    public void dropConnections() {
+
+        server.closeAllConnections(true);
+    }
+
+    /**
+     * @return number of active change notification subscriptions
+     */
+    public int getSubscriptionCount() {
+
+        return subscriptions.size();
+    }
+
+    /**
+     * @param change entry to send to change notification subscribers
+     */
+    private void publish(final Entry change) {
+
+        for (Queue<Entry> changes : subscriptions) {
+            changes.add(change);
+        }
+    }
+
+    /**
+     * @param index index of a user
+     * @return RIDs of groups in the tokenGroups of the user
+     * @throws LDAPException if the user cannot be read
+     */
+    public int[] getTokenGroupRids(final int index) throws LDAPException {
+
+        final byte[][] tokens = server.getEntry(userDn(index)).getAttributeValueByteArrays("tokenGroups");
+        final int[] rids = new int[tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+            final String sid = SecurityIdentifier.toString(tokens[i]);
+            rids[i] = Integer.parseInt(sid.substring(sid.lastIndexOf('-') + 1));
+        }
+        return rids;
+    }
+
+    /**
+     * @param memberOf RIDs of groups a user is a direct member of
+     * @return RIDs of these groups and of the generated groups they are nested in, without duplicates
+     */
+    int[] closureOf(final int... memberOf) {
+
+        final Set<Integer> closure = new LinkedHashSet<Integer>();
+        final List<Integer> pending = new ArrayList<Integer>();
+        for (int rid : memberOf) {
+            pending.add(rid);
+        }
+        while (!pending.isEmpty()) {
+            final int rid = pending.remove(pending.size() - 1);
+            final int index = rid - FIRST_GROUP_RID;
+            if (closure.add(rid) && index >= 0 && index < parents.size()) {
+                for (int parent : parents.get(index)) {
+                    pending.add(parent);
+                }
+            }
+        }
+        return closure.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * @param rid relative identifier of a group
+     * @return group entry
+     */
+    private static Entry groupEntry(final int rid) {
+
+        return new Entry(groupDn(rid), new Attribute("objectClass", "top", "group"), new Attribute("cn", "Group " + rid),
+                new Attribute("objectSid", groupToken(rid)));
+    }
+
+    /**
+     * @param index index of the user
+     * @param memberOf RIDs of groups the user is a direct member of
+     * @return user entry
+     */
+    private Entry userEntry(final int index, final int... memberOf) {
+
+        final int[] tokenGroups = closureOf(memberOf);
+        final byte[][] tokens = new byte[tokenGroups.length][];
+        for (int i = 0; i < tokenGroups.length; i++) {
+            tokens[i] = groupToken(tokenGroups[i]);
+        }
+        return new Entry(userDn(index), new Attribute("objectClass", "top", "user"), new Attribute("cn", "User " + index),
+                new Attribute("objectSid", groupToken(FIRST_USER_RID + index)), new Attribute("tokenGroups", tokens));
+    }
+
+    /**
+     * @return number of groups created by {@link #generate(int, int, long)}
+     */
+    public int getGroupCount() {
+
+        return parents.size();
+    }
+
+    /**
+     * @return number of users
+     */
+    public int getUserCount() {
+
+        return userCount;
+    }
+
+    /**
+     * Adds a random duration to each search
+     *
+     * @param min minimum duration
+     * @param max maximum duration
+     */
+    public void setLatency(final Duration min, final Duration max) {
+
+        minLatency = min.toNanos();
+        maxLatency = Math.max(max.toNanos(), minLatency);
+    }
+
+    /**
+     * @param failureRate fraction of searches failed with {@link ResultCode#UNAVAILABLE}, 0 to disable failures
+     */
+    public void setFailureRate(final double failureRate) {
+
+        this.failureRate = failureRate;
+    }
+
+    /**
+     * @return number of searches received, root DSE excepted
+     */
+    public long getSearchCount() {
+
+        return searchCount.sum();
+    }
+
+    /**
+     * @return URL of the directory
+     */
+    public String getUrl() {
+
+        return "ldap://localhost:" + server.getListenPort();
+    }
+
+    /**
+     * @return new connection factory to the directory
+     */
+    public ConnectionFactory newConnectionFactory() {
+
+        return new DefaultConnectionFactory(new ConnectionConfig(getUrl()), new UnboundIDProvider());
+    }
+
+    @Override
+    public void close() {
+
+        closed = true;
+        server.shutDown(true);
+    }
+
+    /**
+     * Delays or fails searches, root DSE searches (connection validation) excepted
+     */
+    private class FaultInjector extends InMemoryOperationInterceptor {
+
+        @Override
+        public void processSearchRequest(final InMemoryInterceptedSearchRequest request) throws LDAPException {
+
+            if (request.getRequest().getBaseDN().isEmpty()) {
+                return;
+            }
+            searchCount.increment();
+
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            final long min = minLatency;
+            final long max = maxLatency;
+            if (max > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(min == max ? min : random.nextLong(min, max));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (failureRate > 0 && random.nextDouble() < failureRate) {
+                throw new LDAPException(ResultCode.UNAVAILABLE, "Failure injected");
+            }
+        }
+    }
+
+    /**
+     * Emulates the change notification control of Active Directory : a search holding this control never completes, changed
+     * entries in its scope are sent as they are published, tombstones only if the search also holds the show deleted control
+     */
+    private class ChangeNotifier extends InMemoryOperationInterceptor {
+
+        @Override
+        public void processSearchRequest(final InMemoryInterceptedSearchRequest request) throws LDAPException {
+
+            final ReadOnlySearchRequest search = request.getRequest();
+            if (!search.hasControl(NOTIFICATION_OID)) {
+                return;
+            }
+
+            final boolean showDeleted = search.hasControl(SHOW_DELETED_OID);
+            final BlockingQueue<Entry> changes = new LinkedBlockingQueue<Entry>();
+            subscriptions.add(changes);
+            try {
+                while (!closed) {
+                    final Entry change = changes.poll(100, TimeUnit.MILLISECONDS);
+                    if (change == END_OF_CHANGES) {
+                        break;
+                    }
+                    if (change != null && (showDeleted || !change.hasAttribute("isDeleted"))
+                            && change.matchesBaseAndScope(search.getBaseDN(), search.getScope())) {
+                        final Entry projected = new Entry(change.getDN());
+                        for (String attribute : search.getAttributeList()) {
+                            if (change.hasAttribute(attribute)) {
+                                projected.addAttribute(change.getAttribute(attribute));
+                            }
+                        }
+                        request.sendSearchEntry(projected);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                subscriptions.remove(changes);
+            }
+            throw new LDAPException(ResultCode.UNAVAILABLE, "Change notifications ended");
+        }
+    }
+
+}
@@ -0,0 +1,948 @@
+package net.archigny.utils.ad.impl;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+
+import com.hazelcast.cache.impl.HazelcastServerCachingProvider;
+import com.hazelcast.config.Config;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+
+import javax.cache.Cache;
+import javax.cache.CacheManager;
+import javax.cache.Caching;
+import javax.cache.configuration.MutableConfiguration;
+
+import net.archigny.utils.ad.api.GroupRecord;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ldaptive.ad.SecurityIdentifier;
+
+public class EmbeddedDirectoryTest {
+
+    public final static String CACHE_NAME = CachingADTokenGroupsRegistry.CACHE_NAME + ".embedded";
+
+    private EmbeddedDirectory  directory;
+
+    @Before
+    public void setUp() throws Exception {
+
+        directory = new EmbeddedDirectory();
+    }
+
+    @After
+    public void tearDown() {
+
+        directory.close();
+    }
+
+    private static Set<String> groupDns(final int[] rids) {
+
+        Set<String> dns = new HashSet<String>();
+        for (int rid : rids) {
+            dns.add(EmbeddedDirectory.groupDn(rid));
+        }
+        return dns;
+    }
+
+    @Test
+    public void generatorTest() throws Exception {
+
+        directory.generate(500, 50, 42);
+        assertEquals(500, directory.getGroupCount());
+        assertEquals(50, directory.getUserCount());
+
+        SimpleADTokenGroupsRegistry tokenRegistry = new SimpleADTokenGroupsRegistry();
+        tokenRegistry.setLdapConnectionFactory(directory.newConnectionFactory());
+        tokenRegistry.setBaseDN(EmbeddedDirectory.BASE_DN);
+        tokenRegistry.afterPropertiesSet();
+
+        try {
+            int nested = 0;
+            for (int i = 0; i < directory.getUserCount(); i++) {
+                final int[] rids = directory.getTokenGroupRids(i);
+                // tokenGroups holds every group the user is nested in
+                assertEquals(groupDns(rids), groupDns(directory.closureOf(rids)));
+                assertEquals(groupDns(rids), new HashSet<String>(tokenRegistry.getGroupDnsForUser(EmbeddedDirectory.userDn(i))));
+                nested = Math.max(nested, rids.length);
+            }
+            assertTrue(nested > 3);
+
+            // Canonical string represented SID
+            assertEquals(EmbeddedDirectory.groupDn(EmbeddedDirectory.FIRST_GROUP_RID), tokenRegistry.getDnFromToken(
+                    EmbeddedDirectory.DOMAIN_SID + "-" + EmbeddedDirectory.FIRST_GROUP_RID));
+            assertNull(tokenRegistry.getDnFromToken(EmbeddedDirectory.DOMAIN_SID + "-x"));
+        } finally {
+            tokenRegistry.destroy();
+        }
+    }
+
+    @Test
+    public void faultInjectionTest() throws Exception {
+
+        directory.generate(10, 0, 1);
+        final byte[] token = EmbeddedDirectory.groupToken(EmbeddedDirectory.FIRST_GROUP_RID);
+
+        SimpleADTokenGroupsRegistry tokenRegistry = new SimpleADTokenGroupsRegistry();
+        tokenRegistry.setLdapConnectionFactory(directory.newConnectionFactory());
+        tokenRegistry.setBaseDN(EmbeddedDirectory.BASE_DN);
+        tokenRegistry.afterPropertiesSet();
+
+        try {
+            directory.setFailureRate(1);
+            assertNull(tokenRegistry.getDnFromToken(token));
+            assertTrue(tokenRegistry.getMetrics().getLdapFailureCount() > 0);
+
+            directory.setFailureRate(0);
+            directory.setLatency(Duration.ofMillis(50), Duration.ofMillis(50));
+            final long start = System.nanoTime();
+            assertEquals(EmbeddedDirectory.groupDn(EmbeddedDirectory.FIRST_GROUP_RID), tokenRegistry.getDnFromToken(token));
+            assertTrue(System.nanoTime() - start >= 50000000L);
+        } finally {
+            tokenRegistry.destroy();
+        }
+    }
+
+    @Test
+    public void reconnectTest() throws Exception {
+
+        directory.generate(10, 0, 37);
+        final byte[] token = EmbeddedDirectory.groupToken(EmbeddedDirectory.FIRST_GROUP_RID);
+
+        for (boolean validateOnBorrow : new boolean[] { true, false }) {
+            SimpleADTokenGroupsRegistry tokenRegistry = new SimpleADTokenGroupsRegistry();
+            tokenRegistry.setLdapConnectionFactory(directory.newConnectionFactory());
+            tokenRegistry.setBaseDN(EmbeddedDirectory.BASE_DN);
+            tokenRegistry.setMinPoolSize(2);
+            tokenRegistry.setMaxPoolSize(2);
+            tokenRegistry.setValidateOnBorrow(validateOnBorrow);
+            tokenRegistry.afterPropertiesSet();
+
+            try {
+                for (int i = 0; i < 3; i++) {
+                    assertEquals(EmbeddedDirectory.groupDn(EmbeddedDirectory.FIRST_GROUP_RID), tokenRegistry.getDnFromToken(
+                            token));
+                    // Sessions dropped by the directory : transparently reopened
+                    directory.dropConnections();
+                }
+                assertEquals(EmbeddedDirectory.groupDn(EmbeddedDirectory.FIRST_GROUP_RID), tokenRegistry.getDnFromToken(token));
+                assertEquals(0, tokenRegistry.getMetrics().getLdapFailureCount());
+            } finally {
+                tokenRegistry.destroy();
+            }
+        }
+    }
+
+    @Test
+    public void batchTest() throws Exception {
+
+        directory.generate(20, 0, 23);
+        final int rid = EmbeddedDirectory.FIRST_GROUP_RID;
+        final byte[] missingToken = EmbeddedDirectory.groupToken(rid + 100);
+        final List<byte[]> tokens = new ArrayList<byte[]>();
+        for (int i = 0; i < 7; i++) {
+            tokens.add(EmbeddedDirectory.groupToken(rid + i));
+        }
+        tokens.add(missingToken);
+        tokens.add("test-marchera-pas".getBytes());
+
+        SimpleADTokenGroupsRegistry tokenRegistry = new SimpleADTokenGroupsRegistry();
+        tokenRegistry.setLdapConnectionFactory(directory.newConnectionFactory());
+        tokenRegistry.setBaseDN(EmbeddedDirectory.BASE_DN);
+        tokenRegistry.setChunkSize(3);
+        tokenRegistry.afterPropertiesSet();
+
+        try {
+            // 8 valid SIDs => 3 queries, invalid SIDs are dropped
+            final long searches = directory.getSearchCount();
+            final Map<String, String> groups = tokenRegistry.getDnsFromTokens(tokens);
+            assertEquals(searches + 3, directory.getSearchCount());
+            assertEquals(7, groups.size());
+            for (int i = 0; i < 7; i++) {
+                assertEquals(EmbeddedDirectory.groupDn(rid + i), groups.get(SidKey.of(EmbeddedDirectory.groupToken(rid + i))
+                        .toString()));
+            }
+        } finally {
+            tokenRegistry.destroy();
+        }
+    }
+
+    @Test
+    public void cachingBatchTest() throws Exception {
+
+        directory.generate(20, 0, 29);
+        final int rid = EmbeddedDirectory.FIRST_GROUP_RID;
+        final byte[] missingToken = EmbeddedDirectory.groupToken(rid + 100);
+        final List<byte[]> tokens = Arrays.asList(EmbeddedDirectory.groupToken(rid), EmbeddedDirectory.groupToken(rid + 1),
+                EmbeddedDirectory.groupToken(rid + 2), missingToken);
+        CacheManager ehCm = Caching.getCachingProvider("org.ehcache.jsr107.EhcacheCachingProvider").getCacheManager();
+        Cache<String, String> cache = ehCm.createCache(CACHE_NAME, new MutableConfiguration<String, String>().setTypes(
+                String.class, String.class));
+
+        CachingADTokenGroupsRegistry tokenRegistry = new CachingADTokenGroupsRegistry();
+        tokenRegistry.setLdapConnectionFactory(directory.newConnectionFactory());
+        tokenRegistry.setBaseDN(EmbeddedDirectory.BASE_DN);
+        tokenRegistry.setCache(cache);
+        tokenRegistry.setCacheNullValues(true);
+        tokenRegistry.afterPropertiesSet();
+
+        try {
+            // Warm up cache with a single token
+            assertEquals(EmbeddedDirectory.groupDn(rid), tokenRegistry.getDnFromToken(EmbeddedDirectory.groupToken(rid)));
+
+            // First token is a hit, others are fetched with a single query
+            long searches = directory.getSearchCount();
+            assertEquals(groupDns(new int[] { rid, rid + 1, rid + 2 }), new HashSet<String>(tokenRegistry.getDnsFromTokens(tokens)
+                    .values()));
+            assertEquals(searches + 1, directory.getSearchCount());
+
+            // Non existent token has been cached as a null value
+            assertEquals(CachingADTokenGroupsRegistry.NULL, cache.get(SidKey.of(missingToken).toString()));
+            searches = directory.getSearchCount();
+            assertEquals(3, tokenRegistry.getDnsFromTokens(tokens).size());
+            assertEquals(searches, directory.getSearchCount());
+
+            // Reverse lookups are not cached unless reverseCache is set : no reverse cache is created
+            assertNull(ehCm.getCache(CachingADTokenGroupsRegistry.DN_CACHE_NAME));
+            assertArrayEquals(EmbeddedDirectory.groupToken(rid), tokenRegistry.getTokenFromDn(EmbeddedDirectory.groupDn(rid)));
+            assertEquals(searches + 1, directory.getSearchCount());
+        } finally {
+            tokenRegistry.destroy();
+            ehCm.destroyCache(CACHE_NAME);
+        }
+    }
+
+    @Test
+    public void groupDnsForUserTest() throws Exception {
+
+        directory.generate(100, 5, 31);
+        SimpleADTokenGroupsRegistry tokenRegistry = new SimpleADTokenGroupsRegistry();
+        tokenRegistry.setLdapConnectionFactory(directory.newConnectionFactory());
+        tokenRegistry.setBaseDN(EmbeddedDirectory.BASE_DN);
+        tokenRegistry.setChunkSize(5);
+        tokenRegistry.afterPropertiesSet();
+
+        try {
+            for (int i = 0; i < directory.getUserCount(); i++) {
+                final int[] rids = directory.getTokenGroupRids(i);
+                final List<String> expected = new ArrayList<String>();
+                for (int rid : rids) {
+                    expected.add(EmbeddedDirectory.groupDn(rid));
+                }
+
+                // tokenGroups order, one search for the user then one per chunk
+                final long searches = directory.getSearchCount();
+                assertEquals(expected, tokenRegistry.getGroupDnsForUser(EmbeddedDirectory.userDn(i)));
+                assertEquals(searches + 1 + (rids.length + 4) / 5, directory.getSearchCount());
+            }
+            assertTrue(tokenRegistry.getGroupDnsForUser("CN=Nobody," + EmbeddedDirectory.USERS_DN).isEmpty());
+        } finally {
+            tokenRegistry.destroy();
+        }
+    }
+
+    @Test
+    public void cachingRegistryTest() throws Exception {
+
+        directory.generate(1000, 20, 7);
+        CacheManager ehCm = Caching.getCachingProvider("org.ehcache.jsr107.EhcacheCachingProvider").getCacheManager();
+        Cache<String, String> cache = ehCm.createCache(CACHE_NAME, new MutableConfiguration<String, String>().setTypes(
+                String.class, String.class));
+
+        CachingADTokenGroupsRegistry tokenRegistry = new CachingADTokenGroupsRegistry();
+        tokenRegistry.setLdapConnectionFactory(directory.newConnectionFactory());
+        tokenRegistry.setBaseDN(EmbeddedDirectory.BASE_DN);
+        tokenRegistry.setCache(cache);
+        tokenRegistry.afterPropertiesSet();
+
+        try {
+            for (int i = 0; i < directory.getUserCount(); i++) {
+                assertEquals(groupDns(directory.getTokenGroupRids(i)), new HashSet<String>(tokenRegistry.getGroupDnsForUser(
+                        EmbeddedDirectory.userDn(i))));
+            }
+
+            // Groups are cached : a single search per user to read its tokenGroups
+            final long searches = directory.getSearchCount();
+            for (int i = 0; i < directory.getUserCount(); i++) {
+                assertFalse(tokenRegistry.getGroupDnsForUser(EmbeddedDirectory.userDn(i)).isEmpty());
+            }
+            assertEquals(searches + directory.getUserCount(), directory.getSearchCount());
+            assertEquals(0, tokenRegistry.getMetrics().getLdapFailureCount());
+            assertEquals(EmbeddedDirectory.groupDn(EmbeddedDirectory.FIRST_GROUP_RID), cache.get(SidKey.of(
+                    EmbeddedDirectory.groupToken(EmbeddedDirectory.FIRST_GROUP_RID)).toString()));
+        } finally {
+            tokenRegistry.destroy();
+            ehCm.destroyCache(CACHE_NAME);
+        }
+    }
+
+    @Test
+    public void concurrentAsyncMissesTest() throws Exception {
+
+        directory.generate(10, 0, 41);
+        final int rid = EmbeddedDirectory.FIRST_GROUP_RID;
+        final byte[] token = EmbeddedDirectory.groupToken(rid);
+        CacheManager ehCm = Caching.getCachingProvider("org.ehcache.jsr107.EhcacheCachingProvider").getCacheManager();
+        Cache<String, String> cache = ehCm.createCache(CACHE_NAME, new MutableConfiguration<String, String>().setTypes(
+                String.class, String.class));
+
+        CachingADTokenGroupsRegistry tokenRegistry = new CachingADTokenGroupsRegistry();
+        tokenRegistry.setLdapConnectionFactory(directory.newConnectionFactory());
+        tokenRegistry.setBaseDN(EmbeddedDirectory.BASE_DN);
+        tokenRegistry.setCache(cache);
+        tokenRegistry.afterPropertiesSet();
+
+        try {
+            // Executor is only created for asynchronous lookups
+            assertNull(tokenRegistry.getExecutor());
+
+            // Concurrent misses on the same SID share a single directory query, the batch only queries the other SID
+            directory.setLatency(Duration.ofMillis(100), Duration.ofMillis(100));
+            final long searches = directory.getSearchCount();
+            final List<CompletableFuture<String>> futures = new ArrayList<CompletableFuture<String>>();
+            for (int i = 0; i < 16; i++) {
+                futures.add(tokenRegistry.getDnFromTokenAsync(token));
+            }
+            futures.add(tokenRegistry.getDnsFromTokensAsync(Arrays.asList(token, EmbeddedDirectory.groupToken(rid + 1)))
+                    .thenApply(groups -> groups.get(SidKey.of(token).toString())));
+            assertNotNull(tokenRegistry.getExecutor());
+
+            for (CompletableFuture<String> future : futures) {
+                assertEquals(EmbeddedDirectory.groupDn(rid), future.get());
+            }
+            assertEquals(searches + 2, directory.getSearchCount());
+        } finally {
+            tokenRegistry.destroy();
+            ehCm.destroyCache(CACHE_NAME);
+        }
+    }
+
+    @Test
+    public void groupAttributesTest() throws Exception {
+
+        directory.generate(100, 0, 3);
+        final int rid = EmbeddedDirectory.FIRST_GROUP_RID + 1;
+        final byte[] token = EmbeddedDirectory.groupToken(rid);
+        CacheManager ehCm = Caching.getCachingProvider("org.ehcache.jsr107.EhcacheCachingProvider").getCacheManager();
+        Cache<String, String> cache = ehCm.createCache(CACHE_NAME, new MutableConfiguration<String, String>().setTypes(
+                String.class, String.class));
+
+        SimpleADTokenGroupsRegistry simpleRegistry = new SimpleADTokenGroupsRegistry();
+        CachingADTokenGroupsRegistry cachingRegistry = new CachingADTokenGroupsRegistry();
+        cachingRegistry.setCache(cache);
+        cachingRegistry.setReverseCache(true);
+        for (SimpleADTokenGroupsRegistry tokenRegistry : Arrays.asList(simpleRegistry, cachingRegistry)) {
+            tokenRegistry.setLdapConnectionFactory(directory.newConnectionFactory());
+            tokenRegistry.setBaseDN(EmbeddedDirectory.BASE_DN);
+            tokenRegistry.setGroupAttributes(Arrays.asList("cn", "description"));
+            tokenRegistry.afterPropertiesSet();
+        }
+
+        try {
+            for (SimpleADTokenGroupsRegistry tokenRegistry : Arrays.asList(simpleRegistry, cachingRegistry, cachingRegistry)) {
+                final GroupRecord group = tokenRegistry.getGroupFromToken(token);
+                assertEquals(EmbeddedDirectory.groupDn(rid), group.getDn());
+                assertEquals("Group " + rid, group.getAttribute("cn"));
+                assertTrue(group.getAttributeValues("description").isEmpty());
+                assertEquals(EmbeddedDirectory.groupDn(rid), tokenRegistry.getDnFromToken(token));
+                assertEquals(EmbeddedDirectory.groupDn(rid), tokenRegistry.getDnFromTokenAsync(token).get());
+
+                final Map<String, GroupRecord> groups = tokenRegistry.getGroupsFromTokens(Arrays.asList(token,
+                        EmbeddedDirectory.groupToken(rid + 1)));
+                assertEquals("Group " + (rid + 1), groups.get(SidKey.of(EmbeddedDirectory.groupToken(rid + 1)).toString())
+                        .getAttribute("cn"));
+                assertEquals(groupDns(new int[] { rid, rid + 1 }), new HashSet<String>(tokenRegistry.getDnsFromTokens(
+                        Arrays.asList(token, EmbeddedDirectory.groupToken(rid + 1))).values()));
+            }
+
+            // Record is cached as a single value, the reverse lookup is served from cache
+            final long searches = directory.getSearchCount();
+            assertEquals(group(rid), GroupRecord.decode(cache.get(SidKey.of(token).toString())));
+            assertArrayEquals(token, cachingRegistry.getTokenFromDn(EmbeddedDirectory.groupDn(rid)));
+            assertEquals(searches, directory.getSearchCount());
+        } finally {
+            simpleRegistry.destroy();
+            cachingRegistry.destroy();
+            ehCm.destroyCache(CACHE_NAME);
+        }
+    }
+
+    @Test
+    public void snapshotTierTest() throws Exception {
+
+        directory.generate(10, 0, 43);
+        final int rid = EmbeddedDirectory.FIRST_GROUP_RID;
+        final byte[] token = EmbeddedDirectory.groupToken(rid);
+        final String oldDn = "CN=Old name," + EmbeddedDirectory.GROUPS_DN;
+        final Path file = Files.createTempFile("sidsnapshot", ".bin");
+        SidSnapshot.write(file, Collections.singletonMap(SidKey.of(token), oldDn), 1L);
+
+        CachingADTokenGroupsRegistry tokenRegistry = new CachingADTokenGroupsRegistry();
+        tokenRegistry.setLdapConnectionFactory(directory.newConnectionFactory());
+        tokenRegistry.setBaseDN(EmbeddedDirectory.BASE_DN);
+        tokenRegistry.setBuiltInCache(true);
+        tokenRegistry.setSnapshotFile(file.toString());
+        tokenRegistry.setSnapshotCheckPeriod(0);
+        tokenRegistry.afterPropertiesSet();
+
+        try {
+            // Served from snapshot on cache miss
+            long searches = directory.getSearchCount();
+            assertEquals(oldDn, tokenRegistry.getDnFromToken(token));
+            assertEquals(searches, directory.getSearchCount());
+
+            // Cached value loaded from the directory takes precedence, snapshot value is superseded once cache is cleared
+            assertArrayEquals(token, tokenRegistry.getTokenFromDn(EmbeddedDirectory.groupDn(rid)));
+            assertEquals(EmbeddedDirectory.groupDn(rid), tokenRegistry.getDnFromToken(token));
+            tokenRegistry.onResync();
+            assertEquals(EmbeddedDirectory.groupDn(rid), tokenRegistry.getDnFromToken(token));
+            assertEquals(EmbeddedDirectory.groupDn(rid), tokenRegistry.getDnsFromTokens(Collections.singletonList(token)).get(
+                    SidKey.of(token).toString()));
+
+            // A new snapshot file is served again
+            SidSnapshot.write(file, Collections.singletonMap(SidKey.of(token), EmbeddedDirectory.groupDn(rid)), 2L);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 1000));
+            tokenRegistry.onResync();
+            searches = directory.getSearchCount();
+            assertEquals(EmbeddedDirectory.groupDn(rid), tokenRegistry.getDnFromToken(token));
+            assertEquals(searches, directory.getSearchCount());
+        } finally {
+            tokenRegistry.destroy();
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void snapshotChangeNotificationsTest() throws Exception {
+
+        directory.generate(10, 0, 47);
+        final int rid = EmbeddedDirectory.FIRST_GROUP_RID + 4;
+        final byte[] token = EmbeddedDirectory.groupToken(rid);
+        final byte[] otherToken = EmbeddedDirectory.groupToken(rid + 1);
+        final Map<SidKey, String> values = new LinkedHashMap<SidKey, String>();
+        values.put(SidKey.of(token), EmbeddedDirectory.groupDn(rid));
+        values.put(SidKey.of(otherToken), EmbeddedDirectory.groupDn(rid + 1));
+        final Path file = Files.createTempFile("sidsnapshot", ".bin");
+        SidSnapshot.write(file, values, 1L);
+
+        CachingADTokenGroupsRegistry tokenRegistry = new CachingADTokenGroupsRegistry();
+        tokenRegistry.setLdapConnectionFactory(directory.newConnectionFactory());
+        tokenRegistry.setBaseDN(EmbeddedDirectory.GROUPS_DN);
+        tokenRegistry.setBuiltInCache(true);
+        tokenRegistry.setSnapshotFile(file.toString());
+        tokenRegistry.setChangeNotifications(true);
+        tokenRegistry.setNotificationRetryDelay(100);
+        tokenRegistry.afterPropertiesSet();
+
+        try {
+            await(() -> directory.getSubscriptionCount() == 1);
+            final long searches = directory.getSearchCount();
+            assertEquals(EmbeddedDirectory.groupDn(rid), tokenRegistry.getDnFromToken(token));
+            assertEquals(EmbeddedDirectory.groupDn(rid + 1), tokenRegistry.getDnFromToken(otherToken));
+            assertEquals(searches, directory.getSearchCount());
+
+            // Changes of SIDs served from the snapshot supersede their snapshot values
+            final String renamedDn = directory.renameEntry(EmbeddedDirectory.groupDn(rid), "Renamed");
+            await(() -> renamedDn.equals(tokenRegistry.getDnFromToken(token)));
+            directory.deleteEntry(EmbeddedDirectory.groupDn(rid + 1));
+            await(() -> tokenRegistry.getDnFromToken(otherToken) == null);
+        } finally {
+            tokenRegistry.destroy();
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void changeNotificationsTest() throws Exception {
+
+        directory.generate(10, 0, 5);
+        final int rid = EmbeddedDirectory.FIRST_GROUP_RID + 2;
+        final byte[] token = EmbeddedDirectory.groupToken(rid);
+        final String sid = SidKey.of(token).toString();
+        final byte[] otherToken = EmbeddedDirectory.groupToken(rid + 1);
+        CacheManager ehCm = Caching.getCachingProvider("org.ehcache.jsr107.EhcacheCachingProvider").getCacheManager();
+        Cache<String, String> cache = ehCm.createCache(CACHE_NAME, new MutableConfiguration<String, String>().setTypes(
+                String.class, String.class));
+
+        CachingADTokenGroupsRegistry tokenRegistry = new CachingADTokenGroupsRegistry();
+        tokenRegistry.setLdapConnectionFactory(directory.newConnectionFactory());
+        tokenRegistry.setBaseDN(EmbeddedDirectory.GROUPS_DN);
+        tokenRegistry.setCache(cache);
+        tokenRegistry.setGroupAttributes(Arrays.asList("cn", "description"));
+        tokenRegistry.setReverseCache(true);
+        tokenRegistry.setChangeNotifications(true);
+        tokenRegistry.setNotificationRetryDelay(100);
+        tokenRegistry.afterPropertiesSet();
+
+        try {
+            await(() -> directory.getSubscriptionCount() == 1);
+            assertEquals(EmbeddedDirectory.groupDn(rid), tokenRegistry.getDnFromToken(token));
+            final long searches = directory.getSearchCount();
+
+            // Renamed group : cached value and reverse lookup updated without querying the directory
+            final String renamedDn = directory.renameEntry(EmbeddedDirectory.groupDn(rid), "Renamed");
+            await(() -> renamedDn.equals(GroupRecord.dnOf(cache.get(sid))));
+            assertEquals(renamedDn, tokenRegistry.getDnFromToken(token));
+            assertArrayEquals(token, tokenRegistry.getTokenFromDn(renamedDn));
+
+            // Modified attribute
+            directory.modifyEntry(renamedDn, "description", "Updated");
+            await(() -> "Updated".equals(GroupRecord.decode(cache.get(sid)).getAttribute("description")));
+            assertEquals("Updated", tokenRegistry.getGroupFromToken(token).getAttribute("description"));
+            assertEquals(searches, directory.getSearchCount());
+
+            // Changes of entries absent from cache are ignored
+            directory.modifyEntry(EmbeddedDirectory.groupDn(rid + 2), "description", "Ignored");
+
+            // Deleted group : evicted
+            directory.deleteEntry(renamedDn);
+            await(() -> cache.get(sid) == null);
+            assertNull(tokenRegistry.getDnFromToken(token));
+
+            // Lost subscription : caches are cleared once it is renewed, changes may have been missed meanwhile
+            assertEquals(EmbeddedDirectory.groupDn(rid + 1), tokenRegistry.getDnFromToken(otherToken));
+            directory.dropSubscriptions();
+            await(() -> cache.get(SidKey.of(otherToken).toString()) == null);
+            await(() -> directory.getSubscriptionCount() == 1);
+            assertEquals(EmbeddedDirectory.groupDn(rid + 1), tokenRegistry.getDnFromToken(otherToken));
+        } finally {
+            tokenRegistry.destroy();
+            ehCm.destroyCache(CACHE_NAME);
+        }
+    }
+
+    @Test
+    public void distributedLoadTest() throws Exception {
+
+        directory.generate(20, 0, 3);
+        final HazelcastInstance[] members = new HazelcastInstance[2];
+        final CachingADTokenGroupsRegistry[] registries = new CachingADTokenGroupsRegistry[2];
+        final List<Cache<String, String>> caches = new ArrayList<Cache<String, String>>();
+        final ExecutorService threads = Executors.newFixedThreadPool(8);
+        // Isolated cluster of two members
+        final String clusterName = "adtokengroups-" + System.nanoTime();
+        try {
+            for (int i = 0; i < members.length; i++) {
+                final Config config = new Config();
+                config.getGroupConfig().setName(clusterName);
+                config.setProperty("hazelcast.wait.seconds.before.join", "0");
+                config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+                config.getNetworkConfig().getJoin().getTcpIpConfig().setEnabled(true).addMember("127.0.0.1");
+                config.getNetworkConfig().getInterfaces().setEnabled(true).addInterface("127.0.0.1");
+                members[i] = Hazelcast.newHazelcastInstance(config);
+
+                final CacheManager hazelCm = HazelcastServerCachingProvider.createCachingProvider(members[i]).getCacheManager();
+                caches.add(i == 0 ? hazelCm.createCache(CACHE_NAME, new MutableConfiguration<String, String>().setTypes(
+                        String.class, String.class)) : hazelCm.getCache(CACHE_NAME, String.class, String.class));
+
+                registries[i] = new CachingADTokenGroupsRegistry();
+                registries[i].setLdapConnectionFactory(directory.newConnectionFactory());
+                registries[i].setBaseDN(EmbeddedDirectory.BASE_DN);
+                registries[i].setCache(caches.get(i));
+                registries[i].setDistributedLoad(true);
+                registries[i].afterPropertiesSet();
+            }
+            assertEquals(2, members[1].getCluster().getMembers().size());
+
+            // Concurrent misses on both members : a single directory query
+            directory.setLatency(Duration.ofMillis(100), Duration.ofMillis(100));
+            final int rid = EmbeddedDirectory.FIRST_GROUP_RID;
+            long searches = directory.getSearchCount();
+            final List<Future<String>> dns = new ArrayList<Future<String>>();
+            for (int i = 0; i < 8; i++) {
+                final CachingADTokenGroupsRegistry tokenRegistry = registries[i % 2];
+                dns.add(threads.submit(() -> tokenRegistry.getDnFromToken(EmbeddedDirectory.groupToken(rid))));
+            }
+            for (Future<String> dn : dns) {
+                assertEquals(EmbeddedDirectory.groupDn(rid), dn.get());
+            }
+            assertEquals(searches + 1, directory.getSearchCount());
+
+            // Batches : missing SIDs are claimed at once and searched by chunks by the member claiming them
+            final List<byte[]> tokens = Arrays.asList(EmbeddedDirectory.groupToken(rid + 1), EmbeddedDirectory.groupToken(rid + 2),
+                    EmbeddedDirectory.groupToken(rid + 3));
+            searches = directory.getSearchCount();
+            assertEquals(groupDns(new int[] { rid + 1, rid + 2, rid + 3 }), new HashSet<String>(registries[1].getDnsFromTokens(
+                    tokens).values()));
+            assertEquals(searches + 1, directory.getSearchCount());
+
+            // Concurrent batches : each SID is queried by a single member
+            final List<byte[]> otherTokens = Arrays.asList(EmbeddedDirectory.groupToken(rid + 4), EmbeddedDirectory.groupToken(
+                    rid + 5), EmbeddedDirectory.groupToken(rid + 6));
+            searches = directory.getSearchCount();
+            final List<Future<Map<String, String>>> batches = new ArrayList<Future<Map<String, String>>>();
+            for (int i = 0; i < 4; i++) {
+                final CachingADTokenGroupsRegistry tokenRegistry = registries[i % 2];
+                batches.add(threads.submit(() -> tokenRegistry.getDnsFromTokens(otherTokens)));
+            }
+            for (Future<Map<String, String>> batch : batches) {
+                assertEquals(groupDns(new int[] { rid + 4, rid + 5, rid + 6 }), new HashSet<String>(batch.get().values()));
+            }
+            assertTrue(directory.getSearchCount() <= searches + 3);
+
+            // Claim of a failed member : never served, taken over once expired
+            final byte[] claimedToken = EmbeddedDirectory.groupToken(rid + 7);
+            caches.get(0).put(SidKey.of(claimedToken).toString(), LoadClaimProcessor.newClaim(300));
+            assertEquals(EmbeddedDirectory.groupDn(rid + 7), registries[1].getDnFromToken(claimedToken));
+            assertEquals(EmbeddedDirectory.groupDn(rid + 7), caches.get(0).get(SidKey.of(claimedToken).toString()));
+        } finally {
+            threads.shutdownNow();
+            for (CachingADTokenGroupsRegistry tokenRegistry : registries) {
+                if (tokenRegistry != null) {
+                    tokenRegistry.destroy();
+                }
+            }
+            for (HazelcastInstance member : members) {
+                if (member != null) {
+                    member.shutdown();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void readThroughTest() throws Exception {
+
+        directory.generate(200, 10, 11);
+        CacheManager ehCm = Caching.getCachingProvider("org.ehcache.jsr107.EhcacheCachingProvider").getCacheManager();
+        Cache<String, String> cache = ehCm.createCache(CACHE_NAME, new MutableConfiguration<String, String>().setTypes(
+                String.class, String.class).setReadThrough(true).setCacheLoaderFactory(DirectoryCacheLoader.factoryOf(CACHE_NAME,
+                        String.class)));
+
+        CachingADTokenGroupsRegistry tokenRegistry = new CachingADTokenGroupsRegistry();
+        tokenRegistry.setLdapConnectionFactory(directory.newConnectionFactory());
+        tokenRegistry.setBaseDN(EmbeddedDirectory.BASE_DN);
+        tokenRegistry.setCache(cache);
+        tokenRegistry.setReadThrough(true);
+        tokenRegistry.setChunkSize(5);
+        tokenRegistry.afterPropertiesSet();
+
+        try {
+            // Groups of a user are loaded by the provider with one search per chunk
+            final int[] rids = directory.getTokenGroupRids(0);
+            long searches = directory.getSearchCount();
+            assertEquals(groupDns(rids), new HashSet<String>(tokenRegistry.getGroupDnsForUser(EmbeddedDirectory.userDn(0))));
+            assertEquals(searches + 1 + (rids.length + 4) / 5, directory.getSearchCount());
+            searches = directory.getSearchCount();
+            assertEquals(groupDns(rids), new HashSet<String>(tokenRegistry.getGroupDnsForUser(EmbeddedDirectory.userDn(0))));
+            assertEquals(searches + 1, directory.getSearchCount());
+
+            // Cache loads on its own
+            final int rid = EmbeddedDirectory.FIRST_GROUP_RID + 199;
+            assertEquals(EmbeddedDirectory.groupDn(rid), cache.get(SidKey.of(EmbeddedDirectory.groupToken(rid)).toString()));
+            searches = directory.getSearchCount();
+            assertEquals(EmbeddedDirectory.groupDn(rid), tokenRegistry.getDnFromToken(EmbeddedDirectory.groupToken(rid)));
+            assertEquals(EmbeddedDirectory.groupDn(rid), tokenRegistry.getDnFromTokenAsync(EmbeddedDirectory.groupToken(rid)).get());
+            assertEquals(searches, directory.getSearchCount());
+
+            assertNull(tokenRegistry.getDnFromToken(EmbeddedDirectory.groupToken(rid + 1)));
+            assertFalse(cache.containsKey(SidKey.of(EmbeddedDirectory.groupToken(rid + 1)).toString()));
+
+            // Directory failures are not cached
+            int uncached = EmbeddedDirectory.FIRST_GROUP_RID;
+            while (groupDns(rids).contains(EmbeddedDirectory.groupDn(uncached))) {
+                uncached++;
+            }
+            directory.setFailureRate(1);
+            assertNull(tokenRegistry.getDnFromToken(EmbeddedDirectory.groupToken(uncached)));
+            directory.setFailureRate(0);
+            assertEquals(EmbeddedDirectory.groupDn(uncached), tokenRegistry.getDnFromToken(EmbeddedDirectory.groupToken(uncached)));
+
+            // Loader resolves batches with one search per chunk
+            final List<String> sids = new ArrayList<String>();
+            for (int i = uncached + 1; sids.size() < 10; i++) {
+                if (!groupDns(rids).contains(EmbeddedDirectory.groupDn(i))) {
+                    sids.add(SidKey.of(EmbeddedDirectory.groupToken(i)).toString());
+                }
+            }
+            searches = directory.getSearchCount();
+            assertEquals(10, new DirectoryCacheLoader<String>(CACHE_NAME, String.class).loadAll(sids).size());
+            assertEquals(searches + 2, directory.getSearchCount());
+        } finally {
+            tokenRegistry.destroy();
+            ehCm.destroyCache(CACHE_NAME);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void readThroughRequiresLoaderTest() throws Exception {
+
+        CacheManager ehCm = Caching.getCachingProvider("org.ehcache.jsr107.EhcacheCachingProvider").getCacheManager();
+        Cache<String, String> cache = ehCm.createCache(CACHE_NAME, new MutableConfiguration<String, String>().setTypes(
+                String.class, String.class));
+
+        CachingADTokenGroupsRegistry tokenRegistry = new CachingADTokenGroupsRegistry();
+        tokenRegistry.setLdapConnectionFactory(directory.newConnectionFactory());
+        tokenRegistry.setBaseDN(EmbeddedDirectory.BASE_DN);
+        tokenRegistry.setCache(cache);
+        tokenRegistry.setReadThrough(true);
+        try {
+            tokenRegistry.afterPropertiesSet();
+        } finally {
+            ehCm.destroyCache(CACHE_NAME);
+        }
+    }
+
+    @Test
+    public void builtInCacheTest() throws Exception {
+
+        directory.generate(200, 10, 13);
+        CachingADTokenGroupsRegistry tokenRegistry = new CachingADTokenGroupsRegistry();
+        tokenRegistry.setLdapConnectionFactory(directory.newConnectionFactory());
+        tokenRegistry.setBaseDN(EmbeddedDirectory.BASE_DN);
+        tokenRegistry.setBuiltInCache(true);
+        tokenRegistry.setMaxElements(50);
+        tokenRegistry.setReverseCache(true);
+        tokenRegistry.afterPropertiesSet();
+
+        try {
+            final int[] rids = directory.getTokenGroupRids(0);
+            assertEquals(groupDns(rids), new HashSet<String>(tokenRegistry.getGroupDnsForUser(EmbeddedDirectory.userDn(0))));
+            long searches = directory.getSearchCount();
+            assertEquals(groupDns(rids), new HashSet<String>(tokenRegistry.getGroupDnsForUser(EmbeddedDirectory.userDn(0))));
+            assertEquals(searches + 1, directory.getSearchCount());
+
+            // Reverse lookups are served by the reverse entries
+            searches = directory.getSearchCount();
+            assertArrayEquals(EmbeddedDirectory.groupToken(rids[0]), tokenRegistry.getTokenFromDn(EmbeddedDirectory.groupDn(
+                    rids[0])));
+            assertEquals(searches, directory.getSearchCount());
+
+            // Cache stays bounded while resolving every group
+            for (int i = 0; i < 200; i++) {
+                final int rid = EmbeddedDirectory.FIRST_GROUP_RID + i;
+                assertEquals(EmbeddedDirectory.groupDn(rid), tokenRegistry.getDnFromToken(EmbeddedDirectory.groupToken(rid)));
+            }
+            assertTrue(tokenRegistry.getEvictionCount() >= 150);
+        } finally {
+            tokenRegistry.destroy();
+        }
+    }
+
+    @Test
+    public void refreshAheadTest() throws Exception {
+
+        directory.generate(20, 1, 17);
+        CachingADTokenGroupsRegistry tokenRegistry = new CachingADTokenGroupsRegistry();
+        tokenRegistry.setLdapConnectionFactory(directory.newConnectionFactory());
+        tokenRegistry.setBaseDN(EmbeddedDirectory.BASE_DN);
+        tokenRegistry.setBuiltInCache(true);
+        tokenRegistry.setMaxElements(10);
+        tokenRegistry.setTimeToLive(2);
+        tokenRegistry.setRefreshAheadFactor(0.5);
+        tokenRegistry.afterPropertiesSet();
+
+        try {
+            final int rid = EmbeddedDirectory.FIRST_GROUP_RID;
+            assertEquals(EmbeddedDirectory.groupDn(rid), tokenRegistry.getDnFromToken(EmbeddedDirectory.groupToken(rid)));
+            final long searches = directory.getSearchCount();
+
+            // Hit before the refresh time : served from cache, no reload
+            assertEquals(EmbeddedDirectory.groupDn(rid), tokenRegistry.getDnFromToken(EmbeddedDirectory.groupToken(rid)));
+            assertEquals(searches, directory.getSearchCount());
+
+            // Hit within the last half of time to live : served from cache and reloaded in background, once
+            Thread.sleep(1200);
+            assertEquals(EmbeddedDirectory.groupDn(rid), tokenRegistry.getDnFromToken(EmbeddedDirectory.groupToken(rid)));
+            assertEquals(EmbeddedDirectory.groupDn(rid), tokenRegistry.getDnFromToken(EmbeddedDirectory.groupToken(rid)));
+            await(() -> directory.getSearchCount() == searches + 1);
+
+            // Initial time to live has elapsed, but the element has been renewed
+            Thread.sleep(1000);
+            assertEquals(EmbeddedDirectory.groupDn(rid), tokenRegistry.getDnFromToken(EmbeddedDirectory.groupToken(rid)));
+            assertTrue(directory.getSearchCount() <= searches + 2);
+        } finally {
+            tokenRegistry.destroy();
+        }
+    }
+
+    @Test
+    public void refreshAheadBeyondMaxElementsTest() throws Exception {
+
+        directory.generate(150, 1, 17);
+        CacheManager ehCm = Caching.getCachingProvider("org.ehcache.jsr107.EhcacheCachingProvider").getCacheManager();
+        Cache<String, String> cache = ehCm.createCache(CACHE_NAME, new MutableConfiguration<String, String>().setTypes(
+                String.class, String.class));
+
+        // maxElements (100) does not bound a provided cache : every hot SID must keep its refresh time
+        CachingADTokenGroupsRegistry tokenRegistry = new CachingADTokenGroupsRegistry();
+        tokenRegistry.setLdapConnectionFactory(directory.newConnectionFactory());
+        tokenRegistry.setBaseDN(EmbeddedDirectory.BASE_DN);
+        tokenRegistry.setCache(cache);
+        tokenRegistry.setTimeToLive(4);
+        tokenRegistry.setRefreshAheadFactor(0.5);
+        tokenRegistry.afterPropertiesSet();
+
+        try {
+            final List<byte[]> tokens = new ArrayList<byte[]>();
+            for (int i = 0; i < 150; i++) {
+                tokens.add(EmbeddedDirectory.groupToken(EmbeddedDirectory.FIRST_GROUP_RID + i));
+            }
+            assertEquals(150, tokenRegistry.getDnsFromTokens(tokens).size());
+            final long searches = directory.getSearchCount();
+
+            // Hits within the last half of time to live : each SID is reloaded in background
+            Thread.sleep(2200);
+            for (int i = 0; i < 150; i++) {
+                final int rid = EmbeddedDirectory.FIRST_GROUP_RID + i;
+                assertEquals(EmbeddedDirectory.groupDn(rid), tokenRegistry.getDnFromToken(EmbeddedDirectory.groupToken(rid)));
+            }
+            await(() -> directory.getSearchCount() == searches + 150);
+        } finally {
+            tokenRegistry.destroy();
+            ehCm.destroyCache(CACHE_NAME);
+        }
+    }
+
+    @Test
+    public void wellKnownSidsFromDirectoryTest() throws Exception {
+
+        directory.generate(5, 0, 3);
+        final String administrators = directory.addBuiltinGroup("S-1-5-32-544", "Administrateurs");
+        final String everyone = directory.addWellKnownPrincipal("S-1-1-0", "Tout le monde");
+        final WellKnownSidTable table = new WellKnownSidTable();
+        table.setLoadFromDirectory(true);
+
+        // BUILTIN groups and well-known principals lie outside of an organizational unit base DN
+        SimpleADTokenGroupsRegistry tokenRegistry = new SimpleADTokenGroupsRegistry();
+        tokenRegistry.setLdapConnectionFactory(directory.newConnectionFactory());
+        tokenRegistry.setBaseDN(EmbeddedDirectory.GROUPS_DN);
+        tokenRegistry.setWellKnownSidTable(table);
+        tokenRegistry.afterPropertiesSet();
+
+        try {
+            final long searches = directory.getSearchCount();
+            assertEquals(administrators, tokenRegistry.getDnFromToken(SecurityIdentifier.toBytes("S-1-5-32-544")));
+            assertEquals(everyone, tokenRegistry.getDnFromToken(SecurityIdentifier.toBytes("S-1-1-0")));
+            // Not found in the directory : configured DN is kept
+            assertEquals("CN=Users,CN=Builtin," + EmbeddedDirectory.BASE_DN, tokenRegistry.getDnFromToken(SecurityIdentifier
+                    .toBytes("S-1-5-32-545")));
+            assertEquals(searches, directory.getSearchCount());
+
+            final int rid = EmbeddedDirectory.FIRST_GROUP_RID;
+            assertEquals(EmbeddedDirectory.groupDn(rid), tokenRegistry.getDnFromToken(EmbeddedDirectory.groupToken(rid)));
+        } finally {
+            tokenRegistry.destroy();
+        }
+    }
+
+    @Test
+    public void compactDnsTest() throws Exception {
+
+        directory.generate(100, 10, 17);
+        CachingADTokenGroupsRegistry tokenRegistry = new CachingADTokenGroupsRegistry();
+        tokenRegistry.setLdapConnectionFactory(directory.newConnectionFactory());
+        tokenRegistry.setBaseDN(EmbeddedDirectory.BASE_DN);
+        tokenRegistry.setBuiltInCache(true);
+        tokenRegistry.setCompactDns(true);
+        tokenRegistry.setStaleCacheSize(100);
+        tokenRegistry.setReverseCache(true);
+        tokenRegistry.afterPropertiesSet();
+
+        try {
+            final int[] rids = directory.getTokenGroupRids(0);
+            for (int i = 0; i < 2; i++) {
+                assertEquals(groupDns(rids), new HashSet<String>(tokenRegistry.getGroupDnsForUser(EmbeddedDirectory.userDn(0))));
+            }
+            long searches = directory.getSearchCount();
+            assertArrayEquals(EmbeddedDirectory.groupToken(rids[0]), tokenRegistry.getTokenFromDn(EmbeddedDirectory.groupDn(
+                    rids[0])));
+            assertEquals(searches, directory.getSearchCount());
+
+            // Stale values are materialized too
+            final int rid = EmbeddedDirectory.FIRST_GROUP_RID + 99;
+            assertEquals(EmbeddedDirectory.groupDn(rid), tokenRegistry.getDnFromToken(EmbeddedDirectory.groupToken(rid)));
+            tokenRegistry.onResync();
+            directory.setFailureRate(1);
+            assertEquals(EmbeddedDirectory.groupDn(rid), tokenRegistry.getDnFromToken(EmbeddedDirectory.groupToken(rid)));
+        } finally {
+            directory.setFailureRate(0);
+            tokenRegistry.destroy();
+        }
+    }
+
+    @Test
+    public void offHeapPreloadTest() throws Exception {
+
+        directory.generate(300, 0, 19);
+        PreloadedADTokenGroupsRegistry tokenRegistry = new PreloadedADTokenGroupsRegistry();
+        tokenRegistry.setLdapConnectionFactory(directory.newConnectionFactory());
+        tokenRegistry.setBaseDN(EmbeddedDirectory.BASE_DN);
+        tokenRegistry.setSyncPeriod(0);
+        tokenRegistry.setOffHeap(true);
+        tokenRegistry.setArenaSize(4096);
+        tokenRegistry.afterPropertiesSet();
+
+        try {
+            assertEquals(300, tokenRegistry.getIndexSize());
+            assertTrue(tokenRegistry.getOffHeapSize() >= 2 * 4096);
+            final long searches = directory.getSearchCount();
+            for (int i = 0; i < 300; i++) {
+                final int rid = EmbeddedDirectory.FIRST_GROUP_RID + i;
+                assertEquals(EmbeddedDirectory.groupDn(rid), tokenRegistry.getDnFromToken(EmbeddedDirectory.groupToken(rid)));
+                assertArrayEquals(EmbeddedDirectory.groupToken(rid), tokenRegistry.getTokenFromDn(EmbeddedDirectory.groupDn(rid)));
+            }
+            assertEquals(searches, directory.getSearchCount());
+
+            // Reload publishes a new off heap index
+            directory.addGroup(EmbeddedDirectory.FIRST_GROUP_RID + 300);
+            tokenRegistry.synchronize();
+            assertEquals(301, tokenRegistry.getIndexSize());
+            assertEquals(EmbeddedDirectory.groupDn(EmbeddedDirectory.FIRST_GROUP_RID + 300), tokenRegistry.getDnFromToken(
+                    EmbeddedDirectory.groupToken(EmbeddedDirectory.FIRST_GROUP_RID + 300)));
+        } finally {
+            tokenRegistry.destroy();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void builtInCacheExclusiveTest() throws Exception {
+
+        CachingADTokenGroupsRegistry tokenRegistry = new CachingADTokenGroupsRegistry();
+        tokenRegistry.setLdapConnectionFactory(directory.newConnectionFactory());
+        tokenRegistry.setBaseDN(EmbeddedDirectory.BASE_DN);
+        tokenRegistry.setBuiltInCache(true);
+        tokenRegistry.setDistributedLoad(true);
+        tokenRegistry.afterPropertiesSet();
+    }
+
+    /**
+     * Waits up to 5 seconds for a condition
+     */
+    private static void await(final BooleanSupplier condition) throws InterruptedException {
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue("Condition not met within 5s", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static GroupRecord group(final int rid) {
+
+        final Map<String, List<String>> attributes = new LinkedHashMap<String, List<String>>();
+        attributes.put("cn", Collections.singletonList("Group " + rid));
+        attributes.put("description", Collections.<String> emptyList());
+        return new GroupRecord(EmbeddedDirectory.groupDn(rid), attributes);
+    }
+
+}
@@ -0,0 +1,103 @@
+package net.archigny.utils.ad.impl;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+
+import javax.cache.Cache;
+import javax.cache.CacheManager;
+import javax.cache.Caching;
+import javax.cache.configuration.MutableConfiguration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NearRegistryCacheTest {
+
+    public final static String        CACHE_NAME = "net.archigny.utils.ad.impl.nearregistrycachetest";
+
+    public final static SidKey        SID_1      = SidKey.parse("S-1-5-21-4134179593-3124312333-3049290520-1001");
+
+    public final static SidKey        SID_2      = SidKey.parse("S-1-5-21-4134179593-3124312333-3049290520-1002");
+
+    public final static SidKey        SID_3      = SidKey.parse("S-1-5-21-4134179593-3124312333-3049290520-1003");
+
+    private CacheManager              cm;
+
+    private Cache<String, String>     cache;
+
+    private NearRegistryCache<String> nearCache;
+
+    @Before
+    public void setUp() throws Exception {
+
+        cm = Caching.getCachingProvider("org.ehcache.jsr107.EhcacheCachingProvider").getCacheManager();
+        cache = cm.createCache(CACHE_NAME, new MutableConfiguration<String, String>().setTypes(String.class, String.class));
+        nearCache = new NearRegistryCache<String>(JCacheRegistryCache.ofStringKeys(cache), 2, 60000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+
+        nearCache.close();
+        cm.destroyCache(CACHE_NAME);
+    }
+
+    @Test
+    public void localHitTest() throws Exception {
+
+        nearCache.put(SID_1, "cn=Stark");
+        assertEquals("cn=Stark", cache.get(SID_1.toString()));
+        assertEquals("cn=Stark", nearCache.getLocal(SID_1));
+
+        // Filled from L2
+        cache.put(SID_2.toString(), "cn=Lannister");
+        Map<SidKey, String> values = nearCache.getAll(new HashSet<SidKey>(Arrays.asList(SID_1, SID_2, SID_3)));
+        assertEquals(2, values.size());
+        assertEquals("cn=Lannister", values.get(SID_2));
+        assertEquals(2, nearCache.localSize());
+
+        // Bounded, the entry used more often is kept
+        nearCache.put(SID_3, "cn=Targaryen");
+        assertEquals(2, nearCache.localSize());
+        assertEquals("cn=Stark", nearCache.getLocal(SID_1));
+        assertNull(nearCache.getLocal(SID_2));
+    }
+
+    @Test
+    public void invalidationTest() throws Exception {
+
+        nearCache.put(SID_1, "cn=Stark");
+        nearCache.put(SID_2, "cn=Lannister");
+
+        // Changes made by another member of the shared cache
+        cache.put(SID_1.toString(), "cn=Stark,ou=North");
+        cache.remove(SID_2.toString());
+
+        // Listeners are asynchronous
+        long deadline = System.currentTimeMillis() + 5000;
+        while (nearCache.localSize() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("cn=Stark,ou=North", nearCache.get(SID_1));
+        assertNull(nearCache.get(SID_2));
+    }
+
+    @Test
+    public void expirationTest() throws Exception {
+
+        nearCache.close();
+        nearCache = new NearRegistryCache<String>(JCacheRegistryCache.ofStringKeys(cache), 10, 50);
+
+        nearCache.put(SID_1, "cn=Stark");
+        assertEquals("cn=Stark", nearCache.getLocal(SID_1));
+
+        Thread.sleep(100);
+        assertNull(nearCache.getLocal(SID_1));
+        assertEquals("cn=Stark", nearCache.get(SID_1));
+    }
+
+}
@@ -0,0 +1,144 @@
+package net.archigny.utils.ad.impl;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class OffHeapSidStoreTest {
+
+    private static SidKey sid(final int rid) {
+
+        return SidKey.of(EmbeddedDirectory.groupToken(rid));
+    }
+
+    private static String dn(final int rid) {
+
+        return "CN=Group " + rid + ",OU=Groupes,DC=example,DC=com";
+    }
+
+    @Test
+    public void storeTest() throws Exception {
+
+        OffHeapSidStore store = new OffHeapSidStore(1024, AbstractADTokenGroupsRegistry::normalizeDn);
+        for (int rid = 0; rid < 10000; rid++) {
+            store.put(sid(rid), dn(rid));
+        }
+        assertEquals(10000, store.size());
+        // Records are spread over several arenas
+        assertTrue(store.getOffHeapSize() > 100 * 1024);
+        for (int rid = 0; rid < 10000; rid++) {
+            assertEquals(dn(rid), store.get(sid(rid)));
+        }
+        assertNull(store.get(sid(10000)));
+
+        // Reverse lookups use normalized DNs
+        assertArrayEquals(sid(42).getBytes(), store.getSid("cn=group 42,ou=groupes,dc=example,dc=com"));
+        assertNull(store.getSid("cn=group 10000,ou=groupes,dc=example,dc=com"));
+
+        // Renamed entry
+        store.put(sid(42), "CN=Renamed é,OU=Groupes,DC=example,DC=com");
+        assertEquals("CN=Renamed é,OU=Groupes,DC=example,DC=com", store.get(sid(42)));
+        assertNull(store.getSid("cn=group 42,ou=groupes,dc=example,dc=com"));
+        assertArrayEquals(sid(42).getBytes(), store.getSid("cn=renamed é,ou=groupes,dc=example,dc=com"));
+        assertEquals(10000, store.size());
+
+        assertTrue(store.remove(sid(42)));
+        assertFalse(store.remove(sid(42)));
+        assertNull(store.get(sid(42)));
+        assertNull(store.getSid("cn=renamed é,ou=groupes,dc=example,dc=com"));
+        assertEquals(9999, store.size());
+
+        final Map<SidKey, String> entries = new HashMap<SidKey, String>();
+        store.forEach(entries::put);
+        assertEquals(9999, entries.size());
+        assertEquals(dn(7), entries.get(sid(7)));
+
+        store.clear();
+        assertEquals(0, store.size());
+        assertNull(store.get(sid(7)));
+        assertNull(new OffHeapSidStore(1024, null).getSid("cn=group 7,ou=groupes,dc=example,dc=com"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void recordTooLargeTest() throws Exception {
+
+        new OffHeapSidStore(1024, null).put(sid(1), "CN=" + new String(new char[1024]).replace('\0', 'x') + ",DC=com");
+    }
+
+    /**
+     * Garbage left by updates is reclaimed
+     */
+    @Test
+    public void compactionTest() throws Exception {
+
+        OffHeapSidStore store = new OffHeapSidStore(4096, AbstractADTokenGroupsRegistry::normalizeDn);
+        for (int round = 0; round < 50; round++) {
+            for (int rid = 0; rid < 1000; rid++) {
+                store.put(sid(rid), dn(rid + round));
+            }
+        }
+        assertEquals(1000, store.size());
+        assertTrue("Off heap size : " + store.getOffHeapSize(), store.getOffHeapSize() < 4 * 1000 * 64);
+        for (int rid = 0; rid < 1000; rid++) {
+            assertEquals(dn(rid + 49), store.get(sid(rid)));
+        }
+        assertArrayEquals(sid(0).getBytes(), store.getSid("cn=group 49,ou=groupes,dc=example,dc=com"));
+    }
+
+    /**
+     * Readers never see a partially written entry while a writer updates, removes and compacts
+     */
+    @Test
+    public void concurrencyTest() throws Exception {
+
+        final OffHeapSidStore store = new OffHeapSidStore(4096, null);
+        for (int rid = 0; rid < 1000; rid++) {
+            store.put(sid(rid), dn(rid));
+        }
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        final List<Thread> readers = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            readers.add(new Thread(() -> {
+                try {
+                    while (running.get()) {
+                        for (int rid = 0; rid < 1000; rid++) {
+                            final String value = store.get(sid(rid));
+                            if (value != null && !value.startsWith("CN=Group " + rid + ",")) {
+                                throw new AssertionError("Unexpected DN for " + rid + " : " + value);
+                            }
+                        }
+                    }
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            }));
+        }
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        for (int round = 0; round < 20; round++) {
+            for (int rid = 0; rid < 1000; rid++) {
+                if (rid % 7 == round % 7) {
+                    store.remove(sid(rid));
+                } else {
+                    store.put(sid(rid), dn(rid) + ",OU=Round " + round);
+                }
+            }
+        }
+        running.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertTrue(failures.toString(), failures.isEmpty());
+    }
+
+}
@@ -0,0 +1,66 @@
+package net.archigny.utils.ad.impl;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import javax.naming.ldap.LdapName;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.ldaptive.ad.SecurityIdentifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class PreloadedADTokenGroupsRegistryTest {
+
+    /** Groups search base */
+    public final static String GROUPS_BASE_DN = "ou=Groupes," + SimpleADTokenGroupsRegistryTest.BASE_DN;
+
+    public final Logger        log            = LoggerFactory.getLogger(PreloadedADTokenGroupsRegistryTest.class);
+
+    @Before
+    public void setUp() throws Exception {
+
+        // Reuse connection factory of simple registry tests
+        new SimpleADTokenGroupsRegistryTest().setUp();
+    }
+
+    @Test
+    public void preloadTest() throws Exception {
+
+        PreloadedADTokenGroupsRegistry tokenRegistry = new PreloadedADTokenGroupsRegistry();
+        tokenRegistry.setLdapConnectionFactory(SimpleADTokenGroupsRegistryTest.ldapConnectionFactory);
+        tokenRegistry.setBaseDN(GROUPS_BASE_DN);
+        tokenRegistry.setPageSize(2); // forces several pages
+        tokenRegistry.setSyncPeriod(0); // no background synchronization
+        tokenRegistry.afterPropertiesSet();
+
+        try {
+            log.debug("Groups index size : {}, highest USN : {}", tokenRegistry.getIndexSize(), tokenRegistry.getHighestUsn());
+            assertTrue(tokenRegistry.getIndexSize() >= 5);
+            assertTrue(tokenRegistry.getHighestUsn() > 0);
+
+            assertEquals(new LdapName(SimpleADTokenGroupsRegistryTest.GROUP_2_NAME),
+                    new LdapName(tokenRegistry.getDnFromToken(SimpleADTokenGroupsRegistryTest.TOKEN_2)));
+
+            // Builtin group is outside of search base
+            assertNull(tokenRegistry.getDnFromToken(SimpleADTokenGroupsRegistryTest.TOKEN_1));
+
+            Map<String, String> groups = tokenRegistry.getDnsFromTokens(Arrays.asList(SimpleADTokenGroupsRegistryTest.TOKEN_3,
+                    SimpleADTokenGroupsRegistryTest.TOKEN_7));
+            assertEquals(new LdapName(SimpleADTokenGroupsRegistryTest.GROUP_7_NAME),
+                    new LdapName(groups.get(SecurityIdentifier.toString(SimpleADTokenGroupsRegistryTest.TOKEN_7))));
+
+            // Delta synchronization keeps the index
+            long usn = tokenRegistry.getHighestUsn();
+            tokenRegistry.synchronize();
+            assertTrue(tokenRegistry.getHighestUsn() >= usn);
+            assertNotNull(tokenRegistry.getDnFromToken(SimpleADTokenGroupsRegistryTest.TOKEN_3));
+        } finally {
+            tokenRegistry.destroy();
+        }
+    }
+
+}
@@ -0,0 +1,143 @@
+package net.archigny.utils.ad.impl;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import net.archigny.utils.ad.api.IRegistryMetricsListener;
+
+import org.junit.Test;
+import org.ldaptive.LdapException;
+import org.ldaptive.ad.SecurityIdentifier;
+
+public class RegistryMetricsTest {
+
+    public final static String BASE_DN     = "DC=TEST,DC=CH-POITIERS,DC=FR";
+
+    public final static String MBEAN_NAME  = "net.archigny.utils.ad:type=RegistryMetrics,name=test";
+
+    public final static String TOKEN       = "S-1-5-21-4134179593-3124312333-3049290500-1105";
+
+    @Test
+    public void histogramTest() {
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(50), 0);
+        assertEquals(0, histogram.getMean(), 0);
+
+        // 98 operations of 3ms, 2 of 1s
+        for (int i = 0; i < 98; i++) {
+            histogram.record(3000000L);
+        }
+        histogram.record(1000000000L);
+        histogram.record(1000000000L);
+
+        assertEquals(100, histogram.getCount());
+        // 3000µs is in [2048, 4096[
+        assertEquals(98, histogram.getCounts()[11]);
+        // 1000000µs is in [524288, 1048576[
+        assertEquals(2, histogram.getCounts()[19]);
+        assertEquals(4.096, histogram.getPercentile(50), 0.0001);
+        assertEquals(1048.576, histogram.getPercentile(99), 0.0001);
+        assertEquals(22.94, histogram.getMean(), 0.0001);
+
+        // Out of range values go to first and last buckets
+        histogram.record(0);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(1, histogram.getCounts()[0]);
+        assertEquals(1, histogram.getCounts()[LatencyHistogram.BUCKETS - 1]);
+    }
+
+    @Test
+    public void listenersTest() {
+
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        IRegistryMetricsListener listener = new IRegistryMetricsListener() {
+
+            @Override
+            public void onHit() {
+
+                hits.incrementAndGet();
+            }
+
+            @Override
+            public void onLdapOperation(long nanos, boolean failed) {
+
+                if (failed) {
+                    failures.incrementAndGet();
+                }
+            }
+        };
+
+        RegistryMetrics metrics = new RegistryMetrics();
+        metrics.hit();
+        metrics.addListener(listener);
+        metrics.hit();
+        metrics.miss();
+        metrics.ldapOperation(1000000L, true);
+        metrics.ldapOperation(1000000L, false);
+
+        assertEquals(1, hits.get());
+        assertEquals(1, failures.get());
+        assertEquals(2, metrics.getHitCount());
+        assertEquals(2, metrics.getLdapOperationCount());
+        assertEquals(1, metrics.getLdapFailureCount());
+        assertEquals(2.0 / 3, metrics.getHitRatio(), 0.0001);
+
+        metrics.removeListener(listener);
+        metrics.hit();
+        assertEquals(1, hits.get());
+
+        metrics.setListeners(Arrays.asList(listener, listener));
+        metrics.hit();
+        assertEquals(3, hits.get());
+
+        // A failing listener neither fails the lookup nor prevents other listeners from being notified
+        IRegistryMetricsListener failing = new IRegistryMetricsListener() {
+
+            @Override
+            public void onHit() {
+
+                throw new IllegalStateException("Listener failure");
+            }
+        };
+        metrics.setListeners(Arrays.asList(failing, listener));
+        metrics.hit();
+        assertEquals(4, hits.get());
+        assertEquals(5, metrics.getHitCount());
+    }
+
+    @Test
+    public void jmxTest() throws Exception {
+
+        SimpleADTokenGroupsRegistry tokenRegistry = new SimpleADTokenGroupsRegistry();
+        tokenRegistry.setLdapConnectionFactory(() -> {
+            throw new LdapException("No directory");
+        });
+        tokenRegistry.setBaseDN(BASE_DN);
+        tokenRegistry.setMbeanName(MBEAN_NAME);
+        tokenRegistry.afterPropertiesSet();
+
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName(MBEAN_NAME);
+        try {
+            assertTrue(server.isRegistered(name));
+
+            // Directory is down : the lookup is a miss and a failed operation
+            assertNull(tokenRegistry.getDnFromToken(SecurityIdentifier.toBytes(TOKEN)));
+            assertEquals(1L, server.getAttribute(name, "MissCount"));
+            assertEquals(1L, server.getAttribute(name, "LdapOperationCount"));
+            assertEquals(1L, server.getAttribute(name, "LdapFailureCount"));
+        } finally {
+            tokenRegistry.destroy();
+        }
+        assertFalse(server.isRegistered(name));
+    }
+
+}
@@ -0,0 +1,263 @@
+package net.archigny.utils.ad.impl;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.archigny.utils.ad.api.IActiveDirectoryTokenGroupsRegistry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.ldaptive.LdapAttribute;
+import org.ldaptive.LdapEntry;
+import org.ldaptive.SortBehavior;
+import org.ldaptive.ad.SecurityIdentifier;
+
+public class RoutingADTokenGroupsRegistryTest {
+
+    public final static String           DOMAIN_1 = "S-1-5-21-1000-2000-3000";
+
+    public final static String           DOMAIN_2 = "S-1-5-21-1000-2000-3001";
+
+    public final static String           OTHER    = "S-1-5-21-1000-2000-3002";
+
+    private StubRegistry                 registry1;
+
+    private StubRegistry                 registry2;
+
+    private StubRegistry                 globalCatalog;
+
+    private RoutingADTokenGroupsRegistry routingRegistry;
+
+    @Before
+    public void setUp() throws Exception {
+
+        registry1 = new StubRegistry("cn=Group,dc=domain1");
+        registry2 = new StubRegistry("cn=Group,dc=domain2");
+        globalCatalog = new StubRegistry("cn=Group,dc=gc");
+
+        Map<String, IActiveDirectoryTokenGroupsRegistry> domains = new LinkedHashMap<String, IActiveDirectoryTokenGroupsRegistry>();
+        domains.put(DOMAIN_1, registry1);
+        domains.put(DOMAIN_2, registry2);
+
+        routingRegistry = new RoutingADTokenGroupsRegistry();
+        routingRegistry.setDomainRegistries(domains);
+        routingRegistry.setFallbackRegistry(globalCatalog);
+        routingRegistry.afterPropertiesSet();
+    }
+
+    @Test
+    public void routingTest() throws Exception {
+
+        assertEquals("cn=Group,dc=domain1", routingRegistry.getDnFromToken(SecurityIdentifier.toBytes(DOMAIN_1 + "-1105")));
+        assertEquals("cn=Group,dc=domain2", routingRegistry.getDnFromToken(SecurityIdentifier.toBytes(DOMAIN_2 + "-1105")));
+        assertEquals("cn=Group,dc=gc", routingRegistry.getDnFromToken(SecurityIdentifier.toBytes(OTHER + "-1105")));
+        assertEquals("cn=Group,dc=domain1", routingRegistry.getDnFromTokenAsync(SecurityIdentifier.toBytes(DOMAIN_1 + "-1106"))
+                .get());
+        assertNull(routingRegistry.getDnFromToken(new byte[] { 1, 2, 3 }));
+    }
+
+    @Test
+    public void longestPrefixTest() throws Exception {
+
+        StubRegistry registry3 = new StubRegistry("cn=Group,dc=domain3");
+        Map<String, IActiveDirectoryTokenGroupsRegistry> domains = new LinkedHashMap<String, IActiveDirectoryTokenGroupsRegistry>();
+        domains.put("S-1-5-21", registry3);
+        domains.put(DOMAIN_1, registry1);
+
+        RoutingADTokenGroupsRegistry registry = new RoutingADTokenGroupsRegistry();
+        registry.setDomainRegistries(domains);
+        registry.afterPropertiesSet();
+
+        assertEquals("cn=Group,dc=domain1", registry.getDnFromToken(SecurityIdentifier.toBytes(DOMAIN_1 + "-1105")));
+        assertEquals("cn=Group,dc=domain3", registry.getDnFromToken(SecurityIdentifier.toBytes(OTHER + "-1105")));
+        // No fallback
+        assertNull(registry.getDnFromToken(SecurityIdentifier.toBytes("S-1-5-32-545")));
+    }
+
+    @Test
+    public void parallelFanOutTest() throws Exception {
+
+        // Each domain registry waits for the other one : batches must be resolved in parallel
+        CountDownLatch latch = new CountDownLatch(2);
+        registry1.latch = latch;
+        registry2.latch = latch;
+
+        List<byte[]> tokens = new ArrayList<byte[]>();
+        for (int i = 0; i < 3; i++) {
+            tokens.add(SecurityIdentifier.toBytes(DOMAIN_1 + "-" + (1100 + i)));
+            tokens.add(SecurityIdentifier.toBytes(DOMAIN_2 + "-" + (1100 + i)));
+        }
+        tokens.add(SecurityIdentifier.toBytes(OTHER + "-1100"));
+
+        Map<String, String> groups = routingRegistry.getDnsFromTokens(tokens);
+        assertEquals(7, groups.size());
+        assertEquals("cn=Group,dc=domain2", groups.get(DOMAIN_2 + "-1101"));
+        assertEquals("cn=Group,dc=gc", groups.get(OTHER + "-1100"));
+
+        // One batch per registry
+        assertEquals(Arrays.asList(3), registry1.batchSizes);
+        assertEquals(Arrays.asList(3), registry2.batchSizes);
+        assertEquals(Arrays.asList(1), globalCatalog.batchSizes);
+    }
+
+    @Test
+    public void partialFailureTest() throws Exception {
+
+        // A failing domain leaves its SIDs unresolved, other batches are still resolved
+        registry2.failure = new IllegalStateException("Domain 2 unavailable");
+
+        List<byte[]> tokens = new ArrayList<byte[]>();
+        tokens.add(SecurityIdentifier.toBytes(DOMAIN_1 + "-1100"));
+        tokens.add(SecurityIdentifier.toBytes(DOMAIN_2 + "-1100"));
+        tokens.add(SecurityIdentifier.toBytes(OTHER + "-1100"));
+
+        Map<String, String> groups = routingRegistry.getDnsFromTokens(tokens);
+        assertEquals(2, groups.size());
+        assertEquals("cn=Group,dc=domain1", groups.get(DOMAIN_1 + "-1100"));
+        assertEquals("cn=Group,dc=gc", groups.get(OTHER + "-1100"));
+        assertEquals(2, routingRegistry.getDnsFromTokensAsync(tokens).get().size());
+    }
+
+    @Test
+    public void userGroupsTest() throws Exception {
+
+        // tokenGroups are fetched by the registry of the user domain
+        assertEquals(Arrays.asList("cn=Group,dc=domain2"), routingRegistry.getGroupDnsForUser("cn=User,ou=People,DC=Domain2"));
+        assertEquals(Arrays.asList("cn=Group,dc=gc"), routingRegistry.getGroupDnsForUser("cn=User,dc=other"));
+
+        // Values are resolved by the registry of their domain, in order and without duplicates
+        LdapAttribute tokenGroups = new LdapAttribute(SortBehavior.ORDERED, true);
+        tokenGroups.setName("tokenGroups");
+        tokenGroups.addBinaryValue(SecurityIdentifier.toBytes(DOMAIN_2 + "-1100"), SecurityIdentifier.toBytes(OTHER + "-1100"),
+                SecurityIdentifier.toBytes(DOMAIN_1 + "-1100"), SecurityIdentifier.toBytes(DOMAIN_2 + "-1101"),
+                SecurityIdentifier.toBytes(DOMAIN_1 + "-1100"), new byte[] { 1, 2, 3 });
+        assertEquals(Arrays.asList("cn=Group,dc=domain2", "cn=Group,dc=gc", "cn=Group,dc=domain1"),
+                routingRegistry.getGroupDnsForUser(tokenGroups));
+        assertEquals(Arrays.asList(1), registry1.batchSizes);
+
+        assertTrue(routingRegistry.getGroupDnsForUser(new LdapEntry("cn=User,dc=domain1")).isEmpty());
+    }
+
+    @Test
+    public void reverseRoutingTest() throws Exception {
+
+        assertEquals("dc=domain1", new String(routingRegistry.getTokenFromDn("CN=Group, DC=Domain1")));
+        assertEquals("dc=gc", new String(routingRegistry.getTokenFromDn("cn=Group,dc=other")));
+        assertNull(routingRegistry.getTokenFromDn("not a DN"));
+    }
+
+    /**
+     * Registry resolving any SID to the same DN
+     */
+    private static class StubRegistry implements IActiveDirectoryTokenGroupsRegistry {
+
+        private final String        groupDN;
+
+        private final List<Integer> batchSizes = new ArrayList<Integer>();
+
+        private CountDownLatch      latch;
+
+        private RuntimeException    failure;
+
+        private StubRegistry(String groupDN) {
+
+            this.groupDN = groupDN;
+        }
+
+        @Override
+        public void setBaseDN(String baseDN) {
+
+        }
+
+        @Override
+        public String getBaseDN() {
+
+            return groupDN.substring(groupDN.indexOf(',') + 1);
+        }
+
+        @Override
+        public String getDnFromToken(String tokenGroup) {
+
+            return groupDN;
+        }
+
+        @Override
+        public String getDnFromToken(byte[] tokenGroup) {
+
+            return groupDN;
+        }
+
+        @Override
+        public byte[] getTokenFromDn(String dn) {
+
+            // Tells which registry has been queried
+            return getBaseDN().getBytes();
+        }
+
+        @Override
+        public Map<String, String> getDnsFromTokens(Collection<byte[]> tokenGroups) {
+
+            synchronized (batchSizes) {
+                batchSizes.add(tokenGroups.size());
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            if (latch != null) {
+                latch.countDown();
+                try {
+                    assertTrue(latch.await(5, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            Map<String, String> result = new HashMap<String, String>();
+            for (byte[] tokenGroup : tokenGroups) {
+                result.put(SecurityIdentifier.toString(tokenGroup), groupDN);
+            }
+            return result;
+        }
+
+        @Override
+        public CompletableFuture<String> getDnFromTokenAsync(byte[] tokenGroup) {
+
+            return CompletableFuture.completedFuture(groupDN);
+        }
+
+        @Override
+        public CompletableFuture<Map<String, String>> getDnsFromTokensAsync(Collection<byte[]> tokenGroups) {
+
+            return CompletableFuture.supplyAsync(() -> getDnsFromTokens(tokenGroups));
+        }
+
+        @Override
+        public List<String> getGroupDnsForUser(String userDn) {
+
+            return Collections.singletonList(groupDN);
+        }
+
+        @Override
+        public List<String> getGroupDnsForUser(LdapEntry userEntry) {
+
+            return Collections.singletonList(groupDN);
+        }
+
+        @Override
+        public List<String> getGroupDnsForUser(LdapAttribute tokenGroups) {
+
+            return Collections.singletonList(groupDN);
+        }
+    }
+
+}
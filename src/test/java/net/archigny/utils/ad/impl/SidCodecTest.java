@@ -0,0 +1,79 @@
+package net.archigny.utils.ad.impl;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+import org.ldaptive.SearchFilter;
+import org.ldaptive.ad.SecurityIdentifier;
+
+public class SidCodecTest {
+
+    public final static String[] SIDS = { "S-1-0-0", "S-1-1-0", "S-1-5-11", "S-1-5-32-545",
+            "S-1-5-21-4134179593-3124312333-3049290500-1105", "S-1-5-21-4294967295-0-1-4294967295", "S-1-16-12288",
+            "S-1-5-21-1-2-3-4-5-6-7-8-9-10-11-12" };
+
+    @Test
+    public void roundTripTest() {
+
+        for (String sid : SIDS) {
+            final byte[] bytes = SecurityIdentifier.toBytes(sid);
+            assertArrayEquals(sid, bytes, SidCodec.toBytes(sid));
+            assertEquals(sid, SidCodec.toString(bytes));
+        }
+
+        // Identifier authority above 2^32 is represented in hexadecimal
+        final byte[] bytes = SidCodec.toBytes("S-1-0x123456789abc-1");
+        assertEquals(0x12, bytes[2]);
+        assertEquals((byte) 0xbc, bytes[7]);
+        assertEquals("S-1-0x123456789abc-1", SidCodec.toString(bytes));
+        assertArrayEquals(SidCodec.toBytes("S-1-5-32-545"), SidCodec.toBytes("s-1-0x5-32-545"));
+    }
+
+    @Test
+    public void invalidTest() {
+
+        for (String sid : new String[] { "", "S-", "S-1", "S-1-5-", "S-2-5-32", "S-1-5-x", "S-1-5-4294967296",
+                "S-1-281474976710656-1", "S-1-5--1", "X-1-5-32", "S-1-5-1-2-3-4-5-6-7-8-9-10-11-12-13-14-15-16" }) {
+            try {
+                SidCodec.toBytes(sid);
+                fail("Invalid SID accepted : " + sid);
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+        try {
+            SidCodec.toString(new byte[] { 1, 2, 3 });
+            fail("Invalid binary SID accepted");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void filterValueTest() {
+
+        final byte[] bytes = SecurityIdentifier.toBytes(SIDS[4]);
+        final SearchFilter filter = new SearchFilter("(objectSid={sid})");
+        filter.setParameter("sid", bytes);
+
+        assertEquals(filter.format().toLowerCase(), ("(objectSid=" + SidCodec.toFilterValue(bytes) + ")").toLowerCase());
+        assertEquals("\\00\\7f\\80\\ff", SidCodec.toFilterValue(new byte[] { 0, 127, -128, -1 }));
+        assertEquals("007f80ff", LdapUtils.toHexString(new byte[] { 0, 127, -128, -1 }));
+        assertEquals("0a", LdapUtils.toHexString((byte) 10));
+    }
+
+    @Test
+    public void tokenTest() {
+
+        assertArrayEquals(SecurityIdentifier.toBytes(SIDS[4]), SidCodec.toToken(SIDS[4]));
+        assertNull(SidCodec.toToken("S-1-5-x"));
+        assertNull(SidCodec.toToken(null));
+
+        // Binary SID held in a String
+        final byte[] bytes = SecurityIdentifier.toBytes(SIDS[4]);
+        assertArrayEquals(bytes, SidCodec.toToken(new String(bytes, StandardCharsets.ISO_8859_1)));
+    }
+
+}
@@ -0,0 +1,60 @@
+package net.archigny.utils.ad.impl;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.ldaptive.ad.SecurityIdentifier;
+
+public class SidKeyTest {
+
+    public final static String SID = "S-1-5-21-4134179593-3124312333-3049290520-1000";
+
+    @Test
+    public void equalityTest() {
+
+        byte[] sid = SecurityIdentifier.toBytes(SID);
+        SidKey key = SidKey.of(sid);
+
+        assertEquals(SidKey.parse(SID), key);
+        assertEquals(Arrays.hashCode(sid), key.hashCode());
+        assertEquals(SID, key.toString());
+        assertNotEquals(SidKey.parse("S-1-5-32-545"), key);
+
+        // Key must not be affected by changes of the source array
+        sid[sid.length - 1]++;
+        assertEquals(SidKey.parse(SID), key);
+        assertArrayEquals(SecurityIdentifier.toBytes(SID), key.getBytes());
+    }
+
+    @Test
+    public void validityTest() {
+
+        assertTrue(SidKey.isValid(SecurityIdentifier.toBytes(SID)));
+        assertTrue(SidKey.isValid(SecurityIdentifier.toBytes("S-1-1-0")));
+        assertFalse(SidKey.isValid(null));
+        assertFalse(SidKey.isValid(new byte[] { 1, 2, 3 }));
+        assertFalse(SidKey.isValid(Arrays.copyOf(SecurityIdentifier.toBytes(SID), 20)));
+    }
+
+    @Test
+    public void startsWithTest() {
+
+        SidKey key = SidKey.parse(SID);
+        assertTrue(key.startsWith(SidKey.parse("S-1-5-21-4134179593-3124312333-3049290520")));
+        assertTrue(key.startsWith(SidKey.parse("S-1-5-21")));
+        assertTrue(key.startsWith(key));
+        assertFalse(key.startsWith(SidKey.parse("S-1-5-21-4134179593-3124312333-3049290521")));
+        assertFalse(key.startsWith(SidKey.parse("S-1-5-32")));
+        assertFalse(key.startsWith(SidKey.parse(SID + "-1")));
+        assertFalse(SidKey.parse("S-1-5-32-545").startsWith(SidKey.parse("S-1-5-32-545-1")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidSidTest() {
+
+        SidKey.of(new byte[] { 1, 5, 0, 0, 0, 0, 0, 5 });
+    }
+
+}
@@ -0,0 +1,72 @@
+package net.archigny.utils.ad.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SidSnapshotTest {
+
+    public final static String DOMAIN_SID = "S-1-5-21-4134179593-3124312333-3049290520-";
+
+    private Path               file;
+
+    @Before
+    public void setUp() throws Exception {
+
+        file = Files.createTempFile("sidsnapshot", ".bin");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void writeAndReadTest() throws Exception {
+
+        Map<SidKey, String> index = new HashMap<SidKey, String>();
+        for (int i = 1000; i < 6000; i++) {
+            index.put(SidKey.parse(DOMAIN_SID + i), "cn=Groupe " + i + " é,ou=Groupes,dc=test,dc=ch-poitiers,dc=fr");
+        }
+        SidSnapshot.write(file, index, 12345L);
+
+        SidSnapshot snapshot = SidSnapshot.open(file);
+        assertEquals(5000, snapshot.size());
+        assertEquals(12345L, snapshot.getGeneration());
+
+        for (Map.Entry<SidKey, String> entry : index.entrySet()) {
+            assertEquals(entry.getValue(), snapshot.get(entry.getKey()));
+        }
+        assertNull(snapshot.get(SidKey.parse(DOMAIN_SID + 513)));
+        assertNull(snapshot.get(SidKey.parse("S-1-5-32-545")));
+
+        Map<SidKey, String> read = new HashMap<SidKey, String>();
+        snapshot.forEach(read::put);
+        assertEquals(index, read);
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptedFileTest() throws Exception {
+
+        Map<SidKey, String> index = new HashMap<SidKey, String>();
+        index.put(SidKey.parse(DOMAIN_SID + 1000), "cn=Stark,ou=Groupes,dc=test,dc=ch-poitiers,dc=fr");
+        SidSnapshot.write(file, index, 1L);
+
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek(raf.length() - 1);
+            raf.write('X');
+        }
+        SidSnapshot.open(file);
+    }
+
+}
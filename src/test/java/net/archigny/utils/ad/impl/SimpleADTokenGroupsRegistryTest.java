@@ -3,6 +3,16 @@ package net.archigny.utils.ad.impl;
 import static org.junit.Assert.*;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.naming.InvalidNameException;
 import javax.naming.ldap.LdapName;
@@ -18,8 +28,10 @@ import org.ldaptive.ConnectionFactory;
 import org.ldaptive.ConnectionInitializer;
 import org.ldaptive.Credential;
 import org.ldaptive.DefaultConnectionFactory;
+import org.ldaptive.LdapAttribute;
 import org.ldaptive.LdapException;
 import org.ldaptive.Response;
+import org.ldaptive.SortBehavior;
 import org.ldaptive.ad.SecurityIdentifier;
 import org.ldaptive.provider.unboundid.UnboundIDProvider;
 import org.ldaptive.provider.unboundid.UnboundIDProviderConfig;
@@ -172,6 +184,83 @@ public class SimpleADTokenGroupsRegistryTest implements ConnectionInitializer {
         }
     }
 
+    @Test
+    public void tokenGroupsAttributeTest() throws Exception {
+
+        final List<Collection<SidKey>> searches = new ArrayList<Collection<SidKey>>();
+        SimpleADTokenGroupsRegistry tokenRegistry = new SimpleADTokenGroupsRegistry() {
+
+            @Override
+            protected Map<SidKey, String> searchTokens(Collection<SidKey> keys, Collection<SidKey> failed) {
+
+                searches.add(new ArrayList<SidKey>(keys));
+                Map<SidKey, String> result = new HashMap<SidKey, String>();
+                result.put(SidKey.of(TOKEN_2), GROUP_2_NAME);
+                result.put(SidKey.of(TOKEN_3), GROUP_3_NAME);
+                result.put(SidKey.of(TOKEN_4), GROUP_4_NAME);
+                result.keySet().retainAll(keys);
+                return result;
+            }
+        };
+        // Directory is never queried
+        tokenRegistry.setLdapConnectionFactory(() -> {
+            throw new LdapException("No directory");
+        });
+        tokenRegistry.setBaseDN(BASE_DN);
+        tokenRegistry.afterPropertiesSet();
+
+        try {
+            LdapAttribute tokenGroups = new LdapAttribute(SortBehavior.ORDERED, true);
+            tokenGroups.setName(AbstractADTokenGroupsRegistry.TOKEN_GROUPS_ATTRIBUTE);
+            tokenGroups.addBinaryValue(TOKEN_4, TOKEN_6, TOKEN_2, TOKEN_3, "test-marchera-pas".getBytes());
+
+            // Values order is kept, unresolved and invalid SIDs are dropped, all SIDs are resolved at once
+            assertEquals(Arrays.asList(GROUP_4_NAME, GROUP_2_NAME, GROUP_3_NAME), tokenRegistry.getGroupDnsForUser(tokenGroups));
+            assertEquals(1, searches.size());
+            assertEquals(4, searches.get(0).size());
+        } finally {
+            tokenRegistry.destroy();
+        }
+    }
+
+    @Test
+    public void concurrentLookupsTest() throws Exception {
+
+        concurrentLookups(AbstractADTokenGroupsRegistry.ConnectionMode.POOLED);
+        concurrentLookups(AbstractADTokenGroupsRegistry.ConnectionMode.THREAD_LOCAL);
+    }
+
+    private void concurrentLookups(AbstractADTokenGroupsRegistry.ConnectionMode mode) throws Exception {
+
+        final SimpleADTokenGroupsRegistry tokenRegistry = new SimpleADTokenGroupsRegistry();
+        tokenRegistry.setLdapConnectionFactory(ldapConnectionFactory);
+        tokenRegistry.setBaseDN(BASE_DN);
+        tokenRegistry.setConnectionMode(mode);
+        tokenRegistry.setMaxPoolSize(4);
+        tokenRegistry.afterPropertiesSet();
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (int i = 0; i < 32; i++) {
+                results.add(executor.submit(new Callable<String>() {
+
+                    @Override
+                    public String call() throws Exception {
+
+                        return tokenRegistry.getDnFromToken(TOKEN_3);
+                    }
+                }));
+            }
+            for (Future<String> result : results) {
+                assertEquals(new LdapName(GROUP_3_NAME), new LdapName(result.get()));
+            }
+        } finally {
+            executor.shutdown();
+            tokenRegistry.destroy();
+        }
+    }
+
     @Override
     public Response<Void> initialize(Connection conn) throws LdapException {
 
@@ -0,0 +1,171 @@
+package net.archigny.utils.ad.impl;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.cache.expiry.Duration;
+import javax.cache.expiry.ExpiryPolicy;
+
+import org.junit.Test;
+
+public class TinyLfuCacheTest {
+
+    public final static ExpiryPolicy ETERNAL = new CreatedAccessedExpiryPolicy(Duration.ETERNAL, null);
+
+    @Test
+    public void boundsTest() throws Exception {
+
+        TinyLfuCache<Integer, String> cache = new TinyLfuCache<Integer, String>(100, 0, String::length, ETERNAL);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, "value " + i);
+        }
+        assertEquals(100, cache.size());
+        assertEquals(900, cache.getEvictionCount());
+
+        // Updates keep the number of entries
+        cache.put(999, "updated");
+        assertTrue(cache.size() <= 100);
+
+        assertTrue(cache.remove(999));
+        assertFalse(cache.remove(999));
+        assertNull(cache.get(999));
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.weight());
+    }
+
+    @Test
+    public void weightTest() throws Exception {
+
+        TinyLfuCache<Integer, String> cache = new TinyLfuCache<Integer, String>(100, 50, String::length, ETERNAL);
+        for (int i = 0; i < 10; i++) {
+            cache.put(i, "0123456789");
+        }
+        assertEquals(5, cache.size());
+        assertEquals(50, cache.weight());
+
+        // Heavier than the whole cache
+        cache.put(100, new String(new char[51]));
+        assertNull(cache.get(100));
+        assertEquals(50, cache.weight());
+
+        // Single stripe : any value up to maxWeight is stored
+        assertEquals(50, cache.getMaxEntryWeight());
+        cache.put(101, new String(new char[50]));
+        assertNotNull(cache.get(101));
+
+        // Weight divided among stripes
+        TinyLfuCache<Integer, String> striped = new TinyLfuCache<Integer, String>(100000, 100000, String::length, ETERNAL);
+        final long maxEntryWeight = striped.getMaxEntryWeight();
+        assertTrue(maxEntryWeight <= 100000);
+        striped.put(1, new String(new char[(int) maxEntryWeight]));
+        assertNotNull(striped.get(1));
+        striped.put(2, new String(new char[(int) maxEntryWeight + 1]));
+        assertNull(striped.get(2));
+        assertEquals(Long.MAX_VALUE, new TinyLfuCache<Integer, String>(100, 0, String::length, ETERNAL).getMaxEntryWeight());
+    }
+
+    /**
+     * Frequently used entries survive a scan of entries used once, which would flush an LRU cache
+     */
+    @Test
+    public void scanResistanceTest() throws Exception {
+
+        TinyLfuCache<Integer, String> cache = new TinyLfuCache<Integer, String>(100, 0, String::length, ETERNAL);
+        for (int i = 0; i < 50; i++) {
+            cache.put(i, "hot " + i);
+        }
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 50; i++) {
+                assertEquals("hot " + i, cache.get(i));
+            }
+        }
+
+        for (int i = 1000; i < 3000; i++) {
+            cache.put(i, "scan " + i);
+            if (i % 4 == 0) {
+                // Hot keys keep being used during the scan, less often than an LRU cache would need to keep them
+                cache.get((i / 4) % 50);
+            }
+        }
+        int retained = 0;
+        for (int i = 0; i < 50; i++) {
+            if (cache.get(i) != null) {
+                retained++;
+            }
+        }
+        assertEquals(50, retained);
+        assertEquals(100, cache.size());
+    }
+
+    @Test
+    public void expiryTest() throws Exception {
+
+        TinyLfuCache<Integer, String> cache = new TinyLfuCache<Integer, String>(100, 0, String::length,
+                new CreatedAccessedExpiryPolicy(new Duration(TimeUnit.MILLISECONDS, 100), null));
+        cache.put(1, "one");
+        assertEquals("one", cache.get(1));
+        Thread.sleep(150);
+        assertNull(cache.get(1));
+        assertEquals(0, cache.size());
+
+        // Idle entries expire, accessed entries do not
+        cache = new TinyLfuCache<Integer, String>(100, 0, String::length, new CreatedAccessedExpiryPolicy(new Duration(
+                TimeUnit.SECONDS, 10), new Duration(TimeUnit.MILLISECONDS, 200)));
+        cache.put(1, "one");
+        cache.put(2, "two");
+        assertEquals("two", cache.get(2));
+        for (int i = 0; i < 4; i++) {
+            Thread.sleep(100);
+            assertEquals("one", cache.get(1));
+        }
+        assertNull(cache.get(2));
+
+        // Immediate expiration : not stored
+        cache = new TinyLfuCache<Integer, String>(100, 0, String::length, new CreatedAccessedExpiryPolicy(Duration.ZERO, null));
+        cache.put(1, "one");
+        assertNull(cache.get(1));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void concurrencyTest() throws Exception {
+
+        final TinyLfuCache<Integer, String> cache = new TinyLfuCache<Integer, String>(1000, 0, String::length, ETERNAL);
+        final List<Thread> threads = new ArrayList<Thread>();
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        for (int t = 0; t < 8; t++) {
+            threads.add(new Thread(() -> {
+                try {
+                    final ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int i = 0; i < 100000; i++) {
+                        final int key = random.nextInt(5000);
+                        final String value = cache.get(key);
+                        if (value == null) {
+                            cache.put(key, Integer.toString(key));
+                        } else {
+                            assertEquals(Integer.toString(key), value);
+                        }
+                    }
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(failures.toString(), failures.isEmpty());
+        assertTrue(cache.size() <= 1000);
+    }
+
+}
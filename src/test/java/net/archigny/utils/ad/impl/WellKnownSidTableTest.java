@@ -0,0 +1,92 @@
+package net.archigny.utils.ad.impl;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.ldaptive.LdapException;
+import org.ldaptive.ad.SecurityIdentifier;
+
+public class WellKnownSidTableTest {
+
+    public final static String BASE_DN = "DC=TEST,DC=CH-POITIERS,DC=FR";
+
+    @Test
+    public void defaultEntriesTest() {
+
+        WellKnownSidTable table = new WellKnownSidTable();
+        table.init(BASE_DN);
+
+        assertEquals(WellKnownSidTable.DEFAULT_ENTRIES.size(), table.size());
+        assertEquals("CN=Users,CN=Builtin," + BASE_DN, table.get(SidKey.parse("S-1-5-32-545")));
+        assertEquals("CN=Authenticated Users,CN=WellKnown Security Principals,CN=Configuration," + BASE_DN,
+                table.get(SidKey.parse("S-1-5-11")));
+        assertNull(table.get(SidKey.parse("S-1-5-21-4134179593-3124312333-3049290500-1105")));
+    }
+
+    @Test
+    public void overridesTest() {
+
+        Map<String, String> entries = new HashMap<String, String>();
+        entries.put("S-1-5-32-545", "CN=Utilisateurs,CN=Builtin");
+        entries.put("S-1-5-11", "");
+        entries.put("S-1-5-21-4134179593-3124312333-3049290500-513", "CN=Domain Users,CN=Users");
+
+        WellKnownSidTable table = new WellKnownSidTable();
+        table.setDomainRoot("DC=EXAMPLE,DC=COM");
+        table.setEntries(entries);
+        table.init(BASE_DN);
+
+        assertEquals("CN=Utilisateurs,CN=Builtin,DC=EXAMPLE,DC=COM", table.get(SidKey.parse("S-1-5-32-545")));
+        assertNull(table.get(SidKey.parse("S-1-5-11")));
+        assertEquals("CN=Domain Users,CN=Users,DC=EXAMPLE,DC=COM",
+                table.get(SidKey.parse("S-1-5-21-4134179593-3124312333-3049290500-513")));
+
+        // Values fetched from directory
+        Map<SidKey, String> found = new HashMap<SidKey, String>();
+        found.put(SidKey.parse("S-1-5-32-544"), "CN=Administrateurs,CN=Builtin,DC=EXAMPLE,DC=COM");
+        found.put(SidKey.parse("S-1-5-32-9999"), "CN=Unknown,CN=Builtin,DC=EXAMPLE,DC=COM");
+        table.override(found);
+        assertEquals("CN=Administrateurs,CN=Builtin,DC=EXAMPLE,DC=COM", table.get(SidKey.parse("S-1-5-32-544")));
+        assertNull(table.get(SidKey.parse("S-1-5-32-9999")));
+    }
+
+    @Test
+    public void registryTest() {
+
+        WellKnownSidTable table = new WellKnownSidTable();
+        table.setIncludeDefaults(false);
+        table.setEntries(Collections.singletonMap("S-1-5-32-545", "CN=Users,CN=Builtin"));
+
+        // Directory is never queried
+        SimpleADTokenGroupsRegistry registry = new SimpleADTokenGroupsRegistry();
+        registry.setLdapConnectionFactory(() -> {
+            throw new LdapException("No directory");
+        });
+        registry.setBaseDN("OU=Groupes," + BASE_DN);
+        registry.setWellKnownSidTable(table);
+        registry.afterPropertiesSet();
+
+        try {
+            byte[] token = SecurityIdentifier.toBytes("S-1-5-32-545");
+            assertEquals("CN=Users,CN=Builtin," + BASE_DN, registry.getDnFromToken(token));
+            assertEquals("CN=Users,CN=Builtin," + BASE_DN, registry.getDnsFromTokens(Arrays.asList(token)).get("S-1-5-32-545"));
+        } finally {
+            registry.destroy();
+        }
+    }
+
+    @Test
+    public void domainRootTest() {
+
+        assertEquals(BASE_DN, SimpleADTokenGroupsRegistry.domainRootOf("OU=Groupes,OU=Site," + BASE_DN));
+        assertEquals(BASE_DN, SimpleADTokenGroupsRegistry.domainRootOf(BASE_DN));
+        assertNull(SimpleADTokenGroupsRegistry.domainRootOf("O=Example"));
+        assertNull(SimpleADTokenGroupsRegistry.domainRootOf(null));
+    }
+
+}